@@ -0,0 +1,19 @@
+package com.brinvex.dms.api;
+
+import java.time.LocalDate;
+
+import static java.util.Objects.requireNonNull;
+
+public record DatePeriod(
+        LocalDate startDateIncl,
+        LocalDate endDateIncl
+) {
+    public DatePeriod {
+        requireNonNull(startDateIncl);
+        requireNonNull(endDateIncl);
+        if (endDateIncl.isBefore(startDateIncl)) {
+            throw new IllegalArgumentException("endDateIncl=%s must not be before startDateIncl=%s"
+                    .formatted(endDateIncl, startDateIncl));
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.brinvex.dms.api;
 
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
@@ -10,6 +12,7 @@ import java.util.SequencedCollection;
 import java.util.SequencedMap;
 import java.util.SequencedSet;
 import java.util.function.Function;
+import java.util.stream.Stream;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
@@ -28,6 +31,41 @@ public interface Dms {
      */
     SequencedCollection<String> getKeys(String directory);
 
+    /**
+     * Retrieves at most {@code limit} keys within the specified directory,
+     * starting with the given prefix and greater than {@code startAfter}.
+     * Both {@code prefix} and {@code startAfter} are optional.
+     * The returned collection is sorted in ascending order.
+     * Use the last returned key as {@code startAfter} to retrieve the next page.
+     */
+    SequencedCollection<String> getKeys(String directory, String prefix, String startAfter, int limit);
+
+    /**
+     * Lazily streams the keys within the specified directory,
+     * starting with the given prefix and greater than {@code startAfter}, in ascending order.
+     * The keys are retrieved page by page as the stream is consumed.
+     */
+    Stream<String> streamKeys(String directory, String prefix, String startAfter);
+
+    /**
+     * Retrieves the names of the subdirectories of the given parent directory,
+     * or of the top-level directories if {@code parent} is {@code null}.
+     * The returned collection is sorted in ascending order.
+     */
+    SequencedCollection<String> getDirectories(String parent);
+
+    /**
+     * Streams the keys of the given directory and of all its subdirectories,
+     * or of the whole workspace if {@code directory} is {@code null}.
+     * The directories are ordered by their path segments, each directory followed by its subdirectories,
+     * and the keys within a directory are in ascending order.
+     * Within a directory these are the keys {@link #getKeys(String)} returns without the names of the subdirectories,
+     * which are walked instead.
+     * The directory tree is traversed in parallel when the stream is created,
+     * the keys are retrieved directory by directory as the stream is consumed.
+     */
+    Stream<DmsKey> walkKeys(String directory);
+
     /**
      * Adds a new document under the given key.
      * If a document with the given key already exists, this method will throw an exception.
@@ -89,6 +127,12 @@ public interface Dms {
      */
     boolean exists(String directory, String key);
 
+    /**
+     * Returns the statistics of the key filters speeding up {@code exists} and {@code add} of new keys,
+     * all zeros if the filters are disabled.
+     */
+    DmsKeyFilterStats getKeyFilterStats();
+
     /**
      * Retrieves the text content associated with the specified key and charset.
      */
@@ -103,6 +147,27 @@ public interface Dms {
         return getTextContent(directory, key, UTF_8);
     }
 
+    /**
+     * Streams the text contents of all the documents within the specified directory, in the order of {@link #getKeys(String)}.
+     * The documents are read ahead of the consumer concurrently, bounded by the given number of documents
+     * and by the total size of the documents read and not yet consumed.
+     * The keys are listed when the stream is created, the documents deleted meanwhile are skipped.
+     * A document which cannot be decoded with the charset fails the stream when it is reached,
+     * with an {@link java.io.UncheckedIOException} caused by a {@link java.nio.charset.CharacterCodingException},
+     * like {@link #getTextContent(String, String, Charset)}.
+     * The stream should be closed to stop the reading ahead when it is not consumed to the end.
+     */
+    Stream<DmsDocument<String>> readAll(String directory, Charset charset, DmsReadAheadOptions options);
+
+    /**
+     * Streams the text contents of all the documents within the specified directory with the default read-ahead options.
+     *
+     * @see #readAll(String, Charset, DmsReadAheadOptions)
+     */
+    default Stream<DmsDocument<String>> readAll(String directory, Charset charset) {
+        return readAll(directory, charset, DmsReadAheadOptions.defaults());
+    }
+
     /**
      * Retrieves the text lines associated with the specified key and charset.
      */
@@ -123,22 +188,82 @@ public interface Dms {
 
     List<String> getTextLines(String directory, String key, int limit, Charset charset, Charset alternativeCharset);
 
+    /**
+     * Retrieves at most {@code count} text lines starting at the zero-based line {@code fromLine}.
+     * Repeated reads of large documents use a persisted sparse line-offset index to seek close to {@code fromLine}.
+     */
+    List<String> getTextLines(String directory, String key, long fromLine, int count, Charset charset);
+
+    default List<String> getTextLines(String directory, String key, long fromLine, int count) {
+        return getTextLines(directory, key, fromLine, count, UTF_8);
+    }
+
+    /**
+     * Retrieves at most {@code count} last text lines, reading the document from its end.
+     */
+    List<String> getTailLines(String directory, String key, int count, Charset charset);
+
+    default List<String> getTailLines(String directory, String key, int count) {
+        return getTailLines(directory, key, count, UTF_8);
+    }
+
     /**
      * Retrieves the binary content associated with the specified key.
      */
     byte[] getBinaryContent(String directory, String key);
 
+    /**
+     * Retrieves at most {@code length} bytes of the binary content starting at the given byte offset.
+     */
+    byte[] getBinaryContent(String directory, String key, long offset, int length);
+
     default Map<String, String> getPropertiesContent(String directory, String key) {
         return getPropertiesContent(directory, key, DEFAULT_CHARSET);
     }
 
     /**
      * Loads the {@link Map} object from a file associated with the specified key.
+     * The returned map is a new modifiable copy, in the order of the file.
      */
     Map<String, String> getPropertiesContent(String directory, String key, Charset charset);
 
     LocalDateTime getLastModifiedTime(String directory, String key);
 
+    /**
+     * Retrieves the binary content together with its version token.
+     * The content and the version are read consistently with the concurrent writes made through this library.
+     */
+    DmsVersioned<byte[]> getBinaryContentWithVersion(String directory, String key);
+
+    /**
+     * Retrieves the text content together with its version token.
+     * The content and the version are read consistently with the concurrent writes made through this library.
+     */
+    DmsVersioned<String> getTextContentWithVersion(String directory, String key, Charset charset);
+
+    default DmsVersioned<String> getTextContentWithVersion(String directory, String key) {
+        return getTextContentWithVersion(directory, key, DEFAULT_CHARSET);
+    }
+
+    /**
+     * Replaces the document only if its current version is {@code expectedVersion}
+     * or, if {@code expectedVersion} is {@code null}, adds the document only if it does not exist.
+     * The check and the replacement are atomic with respect to the other writes made through this library.
+     * The replaced version is kept as an obsolete version, the same way as by {@link #put(String, String, byte[])}.
+     *
+     * @return the version token of the new content, or {@code null} if the current version differs and nothing was written
+     */
+    String putIfVersion(String directory, String key, byte[] binaryContent, String expectedVersion);
+
+    /**
+     * Text variant of {@link #putIfVersion(String, String, byte[], String)}.
+     */
+    String putIfVersion(String directory, String key, String textContent, Charset charset, String expectedVersion);
+
+    default String putIfVersion(String directory, String key, String textContent, String expectedVersion) {
+        return putIfVersion(directory, key, textContent, DEFAULT_CHARSET, expectedVersion);
+    }
+
     /**
      * Soft-deletes the document associated with the given key.
      */
@@ -149,6 +274,72 @@ public interface Dms {
      */
     void delete(String directory, Collection<String> keys);
 
+    /**
+     * Copies the document to the destination key with the semantics of {@code put}:
+     * a document already existing at the destination is kept as an overridden version.
+     * The content is not read into memory; where the filesystem allows, the destination is a hard link to the source.
+     *
+     * @return {@code true} if the destination key did not exist before
+     */
+    boolean copy(String srcDirectory, String srcKey, String dstDirectory, String dstKey);
+
+    /**
+     * Copies the document as {@link #copy(String, String, String, String)} does and then soft-deletes the source.
+     * If the source was replaced meanwhile, the new version is kept in place and only the copied version is moved.
+     *
+     * @return {@code true} if the destination key did not exist before
+     */
+    boolean move(String srcDirectory, String srcKey, String dstDirectory, String dstKey);
+
+    /**
+     * Copies all the documents of the source directory to the destination directory under the same keys.
+     *
+     * @return the number of the copied documents
+     */
+    int copyAll(String srcDirectory, String dstDirectory);
+
+    /**
+     * Moves all the documents of the source directory to the destination directory under the same keys,
+     * as {@link #move(String, String, String, String)} does.
+     * The documents deleted from the source directory while it is being moved are skipped.
+     *
+     * @return the number of the moved documents
+     */
+    int moveAll(String srcDirectory, String dstDirectory);
+
+    /**
+     * Takes a read-only snapshot of the current documents of the workspace, not including their obsolete versions.
+     * The writes to the workspace are held back while the snapshot is taken, the reads of the snapshot never block them.
+     * The document content is not copied; where the filesystem allows, the snapshot consists of hard links.
+     * The returned snapshot must be closed.
+     */
+    DmsSnapshot snapshot();
+
+    /**
+     * Retrieves the changes(add, put, delete, purge) recorded after the given cursor, in the order they were made.
+     * Use {@code 0} to read from the beginning of the change feed
+     * and the {@link DmsChange#cursor()} of the last returned change to resume reading.
+     * The change feed starts over when the workspace is reset,
+     * a cursor obtained before is then rejected with an {@link IllegalArgumentException}.
+     */
+    List<DmsChange> getChanges(long cursor, int limit);
+
+    /**
+     * Retrieves the changes recorded after the given cursor in the specified directory.
+     * The cursor is shared with {@link #getChanges(long, int)}.
+     * Use the returned {@link DmsChangePage#cursor()} to resume reading,
+     * it moves forward even if none of the scanned changes was in the directory.
+     */
+    DmsChangePage getChanges(String directory, long cursor, int limit);
+
+    /**
+     * Discards the changes up to and including the one at the given cursor, so that the change feed does not grow without bound.
+     * The cursors of the kept changes stay valid; reading from a discarded cursor is rejected with an {@link IllegalArgumentException}.
+     *
+     * @return the number of the discarded changes
+     */
+    int truncateChanges(long cursor);
+
     <KEY> SequencedMap<KEY, String> getRedundantPeriodKeys(
             String directory,
             Function<String, KEY> keyFnc,
@@ -156,12 +347,70 @@ public interface Dms {
             Function<KEY, LocalDate> keyEndDateInclFnc
     );
 
+    /**
+     * Returns the keys whose periods are covered by the other keys.
+     * The date functions are called once per key, in the calling thread; large inputs are then sorted in parallel.
+     */
     <KEY> SequencedSet<KEY> getRedundantPeriodKeys(
             Collection<KEY> keys,
             Function<KEY, LocalDate> keyStartDateInclFnc,
             Function<KEY, LocalDate> keyEndDateInclFnc
     );
 
+    /**
+     * Soft-deletes the redundant period documents in all the directories of the workspace matching one of the rules;
+     * the first matching rule applies.
+     * The directories are processed in parallel as a maintenance operation, the documents are deleted in batches.
+     */
+    DmsCompactionReport compactPeriods(List<DmsCompactionRule<?>> rules, DmsCompactionOptions options);
+
+    /**
+     * Returns the storage usage of the documents in the specified directory, not including its subdirectories.
+     * The usage is maintained incrementally by the writes and persisted, so it does not require walking the directory.
+     */
+    DmsUsage getUsage(String directory);
+
+    /**
+     * Returns the storage usage of all the documents in the workspace.
+     */
+    DmsUsage getUsage();
+
+    /**
+     * Searches the text documents in the specified directory and returns the keys of those containing all the query terms,
+     * sorted in ascending order.
+     * The terms are matched case-insensitively as whole runs of letters and digits;
+     * terms enclosed in double quotes must occur as a phrase.
+     * The documents are decoded like {@link #getTextContent(String, String, Charset, Charset)}.
+     * The directory is indexed on the first search and the index is then kept up to date and persisted,
+     * so only the directories which are searched pay for indexing.
+     */
+    SequencedCollection<String> search(String directory, String query, int limit, Charset charset, Charset alternativeCharset);
+
+    /**
+     * Searches the text documents in the specified directory using the default charset (UTF-8).
+     *
+     * @see #search(String, String, int, Charset, Charset)
+     */
+    default SequencedCollection<String> search(String directory, String query, int limit) {
+        return search(directory, query, limit, DEFAULT_CHARSET, null);
+    }
+
+    /**
+     * Retrieves the named index of the period documents in the specified directory,
+     * answering coverage, gap and redundancy queries without re-listing the directory.
+     * The index is built on the first call with the given name and then updated by the writes made through this {@code Dms}.
+     * Later calls with the same directory and name return the same index, keeping the functions of the first call.
+     * A key for which the functions fail is left out of the index, like a key mapped to {@code null}.
+     * An index obtained before this {@code Dms} was evicted by its factory is no longer updated.
+     */
+    <KEY> PeriodIndex<KEY> getPeriodIndex(
+            String directory,
+            String indexName,
+            Function<String, KEY> keyFnc,
+            Function<KEY, LocalDate> keyStartDateInclFnc,
+            Function<KEY, LocalDate> keyEndDateInclFnc
+    );
+
     /**
      * Permanently hard-deletes all obsolete(deleted or overridden) documents matching the given criteria.
      */
@@ -181,6 +430,19 @@ public interface Dms {
         return purge(directory, null, null);
     }
 
+    /**
+     * Streams the workspace documents matching the given options to the channel as a tar archive.
+     * Returns the number of exported documents.
+     */
+    int exportWorkspace(WritableByteChannel channel, DmsExportOptions options);
+
+    /**
+     * Imports the documents from a tar archive produced by {@link #exportWorkspace(WritableByteChannel, DmsExportOptions)}.
+     * Live documents are put into the workspace, obsolete versions are restored unless they already exist.
+     * Returns the number of imported documents.
+     */
+    int importWorkspace(ReadableByteChannel channel);
+
     /**
      * Soft-deletes the entire workspace and initializes a new one.
      */
@@ -0,0 +1,26 @@
+package com.brinvex.dms.api;
+
+import java.time.LocalDateTime;
+
+/**
+ * A single entry of the change feed returned by {@link Dms#getChanges(long, int)}.
+ * The {@code cursor} points right behind this change and can be used to resume reading.
+ */
+public record DmsChange(
+        long cursor,
+        LocalDateTime timestamp,
+        Type type,
+        String directory,
+        String key
+) {
+    public enum Type {
+        ADD,
+        PUT,
+        DELETE,
+        PURGE,
+        /**
+         * An obsolete version of the key was imported, the current version is unchanged.
+         */
+        HISTORY
+    }
+}
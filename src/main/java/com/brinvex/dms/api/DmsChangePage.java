@@ -0,0 +1,16 @@
+package com.brinvex.dms.api;
+
+import java.util.List;
+
+/**
+ * Changes returned by {@link Dms#getChanges(String, long, int)}.
+ *
+ * @param changes the changes of the directory, in the order they were made
+ * @param cursor  the cursor to resume reading from, behind the last change read from the change feed,
+ *                which may be behind the last returned change when the changes following it were in other directories
+ */
+public record DmsChangePage(
+        List<DmsChange> changes,
+        long cursor
+) {
+}
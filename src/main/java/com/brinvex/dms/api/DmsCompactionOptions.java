@@ -0,0 +1,48 @@
+package com.brinvex.dms.api;
+
+/**
+ * Options of {@link Dms#compactPeriods(java.util.List, DmsCompactionOptions)}.
+ *
+ * @param dryRun              whether only the report is made, without deleting anything
+ * @param parallelism         number of the directories compacted at once
+ * @param batchSize           maximum number of the documents soft-deleted by one delete call
+ * @param maxDeletesPerSecond maximum rate of the soft-deletes in the whole workspace, {@code 0} for unlimited
+ */
+public record DmsCompactionOptions(
+        boolean dryRun,
+        int parallelism,
+        int batchSize,
+        int maxDeletesPerSecond
+) {
+    public DmsCompactionOptions {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive: %s".formatted(parallelism));
+        }
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive: %s".formatted(batchSize));
+        }
+        if (maxDeletesPerSecond < 0) {
+            throw new IllegalArgumentException("maxDeletesPerSecond must not be negative: %s".formatted(maxDeletesPerSecond));
+        }
+    }
+
+    public static DmsCompactionOptions defaults() {
+        return new DmsCompactionOptions(false, 4, 100, 0);
+    }
+
+    public DmsCompactionOptions withDryRun(boolean dryRun) {
+        return new DmsCompactionOptions(dryRun, parallelism, batchSize, maxDeletesPerSecond);
+    }
+
+    public DmsCompactionOptions withParallelism(int parallelism) {
+        return new DmsCompactionOptions(dryRun, parallelism, batchSize, maxDeletesPerSecond);
+    }
+
+    public DmsCompactionOptions withBatchSize(int batchSize) {
+        return new DmsCompactionOptions(dryRun, parallelism, batchSize, maxDeletesPerSecond);
+    }
+
+    public DmsCompactionOptions withMaxDeletesPerSecond(int maxDeletesPerSecond) {
+        return new DmsCompactionOptions(dryRun, parallelism, batchSize, maxDeletesPerSecond);
+    }
+}
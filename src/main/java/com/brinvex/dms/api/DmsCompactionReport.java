@@ -0,0 +1,24 @@
+package com.brinvex.dms.api;
+
+import java.util.List;
+import java.util.SequencedMap;
+
+/**
+ * Result of {@link Dms#compactPeriods(List, DmsCompactionOptions)}.
+ *
+ * @param dryRun              whether nothing was deleted
+ * @param scannedDirectories  number of the directories matched by a rule
+ * @param redundantKeys       the redundant keys by directory, only the directories having some, sorted by directory
+ * @param deletedKeys         number of the documents soft-deleted, fewer than the redundant ones
+ *                            if some of them were deleted concurrently
+ */
+public record DmsCompactionReport(
+        boolean dryRun,
+        int scannedDirectories,
+        SequencedMap<String, List<String>> redundantKeys,
+        int deletedKeys
+) {
+    public int redundantKeyCount() {
+        return redundantKeys.values().stream().mapToInt(List::size).sum();
+    }
+}
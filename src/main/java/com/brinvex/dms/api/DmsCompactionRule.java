@@ -0,0 +1,43 @@
+package com.brinvex.dms.api;
+
+import java.time.LocalDate;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Tells how to find the redundant period documents in the directories matching the pattern,
+ * see {@link Dms#getRedundantPeriodKeys(String, Function, Function, Function)}.
+ *
+ * @param directoryPattern    pattern the whole '/'-separated directory path must match, e.g. {@code broker/[^/]+/statements}
+ * @param keyFnc              parses the document key, the keys for which it returns {@code null} are left alone
+ * @param keyStartDateInclFnc the first date of the period covered by the document
+ * @param keyEndDateInclFnc   the last date of the period covered by the document
+ */
+public record DmsCompactionRule<KEY>(
+        Pattern directoryPattern,
+        Function<String, KEY> keyFnc,
+        Function<KEY, LocalDate> keyStartDateInclFnc,
+        Function<KEY, LocalDate> keyEndDateInclFnc
+) {
+    public DmsCompactionRule {
+        requireNonNull(directoryPattern);
+        requireNonNull(keyFnc);
+        requireNonNull(keyStartDateInclFnc);
+        requireNonNull(keyEndDateInclFnc);
+    }
+
+    public static <KEY> DmsCompactionRule<KEY> of(
+            String directoryRegex,
+            Function<String, KEY> keyFnc,
+            Function<KEY, LocalDate> keyStartDateInclFnc,
+            Function<KEY, LocalDate> keyEndDateInclFnc
+    ) {
+        return new DmsCompactionRule<>(Pattern.compile(directoryRegex), keyFnc, keyStartDateInclFnc, keyEndDateInclFnc);
+    }
+
+    public boolean matches(String directory) {
+        return directoryPattern.matcher(directory).matches();
+    }
+}
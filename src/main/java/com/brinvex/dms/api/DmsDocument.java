@@ -0,0 +1,13 @@
+package com.brinvex.dms.api;
+
+/**
+ * Content of a document together with its key.
+ *
+ * @param key     the document key within the directory
+ * @param content the document content
+ */
+public record DmsDocument<CONTENT>(
+        String key,
+        CONTENT content
+) {
+}
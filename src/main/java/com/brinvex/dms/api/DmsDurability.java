@@ -0,0 +1,21 @@
+package com.brinvex.dms.api;
+
+/**
+ * Defines when the written documents are forced(fsync) to the storage device.
+ */
+public enum DmsDurability {
+    /**
+     * Documents are never forced, the operating system decides when to write them.
+     * A power loss can lose acknowledged writes.
+     */
+    NONE,
+    /**
+     * Every write is forced before it returns.
+     */
+    PER_WRITE,
+    /**
+     * Every write is forced before it returns,
+     * but the forces requested by concurrent writers within a small time window are done in one batch.
+     */
+    GROUP_COMMIT
+}
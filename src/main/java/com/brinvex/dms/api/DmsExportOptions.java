@@ -0,0 +1,33 @@
+package com.brinvex.dms.api;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+
+/**
+ * Options of {@link Dms#exportWorkspace(java.nio.channels.WritableByteChannel, DmsExportOptions)}.
+ *
+ * @param directories    directories to export including their subdirectories, {@code null} exports the whole workspace
+ * @param modifiedSince  only documents modified at or after this time are exported, {@code null} exports all of them
+ * @param includeHistory whether the obsolete(deleted or overridden) document versions are exported too
+ */
+public record DmsExportOptions(
+        Collection<String> directories,
+        LocalDateTime modifiedSince,
+        boolean includeHistory
+) {
+    public static DmsExportOptions all() {
+        return new DmsExportOptions(null, null, false);
+    }
+
+    public DmsExportOptions withDirectories(Collection<String> directories) {
+        return new DmsExportOptions(directories, modifiedSince, includeHistory);
+    }
+
+    public DmsExportOptions withModifiedSince(LocalDateTime modifiedSince) {
+        return new DmsExportOptions(directories, modifiedSince, includeHistory);
+    }
+
+    public DmsExportOptions withIncludeHistory(boolean includeHistory) {
+        return new DmsExportOptions(directories, modifiedSince, includeHistory);
+    }
+}
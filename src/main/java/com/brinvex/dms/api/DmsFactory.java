@@ -4,11 +4,49 @@ import com.brinvex.dms.internal.FilesystemDmsFactoryImpl;
 
 import java.nio.file.Path;
 
-public interface DmsFactory {
+/**
+ * Creates and caches the {@link Dms} instances of workspaces.
+ * Closing the factory releases the cached instances and the shared background resources.
+ */
+public interface DmsFactory extends AutoCloseable {
 
+    /**
+     * Returns a handle of the workspace.
+     * Each call on the handle runs on the cached instance of the workspace, which is created if it was evicted meanwhile,
+     * so the handle can be kept for as long as the factory is open.
+     */
     Dms getDms(String workspace);
 
+    DmsFactoryStats getStats();
+
+    /**
+     * Copies the document between workspaces, see {@link Dms#copy(String, String, String, String)}.
+     */
+    boolean copy(String srcWorkspace, String srcDirectory, String srcKey, String dstWorkspace, String dstDirectory, String dstKey);
+
+    /**
+     * Moves the document between workspaces, see {@link Dms#move(String, String, String, String)}.
+     */
+    boolean move(String srcWorkspace, String srcDirectory, String srcKey, String dstWorkspace, String dstDirectory, String dstKey);
+
+    /**
+     * Copies all the documents of the directory between workspaces, e.g. to promote them from a staging workspace.
+     */
+    int copyAll(String srcWorkspace, String srcDirectory, String dstWorkspace, String dstDirectory);
+
+    /**
+     * Moves all the documents of the directory between workspaces.
+     */
+    int moveAll(String srcWorkspace, String srcDirectory, String dstWorkspace, String dstDirectory);
+
+    @Override
+    void close();
+
     static DmsFactory newFilesystemDmsFactory(Path basePath) {
-        return new FilesystemDmsFactoryImpl(basePath);
+        return new FilesystemDmsFactoryImpl(basePath, FilesystemDmsConfig.defaults());
+    }
+
+    static DmsFactory newFilesystemDmsFactory(Path basePath, FilesystemDmsConfig config) {
+        return new FilesystemDmsFactoryImpl(basePath, config);
     }
 }
@@ -0,0 +1,26 @@
+package com.brinvex.dms.api;
+
+/**
+ * Workspace instance and background work metrics of a {@link DmsFactory}.
+ *
+ * @param liveWorkspaces      number of workspace instances currently cached
+ * @param createdWorkspaces   number of workspace instances created since the factory was created
+ * @param evictedWorkspaces   number of workspace instances evicted because they were idle or over the size limit
+ * @param syncRequests        number of files and directories the writes requested to force to the storage device,
+ *                            {@code 0} with {@link DmsDurability#NONE}
+ * @param syncForces          number of files and directories actually forced,
+ *                            lower than {@code syncRequests} when {@link DmsDurability#GROUP_COMMIT} merged requests
+ * @param replicationFailures number of replication operations which failed, each is retried once as a resync
+ * @param waitingOperations   number of operations currently waiting for their turn in the {@link DmsIoScheduling},
+ *                            {@code 0} without I/O scheduling
+ */
+public record DmsFactoryStats(
+        int liveWorkspaces,
+        long createdWorkspaces,
+        long evictedWorkspaces,
+        long syncRequests,
+        long syncForces,
+        long replicationFailures,
+        int waitingOperations
+) {
+}
@@ -0,0 +1,64 @@
+package com.brinvex.dms.api;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Limits of the I/O operations the filesystem {@link Dms} instances of one factory run concurrently.
+ * <p>
+ * The waiting operations are dispatched in weighted fair shares between the workspaces,
+ * so a workspace running a bulk job does not delay the other workspaces beyond their share.
+ * The maintenance operations (purges, exports and imports) yield to the interactive ones,
+ * but one maintenance operation is always allowed to run, so they are not starved.
+ *
+ * @param maxConcurrentOperations             maximum number of operations running at once in all the workspaces
+ * @param maxConcurrentOperationsPerWorkspace maximum number of operations running at once in one workspace
+ * @param maxConcurrentMaintenanceOperations  maximum number of maintenance operations running at once in all the workspaces
+ * @param workspaceWeights                    relative shares of the workspaces, the workspaces not listed have weight 1
+ */
+public record DmsIoScheduling(
+        int maxConcurrentOperations,
+        int maxConcurrentOperationsPerWorkspace,
+        int maxConcurrentMaintenanceOperations,
+        Map<String, Integer> workspaceWeights
+) {
+    public DmsIoScheduling {
+        if (maxConcurrentOperations <= 0) {
+            throw new IllegalArgumentException("maxConcurrentOperations must be positive: %s".formatted(maxConcurrentOperations));
+        }
+        if (maxConcurrentOperationsPerWorkspace <= 0) {
+            throw new IllegalArgumentException("maxConcurrentOperationsPerWorkspace must be positive: %s"
+                    .formatted(maxConcurrentOperationsPerWorkspace));
+        }
+        if (maxConcurrentMaintenanceOperations <= 0) {
+            throw new IllegalArgumentException("maxConcurrentMaintenanceOperations must be positive: %s"
+                    .formatted(maxConcurrentMaintenanceOperations));
+        }
+        workspaceWeights = Map.copyOf(requireNonNull(workspaceWeights));
+        for (Map.Entry<String, Integer> e : workspaceWeights.entrySet()) {
+            if (e.getValue() <= 0) {
+                throw new IllegalArgumentException("Workspace weight must be positive: %s".formatted(e));
+            }
+        }
+    }
+
+    /**
+     * Allows a quarter of the operations to be maintenance operations, all the workspaces have the same weight.
+     */
+    public static DmsIoScheduling of(int maxConcurrentOperations, int maxConcurrentOperationsPerWorkspace) {
+        return new DmsIoScheduling(maxConcurrentOperations, maxConcurrentOperationsPerWorkspace,
+                Math.max(1, maxConcurrentOperations / 4), Map.of());
+    }
+
+    public DmsIoScheduling withMaxConcurrentMaintenanceOperations(int maxConcurrentMaintenanceOperations) {
+        return new DmsIoScheduling(maxConcurrentOperations, maxConcurrentOperationsPerWorkspace, maxConcurrentMaintenanceOperations, workspaceWeights);
+    }
+
+    public DmsIoScheduling withWorkspaceWeight(String workspace, int weight) {
+        Map<String, Integer> newWeights = new HashMap<>(workspaceWeights);
+        newWeights.put(workspace, weight);
+        return new DmsIoScheduling(maxConcurrentOperations, maxConcurrentOperationsPerWorkspace, maxConcurrentMaintenanceOperations, newWeights);
+    }
+}
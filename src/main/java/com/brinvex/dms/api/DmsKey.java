@@ -0,0 +1,13 @@
+package com.brinvex.dms.api;
+
+/**
+ * Key of a document together with its directory.
+ *
+ * @param directory the '/'-separated directory relative to the workspace
+ * @param key       the document key within the directory
+ */
+public record DmsKey(
+        String directory,
+        String key
+) {
+}
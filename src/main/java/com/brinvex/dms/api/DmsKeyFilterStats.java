@@ -0,0 +1,22 @@
+package com.brinvex.dms.api;
+
+/**
+ * Effectiveness of the key filters of a workspace, see {@link FilesystemDmsConfig#keyFilterFalsePositiveRate()}.
+ *
+ * @param lookups        number of the keys looked up in the filters
+ * @param definiteMisses number of the lookups answered by the filters alone, without the filesystem
+ * @param falsePositives number of the lookups the filters could not rule out, but the key did not exist
+ */
+public record DmsKeyFilterStats(
+        long lookups,
+        long definiteMisses,
+        long falsePositives
+) {
+    /**
+     * Returns the share of the absent keys the filters could not rule out.
+     */
+    public double falsePositiveRate() {
+        long negatives = definiteMisses + falsePositives;
+        return negatives == 0 ? 0 : (double) falsePositives / negatives;
+    }
+}
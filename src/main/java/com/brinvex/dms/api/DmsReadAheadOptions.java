@@ -0,0 +1,35 @@
+package com.brinvex.dms.api;
+
+/**
+ * Options of {@link Dms#readAll(String, java.nio.charset.Charset, DmsReadAheadOptions)}.
+ *
+ * @param prefetchCount    maximum number of the documents read ahead of the consumer
+ * @param maxBufferedBytes maximum memory taken by the decoded documents read ahead and not yet consumed,
+ *                         counting two bytes per character and estimated as twice the file size until read;
+ *                         a single document larger than the budget is still read, alone
+ */
+public record DmsReadAheadOptions(
+        int prefetchCount,
+        long maxBufferedBytes
+) {
+    public DmsReadAheadOptions {
+        if (prefetchCount <= 0) {
+            throw new IllegalArgumentException("prefetchCount must be positive: %s".formatted(prefetchCount));
+        }
+        if (maxBufferedBytes <= 0) {
+            throw new IllegalArgumentException("maxBufferedBytes must be positive: %s".formatted(maxBufferedBytes));
+        }
+    }
+
+    public static DmsReadAheadOptions defaults() {
+        return new DmsReadAheadOptions(8, 16 * 1024 * 1024);
+    }
+
+    public DmsReadAheadOptions withPrefetchCount(int prefetchCount) {
+        return new DmsReadAheadOptions(prefetchCount, maxBufferedBytes);
+    }
+
+    public DmsReadAheadOptions withMaxBufferedBytes(long maxBufferedBytes) {
+        return new DmsReadAheadOptions(prefetchCount, maxBufferedBytes);
+    }
+}
@@ -0,0 +1,21 @@
+package com.brinvex.dms.api;
+
+import java.time.LocalDateTime;
+
+/**
+ * Read-only view of a workspace frozen at the moment the snapshot was taken.
+ * The write operations throw {@link UnsupportedOperationException}.
+ * The snapshot holds on to the document versions it contains until it is closed
+ * and must not be used afterward.
+ * <p>
+ * A snapshot must be closed, preferably by try-with-resources: until then its links keep the document versions
+ * on the disk and the writes to the workspace preserve the documents not linked yet.
+ * A snapshot left open by a process which ended is deleted only when the workspace is next opened by a factory.
+ */
+public interface DmsSnapshot extends Dms, AutoCloseable {
+
+    LocalDateTime getSnapshotTime();
+
+    @Override
+    void close();
+}
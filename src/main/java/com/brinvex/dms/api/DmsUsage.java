@@ -0,0 +1,26 @@
+package com.brinvex.dms.api;
+
+/**
+ * Storage usage of a directory or a whole workspace.
+ *
+ * @param liveDocuments    number of the current documents
+ * @param liveBytes        total size of the current documents
+ * @param historyDocuments number of the obsolete (deleted or overridden) document versions which were not purged yet
+ * @param historyBytes     total size of the obsolete document versions
+ */
+public record DmsUsage(
+        long liveDocuments,
+        long liveBytes,
+        long historyDocuments,
+        long historyBytes
+) {
+    public static final DmsUsage EMPTY = new DmsUsage(0, 0, 0, 0);
+
+    public DmsUsage plus(DmsUsage other) {
+        return new DmsUsage(
+                liveDocuments + other.liveDocuments,
+                liveBytes + other.liveBytes,
+                historyDocuments + other.historyDocuments,
+                historyBytes + other.historyBytes);
+    }
+}
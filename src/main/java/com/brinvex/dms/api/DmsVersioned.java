@@ -0,0 +1,14 @@
+package com.brinvex.dms.api;
+
+/**
+ * Content of a document together with the version it was read from.
+ *
+ * @param content the document content
+ * @param version opaque token identifying the version of the document,
+ *                to be passed to {@link Dms#putIfVersion(String, String, byte[], String)} unchanged
+ */
+public record DmsVersioned<CONTENT>(
+        CONTENT content,
+        String version
+) {
+}
@@ -0,0 +1,124 @@
+package com.brinvex.dms.api;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Configuration of the filesystem {@link DmsFactory}.
+ *
+ * @param durability                when the written documents are forced to the storage device
+ * @param groupCommitWindow         how long {@link DmsDurability#GROUP_COMMIT} waits for more writes to join a batch
+ * @param groupCommitMaxBatchSize   maximum number of writes forced in one {@link DmsDurability#GROUP_COMMIT} batch
+ * @param replicaBasePath           existing directory the workspaces are asynchronously replicated to, or null if disabled
+ * @param replicationQueueCapacity  maximum number of changes waiting for replication; writers block when it is reached
+ * @param replicationBatchSize      maximum number of changes applied to the replica in one batch
+ * @param workspaceIdleTimeout      how long an unused workspace instance stays cached by the factory, or null if unlimited
+ * @param maxCachedWorkspaces       maximum number of workspace instances cached by the factory;
+ *                                  the least recently used ones are evicted first
+ * @param ioScheduling              limits and fair sharing of the concurrent operations, or null if not limited
+ * @param keyFilterFalsePositiveRate target false-positive rate of the per-directory key filters answering
+ *                                   {@code exists} and {@code add} without the filesystem, or 0 if disabled
+ * @param charsetDetection          whether the reads with an alternative charset first try the charset
+ *                                  indicated by a byte order mark or by the first bytes, instead of the given order
+ * @param propertiesCacheSize       maximum number of parsed properties documents cached per workspace, or 0 if disabled
+ */
+public record FilesystemDmsConfig(
+        DmsDurability durability,
+        Duration groupCommitWindow,
+        int groupCommitMaxBatchSize,
+        Path replicaBasePath,
+        int replicationQueueCapacity,
+        int replicationBatchSize,
+        Duration workspaceIdleTimeout,
+        int maxCachedWorkspaces,
+        DmsIoScheduling ioScheduling,
+        double keyFilterFalsePositiveRate,
+        boolean charsetDetection,
+        int propertiesCacheSize
+) {
+    public FilesystemDmsConfig {
+        requireNonNull(durability);
+        requireNonNull(groupCommitWindow);
+        if (groupCommitMaxBatchSize <= 0) {
+            throw new IllegalArgumentException("groupCommitMaxBatchSize must be positive: %s".formatted(groupCommitMaxBatchSize));
+        }
+        if (replicationQueueCapacity <= 0) {
+            throw new IllegalArgumentException("replicationQueueCapacity must be positive: %s".formatted(replicationQueueCapacity));
+        }
+        if (replicationBatchSize <= 0) {
+            throw new IllegalArgumentException("replicationBatchSize must be positive: %s".formatted(replicationBatchSize));
+        }
+        if (workspaceIdleTimeout != null && (workspaceIdleTimeout.isNegative() || workspaceIdleTimeout.isZero())) {
+            throw new IllegalArgumentException("workspaceIdleTimeout must be positive: %s".formatted(workspaceIdleTimeout));
+        }
+        if (maxCachedWorkspaces <= 0) {
+            throw new IllegalArgumentException("maxCachedWorkspaces must be positive: %s".formatted(maxCachedWorkspaces));
+        }
+        if (!(keyFilterFalsePositiveRate >= 0 && keyFilterFalsePositiveRate < 1)) {
+            throw new IllegalArgumentException("keyFilterFalsePositiveRate must be in [0, 1): %s".formatted(keyFilterFalsePositiveRate));
+        }
+        if (propertiesCacheSize < 0) {
+            throw new IllegalArgumentException("propertiesCacheSize must not be negative: %s".formatted(propertiesCacheSize));
+        }
+    }
+
+    public static FilesystemDmsConfig defaults() {
+        return new FilesystemDmsConfig(DmsDurability.NONE, Duration.ofMillis(2), 256, null, 10_000, 256, null, Integer.MAX_VALUE, null, 0, false, 1000);
+    }
+
+    public FilesystemDmsConfig withDurability(DmsDurability durability) {
+        return new FilesystemDmsConfig(durability, groupCommitWindow, groupCommitMaxBatchSize,
+                replicaBasePath, replicationQueueCapacity, replicationBatchSize,
+                workspaceIdleTimeout, maxCachedWorkspaces, ioScheduling, keyFilterFalsePositiveRate, charsetDetection, propertiesCacheSize);
+    }
+
+    public FilesystemDmsConfig withGroupCommit(Duration groupCommitWindow, int groupCommitMaxBatchSize) {
+        return new FilesystemDmsConfig(DmsDurability.GROUP_COMMIT, groupCommitWindow, groupCommitMaxBatchSize,
+                replicaBasePath, replicationQueueCapacity, replicationBatchSize,
+                workspaceIdleTimeout, maxCachedWorkspaces, ioScheduling, keyFilterFalsePositiveRate, charsetDetection, propertiesCacheSize);
+    }
+
+    public FilesystemDmsConfig withReplication(Path replicaBasePath) {
+        return new FilesystemDmsConfig(durability, groupCommitWindow, groupCommitMaxBatchSize,
+                replicaBasePath, replicationQueueCapacity, replicationBatchSize,
+                workspaceIdleTimeout, maxCachedWorkspaces, ioScheduling, keyFilterFalsePositiveRate, charsetDetection, propertiesCacheSize);
+    }
+
+    public FilesystemDmsConfig withReplication(Path replicaBasePath, int replicationQueueCapacity, int replicationBatchSize) {
+        return new FilesystemDmsConfig(durability, groupCommitWindow, groupCommitMaxBatchSize,
+                replicaBasePath, replicationQueueCapacity, replicationBatchSize,
+                workspaceIdleTimeout, maxCachedWorkspaces, ioScheduling, keyFilterFalsePositiveRate, charsetDetection, propertiesCacheSize);
+    }
+
+    public FilesystemDmsConfig withWorkspaceEviction(Duration workspaceIdleTimeout, int maxCachedWorkspaces) {
+        return new FilesystemDmsConfig(durability, groupCommitWindow, groupCommitMaxBatchSize,
+                replicaBasePath, replicationQueueCapacity, replicationBatchSize,
+                workspaceIdleTimeout, maxCachedWorkspaces, ioScheduling, keyFilterFalsePositiveRate, charsetDetection, propertiesCacheSize);
+    }
+
+    public FilesystemDmsConfig withIoScheduling(DmsIoScheduling ioScheduling) {
+        return new FilesystemDmsConfig(durability, groupCommitWindow, groupCommitMaxBatchSize,
+                replicaBasePath, replicationQueueCapacity, replicationBatchSize,
+                workspaceIdleTimeout, maxCachedWorkspaces, ioScheduling, keyFilterFalsePositiveRate, charsetDetection, propertiesCacheSize);
+    }
+
+    public FilesystemDmsConfig withKeyFilters(double keyFilterFalsePositiveRate) {
+        return new FilesystemDmsConfig(durability, groupCommitWindow, groupCommitMaxBatchSize,
+                replicaBasePath, replicationQueueCapacity, replicationBatchSize,
+                workspaceIdleTimeout, maxCachedWorkspaces, ioScheduling, keyFilterFalsePositiveRate, charsetDetection, propertiesCacheSize);
+    }
+
+    public FilesystemDmsConfig withCharsetDetection(boolean charsetDetection) {
+        return new FilesystemDmsConfig(durability, groupCommitWindow, groupCommitMaxBatchSize,
+                replicaBasePath, replicationQueueCapacity, replicationBatchSize,
+                workspaceIdleTimeout, maxCachedWorkspaces, ioScheduling, keyFilterFalsePositiveRate, charsetDetection, propertiesCacheSize);
+    }
+
+    public FilesystemDmsConfig withPropertiesCache(int propertiesCacheSize) {
+        return new FilesystemDmsConfig(durability, groupCommitWindow, groupCommitMaxBatchSize,
+                replicaBasePath, replicationQueueCapacity, replicationBatchSize,
+                workspaceIdleTimeout, maxCachedWorkspaces, ioScheduling, keyFilterFalsePositiveRate, charsetDetection, propertiesCacheSize);
+    }
+}
@@ -0,0 +1,28 @@
+package com.brinvex.dms.api;
+
+import java.util.List;
+import java.util.SequencedMap;
+
+/**
+ * An in-memory index of the period documents in one directory.
+ * The index is kept up to date by the writes made through the owning {@link Dms}.
+ */
+public interface PeriodIndex<KEY> {
+
+    /**
+     * Retrieves the keys whose periods overlap the given period, mapped to their raw keys.
+     * The returned map is sorted by the period start and end.
+     */
+    SequencedMap<KEY, String> findCovering(DatePeriod period);
+
+    /**
+     * Retrieves the parts of the given period not covered by any key, in ascending order.
+     */
+    List<DatePeriod> findGaps(DatePeriod period);
+
+    /**
+     * Retrieves the keys whose periods are fully covered by other keys.
+     * See {@link Dms#getRedundantPeriodKeys(java.util.Collection, java.util.function.Function, java.util.function.Function)}.
+     */
+    SequencedMap<KEY, String> findRedundant();
+}
@@ -0,0 +1,398 @@
+package com.brinvex.dms.internal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Replicates the changes on a single background thread.
+ * The changes are queued into a bounded queue; when the replica falls behind and the queue is full,
+ * the writers are blocked until there is space again.
+ * The queued changes are applied in batches, a copy superseded by a later copy of the same path in the batch is skipped
+ * and contiguous appends to the same file are merged into one.
+ * The operations are idempotent: a copy always copies the current primary state,
+ * an append whose start does not match the replica size falls back to a copy,
+ * and a move whose source is missing in the replica falls back to a copy of the target.
+ * <p>
+ * Resyncs never block the caller: when the queue is full, they are deferred until the current batch is applied.
+ * A failed operation is counted and retried once as a resync of its paths after the batch.
+ * An unexpected runtime failure is counted and logged too, but not retried; it never stops the thread,
+ * which would leave the writers blocked on the full queue.
+ */
+class AsyncReplicator implements Replicator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncReplicator.class);
+
+    private static final String TMP_SUFFIX = ".replica-tmp";
+
+    private enum OpType {
+        COPY,
+        APPEND,
+        MOVE,
+        DELETE,
+        RESYNC
+    }
+
+    private record Op(OpType type, Path source, Path target, long startOffset, long endOffset) {
+        Op(OpType type, Path source, Path target) {
+            this(type, source, target, 0, 0);
+        }
+    }
+
+    private static final Op POISON_PILL = new Op(null, null, null);
+
+    private static final Op WAKE_UP = new Op(null, null, null);
+
+    private final Path basePath;
+
+    private final Path replicaBasePath;
+
+    private final int batchSize;
+
+    private final BlockingQueue<Op> queue;
+
+    private final Thread thread;
+
+    private final Set<Path> deferredResyncs = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong failureCount = new AtomicLong();
+
+    AsyncReplicator(Path basePath, Path replicaBasePath, int queueCapacity, int batchSize) {
+        if (!Files.isDirectory(replicaBasePath)) {
+            throw new IllegalArgumentException("replicaBasePath=%s does not exist".formatted(replicaBasePath));
+        }
+        this.basePath = basePath;
+        this.replicaBasePath = replicaBasePath;
+        this.batchSize = batchSize;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.thread = Thread.ofPlatform()
+                .name("dms-replicator")
+                .daemon()
+                .start(this::run);
+    }
+
+    @Override
+    public void copy(Path path) {
+        enqueue(new Op(OpType.COPY, null, path));
+    }
+
+    @Override
+    public void append(Path path, long startOffset, long endOffset) {
+        enqueue(new Op(OpType.APPEND, null, path, startOffset, endOffset));
+    }
+
+    @Override
+    public void move(Path source, Path target) {
+        enqueue(new Op(OpType.MOVE, source, target));
+    }
+
+    @Override
+    public void delete(Path path) {
+        enqueue(new Op(OpType.DELETE, null, path));
+    }
+
+    @Override
+    public void resync(Path path) {
+        if (!queue.offer(new Op(OpType.RESYNC, null, path))) {
+            deferredResyncs.add(path);
+            // The thread may have drained the queue meanwhile, if it did, the queue has space for the wake-up
+            queue.offer(WAKE_UP);
+        }
+    }
+
+    @Override
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /**
+     * Applies all the queued changes and stops the replication thread.
+     */
+    @Override
+    public void close() {
+        enqueue(POISON_PILL);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void enqueue(Op op) {
+        try {
+            queue.put(op);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the replication queue", e);
+        }
+    }
+
+    private void run() {
+        List<Op> batch = new ArrayList<>(batchSize);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, batchSize - 1);
+            boolean stop = batch.removeIf(op -> op == POISON_PILL);
+            batch.removeIf(op -> op == WAKE_UP);
+            try {
+                Set<Path> retries = apply(batch);
+                retries.addAll(deferredResyncs);
+                deferredResyncs.removeAll(retries);
+                for (Path path : retries) {
+                    try {
+                        resyncReplica(path);
+                    } catch (IOException | RuntimeException e) {
+                        failureCount.incrementAndGet();
+                        LOG.error("Replication resync failed: {}", path, e);
+                    }
+                }
+            } catch (RuntimeException e) {
+                failureCount.incrementAndGet();
+                LOG.error("Replication batch failed: {}", batch, e);
+            }
+            batch.clear();
+            if (stop) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the paths of the failed operations to be resynced.
+     */
+    private Set<Path> apply(List<Op> batch) {
+        Set<Path> copiedLater = new HashSet<>();
+        boolean[] superseded = new boolean[batch.size()];
+        for (int i = batch.size() - 1; i >= 0; i--) {
+            Op op = batch.get(i);
+            if (op.type() == OpType.COPY && !copiedLater.add(op.target())) {
+                superseded[i] = true;
+            } else if (op.type() == OpType.APPEND && copiedLater.contains(op.target())) {
+                superseded[i] = true;
+            }
+        }
+        // An append is extended by the later contiguous appends to the same file up to the next move, delete or resync,
+        // the primary file already contains the appended bytes when the first append is applied
+        Map<Path, Integer> openAppends = new HashMap<>();
+        long[] endOffsets = new long[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            Op op = batch.get(i);
+            endOffsets[i] = op.endOffset();
+            if (superseded[i]) {
+                continue;
+            }
+            switch (op.type()) {
+                case APPEND -> {
+                    Integer open = openAppends.get(op.target());
+                    if (open != null && endOffsets[open] == op.startOffset()) {
+                        endOffsets[open] = op.endOffset();
+                        superseded[i] = true;
+                    } else {
+                        openAppends.put(op.target(), i);
+                    }
+                }
+                case MOVE, DELETE, RESYNC -> openAppends.clear();
+                default -> {
+                }
+            }
+        }
+        Set<Path> retries = new LinkedHashSet<>();
+        for (int i = 0; i < batch.size(); i++) {
+            if (superseded[i]) {
+                continue;
+            }
+            Op op = batch.get(i);
+            try {
+                switch (op.type()) {
+                    case COPY -> copyToReplica(op.target());
+                    case APPEND -> appendToReplica(op.target(), op.startOffset(), endOffsets[i]);
+                    case MOVE -> moveInReplica(op.source(), op.target());
+                    case DELETE -> deleteFromReplica(replicaPath(op.target()));
+                    case RESYNC -> resyncReplica(op.target());
+                }
+            } catch (IOException | UncheckedIOException e) {
+                failureCount.incrementAndGet();
+                LOG.error("Replication failed: {}", op, e);
+                if (op.type() != OpType.RESYNC) {
+                    if (op.source() != null) {
+                        retries.add(op.source());
+                    }
+                    retries.add(op.target());
+                }
+            } catch (RuntimeException e) {
+                failureCount.incrementAndGet();
+                LOG.error("Replication failed unexpectedly: {}", op, e);
+            }
+        }
+        return retries;
+    }
+
+    private Path replicaPath(Path primaryPath) {
+        return replicaBasePath.resolve(basePath.relativize(primaryPath).toString());
+    }
+
+    private void copyToReplica(Path primaryPath) throws IOException {
+        Path replicaPath = replicaPath(primaryPath);
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(primaryPath, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            // Moved or deleted meanwhile, a later operation takes care of it
+            return;
+        }
+        if (attrs.isDirectory()) {
+            Files.createDirectories(replicaPath);
+            return;
+        }
+        Files.createDirectories(replicaPath.getParent());
+        Path tmpPath = replicaPath.resolveSibling(replicaPath.getFileName() + TMP_SUFFIX);
+        try {
+            Files.copy(primaryPath, tmpPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            Files.move(tmpPath, replicaPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            Files.deleteIfExists(tmpPath);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmpPath);
+            throw e;
+        }
+    }
+
+    private void appendToReplica(Path primaryPath, long startOffset, long endOffset) throws IOException {
+        Path replicaPath = replicaPath(primaryPath);
+        BasicFileAttributes replicaAttrs;
+        try {
+            replicaAttrs = Files.readAttributes(replicaPath, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            replicaAttrs = null;
+        }
+        if (startOffset == 0 || replicaAttrs == null || replicaAttrs.size() != startOffset) {
+            copyToReplica(primaryPath);
+            return;
+        }
+        long position = startOffset;
+        try (FileChannel source = FileChannel.open(primaryPath, StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(replicaPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (position < endOffset) {
+                long n = source.transferTo(position, endOffset - position, target);
+                if (n <= 0) {
+                    break;
+                }
+                position += n;
+            }
+        } catch (NoSuchFileException e) {
+            // Moved or deleted meanwhile, a later operation takes care of it
+            return;
+        }
+        if (position < endOffset) {
+            // The primary file was replaced by a shorter one meanwhile
+            copyToReplica(primaryPath);
+        }
+    }
+
+    private void moveInReplica(Path primarySource, Path primaryTarget) throws IOException {
+        Path replicaSource = replicaPath(primarySource);
+        Path replicaTarget = replicaPath(primaryTarget);
+        if (Files.exists(replicaSource) && !Files.exists(replicaTarget)) {
+            Files.createDirectories(replicaTarget.getParent());
+            Files.move(replicaSource, replicaTarget);
+        } else {
+            deleteFromReplica(replicaSource);
+            resyncReplica(primaryTarget);
+        }
+    }
+
+    private void deleteFromReplica(Path replicaPath) throws IOException {
+        if (!Files.exists(replicaPath)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(replicaPath)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * Copies the files whose size or modification time differ and deletes the files missing in the primary.
+     */
+    private void resyncReplica(Path primaryPath) throws IOException {
+        Path replicaPath = replicaPath(primaryPath);
+        if (!Files.exists(primaryPath)) {
+            deleteFromReplica(replicaPath);
+            return;
+        }
+        if (!Files.isDirectory(primaryPath)) {
+            copyToReplica(primaryPath);
+            return;
+        }
+        Files.walkFileTree(primaryPath, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(replicaPath(dir));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path replicaFile = replicaPath(file);
+                BasicFileAttributes replicaAttrs = Files.exists(replicaFile)
+                        ? Files.readAttributes(replicaFile, BasicFileAttributes.class) : null;
+                if (replicaAttrs == null
+                    || replicaAttrs.size() != attrs.size()
+                    || !replicaAttrs.lastModifiedTime().equals(attrs.lastModifiedTime())) {
+                    copyToReplica(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Files.walkFileTree(replicaPath, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Path primaryDir = basePath.resolve(replicaBasePath.relativize(dir).toString());
+                if (!Files.exists(primaryDir)) {
+                    deleteFromReplica(dir);
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                // This also removes the temporary copies left behind by a crash, they have no primary file
+                Path primaryFile = basePath.resolve(replicaBasePath.relativize(file).toString());
+                if (!Files.exists(primaryFile)) {
+                    Files.delete(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,350 @@
+package com.brinvex.dms.internal;
+
+import com.brinvex.dms.api.DmsKeyFilterStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.Normalizer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A Bloom filter of the names in each directory, built from the directory listing on first use.
+ * <p>
+ * The writes made through the workspace add the key before the file is created, and again after it,
+ * so neither a lookup concurrent with a write nor a filter rebuilt meanwhile rules the key out;
+ * for these writes the filter is trusted without touching the directory.
+ * The changes made otherwise are detected by comparing the directory modification time with the one the filter was built at,
+ * at most once per {@value #REVALIDATE_INTERVAL_MILLIS} ms per directory, so they may be missed for that long.
+ * Like a listing of the {@link WorkspaceIndex}, a filter whose modification time is within the racy window
+ * of the moment it was taken may miss a change made within the timestamp granularity, so it is built again
+ * once the window has passed instead of being trusted forever.
+ * The keys are hashed case-folded and, if not ASCII, in the composed normalization form,
+ * so that on a case- or normalization-insensitive filesystem a key spelled otherwise than the file name is not ruled out;
+ * on the other filesystems such spellings only add to the false positives.
+ * The deleted keys stay in the filter, they only add to the false positives;
+ * a filter which reached its capacity is built again, larger.
+ * <p>
+ * The filters are saved to the metadata directory, one file per directory, a few seconds after they change.
+ */
+class BloomKeyFilters implements KeyFilters {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BloomKeyFilters.class);
+
+    private static final int MAGIC = 0x444D5342;
+
+    private static final int FORMAT_VERSION = 3;
+
+    private static final long REVALIDATE_INTERVAL_MILLIS = 1_000;
+
+    private static final long SAVE_DELAY_MILLIS = 5_000;
+
+    private static final int MIN_CAPACITY = 1024;
+
+    private static final class BloomFilter {
+        private final long[] bits;
+        private final int hashCount;
+        private final int capacity;
+        private int size;
+        private long directoryModifiedMillis;
+        private long stampedMillis;
+        private long validatedMillis;
+
+        private BloomFilter(int capacity, double falsePositiveRate) {
+            long bitCount = Math.max(64, (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2))));
+            this.bits = new long[(int) Math.min(Integer.MAX_VALUE - 8, (bitCount + 63) / 64)];
+            this.hashCount = Math.max(1, (int) Math.round((double) bits.length * 64 / capacity * Math.log(2)));
+            this.capacity = capacity;
+        }
+
+        private BloomFilter(long[] bits, int hashCount, int capacity, int size, long directoryModifiedMillis, long stampedMillis) {
+            this.bits = bits;
+            this.hashCount = hashCount;
+            this.capacity = capacity;
+            this.size = size;
+            this.directoryModifiedMillis = directoryModifiedMillis;
+            this.stampedMillis = stampedMillis;
+        }
+
+        private synchronized void stamp(long directoryModifiedMillis, long stampedMillis) {
+            this.directoryModifiedMillis = directoryModifiedMillis;
+            this.stampedMillis = stampedMillis;
+            this.validatedMillis = stampedMillis;
+        }
+
+        /**
+         * Returns whether the filter matches the directory modified at the given time.
+         * A racy stamp only matches within the racy window, then the directory has to be listed again.
+         */
+        private synchronized boolean matches(long directoryModifiedMillis, long nowMillis) {
+            boolean racy = this.directoryModifiedMillis >= stampedMillis - WorkspaceIndex.RACY_WINDOW_MILLIS;
+            return this.directoryModifiedMillis == directoryModifiedMillis
+                   && (!racy || nowMillis - stampedMillis < WorkspaceIndex.RACY_WINDOW_MILLIS)
+                   && size <= capacity;
+        }
+
+        private synchronized void add(String key) {
+            long hash = hash(key);
+            int hash1 = (int) hash;
+            int hash2 = (int) (hash >>> 32);
+            long bitCount = (long) bits.length * 64;
+            boolean added = false;
+            for (int i = 0; i < hashCount; i++) {
+                long bit = Math.floorMod(hash1 + (long) i * hash2, bitCount);
+                long mask = 1L << bit;
+                int word = (int) (bit >>> 6);
+                if ((bits[word] & mask) == 0) {
+                    bits[word] |= mask;
+                    added = true;
+                }
+            }
+            if (added) {
+                size++;
+            }
+        }
+
+        private synchronized boolean mightContain(String key) {
+            long hash = hash(key);
+            int hash1 = (int) hash;
+            int hash2 = (int) (hash >>> 32);
+            long bitCount = (long) bits.length * 64;
+            for (int i = 0; i < hashCount; i++) {
+                long bit = Math.floorMod(hash1 + (long) i * hash2, bitCount);
+                if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * FNV-1a over the folded characters followed by the SplitMix64 finalizer, split into the two hashes of double hashing.
+         */
+        private static long hash(String key) {
+            String normalizedKey = isAscii(key) ? key : Normalizer.normalize(key, Normalizer.Form.NFC);
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < normalizedKey.length(); i++) {
+                hash = (hash ^ Character.toLowerCase(Character.toUpperCase(normalizedKey.charAt(i)))) * 0x100000001b3L;
+            }
+            hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+            hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+            return hash ^ (hash >>> 31);
+        }
+
+        private static boolean isAscii(String key) {
+            for (int i = 0; i < key.length(); i++) {
+                if (key.charAt(i) >= 0x80) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final Path workspacePath;
+
+    private final Path filtersPath;
+
+    private final WorkspaceIndex workspaceIndex;
+
+    private final double falsePositiveRate;
+
+    private final Map<String, BloomFilter> filters = new ConcurrentHashMap<>();
+
+    private final Set<String> unsavedDirectories = ConcurrentHashMap.newKeySet();
+
+    private final DelayedAction delayedSave = new DelayedAction("dms-key-filters", SAVE_DELAY_MILLIS, this::save);
+
+    private final LongAdder lookups = new LongAdder();
+
+    private final LongAdder definiteMisses = new LongAdder();
+
+    private final LongAdder falsePositives = new LongAdder();
+
+    BloomKeyFilters(Path workspacePath, Path filtersPath, WorkspaceIndex workspaceIndex, double falsePositiveRate) {
+        this.workspacePath = workspacePath;
+        this.filtersPath = filtersPath;
+        this.workspaceIndex = workspaceIndex;
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    @Override
+    public boolean mightContain(Path directoryPath, String key) {
+        lookups.increment();
+        BloomFilter filter;
+        try {
+            filter = getCurrentFilter(directoryPath);
+        } catch (IOException e) {
+            // E.g. a missing directory, left to the filesystem check
+            return true;
+        }
+        if (filter.mightContain(key)) {
+            return true;
+        }
+        definiteMisses.increment();
+        return false;
+    }
+
+    @Override
+    public void recordFalsePositive() {
+        falsePositives.increment();
+    }
+
+    @Override
+    public void beforeWrite(Path directoryPath, String key) {
+        BloomFilter filter = filters.get(workspaceIndex.toIndexKey(directoryPath));
+        if (filter != null) {
+            filter.add(key);
+        }
+    }
+
+    @Override
+    public void afterWrite(Path directoryPath, String key) {
+        String directory = workspaceIndex.toIndexKey(directoryPath);
+        BloomFilter filter = filters.get(directory);
+        if (filter == null) {
+            return;
+        }
+        if (key != null) {
+            filter.add(key);
+        }
+        // The new stamp is racy, a change made otherwise right before the write is caught once the racy window passes
+        long nowMillis = System.currentTimeMillis();
+        try {
+            filter.stamp(Files.getLastModifiedTime(directoryPath).toMillis(), nowMillis);
+        } catch (IOException e) {
+            filter.stamp(-1, nowMillis);
+        }
+        unsavedDirectories.add(directory);
+        delayedSave.request();
+    }
+
+    @Override
+    public DmsKeyFilterStats getStats() {
+        return new DmsKeyFilterStats(lookups.sum(), definiteMisses.sum(), falsePositives.sum());
+    }
+
+    private BloomFilter getCurrentFilter(Path directoryPath) throws IOException {
+        String directory = workspaceIndex.toIndexKey(directoryPath);
+        BloomFilter filter = filters.computeIfAbsent(directory, this::load);
+        long nowMillis = System.currentTimeMillis();
+        if (filter != null) {
+            synchronized (filter) {
+                if (nowMillis - filter.validatedMillis < REVALIDATE_INTERVAL_MILLIS) {
+                    return filter;
+                }
+            }
+            if (filter.matches(Files.getLastModifiedTime(directoryPath).toMillis(), nowMillis)) {
+                synchronized (filter) {
+                    filter.validatedMillis = nowMillis;
+                }
+                return filter;
+            }
+        }
+        WorkspaceIndex.DirectoryListing listing = workspaceIndex.getListing(directoryPath);
+        int capacity = Math.max(MIN_CAPACITY, listing.names().length * 2);
+        if (filter != null && filter.size > filter.capacity) {
+            capacity = Math.max(capacity, filter.capacity * 2);
+        }
+        BloomFilter newFilter = new BloomFilter(capacity, falsePositiveRate);
+        for (String name : listing.names()) {
+            newFilter.add(name);
+        }
+        newFilter.stamp(listing.directoryModifiedMillis(), listing.racy() ? listing.scannedMillis() : nowMillis);
+        if (filter == null) {
+            filters.putIfAbsent(directory, newFilter);
+        } else {
+            filters.replace(directory, filter, newFilter);
+        }
+        unsavedDirectories.add(directory);
+        delayedSave.request();
+        return newFilter;
+    }
+
+    @Override
+    public void save() {
+        if (!Files.isDirectory(workspacePath)) {
+            return;
+        }
+        for (String directory : Set.copyOf(unsavedDirectories)) {
+            unsavedDirectories.remove(directory);
+            BloomFilter filter = filters.get(directory);
+            if (filter == null) {
+                continue;
+            }
+            Path filterPath = getFilterPath(directory);
+            try {
+                Files.createDirectories(filterPath.getParent());
+                Path tmpPath = filterPath.resolveSibling(filterPath.getFileName() + ".tmp");
+                try (OutputStream fileOut = Files.newOutputStream(tmpPath);
+                     DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(FORMAT_VERSION);
+                    synchronized (filter) {
+                        out.writeLong(filter.directoryModifiedMillis);
+                        out.writeLong(filter.stampedMillis);
+                        out.writeInt(filter.hashCount);
+                        out.writeInt(filter.capacity);
+                        out.writeInt(filter.size);
+                        out.writeInt(filter.bits.length);
+                        for (long word : filter.bits) {
+                            out.writeLong(word);
+                        }
+                    }
+                }
+                Files.move(tmpPath, filterPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                LOG.warn("Failed to save the key filter: {}", filterPath, e);
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        filters.clear();
+        unsavedDirectories.clear();
+    }
+
+    private BloomFilter load(String directory) {
+        Path filterPath = getFilterPath(directory);
+        try (InputStream fileIn = Files.newInputStream(filterPath);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                LOG.warn("Ignoring incompatible key filter: {}", filterPath);
+                return null;
+            }
+            long directoryModifiedMillis = in.readLong();
+            long stampedMillis = in.readLong();
+            int hashCount = in.readInt();
+            int capacity = in.readInt();
+            int size = in.readInt();
+            long[] bits = new long[in.readInt()];
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = in.readLong();
+            }
+            return new BloomFilter(bits, hashCount, capacity, size, directoryModifiedMillis, stampedMillis);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Ignoring unreadable key filter: {}", filterPath, e);
+            return null;
+        }
+    }
+
+    private Path getFilterPath(String directory) {
+        return filtersPath.resolve(directory).resolve("keys.bloom");
+    }
+}
@@ -0,0 +1,381 @@
+package com.brinvex.dms.internal;
+
+import com.brinvex.dms.api.DmsChange;
+import com.brinvex.dms.api.DmsChangePage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Append-only journal of document changes.
+ * The journal starts with a header line holding its random generation, then each change is stored as one line:
+ * {@code timestamp TAB type TAB directory TAB key}, with backslashes, tabs and line breaks in the names escaped.
+ * <p>
+ * The cursor of a change is the byte offset right behind its line in the lower 40 bits and the generation in the upper bits,
+ * so that a cursor obtained before the workspace was reset is rejected instead of pointing into the new journal.
+ * A journal written before the generations were introduced has no header and generation {@code 0}.
+ * <p>
+ * Truncating the journal rewrites it without the changes up to a cursor and records the offset of the first kept change
+ * in the header, so the offsets, and the cursors, of the kept changes stay the same; an older cursor is rejected.
+ * <p>
+ * There is one journal per path, shared by all the instances of the workspace, so the appends of an evicted instance
+ * and of the one replacing it are serialized. The channel for appending is opened on the first append
+ * and kept open until the journal is closed or the last instance releases it.
+ */
+class ChangeJournal {
+
+    private static final Map<Path, ChangeJournal> JOURNALS = new HashMap<>();
+
+    private static final int READ_CHUNK_SIZE = 64 * 1024;
+
+    private static final String HEADER_PREFIX = "#DMS-CHANGES\t";
+
+    private static final int OFFSET_BITS = 40;
+
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    private static final int MAX_GENERATION = 1 << (Long.SIZE - 1 - OFFSET_BITS);
+
+    /**
+     * Byte range of an appended line, including the header if the line started the journal.
+     */
+    record Appended(long startOffset, long endOffset) {
+    }
+
+    /**
+     * The header line; {@code firstOffset} is the offset of the first change, which differs from the header length
+     * once the journal was truncated.
+     */
+    private record Header(long generation, int length, long firstOffset) {
+
+        private long toPosition(long offset) {
+            return offset - firstOffset + length;
+        }
+
+        private long toOffset(long position) {
+            return position - length + firstOffset;
+        }
+    }
+
+    private final Path journalPath;
+
+    private final Path registeredPath;
+
+    private FileChannel channel;
+
+    private int references;
+
+    private ChangeJournal(Path journalPath, Path registeredPath) {
+        this.journalPath = journalPath;
+        this.registeredPath = registeredPath;
+    }
+
+    /**
+     * Returns the journal at the path, to be released by the instance when it is done with it.
+     */
+    static ChangeJournal acquire(Path journalPath) {
+        synchronized (JOURNALS) {
+            ChangeJournal journal = JOURNALS.computeIfAbsent(journalPath.toAbsolutePath().normalize(), k -> new ChangeJournal(journalPath, k));
+            journal.references++;
+            return journal;
+        }
+    }
+
+    void release() {
+        synchronized (JOURNALS) {
+            if (--references == 0) {
+                JOURNALS.remove(registeredPath);
+                close();
+            }
+        }
+    }
+
+    Path getJournalPath() {
+        return journalPath;
+    }
+
+    /**
+     * Closes the channel, e.g. before the workspace directory is moved; the next append opens it again.
+     */
+    synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to close the change journal: %s".formatted(journalPath), e);
+            } finally {
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Appends the change, returning the written byte range.
+     */
+    synchronized Appended append(DmsChange.Type type, String directory, String key) {
+        byte[] line = (LocalDateTime.now() + "\t" + type + "\t" + escape(directory) + "\t" + escape(key) + "\n").getBytes(UTF_8);
+        try {
+            FileChannel channel = getChannel();
+            long startOffset = channel.size();
+            if (startOffset == 0) {
+                int generation = ThreadLocalRandom.current().nextInt(1, MAX_GENERATION);
+                byte[] header = (HEADER_PREFIX + Integer.toHexString(generation) + "\n").getBytes(UTF_8);
+                // A single write, so that a concurrent reader does not see the header alone being written
+                writeFully(channel, ByteBuffer.allocate(header.length + line.length).put(header).put(line).flip(), 0);
+                return new Appended(0, header.length + line.length);
+            }
+            writeFully(channel, ByteBuffer.wrap(line), startOffset);
+            return new Appended(startOffset, startOffset + line.length);
+        } catch (IOException e) {
+            close();
+            throw new UncheckedIOException("Failed to append to the change journal: %s".formatted(journalPath), e);
+        }
+    }
+
+    /**
+     * Forces the appended changes through the open channel.
+     */
+    synchronized void force() {
+        try {
+            if (channel != null) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to force the change journal: %s".formatted(journalPath), e);
+        }
+    }
+
+    /**
+     * Discards the changes up to the cursor, so that the journal does not grow without bound.
+     * The cursors of the kept changes stay valid, the cursors before the given one are rejected afterward.
+     *
+     * @return the number of the discarded changes
+     */
+    synchronized int truncate(long cursor) {
+        if (cursor < 0) {
+            throw new IllegalArgumentException("Invalid cursor: %s".formatted(cursor));
+        }
+        if (cursor == 0) {
+            return 0;
+        }
+        close();
+        Path tmpPath = journalPath.resolveSibling(journalPath.getFileName() + ".tmp");
+        try (FileChannel in = FileChannel.open(journalPath, StandardOpenOption.READ)) {
+            Header header = readHeader(in);
+            long start = toStartPosition(header, cursor, in.size());
+            int discarded = 0;
+            ByteBuffer buf = ByteBuffer.allocate(READ_CHUNK_SIZE);
+            for (long position = header.length(); position < start; ) {
+                buf.clear().limit((int) Math.min(buf.capacity(), start - position));
+                int n = in.read(buf, position);
+                if (n <= 0) {
+                    break;
+                }
+                for (int i = 0; i < n; i++) {
+                    if (buf.get(i) == '\n') {
+                        discarded++;
+                    }
+                }
+                position += n;
+            }
+            long firstOffset = header.toOffset(start);
+            byte[] newHeader = (HEADER_PREFIX + Long.toHexString(header.generation()) + "\t" + Long.toHexString(firstOffset) + "\n")
+                    .getBytes(UTF_8);
+            try (FileChannel out = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)) {
+                writeFully(out, ByteBuffer.wrap(newHeader), 0);
+                out.position(newHeader.length);
+                long size = in.size();
+                for (long position = start; position < size; ) {
+                    position += in.transferTo(position, size - position, out);
+                }
+                out.force(false);
+            }
+            Files.move(tmpPath, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return discarded;
+        } catch (NoSuchFileException e) {
+            throw new IllegalArgumentException(("Cursor is from another generation of the change journal," +
+                                                " the workspace was reset meanwhile: %s").formatted(cursor));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to truncate the change journal: %s".formatted(journalPath), e);
+        }
+    }
+
+    private FileChannel getChannel() throws IOException {
+        if (channel == null) {
+            Files.createDirectories(journalPath.getParent());
+            channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+        return channel;
+    }
+
+    /**
+     * Reads the changes behind the cursor.
+     * The returned cursor is behind the last scanned line, which may be behind the last returned change
+     * if the following lines did not match the directory.
+     */
+    DmsChangePage read(String directory, long cursor, int limit) {
+        if (cursor < 0) {
+            throw new IllegalArgumentException("Invalid cursor: %s".formatted(cursor));
+        }
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Invalid limit: %s".formatted(limit));
+        }
+        List<DmsChange> changes = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.READ)) {
+            Header header = readHeader(channel);
+            long generationBits = header.generation() << OFFSET_BITS;
+            long start = toStartPosition(header, cursor, channel.size());
+            ByteBuffer buf = ByteBuffer.allocate(READ_CHUNK_SIZE);
+            long position = start;
+            long lineStart = start;
+            while (changes.size() < limit) {
+                int n = channel.read(buf, position);
+                if (n <= 0) {
+                    break;
+                }
+                position += n;
+                buf.flip();
+                int from = 0;
+                for (int i = 0; i < buf.limit() && changes.size() < limit; i++) {
+                    if (buf.get(i) == '\n') {
+                        String line = new String(buf.array(), from, i - from, UTF_8);
+                        lineStart += i - from + 1;
+                        from = i + 1;
+                        DmsChange change = parse(line, generationBits | header.toOffset(lineStart));
+                        if (directory == null || directory.equals(change.directory())) {
+                            changes.add(change);
+                        }
+                    }
+                }
+                if (from == 0 && buf.limit() == buf.capacity()) {
+                    ByteBuffer biggerBuf = ByteBuffer.allocate(buf.capacity() * 2);
+                    biggerBuf.put(buf);
+                    buf = biggerBuf;
+                } else {
+                    buf.position(from);
+                    buf.compact();
+                }
+            }
+            return new DmsChangePage(Collections.unmodifiableList(changes),
+                    lineStart == start ? cursor : generationBits | header.toOffset(lineStart));
+        } catch (NoSuchFileException e) {
+            if (cursor != 0) {
+                throw new IllegalArgumentException(("Cursor is from another generation of the change journal," +
+                                                    " the workspace was reset meanwhile: %s").formatted(cursor));
+            }
+            return new DmsChangePage(Collections.emptyList(), 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the change journal: %s".formatted(journalPath), e);
+        }
+    }
+
+    /**
+     * Returns the position of the first change behind the cursor, rejecting a cursor of another generation,
+     * a truncated one and one beyond the end.
+     */
+    private static long toStartPosition(Header header, long cursor, long size) {
+        if (cursor == 0) {
+            return header.length();
+        }
+        if (cursor >>> OFFSET_BITS != header.generation()) {
+            throw new IllegalArgumentException(("Cursor is from another generation of the change journal," +
+                                                " the workspace was reset meanwhile: %s").formatted(cursor));
+        }
+        long offset = cursor & OFFSET_MASK;
+        if (offset < header.firstOffset()) {
+            throw new IllegalArgumentException("Cursor points to the truncated part of the change journal: %s".formatted(cursor));
+        }
+        long start = header.toPosition(offset);
+        if (start > size) {
+            throw new IllegalArgumentException("Cursor is beyond the end of the change journal: %s".formatted(cursor));
+        }
+        return start;
+    }
+
+    private Header readHeader(FileChannel channel) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_PREFIX.length() + 32);
+        int n;
+        do {
+            n = channel.read(buf, buf.position());
+        } while (n > 0 && buf.hasRemaining());
+        String head = new String(buf.array(), 0, buf.position(), UTF_8);
+        int lineEnd = head.indexOf('\n');
+        if (!head.startsWith(HEADER_PREFIX) || lineEnd < 0) {
+            return new Header(0, 0, 0);
+        }
+        String[] fields = head.substring(HEADER_PREFIX.length(), lineEnd).split("\t");
+        long firstOffset = fields.length > 1 ? Long.parseLong(fields[1], 16) : lineEnd + 1;
+        return new Header(Long.parseLong(fields[0], 16), lineEnd + 1, firstOffset);
+    }
+
+    private DmsChange parse(String line, long cursor) {
+        String[] parts = line.split("\t", 4);
+        if (parts.length != 4) {
+            throw new IllegalStateException("Invalid change journal line: %s, journal=%s".formatted(line, journalPath));
+        }
+        return new DmsChange(cursor, LocalDateTime.parse(parts[0]), DmsChange.Type.valueOf(parts[1]), unescape(parts[2]), unescape(parts[3]));
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    static String escape(String s) {
+        if (s.indexOf('\\') < 0 && s.indexOf('\t') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(s.length() + 8);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\' -> sb.append("\\\\");
+                case '\t' -> sb.append("\\t");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                default -> sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    static String unescape(String s) {
+        if (s.indexOf('\\') < 0) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char next = s.charAt(++i);
+                switch (next) {
+                    case 't' -> sb.append('\t');
+                    case 'n' -> sb.append('\n');
+                    case 'r' -> sb.append('\r');
+                    default -> sb.append(next);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
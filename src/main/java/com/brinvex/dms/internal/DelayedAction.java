@@ -0,0 +1,39 @@
+package com.brinvex.dms.internal;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs an action on a virtual thread a fixed delay after it was requested.
+ * The requests made while the action is waiting are coalesced into that single run.
+ */
+class DelayedAction {
+
+    private final String threadName;
+
+    private final long delayMillis;
+
+    private final Runnable action;
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    DelayedAction(String threadName, long delayMillis, Runnable action) {
+        this.threadName = threadName;
+        this.delayMillis = delayMillis;
+        this.action = action;
+    }
+
+    void request() {
+        if (scheduled.compareAndSet(false, true)) {
+            Thread.ofVirtual().name(threadName).start(() -> {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    scheduled.set(false);
+                }
+                action.run();
+            });
+        }
+    }
+}
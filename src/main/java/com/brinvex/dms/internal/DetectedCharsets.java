@@ -0,0 +1,136 @@
+package com.brinvex.dms.internal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Remembers the charsets which successfully decoded documents that could not be decoded with the requested charset,
+ * so later reads can try them first.
+ * The charsets are persisted as an append-only log per directory, one line per change:
+ * {@code +charset TAB key} when recorded and {@code - TAB key} when forgotten,
+ * with backslashes, tabs and line breaks in the keys escaped.
+ * The log is compacted once it holds many more lines than live entries.
+ */
+class DetectedCharsets {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DetectedCharsets.class);
+
+    private static final int COMPACTION_MIN_LINES = 256;
+
+    private static final int COMPACTION_RATIO = 4;
+
+    private static class DirectoryCharsets {
+        private final Map<String, String> charsets = new HashMap<>();
+        private int logLines;
+    }
+
+    private final Path basePath;
+
+    private final Map<String, DirectoryCharsets> charsetsByDirectory = new ConcurrentHashMap<>();
+
+    DetectedCharsets(Path basePath) {
+        this.basePath = basePath;
+    }
+
+    Charset get(String directory, String key) {
+        DirectoryCharsets dirCharsets = getDirectoryCharsets(directory);
+        String charsetName;
+        synchronized (dirCharsets) {
+            charsetName = dirCharsets.charsets.get(key);
+        }
+        return charsetName == null ? null : Charset.forName(charsetName);
+    }
+
+    void record(String directory, String key, Charset charset) {
+        DirectoryCharsets dirCharsets = getDirectoryCharsets(directory);
+        synchronized (dirCharsets) {
+            if (!charset.name().equals(dirCharsets.charsets.put(key, charset.name()))) {
+                append(directory, dirCharsets, "+" + charset.name() + "\t" + ChangeJournal.escape(key) + "\n");
+            }
+        }
+    }
+
+    void forget(String directory, String key) {
+        DirectoryCharsets dirCharsets = getDirectoryCharsets(directory);
+        synchronized (dirCharsets) {
+            if (dirCharsets.charsets.remove(key) != null) {
+                append(directory, dirCharsets, "-\t" + ChangeJournal.escape(key) + "\n");
+            }
+        }
+    }
+
+    void clear() {
+        charsetsByDirectory.clear();
+    }
+
+    private DirectoryCharsets getDirectoryCharsets(String directory) {
+        return charsetsByDirectory.computeIfAbsent(directory, dir -> {
+            DirectoryCharsets dirCharsets = new DirectoryCharsets();
+            Path path = getPath(dir);
+            if (!Files.exists(path)) {
+                return dirCharsets;
+            }
+            List<String> lines;
+            try {
+                lines = Files.readAllLines(path, UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read detected charsets: %s".formatted(path), e);
+            }
+            for (String line : lines) {
+                int tab = line.indexOf('\t');
+                if (tab < 1) {
+                    LOG.warn("Skipping an invalid detected charset line: {}, path={}", line, path);
+                    continue;
+                }
+                String key = ChangeJournal.unescape(line.substring(tab + 1));
+                if (line.charAt(0) == '+' && Charset.isSupported(line.substring(1, tab))) {
+                    dirCharsets.charsets.put(key, line.substring(1, tab));
+                } else if (line.charAt(0) == '-') {
+                    dirCharsets.charsets.remove(key);
+                } else {
+                    LOG.warn("Skipping an invalid detected charset line: {}, path={}", line, path);
+                }
+            }
+            dirCharsets.logLines = lines.size();
+            return dirCharsets;
+        });
+    }
+
+    private void append(String directory, DirectoryCharsets dirCharsets, String line) {
+        Path path = getPath(directory);
+        try {
+            Files.createDirectories(path.getParent());
+            if (dirCharsets.logLines >= COMPACTION_MIN_LINES && dirCharsets.logLines >= COMPACTION_RATIO * dirCharsets.charsets.size()) {
+                StringBuilder sb = new StringBuilder();
+                dirCharsets.charsets.forEach((key, charsetName) -> sb.append('+').append(charsetName).append('\t').append(ChangeJournal.escape(key)).append('\n'));
+                Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+                Files.writeString(tmpPath, sb, UTF_8);
+                Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                dirCharsets.logLines = dirCharsets.charsets.size();
+            } else {
+                Files.writeString(path, line, UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                dirCharsets.logLines++;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write detected charsets: %s".formatted(path), e);
+        }
+    }
+
+    private Path getPath(String directory) {
+        return basePath.resolve(directory).resolve("charsets.log");
+    }
+}
@@ -0,0 +1,152 @@
+package com.brinvex.dms.internal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The documents of one directory of {@link FilesystemDmsImpl#exportWorkspace}, in the listed order.
+ * <p>
+ * The small documents are read by virtual threads in a sliding window ahead of the archive writer,
+ * limited by the number of the documents and by their sizes taken from the directory listing.
+ * The larger ones are not read ahead, their content is left for the writer to stream from the file.
+ * A document deleted since the listing is skipped.
+ * The export runs as a single maintenance operation, so the reads take no permits of their own.
+ */
+class ExportReadAhead implements Iterator<ExportReadAhead.Document>, AutoCloseable {
+
+    private static final int PREFETCH_COUNT = 32;
+
+    private static final long MAX_BUFFERED_BYTES = 32L << 20;
+
+    private static final long MAX_PREFETCHED_SIZE = 1L << 20;
+
+    /**
+     * A listed document, with its content if read ahead, or {@code null} if it is to be streamed.
+     */
+    record Document(Path path, byte[] content, long modifiedEpochSecond) {
+    }
+
+    /**
+     * A document read ahead, {@code null} if deleted, with the bytes charged for it.
+     */
+    private record Read(Document document, long charge) {
+    }
+
+    private final Path directoryPath;
+
+    private final Path[] paths;
+
+    private final long[] sizes;
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final Deque<Future<Read>> pending = new ArrayDeque<>();
+
+    private long bufferedBytes;
+
+    private int nextToSubmit;
+
+    private Document next;
+
+    ExportReadAhead(Path directoryPath, Path[] paths, long[] sizes) {
+        this.directoryPath = directoryPath;
+        this.paths = paths;
+        this.sizes = sizes;
+        fill();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && !pending.isEmpty()) {
+            Read read = await(pending.removeFirst());
+            bufferedBytes -= read.charge();
+            next = read.document();
+            fill();
+        }
+        return next != null;
+    }
+
+    @Override
+    public Document next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Document document = next;
+        next = null;
+        return document;
+    }
+
+    /**
+     * Cancels the reads not consumed yet.
+     */
+    @Override
+    public void close() {
+        for (Future<Read> read : pending) {
+            read.cancel(true);
+        }
+        pending.clear();
+        executor.shutdownNow();
+    }
+
+    private void fill() {
+        while (nextToSubmit < paths.length && pending.size() < PREFETCH_COUNT) {
+            Path path = paths[nextToSubmit];
+            long size = sizes[nextToSubmit];
+            if (size > MAX_PREFETCHED_SIZE) {
+                pending.addLast(CompletableFuture.completedFuture(new Read(new Document(path, null, 0), 0)));
+            } else if (pending.isEmpty() || bufferedBytes + size <= MAX_BUFFERED_BYTES) {
+                bufferedBytes += size;
+                pending.addLast(executor.submit(() -> read(path, size)));
+            } else {
+                break;
+            }
+            nextToSubmit++;
+        }
+    }
+
+    private static Read read(Path path, long charge) throws IOException {
+        try {
+            byte[] content = Files.readAllBytes(path);
+            long modifiedEpochSecond = Files.getLastModifiedTime(path).toInstant().getEpochSecond();
+            return new Read(new Document(path, content, modifiedEpochSecond), charge);
+        } catch (NoSuchFileException e) {
+            return new Read(null, charge);
+        }
+    }
+
+    private Read await(Future<Read> read) {
+        try {
+            return read.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new IllegalStateException("Interrupted while reading ahead: %s".formatted(directoryPath), e);
+        } catch (CancellationException e) {
+            throw new IllegalStateException("Reading ahead already closed: %s".formatted(directoryPath), e);
+        } catch (ExecutionException e) {
+            close();
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioe) {
+                throw new UncheckedIOException("Failed to read the file in %s".formatted(directoryPath), ioe);
+            } else if (cause instanceof RuntimeException re) {
+                throw re;
+            } else if (cause instanceof Error err) {
+                throw err;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.brinvex.dms.internal;
+
+import com.brinvex.dms.api.DmsIoScheduling;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Start-time fair queuing of the operations between the workspaces.
+ * <p>
+ * Each workspace has its own queue and a virtual finish time advanced by {@code 1 / weight} with every dispatched operation;
+ * a free slot goes to the waiting workspace with the lowest virtual finish time
+ * which has not reached its concurrency limit.
+ * A workspace becoming active starts at the current virtual time, so an idle period does not earn it a burst.
+ * <p>
+ * Interactive operations are dispatched before maintenance operations, except that a waiting maintenance operation
+ * is dispatched whenever no maintenance operation is running, so that the maintenance always progresses.
+ * <p>
+ * A thread holds at most one permit per workspace, a further permit for the same workspace is granted immediately.
+ * A permit for another workspace acquired while holding one (a transfer between workspaces) only waits
+ * for the concurrency limit of its workspace: it does not take a global slot, so the threads holding the slots
+ * do not wait for each other. Such threads acquire the workspaces in the order of their names.
+ */
+class FairShareIoScheduler implements IoScheduler {
+
+    private static final class WorkspaceQueue {
+        private final String workspace;
+        private final double weight;
+        private final ArrayDeque<Ticket> interactive = new ArrayDeque<>();
+        private final ArrayDeque<Ticket> maintenance = new ArrayDeque<>();
+        private final ArrayDeque<Ticket> nested = new ArrayDeque<>();
+        private double finishTime;
+        private int running;
+
+        private WorkspaceQueue(String workspace, double weight) {
+            this.workspace = workspace;
+            this.weight = weight;
+        }
+
+        private ArrayDeque<Ticket> queue(Priority priority) {
+            return priority == Priority.INTERACTIVE ? interactive : maintenance;
+        }
+
+        private boolean isIdle() {
+            return running == 0 && interactive.isEmpty() && maintenance.isEmpty() && nested.isEmpty();
+        }
+    }
+
+    private static final class Ticket {
+        private final WorkspaceQueue workspaceQueue;
+        private final Priority priority;
+        private final boolean nested;
+        private final Condition grantedCondition;
+        private boolean granted;
+
+        private Ticket(WorkspaceQueue workspaceQueue, Priority priority, boolean nested, Condition grantedCondition) {
+            this.workspaceQueue = workspaceQueue;
+            this.priority = priority;
+            this.nested = nested;
+            this.grantedCondition = grantedCondition;
+        }
+    }
+
+    private final DmsIoScheduling scheduling;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Map<String, WorkspaceQueue> activeWorkspaces = new HashMap<>();
+
+    private final ThreadLocal<Map<String, Ticket>> heldTickets = ThreadLocal.withInitial(HashMap::new);
+
+    private double virtualTime;
+
+    private int running;
+
+    private int runningMaintenance;
+
+    private int waiting;
+
+    FairShareIoScheduler(DmsIoScheduling scheduling) {
+        this.scheduling = scheduling;
+    }
+
+    @Override
+    public Permit acquire(String workspace, Priority priority) {
+        Map<String, Ticket> held = heldTickets.get();
+        if (held.containsKey(workspace)) {
+            return NO_PERMIT;
+        }
+        Ticket ticket;
+        lock.lock();
+        try {
+            WorkspaceQueue workspaceQueue = activeWorkspaces.computeIfAbsent(workspace, ws -> {
+                WorkspaceQueue newQueue = new WorkspaceQueue(ws, scheduling.workspaceWeights().getOrDefault(ws, 1));
+                newQueue.finishTime = virtualTime;
+                return newQueue;
+            });
+            boolean nested = !held.isEmpty();
+            ticket = new Ticket(workspaceQueue, priority, nested, lock.newCondition());
+            (nested ? workspaceQueue.nested : workspaceQueue.queue(priority)).add(ticket);
+            waiting++;
+            dispatch();
+            while (!ticket.granted) {
+                ticket.grantedCondition.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+        held.put(workspace, ticket);
+        return () -> release(ticket);
+    }
+
+    private void release(Ticket ticket) {
+        if (!heldTickets.get().remove(ticket.workspaceQueue.workspace, ticket)) {
+            return;
+        }
+        lock.lock();
+        try {
+            WorkspaceQueue workspaceQueue = ticket.workspaceQueue;
+            workspaceQueue.running--;
+            if (!ticket.nested) {
+                running--;
+                if (ticket.priority == Priority.MAINTENANCE) {
+                    runningMaintenance--;
+                }
+            }
+            if (workspaceQueue.isIdle()) {
+                activeWorkspaces.remove(workspaceQueue.workspace);
+            }
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getWaitingCount() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void dispatch() {
+        for (WorkspaceQueue workspaceQueue : activeWorkspaces.values()) {
+            while (!workspaceQueue.nested.isEmpty() && workspaceQueue.running < scheduling.maxConcurrentOperationsPerWorkspace()) {
+                workspaceQueue.running++;
+                grant(workspaceQueue.nested.poll());
+            }
+        }
+        while (running < scheduling.maxConcurrentOperations()) {
+            WorkspaceQueue next = null;
+            Priority priority = null;
+            if (runningMaintenance == 0) {
+                next = nextWorkspace(Priority.MAINTENANCE);
+                priority = Priority.MAINTENANCE;
+            }
+            if (next == null) {
+                next = nextWorkspace(Priority.INTERACTIVE);
+                priority = Priority.INTERACTIVE;
+            }
+            if (next == null && runningMaintenance < scheduling.maxConcurrentMaintenanceOperations()) {
+                next = nextWorkspace(Priority.MAINTENANCE);
+                priority = Priority.MAINTENANCE;
+            }
+            if (next == null) {
+                return;
+            }
+            Ticket ticket = next.queue(priority).poll();
+            double startTime = Math.max(next.finishTime, virtualTime);
+            next.finishTime = startTime + 1 / next.weight;
+            virtualTime = startTime;
+            running++;
+            next.running++;
+            if (priority == Priority.MAINTENANCE) {
+                runningMaintenance++;
+            }
+            grant(ticket);
+        }
+    }
+
+    private void grant(Ticket ticket) {
+        waiting--;
+        ticket.granted = true;
+        ticket.grantedCondition.signal();
+    }
+
+    private WorkspaceQueue nextWorkspace(Priority priority) {
+        WorkspaceQueue next = null;
+        for (WorkspaceQueue workspaceQueue : activeWorkspaces.values()) {
+            if (workspaceQueue.queue(priority).isEmpty()
+                || workspaceQueue.running >= scheduling.maxConcurrentOperationsPerWorkspace()) {
+                continue;
+            }
+            if (next == null || workspaceQueue.finishTime < next.finishTime) {
+                next = workspaceQueue;
+            }
+        }
+        return next;
+    }
+}
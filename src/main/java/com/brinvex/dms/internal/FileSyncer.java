@@ -0,0 +1,95 @@
+package com.brinvex.dms.internal;
+
+import com.brinvex.dms.api.FilesystemDmsConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Forces written files and the directories containing them to the storage device
+ * according to the configured {@link com.brinvex.dms.api.DmsDurability}.
+ */
+interface FileSyncer {
+
+    Logger LOG = LoggerFactory.getLogger(FileSyncer.class);
+
+    FileSyncer NONE = new FileSyncer() {
+        @Override
+        public void syncFile(Path file) {
+        }
+
+        @Override
+        public void syncAppended(Path file, Runnable force) {
+        }
+
+        @Override
+        public void syncDirectory(Path directory) {
+        }
+
+        @Override
+        public long getRequestedCount() {
+            return 0;
+        }
+
+        @Override
+        public long getForcedCount() {
+            return 0;
+        }
+    };
+
+    /**
+     * Forces the file content and the directory entry of the file.
+     */
+    void syncFile(Path file);
+
+    /**
+     * Forces the file content only, e.g. after appending to a file whose directory entry was already forced.
+     * The content is forced by the given action, e.g. through the channel the writer keeps open, instead of opening the file.
+     */
+    void syncAppended(Path file, Runnable force);
+
+    /**
+     * Forces the directory entries, e.g. after a file was renamed.
+     */
+    void syncDirectory(Path directory);
+
+    /**
+     * Returns the number of files and directories the writers requested to force.
+     */
+    long getRequestedCount();
+
+    /**
+     * Returns the number of files and directories actually forced,
+     * which is lower than the requested count if requests were merged.
+     */
+    long getForcedCount();
+
+    default void close() {
+    }
+
+    static FileSyncer create(FilesystemDmsConfig config) {
+        return switch (config.durability()) {
+            case NONE -> NONE;
+            case PER_WRITE -> new PerWriteFileSyncer();
+            case GROUP_COMMIT -> new GroupCommitFileSyncer(config.groupCommitWindow(), config.groupCommitMaxBatchSize());
+        };
+    }
+
+    static void force(Path path, boolean directory) {
+        try (FileChannel channel = FileChannel.open(path, directory ? StandardOpenOption.READ : StandardOpenOption.WRITE)) {
+            channel.force(true);
+        } catch (IOException e) {
+            if (directory) {
+                // Some platforms, e.g. Windows, do not support forcing directories
+                LOG.debug("Failed to force directory: {}", path, e);
+            } else {
+                throw new UncheckedIOException("Failed to force file: %s".formatted(path), e);
+            }
+        }
+    }
+}
@@ -2,27 +2,292 @@ package com.brinvex.dms.internal;
 
 import com.brinvex.dms.api.Dms;
 import com.brinvex.dms.api.DmsFactory;
+import com.brinvex.dms.api.DmsFactoryStats;
+import com.brinvex.dms.api.FilesystemDmsConfig;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
 
 public class FilesystemDmsFactoryImpl implements DmsFactory {
 
+    /**
+     * Cached instance with the number of calls running on it.
+     * An evicted instance is released by the last call running on it.
+     */
+    static final class CachedDms {
+        private final FilesystemDmsImpl dms;
+        private final AtomicInteger runningCalls = new AtomicInteger();
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile boolean evicted;
+        private volatile long lastAccessNanos;
+
+        private CachedDms(FilesystemDmsImpl dms) {
+            this.dms = dms;
+            this.lastAccessNanos = System.nanoTime();
+        }
+
+        FilesystemDmsImpl dms() {
+            return dms;
+        }
+
+        private void releaseIfEvicted() {
+            if (evicted && runningCalls.get() == 0 && released.compareAndSet(false, true)) {
+                dms.release();
+            }
+        }
+    }
+
     private final Path basePath;
 
-    private final Map<String, FilesystemDmsImpl> dmsCache = new ConcurrentHashMap<>();
+    private final FileSyncer fileSyncer;
+
+    private final Replicator replicator;
+
+    private final IoScheduler ioScheduler;
+
+    private final double keyFilterFalsePositiveRate;
+
+    private final boolean charsetDetection;
+
+    private final int propertiesCacheSize;
+
+    private final Duration workspaceIdleTimeout;
+
+    private final int maxCachedWorkspaces;
+
+    private final ScheduledExecutorService evictionExecutor;
+
+    private final Map<String, CachedDms> dmsCache = new ConcurrentHashMap<>();
 
-    public FilesystemDmsFactoryImpl(Path basePath) {
+    private final Set<String> resyncedWorkspaces = ConcurrentHashMap.newKeySet();
+
+    private final Set<String> openedWorkspaces = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The workspaces deleted through this factory and not reset since,
+     * so that an instance re-created after eviction stays deleted instead of re-creating the workspace directory.
+     */
+    private final Set<String> deletedWorkspaces = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong createdWorkspaces = new AtomicLong();
+
+    private final AtomicLong evictedWorkspaces = new AtomicLong();
+
+    private volatile boolean closed;
+
+    public FilesystemDmsFactoryImpl(Path basePath, FilesystemDmsConfig config) {
         if (basePath == null || !Files.exists(basePath)) {
             throw new IllegalArgumentException("basePath=%s does not exist".formatted(basePath));
         }
         this.basePath = basePath;
+        this.fileSyncer = FileSyncer.create(config);
+        this.replicator = Replicator.create(basePath, config);
+        this.ioScheduler = IoScheduler.create(config);
+        this.keyFilterFalsePositiveRate = config.keyFilterFalsePositiveRate();
+        this.charsetDetection = config.charsetDetection();
+        this.propertiesCacheSize = config.propertiesCacheSize();
+        this.workspaceIdleTimeout = config.workspaceIdleTimeout();
+        this.maxCachedWorkspaces = config.maxCachedWorkspaces();
+        if (workspaceIdleTimeout != null) {
+            long periodMillis = Math.max(1, workspaceIdleTimeout.toMillis() / 2);
+            this.evictionExecutor = Executors.newSingleThreadScheduledExecutor(r -> Thread.ofPlatform()
+                    .name("dms-workspace-eviction")
+                    .daemon()
+                    .unstarted(r));
+            this.evictionExecutor.scheduleWithFixedDelay(this::evictIdle, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.evictionExecutor = null;
+        }
     }
 
+    /**
+     * Returns a handle which runs each call on the live instance of the workspace,
+     * so a handle kept by the caller never uses an evicted instance next to a newer one.
+     */
     @Override
     public Dms getDms(String workspace) {
-        return dmsCache.computeIfAbsent(workspace, k -> new FilesystemDmsImpl(basePath, workspace));
+        release(acquire(workspace));
+        return new ResolvingDms(this, ioScheduler, workspace);
+    }
+
+    /**
+     * Returns the live instance of the workspace, creating it if needed, and registers a call running on it.
+     * The caller must {@link #release(CachedDms)} it when the call is done.
+     */
+    CachedDms acquire(String workspace) {
+        while (true) {
+            if (closed) {
+                throw new IllegalStateException("DmsFactory already closed: basePath=%s".formatted(basePath));
+            }
+            CachedDms cachedDms = dmsCache.computeIfAbsent(workspace, k -> {
+                createdWorkspaces.incrementAndGet();
+                FilesystemDmsImpl dms = new FilesystemDmsImpl(basePath, workspace, fileSyncer, replicator, ioScheduler, keyFilterFalsePositiveRate, charsetDetection,
+                        propertiesCacheSize, deletedWorkspaces.contains(workspace));
+                if (openedWorkspaces.add(workspace)) {
+                    // Once per factory, before the instance is published, so that no snapshot or transfer of this factory is running yet
+                    dms.deleteLeftovers();
+                }
+                return new CachedDms(dms);
+            });
+            if (resyncedWorkspaces.add(workspace)) {
+                // Once per factory, outside of the cache computation, the instances re-created after eviction are up to date
+                replicator.resync(basePath.resolve(workspace));
+            }
+            cachedDms.runningCalls.incrementAndGet();
+            if (!cachedDms.evicted) {
+                cachedDms.lastAccessNanos = System.nanoTime();
+                if (dmsCache.size() > maxCachedWorkspaces) {
+                    evictLeastRecentlyUsed(workspace);
+                }
+                return cachedDms;
+            }
+            // Evicted meanwhile, retry with a new instance
+            release(cachedDms);
+        }
+    }
+
+    void onWorkspaceDeleted(String workspace) {
+        deletedWorkspaces.add(workspace);
+    }
+
+    void onWorkspaceReset(String workspace) {
+        deletedWorkspaces.remove(workspace);
+    }
+
+    void release(CachedDms cachedDms) {
+        cachedDms.runningCalls.decrementAndGet();
+        cachedDms.releaseIfEvicted();
+    }
+
+    @Override
+    public DmsFactoryStats getStats() {
+        return new DmsFactoryStats(dmsCache.size(), createdWorkspaces.get(), evictedWorkspaces.get(),
+                fileSyncer.getRequestedCount(), fileSyncer.getForcedCount(), replicator.getFailureCount(),
+                ioScheduler.getWaitingCount());
+    }
+
+    @Override
+    public boolean copy(String srcWorkspace, String srcDirectory, String srcKey, String dstWorkspace, String dstDirectory, String dstKey) {
+        return transfer(srcWorkspace, dstWorkspace, IoScheduler.Priority.INTERACTIVE,
+                (src, dst) -> dst.transferFrom(src, srcDirectory, srcKey, dstDirectory, dstKey, false));
+    }
+
+    @Override
+    public boolean move(String srcWorkspace, String srcDirectory, String srcKey, String dstWorkspace, String dstDirectory, String dstKey) {
+        return transfer(srcWorkspace, dstWorkspace, IoScheduler.Priority.INTERACTIVE,
+                (src, dst) -> dst.transferFrom(src, srcDirectory, srcKey, dstDirectory, dstKey, true));
+    }
+
+    @Override
+    public int copyAll(String srcWorkspace, String srcDirectory, String dstWorkspace, String dstDirectory) {
+        return transfer(srcWorkspace, dstWorkspace, IoScheduler.Priority.MAINTENANCE,
+                (src, dst) -> dst.transferAllFrom(src, srcDirectory, dstDirectory, false));
+    }
+
+    @Override
+    public int moveAll(String srcWorkspace, String srcDirectory, String dstWorkspace, String dstDirectory) {
+        return transfer(srcWorkspace, dstWorkspace, IoScheduler.Priority.MAINTENANCE,
+                (src, dst) -> dst.transferAllFrom(src, srcDirectory, dstDirectory, true));
+    }
+
+    /**
+     * Runs the transfer under the permits of both the workspaces, acquired in the order of their names.
+     */
+    private <T> T transfer(
+            String srcWorkspace,
+            String dstWorkspace,
+            IoScheduler.Priority priority,
+            BiFunction<FilesystemDmsImpl, FilesystemDmsImpl, T> transfer
+    ) {
+        boolean srcFirst = srcWorkspace.compareTo(dstWorkspace) <= 0;
+        try (IoScheduler.Permit ignored1 = ioScheduler.acquire(srcFirst ? srcWorkspace : dstWorkspace, priority);
+             IoScheduler.Permit ignored2 = ioScheduler.acquire(srcFirst ? dstWorkspace : srcWorkspace, priority)) {
+            CachedDms src = acquire(srcWorkspace);
+            try {
+                CachedDms dst = acquire(dstWorkspace);
+                try {
+                    return transfer.apply(src.dms, dst.dms);
+                } finally {
+                    release(dst);
+                }
+            } finally {
+                release(src);
+            }
+        }
+    }
+
+    /**
+     * Releases all the cached workspace instances and waits until the pending background work is done.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (evictionExecutor != null) {
+            evictionExecutor.shutdownNow();
+        }
+        for (Map.Entry<String, CachedDms> e : dmsCache.entrySet()) {
+            if (dmsCache.remove(e.getKey(), e.getValue())) {
+                e.getValue().evicted = true;
+                e.getValue().releaseIfEvicted();
+            }
+        }
+        replicator.close();
+        fileSyncer.close();
+    }
+
+    private void evictIdle() {
+        long idleSinceNanos = System.nanoTime() - workspaceIdleTimeout.toNanos();
+        for (Map.Entry<String, CachedDms> e : dmsCache.entrySet()) {
+            if (e.getValue().lastAccessNanos - idleSinceNanos < 0 && e.getValue().runningCalls.get() == 0) {
+                evict(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used instances down to 90% of the limit,
+     * so that the sorting is not repeated on every new workspace.
+     */
+    private synchronized void evictLeastRecentlyUsed(String requestedWorkspace) {
+        int excess = dmsCache.size() - (maxCachedWorkspaces - maxCachedWorkspaces / 10);
+        if (dmsCache.size() <= maxCachedWorkspaces || excess <= 0) {
+            return;
+        }
+        record Candidate(String workspace, CachedDms cachedDms, long lastAccessNanos) {
+        }
+        List<Candidate> leastRecentlyUsed = dmsCache.entrySet()
+                .stream()
+                .filter(e -> !e.getKey().equals(requestedWorkspace))
+                .map(e -> new Candidate(e.getKey(), e.getValue(), e.getValue().lastAccessNanos))
+                .sorted(Comparator.comparingLong(Candidate::lastAccessNanos))
+                .limit(excess)
+                .toList();
+        for (Candidate candidate : leastRecentlyUsed) {
+            evict(candidate.workspace(), candidate.cachedDms());
+        }
+    }
+
+    private void evict(String workspace, CachedDms cachedDms) {
+        if (dmsCache.remove(workspace, cachedDms)) {
+            evictedWorkspaces.incrementAndGet();
+            cachedDms.evicted = true;
+            cachedDms.releaseIfEvicted();
+        }
     }
 }
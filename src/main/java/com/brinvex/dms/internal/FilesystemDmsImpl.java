@@ -1,36 +1,84 @@
 package com.brinvex.dms.internal;
 
 import com.brinvex.dms.api.Dms;
+import com.brinvex.dms.api.DmsChange;
+import com.brinvex.dms.api.DmsChangePage;
+import com.brinvex.dms.api.DmsCompactionOptions;
+import com.brinvex.dms.api.DmsCompactionReport;
+import com.brinvex.dms.api.DmsCompactionRule;
+import com.brinvex.dms.api.DmsDocument;
+import com.brinvex.dms.api.DmsExportOptions;
+import com.brinvex.dms.api.DmsKey;
+import com.brinvex.dms.api.DmsKeyFilterStats;
+import com.brinvex.dms.api.DmsReadAheadOptions;
+import com.brinvex.dms.api.DmsUsage;
+import com.brinvex.dms.api.DmsVersioned;
+import com.brinvex.dms.api.PeriodIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.SequencedCollection;
 import java.util.SequencedMap;
 import java.util.SequencedSet;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.StringJoiner;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static java.util.Objects.requireNonNull;
 
@@ -39,10 +87,70 @@ public class FilesystemDmsImpl implements Dms {
 
     private static final Logger LOG = LoggerFactory.getLogger(FilesystemDmsImpl.class);
 
+    /**
+     * Workspace subdirectory holding the internal metadata, e.g. the change journal.
+     */
+    private static final String META_DIRECTORY = "_META_!@#";
+
+    private static final int KEY_PAGE_SIZE = 1000;
+
+    /**
+     * Shared by all the instances, so that the writes of the same document are serialized
+     * even if it is accessed through several instances of the same workspace.
+     */
+    private static final KeyLocks KEY_LOCKS = new KeyLocks(1024);
+
+    /**
+     * Held shared by the writes until their usage delta is applied and exclusively while the usage of the directory is computed.
+     */
+    private static final KeyLocks DIRECTORY_LOCKS = new KeyLocks(256);
+
+    /**
+     * Runs the directory walks, whose tasks block on listing the directories,
+     * so that they neither occupy the common pool nor are limited by its parallelism sized for computations.
+     * The idle workers exit after the keep-alive time of the pool.
+     */
+    private static final ForkJoinPool DIRECTORY_WALK_POOL = new ForkJoinPool(
+            Math.max(4, Runtime.getRuntime().availableProcessors() * 2),
+            pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("dms-directory-walk-" + thread.getPoolIndex());
+                return thread;
+            },
+            null,
+            false);
+
     private final String workspace;
 
     private final Path workspacePath;
 
+    private final FileSyncer fileSyncer;
+
+    private final Replicator replicator;
+
+    private final IoScheduler ioScheduler;
+
+    private final ChangeJournal changeJournal;
+
+    private final DetectedCharsets detectedCharsets;
+
+    private final boolean charsetDetection;
+
+    private final PropertiesCache propertiesCache;
+
+    private final WorkspaceIndex workspaceIndex;
+
+    private final UsageAccounting usageAccounting;
+
+    private final KeyFilters keyFilters;
+
+    private final Map<String, Map<String, SearchIndex>> searchIndexes = new ConcurrentHashMap<>();
+
+    /**
+     * Period indexes by directory and name.
+     */
+    private final Map<String, Map<String, PeriodIndexImpl<?>>> periodIndexes = new ConcurrentHashMap<>();
+
     private boolean workspaceDeleted;
 
     private interface IOConsumer<I> {
@@ -101,6 +209,19 @@ public class FilesystemDmsImpl implements Dms {
             return result;
         }
 
+        private static String extractOrigKey(String obsoleteFilename) {
+            return obsoleteFilename.substring(deletedPrefixLength);
+        }
+
+        private static boolean isObsoleteVersion(String filename) {
+            int filenameLength = filename.length();
+            if (filenameLength <= deletedPrefixLength) {
+                return false;
+            }
+            String left = filename.substring(0, deletedPrefixLength);
+            return deletedPrefixPattern.matcher(left).matches() || overriddenPrefixPattern.matcher(left).matches();
+        }
+
         private static boolean isObsolete(String filename) {
             int filenameLength = filename.length();
             if (filenameLength <= deletedPrefixLength) {
@@ -111,20 +232,46 @@ public class FilesystemDmsImpl implements Dms {
         }
     }
 
-    public FilesystemDmsImpl(Path basePath, String workspace) {
+    public FilesystemDmsImpl(
+            Path basePath,
+            String workspace,
+            FileSyncer fileSyncer,
+            Replicator replicator,
+            IoScheduler ioScheduler,
+            double keyFilterFalsePositiveRate,
+            boolean charsetDetection,
+            int propertiesCacheSize,
+            boolean workspaceDeleted
+    ) {
         validateWorkspaceSyntax(workspace);
         this.workspace = workspace;
+        this.fileSyncer = fileSyncer;
+        this.replicator = replicator;
+        this.ioScheduler = ioScheduler;
+        this.charsetDetection = charsetDetection;
+        this.propertiesCache = new PropertiesCache(propertiesCacheSize);
         this.workspacePath = basePath.resolve(workspace);
         if (!Files.exists(workspacePath)) {
-            try {
-                Files.createDirectories(workspacePath);
-            } catch (IOException e) {
-                throw new UncheckedIOException("Failed to create workspace: %s".formatted(workspacePath), e);
+            // An instance re-created after the eviction of a deleted workspace leaves it deleted until reset
+            if (!workspaceDeleted) {
+                try {
+                    Files.createDirectories(workspacePath);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to create workspace: %s".formatted(workspacePath), e);
+                }
             }
         } else if (!Files.isDirectory(workspacePath)) {
             throw new IllegalArgumentException("Workspace is not a directory: %s".formatted(workspace));
         }
-        this.workspaceDeleted = false;
+        this.changeJournal = ChangeJournal.acquire(workspacePath.resolve(META_DIRECTORY).resolve("changes.log"));
+        this.detectedCharsets = new DetectedCharsets(workspacePath.resolve(META_DIRECTORY).resolve("charsets"));
+        this.workspaceIndex = new WorkspaceIndex(workspacePath, workspacePath.resolve(META_DIRECTORY).resolve("index.snapshot"),
+                SoftDeleteHelper::isObsoleteVersion);
+        this.usageAccounting = new UsageAccounting(workspacePath, workspacePath.resolve(META_DIRECTORY).resolve("usage.bin"), workspaceIndex,
+                DIRECTORY_LOCKS);
+        this.keyFilters = KeyFilters.create(workspacePath, workspacePath.resolve(META_DIRECTORY).resolve("filters"), workspaceIndex,
+                keyFilterFalsePositiveRate);
+        this.workspaceDeleted = workspaceDeleted;
     }
 
     @Override
@@ -137,26 +284,225 @@ public class FilesystemDmsImpl implements Dms {
         } else if (!Files.isDirectory(directoryPath)) {
             throw new IllegalArgumentException("Not a directory: %s, workspace=%s".formatted(directoryPath, workspace));
         }
-        try (Stream<Path> fileStream = Files.list(directoryPath)) {
-            return fileStream
-                    .map(Path::getFileName)
-                    .map(Path::toString)
+        try {
+            return Arrays.stream(workspaceIndex.getListing(directoryPath).names())
                     .filter(Predicate.not(SoftDeleteHelper::isObsolete))
-                    .sorted()
                     .toList();
         } catch (IOException e) {
             throw new UncheckedIOException("Failed to list files at path: %s".formatted(directoryPath), e);
         }
     }
 
+    @Override
+    public SequencedCollection<String> getKeys(String directory, String prefix, String startAfter, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Invalid limit: %s".formatted(limit));
+        }
+        WorkspaceIndex.DirectoryListing listing = getListing(directory);
+        if (listing == null) {
+            return Collections.emptyList();
+        }
+        String[] names = listing.names();
+        List<String> page = new ArrayList<>(Math.min(limit, KEY_PAGE_SIZE));
+        for (int i = listing.indexOfFirst(prefix, startAfter); i < names.length && page.size() < limit; i++) {
+            String key = names[i];
+            if (prefix != null && !key.startsWith(prefix)) {
+                break;
+            }
+            if (!SoftDeleteHelper.isObsolete(key)) {
+                page.add(key);
+            }
+        }
+        return Collections.unmodifiableList(page);
+    }
+
+    /**
+     * The keys are streamed from a single listing taken on the first access,
+     * so the directory is not listed again for every page.
+     * Documents added or deleted after that are not reflected.
+     */
+    @Override
+    public Stream<String> streamKeys(String directory, String prefix, String startAfter) {
+        Iterator<String> iterator = new Iterator<>() {
+            private String[] names;
+            private int index;
+            private String nextKey;
+
+            @Override
+            public boolean hasNext() {
+                if (nextKey != null) {
+                    return true;
+                }
+                if (names == null) {
+                    WorkspaceIndex.DirectoryListing listing;
+                    try (IoScheduler.Permit ignored = ioScheduler.acquire(workspace, IoScheduler.Priority.INTERACTIVE)) {
+                        listing = getListing(directory);
+                    }
+                    names = listing == null ? new String[0] : listing.names();
+                    index = listing == null ? 0 : listing.indexOfFirst(prefix, startAfter);
+                }
+                while (index < names.length) {
+                    String key = names[index++];
+                    if (prefix != null && !key.startsWith(prefix)) {
+                        index = names.length;
+                        break;
+                    }
+                    if (!SoftDeleteHelper.isObsolete(key)) {
+                        nextKey = key;
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String key = nextKey;
+                nextKey = null;
+                return key;
+            }
+        };
+        int characteristics = Spliterator.ORDERED | Spliterator.SORTED | Spliterator.DISTINCT | Spliterator.NONNULL;
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, characteristics), false);
+    }
+
+    /**
+     * Returns the listing of the directory, or {@code null} if the directory does not exist.
+     */
+    private WorkspaceIndex.DirectoryListing getListing(String directory) {
+        validateWorkspaceNotDeleted();
+        validateDirectorySyntax(directory);
+        Path directoryPath = workspacePath.resolve(directory);
+        if (!Files.exists(directoryPath)) {
+            return null;
+        } else if (!Files.isDirectory(directoryPath)) {
+            throw new IllegalArgumentException("Not a directory: %s, workspace=%s".formatted(directoryPath, workspace));
+        }
+        try {
+            return workspaceIndex.getListing(directoryPath);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to list files at path: %s".formatted(directoryPath), e);
+        }
+    }
+
+    @Override
+    public SequencedCollection<String> getDirectories(String parent) {
+        validateWorkspaceNotDeleted();
+        Path parentPath = workspacePath;
+        if (parent != null) {
+            validateDirectorySyntax(parent);
+            parentPath = workspacePath.resolve(parent);
+        }
+        if (!Files.exists(parentPath)) {
+            return Collections.emptyList();
+        } else if (!Files.isDirectory(parentPath)) {
+            throw new IllegalArgumentException("Not a directory: %s, workspace=%s".formatted(parentPath, workspace));
+        }
+        try {
+            return Collections.unmodifiableList(getSubdirectories(parentPath));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to list directories at path: %s".formatted(parentPath), e);
+        }
+    }
+
+    @Override
+    public Stream<DmsKey> walkKeys(String directory) {
+        validateWorkspaceNotDeleted();
+        Path directoryPath = workspacePath;
+        if (directory != null) {
+            validateDirectorySyntax(directory);
+            directoryPath = workspacePath.resolve(directory);
+        }
+        if (!Files.exists(directoryPath)) {
+            return Stream.empty();
+        } else if (!Files.isDirectory(directoryPath)) {
+            throw new IllegalArgumentException("Not a directory: %s, workspace=%s".formatted(directoryPath, workspace));
+        }
+        List<String> directories = DIRECTORY_WALK_POOL.invoke(new DirectoryWalk(directory, directoryPath));
+        return directories.stream().flatMap(dir -> {
+            WorkspaceIndex.DirectoryListing listing;
+            try (IoScheduler.Permit ignored = ioScheduler.acquire(workspace, IoScheduler.Priority.INTERACTIVE)) {
+                listing = workspaceIndex.getListing(workspacePath.resolve(dir));
+            } catch (NoSuchFileException e) {
+                return Stream.empty();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to list files at path: %s".formatted(workspacePath.resolve(dir)), e);
+            }
+            List<DmsKey> keys = new ArrayList<>(listing.names().length);
+            for (int i = 0; i < listing.names().length; i++) {
+                if (!listing.directory()[i] && !SoftDeleteHelper.isObsolete(listing.names()[i])) {
+                    keys.add(new DmsKey(dir, listing.names()[i]));
+                }
+            }
+            return keys.stream();
+        });
+    }
+
+    /**
+     * Lists a directory and forks the listing of each of its subdirectories,
+     * which also fills the workspace index for the keys to be streamed later.
+     * Results in the directory followed by its subdirectories in pre-order.
+     */
+    private final class DirectoryWalk extends RecursiveTask<List<String>> {
+        private final String directory;
+        private final Path directoryPath;
+
+        private DirectoryWalk(String directory, Path directoryPath) {
+            this.directory = directory;
+            this.directoryPath = directoryPath;
+        }
+
+        @Override
+        protected List<String> compute() {
+            List<String> subdirectories;
+            try {
+                subdirectories = getSubdirectories(directoryPath);
+            } catch (NoSuchFileException e) {
+                return List.of();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to list directories at path: %s".formatted(directoryPath), e);
+            }
+            List<DirectoryWalk> subtasks = new ArrayList<>(subdirectories.size());
+            for (String subdirectory : subdirectories) {
+                String subdirectoryKey = directory == null ? subdirectory : directory + "/" + subdirectory;
+                subtasks.add(new DirectoryWalk(subdirectoryKey, directoryPath.resolve(subdirectory)));
+            }
+            invokeAll(subtasks);
+            List<String> directories = new ArrayList<>();
+            if (directory != null) {
+                directories.add(directory);
+            }
+            for (DirectoryWalk subtask : subtasks) {
+                directories.addAll(subtask.join());
+            }
+            return directories;
+        }
+    }
+
+    private List<String> getSubdirectories(Path directoryPath) throws IOException {
+        WorkspaceIndex.DirectoryListing listing = workspaceIndex.getListing(directoryPath);
+        boolean isWorkspaceRoot = directoryPath.equals(workspacePath);
+        List<String> subdirectories = new ArrayList<>();
+        for (int i = 0; i < listing.names().length; i++) {
+            String name = listing.names()[i];
+            if (listing.directory()[i] && !(isWorkspaceRoot && name.equals(META_DIRECTORY))) {
+                subdirectories.add(name);
+            }
+        }
+        return subdirectories;
+    }
+
     @Override
     public void add(String directory, String key, String textContent, Charset charset) {
-        add(directory, key, path -> Files.writeString(path, textContent, charset));
+        add(directory, key, path -> Files.writeString(path, textContent, charset, StandardOpenOption.CREATE_NEW));
     }
 
     @Override
     public void add(String directory, String key, byte[] binaryContent) {
-        add(directory, key, path -> Files.write(path, binaryContent));
+        add(directory, key, path -> Files.write(path, binaryContent, StandardOpenOption.CREATE_NEW));
     }
 
     private void add(String directory, String key, IOConsumer<Path> fileWriter) {
@@ -165,14 +511,24 @@ public class FilesystemDmsImpl implements Dms {
         validateKeySyntax(key);
         Path directoryPath = getOrCreateDirectory(directory);
         Path filePath = directoryPath.resolve(key);
-        if (Files.exists(filePath)) {
-            throw new IllegalArgumentException("Document already exists: workspace='%s', directory='%s', key='%s'"
-                    .formatted(workspace, directory, key));
-        }
-        try {
-            fileWriter.accept(filePath);
-        } catch (IOException e) {
-            throw new UncheckedIOException("Failed to write to the file: %s".formatted(filePath), e);
+        try (KeyLocks.Held ignoredLock = lockForWrite(filePath)) {
+            keyFilters.beforeWrite(directoryPath, key);
+            try {
+                fileWriter.accept(filePath);
+            } catch (FileAlreadyExistsException e) {
+                throw new IllegalArgumentException("Document already exists: workspace='%s', directory='%s', key='%s'"
+                        .formatted(workspace, directory, key));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to write to the file: %s".formatted(filePath), e);
+            }
+            fileSyncer.syncFile(filePath);
+            replicator.copy(filePath);
+            workspaceIndex.onWritten(filePath);
+            keyFilters.afterWrite(directoryPath, key);
+            usageAccounting.update(directoryPath, 1, fileSize(filePath), 0, 0);
+            onKeyChanged(directory, key);
+            onKeyAdded(directory, key);
+            appendChange(DmsChange.Type.ADD, directory, key);
         }
     }
 
@@ -197,35 +553,79 @@ public class FilesystemDmsImpl implements Dms {
         validateKeySyntax(key);
         Path directoryPath = getOrCreateDirectory(directory);
         Path filePath = directoryPath.resolve(key);
-        boolean isNew = !Files.exists(filePath);
-        if (!isNew) {
-            Path overriddenPath = SoftDeleteHelper.contructOverriddenPath(filePath, LocalDateTime.now());
+        try (KeyLocks.Held ignoredLock = lockForWrite(filePath)) {
+            boolean isNew = !Files.exists(filePath);
+            long oldSize = 0;
+            if (!isNew) {
+                oldSize = fileSize(filePath);
+                Path overriddenPath = moveToObsolete(filePath, SoftDeleteHelper::contructOverriddenPath);
+                replicator.move(filePath, overriddenPath);
+                workspaceIndex.onRenamed(filePath, overriddenPath);
+            }
+            keyFilters.beforeWrite(directoryPath, key);
             try {
-                Files.move(filePath, overriddenPath);
+                fileWriter.accept(filePath);
             } catch (IOException e) {
-                throw new UncheckedIOException("Failed to move %s -> %s".formatted(filePath, overriddenPath), e);
+                throw new UncheckedIOException("Failed to write to the file: %s".formatted(filePath), e);
             }
+            fileSyncer.syncFile(filePath);
+            replicator.copy(filePath);
+            workspaceIndex.onWritten(filePath);
+            keyFilters.afterWrite(directoryPath, key);
+            if (isNew) {
+                usageAccounting.update(directoryPath, 1, fileSize(filePath), 0, 0);
+            } else {
+                usageAccounting.update(directoryPath, 0, fileSize(filePath) - oldSize, 1, oldSize);
+            }
+            onKeyChanged(directory, key);
+            if (isNew) {
+                onKeyAdded(directory, key);
+            } else {
+                detectedCharsets.forget(directory, key);
+                propertiesCache.invalidate(filePath);
+                deleteLineIndex(directory, key);
+            }
+            appendChange(DmsChange.Type.PUT, directory, key);
+            return isNew;
         }
-        try {
-            fileWriter.accept(filePath);
-        } catch (IOException e) {
-            throw new UncheckedIOException("Failed to write to the file: %s".formatted(filePath), e);
-        }
-        return isNew;
     }
 
+    /**
+     * Asks the key filter first, so that a definite miss touches neither the directory nor the file.
+     * The writes do not rely on the filter, it may miss a change made by another process for a while.
+     */
     @Override
     public boolean exists(String directory, String key) {
         validateWorkspaceNotDeleted();
         validateDirectorySyntax(directory);
         validateKeySyntax(key);
         Path directoryPath = workspacePath.resolve(directory);
-        if (!Files.exists(directoryPath)) {
+        // The obsolete versions are not guaranteed to be in the key filter, they are always checked on the filesystem
+        boolean filtered = !SoftDeleteHelper.isObsoleteVersion(key);
+        if (filtered && !keyFilters.mightContain(directoryPath, key)) {
             return false;
-        } else if (!Files.isDirectory(directoryPath)) {
+        }
+        BasicFileAttributes directoryAttrs;
+        try {
+            directoryAttrs = Files.readAttributes(directoryPath, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the directory attributes: %s".formatted(directoryPath), e);
+        }
+        if (!directoryAttrs.isDirectory()) {
             throw new IllegalArgumentException("Not a directory: %s, workspace=%s".formatted(directoryPath, workspace));
         }
-        return Files.exists(directoryPath.resolve(key));
+        boolean exists = Files.exists(directoryPath.resolve(key));
+        if (filtered && !exists) {
+            keyFilters.recordFalsePositive();
+        }
+        return exists;
+    }
+
+    @Override
+    public DmsKeyFilterStats getKeyFilterStats() {
+        return keyFilters.getStats();
     }
 
     @Override
@@ -236,44 +636,46 @@ public class FilesystemDmsImpl implements Dms {
     @Override
     public String getTextContent(String directory, String key, Charset charset, Charset alternativeCharset) {
         return getContent(directory, key, path -> {
+            byte[] bytes = Files.readAllBytes(path);
+            List<Charset> candidates = getCharsetCandidates(directory, key, charset, alternativeCharset);
+            TextDecodingUtils.Decoded<String> decoded = TextDecodingUtils.decodeText(bytes, candidates, charsetDetection);
+            onCharsetDecoded(directory, key, charset, candidates, decoded.charset());
+            return decoded.value();
+        });
+    }
 
-            List<Charset> charsets = new ArrayList<>();
-            charsets.add(requireNonNull(charset));
-            if (alternativeCharset != null) {
-                charsets.add(alternativeCharset);
-            }
-
-            List<CharacterCodingException> characterCodingExceptions = new ArrayList<>();
-            try {
-                for (Charset chs : charsets) {
-                    try {
-                        return Files.readString(path, chs);
-                    } catch (Throwable throwable) {
-                        if (throwable instanceof CharacterCodingException characterCodingException) {
-                            characterCodingExceptions.add(characterCodingException);
-                        } else {
-                            Throwable cause = throwable.getCause();
-                            if (cause instanceof CharacterCodingException characterCodingCause) {
-                                characterCodingExceptions.add(characterCodingCause);
-                            } else {
-                                throw throwable;
-                            }
-                        }
-                    }
-                }
-            } catch (Throwable e) {
-                for (Exception charsetException : characterCodingExceptions) {
-                    e.addSuppressed(charsetException);
-                }
-                throw e;
-            }
-
-            IOException newestException = characterCodingExceptions.removeLast();
-            for (Exception charsetException : characterCodingExceptions) {
-                newestException.addSuppressed(charsetException);
+    @Override
+    public Stream<DmsDocument<String>> readAll(String directory, Charset charset, DmsReadAheadOptions options) {
+        validateWorkspaceNotDeleted();
+        validateDirectorySyntax(directory);
+        Path directoryPath = workspacePath.resolve(directory);
+        if (!Files.exists(directoryPath)) {
+            return Stream.empty();
+        } else if (!Files.isDirectory(directoryPath)) {
+            throw new IllegalArgumentException("Not a directory: %s, workspace=%s".formatted(directoryPath, workspace));
+        }
+        WorkspaceIndex.DirectoryListing listing;
+        try {
+            listing = workspaceIndex.getListing(directoryPath);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to list files at path: %s".formatted(directoryPath), e);
+        }
+        String[] names = listing.names();
+        String[] keys = new String[names.length];
+        long[] sizes = new long[names.length];
+        int count = 0;
+        for (int i = 0; i < names.length; i++) {
+            if (!listing.directory()[i] && !SoftDeleteHelper.isObsolete(names[i])) {
+                keys[count] = names[i];
+                sizes[count] = listing.sizes()[i];
+                count++;
             }
-            throw newestException;
-        });
+        }
+        ReadAhead readAhead = new ReadAhead(workspace, ioScheduler, directoryPath,
+                Arrays.copyOf(keys, count), Arrays.copyOf(sizes, count), charset, options);
+        int characteristics = Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL;
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(readAhead, characteristics), false)
+                .onClose(readAhead::close);
     }
 
     @Override
@@ -293,44 +695,48 @@ public class FilesystemDmsImpl implements Dms {
     @Override
     public List<String> getTextLines(String directory, String key, int limit, Charset charset, Charset alternativeCharset) {
         return getContent(directory, key, path -> {
-
-            List<Charset> charsets = new ArrayList<>();
-            charsets.add(requireNonNull(charset));
-            if (alternativeCharset != null) {
-                charsets.add(alternativeCharset);
+            List<Charset> candidates = getCharsetCandidates(directory, key, charset, alternativeCharset);
+            try (InputStream in = Files.newInputStream(path)) {
+                TextDecodingUtils.Decoded<List<String>> decoded = TextDecodingUtils.decodeLines(in, limit, candidates, charsetDetection);
+                onCharsetDecoded(directory, key, charset, candidates, decoded.charset());
+                return decoded.value();
             }
+        });
+    }
 
-            List<CharacterCodingException> characterCodingExceptions = new ArrayList<>();
-            try {
-                for (Charset chs : charsets) {
-                    try (Stream<String> lines = Files.lines(path, chs)) {
-                        return lines.limit(limit).toList();
-                    } catch (Throwable throwable) {
-                        if (throwable instanceof CharacterCodingException characterCodingException) {
-                            characterCodingExceptions.add(characterCodingException);
-                        } else {
-                            Throwable cause = throwable.getCause();
-                            if (cause instanceof CharacterCodingException characterCodingCause) {
-                                characterCodingExceptions.add(characterCodingCause);
-                            } else {
-                                throw throwable;
-                            }
-                        }
-                    }
-                }
-            } catch (Throwable e) {
-                for (Exception charsetException : characterCodingExceptions) {
-                    e.addSuppressed(charsetException);
-                }
-                throw e;
-            }
+    /**
+     * The charset previously detected for the document goes first, so a known-failing charset is not tried again.
+     */
+    private List<Charset> getCharsetCandidates(String directory, String key, Charset charset, Charset alternativeCharset) {
+        requireNonNull(charset);
+        if (alternativeCharset == null || alternativeCharset.equals(charset)) {
+            return List.of(charset);
+        }
+        Charset detectedCharset = detectedCharsets.get(directory, key);
+        if (alternativeCharset.equals(detectedCharset)) {
+            return List.of(alternativeCharset, charset);
+        }
+        return List.of(charset, alternativeCharset);
+    }
 
-            IOException newestException = characterCodingExceptions.removeLast();
-            for (Exception charsetException : characterCodingExceptions) {
-                newestException.addSuppressed(charsetException);
+    private void onCharsetDecoded(String directory, String key, Charset charset, List<Charset> candidates, Charset decodedCharset) {
+        if (decodedCharset.equals(charset)) {
+            if (!candidates.getFirst().equals(charset)) {
+                detectedCharsets.forget(directory, key);
             }
-            throw newestException;
-        });
+        } else if (!candidates.getFirst().equals(decodedCharset)) {
+            detectedCharsets.record(directory, key, decodedCharset);
+        }
+    }
+
+    @Override
+    public List<String> getTextLines(String directory, String key, long fromLine, int count, Charset charset) {
+        return getContent(directory, key, path -> TextLineUtils.readLines(path, getLineIndexPath(directory, key), fromLine, count, charset));
+    }
+
+    @Override
+    public List<String> getTailLines(String directory, String key, int count, Charset charset) {
+        return getContent(directory, key, path -> TextLineUtils.readTailLines(path, count, charset));
     }
 
     @Override
@@ -338,9 +744,14 @@ public class FilesystemDmsImpl implements Dms {
         return getContent(directory, key, Files::readAllBytes);
     }
 
+    @Override
+    public byte[] getBinaryContent(String directory, String key, long offset, int length) {
+        return getContent(directory, key, path -> TextLineUtils.readBytes(path, offset, length));
+    }
+
     @Override
     public Map<String, String> getPropertiesContent(String directory, String key, Charset charset) {
-        return getContent(directory, key, path -> KeyValueFileUtils.readMapFromFile(path.toFile(), charset));
+        return getContent(directory, key, path -> propertiesCache.get(path, charset));
     }
 
     @Override
@@ -376,80 +787,556 @@ public class FilesystemDmsImpl implements Dms {
     }
 
     @Override
-    public void delete(String directory, String key) {
-        delete(directory, Set.of(key));
+    public DmsVersioned<byte[]> getBinaryContentWithVersion(String directory, String key) {
+        return getContentWithVersion(directory, key, bytes -> bytes);
     }
 
     @Override
-    public void delete(String directory, Collection<String> keys) {
+    public DmsVersioned<String> getTextContentWithVersion(String directory, String key, Charset charset) {
+        return getContentWithVersion(directory, key, bytes -> charset.newDecoder().decode(ByteBuffer.wrap(bytes)).toString());
+    }
+
+    /**
+     * Reads the content under the document lock, so that neither a concurrent replacement
+     * (during which the document is briefly missing) nor a version change between the two reads is observed.
+     */
+    private <CONTENT> DmsVersioned<CONTENT> getContentWithVersion(String directory, String key, IOFunction<byte[], CONTENT> decoder) {
         validateWorkspaceNotDeleted();
         validateDirectorySyntax(directory);
-        for (String key : keys) {
-            validateKeySyntax(key);
-        }
-        for (String key : keys) {
-            Path filePath = workspacePath.resolve(directory).resolve(key);
-            if (!Files.exists(filePath)) {
+        validateKeySyntax(key);
+        Path filePath = workspacePath.resolve(directory).resolve(key);
+        try (KeyLocks.Held ignoredLock = KEY_LOCKS.lock(filePath)) {
+            byte[] bytes;
+            try {
+                bytes = Files.readAllBytes(filePath);
+            } catch (NoSuchFileException e) {
                 throw new IllegalArgumentException("Document doesn't exist: workspace='%s', directory='%s', key='%s'"
                         .formatted(workspace, directory, key));
             }
-            Path newSoftDelPath = SoftDeleteHelper.contructSoftDeletedPath(filePath, LocalDateTime.now());
-            try {
-                Files.move(filePath, newSoftDelPath);
-            } catch (IOException e) {
-                throw new UncheckedIOException("Failed to move %s -> %s".formatted(filePath, newSoftDelPath), e);
-            }
+            return new DmsVersioned<>(decoder.apply(bytes), computeVersion(bytes));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the file %s".formatted(filePath), e);
         }
     }
 
+    /**
+     * Reads the current version once, to compare it, and takes the new version from the bytes being written.
+     */
     @Override
-    public <KEY> SequencedMap<KEY, String> getRedundantPeriodKeys(
-            String directory,
-            Function<String, KEY> keyFnc,
-            Function<KEY, LocalDate> keyStartDateInclFnc,
-            Function<KEY, LocalDate> keyEndDateInclFnc) {
-        SequencedCollection<String> rawKeys = getKeys(directory);
-        if (rawKeys.isEmpty()) {
-            return Collections.emptySortedMap();
-        }
-        SequencedMap<KEY, String> keys = new LinkedHashMap<>();
-        for (String rawKey : rawKeys) {
-            KEY key = keyFnc.apply(rawKey);
-            if (key != null) {
-                if (keys.put(key, rawKey) != null) {
-                    throw new IllegalStateException("Duplicate key: %s, %s".formatted(rawKey, key));
-                }
+    public String putIfVersion(String directory, String key, byte[] binaryContent, String expectedVersion) {
+        validateWorkspaceNotDeleted();
+        validateDirectorySyntax(directory);
+        validateKeySyntax(key);
+        Path filePath = workspacePath.resolve(directory).resolve(key);
+        try (KeyLocks.Held ignoredLock = lockForWrite(filePath)) {
+            if (!Objects.equals(readVersion(filePath), expectedVersion)) {
+                return null;
             }
+            put(directory, key, path -> Files.write(path, binaryContent));
+            return computeVersion(binaryContent);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the version of the file %s".formatted(filePath), e);
         }
-        SequencedSet<KEY> redundantKeys = getRedundantPeriodKeys(keys.keySet(), keyStartDateInclFnc, keyEndDateInclFnc);
-        keys.keySet().retainAll(redundantKeys);
-        return keys;
     }
 
     @Override
-    public <KEY> SequencedSet<KEY> getRedundantPeriodKeys(
-            Collection<KEY> keys,
-            Function<KEY, LocalDate> keyStartDateInclFnc,
-            Function<KEY, LocalDate> keyEndDateInclFnc
-    ) {
-        return PeriodDocUtils.findRedundantKeys(keys, keyStartDateInclFnc, keyEndDateInclFnc);
+    public String putIfVersion(String directory, String key, String textContent, Charset charset, String expectedVersion) {
+        ByteBuffer encoded;
+        try {
+            encoded = charset.newEncoder().encode(CharBuffer.wrap(textContent));
+        } catch (CharacterCodingException e) {
+            throw new UncheckedIOException("Failed to encode the content with %s: workspace='%s', directory='%s', key='%s'"
+                    .formatted(charset, workspace, directory, key), e);
+        }
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        return putIfVersion(directory, key, bytes, expectedVersion);
     }
 
-    @Override
-    public int purge(String directory, String origKey, LocalDateTime softDeletedBefore) {
-        validateWorkspaceNotDeleted();
-        validateDirectorySyntax(directory);
-        if (origKey != null) {
-            validateKeySyntax(origKey);
+    /**
+     * Returns the version token of the file, the SHA-256 hash of its content, or null if the file does not exist.
+     * Unlike the modification time, size and file key, the hash tells apart the versions written within
+     * the timestamp granularity on every filesystem. Replacing a document by the same content keeps its version.
+     */
+    private static String readVersion(Path filePath) throws IOException {
+        MessageDigest digest = newVersionDigest();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(filePath), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        } catch (NoSuchFileException e) {
+            return null;
         }
-        Path directoryPath = workspacePath.resolve(directory);
-        if (!Files.exists(directoryPath)) {
-            return 0;
-        } else if (!Files.isDirectory(directoryPath)) {
-            throw new IllegalArgumentException("Not a directory: %s, workspace=%s".formatted(directoryPath, workspace));
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static String computeVersion(byte[] content) {
+        MessageDigest digest = newVersionDigest();
+        digest.update(content);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static boolean hasVersion(Path filePath, String version) {
+        try {
+            return Objects.equals(readVersion(filePath), version);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the version of the file %s".formatted(filePath), e);
         }
-        List<Path> filesToHardDelete;
-        try (Stream<Path> fileStream = Files.list(directoryPath)) {
+    }
+
+    private static MessageDigest newVersionDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required to be supported", e);
+        }
+    }
+
+    @Override
+    public void delete(String directory, String key) {
+        delete(directory, Set.of(key));
+    }
+
+    @Override
+    public void delete(String directory, Collection<String> keys) {
+        delete(directory, keys, false);
+    }
+
+    /**
+     * Soft-deletes the documents, syncing and invalidating the directory once for all of them.
+     *
+     * @param skipMissing whether the documents which do not exist are skipped instead of failing
+     * @return the number of the deleted documents
+     */
+    int delete(String directory, Collection<String> keys, boolean skipMissing) {
+        return delete(directory, keys, skipMissing, null);
+    }
+
+    /**
+     * @param expectedVersions the versions of the documents to be deleted, a document with another version is skipped,
+     *                         or {@code null} to delete the documents at any version
+     */
+    private int delete(String directory, Collection<String> keys, boolean skipMissing, Map<String, String> expectedVersions) {
+        validateWorkspaceNotDeleted();
+        validateDirectorySyntax(directory);
+        for (String key : keys) {
+            validateKeySyntax(key);
+        }
+        int deleted = 0;
+        for (String key : keys) {
+            Path filePath = workspacePath.resolve(directory).resolve(key);
+            try (KeyLocks.Held ignoredLock = lockForWrite(filePath)) {
+                if (expectedVersions != null && !hasVersion(filePath, expectedVersions.get(key))) {
+                    continue;
+                }
+                long size;
+                try {
+                    size = Files.size(filePath);
+                } catch (NoSuchFileException e) {
+                    if (skipMissing) {
+                        continue;
+                    }
+                    throw new IllegalArgumentException("Document doesn't exist: workspace='%s', directory='%s', key='%s'"
+                            .formatted(workspace, directory, key));
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to get the file size: %s".formatted(filePath), e);
+                }
+                Path softDeletedPath = moveToObsolete(filePath, SoftDeleteHelper::contructSoftDeletedPath);
+                replicator.move(filePath, softDeletedPath);
+                workspaceIndex.onRenamed(filePath, softDeletedPath);
+                usageAccounting.update(softDeletedPath.getParent(), -1, -size, 1, size);
+                onKeyChanged(directory, key);
+                onKeyRemoved(directory, key);
+                detectedCharsets.forget(directory, key);
+                propertiesCache.invalidate(filePath);
+                appendChange(DmsChange.Type.DELETE, directory, key);
+                deleted++;
+                deleteLineIndex(directory, key);
+            }
+        }
+        if (deleted > 0) {
+            keyFilters.afterWrite(workspacePath.resolve(directory), null);
+            fileSyncer.syncDirectory(workspacePath.resolve(directory));
+        }
+        return deleted;
+    }
+
+    @Override
+    public boolean copy(String srcDirectory, String srcKey, String dstDirectory, String dstKey) {
+        return transferFrom(this, srcDirectory, srcKey, dstDirectory, dstKey, false);
+    }
+
+    @Override
+    public boolean move(String srcDirectory, String srcKey, String dstDirectory, String dstKey) {
+        return transferFrom(this, srcDirectory, srcKey, dstDirectory, dstKey, true);
+    }
+
+    @Override
+    public int copyAll(String srcDirectory, String dstDirectory) {
+        return transferAllFrom(this, srcDirectory, dstDirectory, false);
+    }
+
+    @Override
+    public int moveAll(String srcDirectory, String dstDirectory) {
+        return transferAllFrom(this, srcDirectory, dstDirectory, true);
+    }
+
+    boolean transferFrom(FilesystemDmsImpl source, String srcDirectory, String srcKey, String dstDirectory, String dstKey, boolean move) {
+        validateWorkspaceNotDeleted();
+        validateDirectorySyntax(dstDirectory);
+        validateKeySyntax(dstKey);
+        if (source == this && srcDirectory.equals(dstDirectory) && srcKey.equals(dstKey)) {
+            throw new IllegalArgumentException("Source and destination are the same: workspace='%s', directory='%s', key='%s'"
+                    .formatted(workspace, srcDirectory, srcKey));
+        }
+        Transferred transferred = transfer(source, srcDirectory, srcKey, dstDirectory, dstKey, move);
+        if (transferred == null) {
+            throw new IllegalArgumentException("Document doesn't exist: workspace='%s', directory='%s', key='%s'"
+                    .formatted(source.workspace, srcDirectory, srcKey));
+        }
+        if (move) {
+            source.delete(srcDirectory, List.of(srcKey), true, Map.of(srcKey, transferred.version()));
+        }
+        return transferred.isNew();
+    }
+
+    /**
+     * @param isNew   whether the destination document did not exist
+     * @param version version of the transferred source document, {@code null} unless it is moved
+     */
+    private record Transferred(boolean isNew, String version) {
+    }
+
+    /**
+     * Stages the source document in the metadata directory of this workspace first,
+     * so that the destination is not touched if the source is missing,
+     * and then puts the staged file in place by a rename.
+     * The source of a move is deleted by the caller only at the transferred version,
+     * so that a version put to the source meanwhile is kept.
+     *
+     * @return the transfer, or {@code null} if the source document does not exist
+     */
+    private Transferred transfer(FilesystemDmsImpl source, String srcDirectory, String srcKey, String dstDirectory, String dstKey, boolean move) {
+        Path stagedPath = workspacePath.resolve(META_DIRECTORY).resolve("staging").resolve(UUID.randomUUID().toString());
+        try {
+            if (!source.stage(srcDirectory, srcKey, stagedPath)) {
+                return null;
+            }
+            // The staged file is a link or a copy of the source version, which is never modified in place
+            String version = move ? readVersion(stagedPath) : null;
+            boolean isNew = put(dstDirectory, dstKey, path -> Files.move(stagedPath, path, StandardCopyOption.ATOMIC_MOVE));
+            return new Transferred(isNew, version);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the version of the staged file %s".formatted(stagedPath), e);
+        } finally {
+            try {
+                Files.deleteIfExists(stagedPath);
+            } catch (IOException e) {
+                LOG.warn("Failed to delete the staged file: {}", stagedPath, e);
+            }
+        }
+    }
+
+    int transferAllFrom(FilesystemDmsImpl source, String srcDirectory, String dstDirectory, boolean move) {
+        validateWorkspaceNotDeleted();
+        validateDirectorySyntax(dstDirectory);
+        if (source == this && srcDirectory.equals(dstDirectory)) {
+            throw new IllegalArgumentException("Source and destination are the same: workspace='%s', directory='%s'"
+                    .formatted(workspace, srcDirectory));
+        }
+        // The overridden versions are listed among the keys, but they are history, not documents to transfer
+        List<String> keys = source.getKeys(srcDirectory).stream()
+                .filter(Predicate.not(SoftDeleteHelper::isObsoleteVersion))
+                .toList();
+        // The documents deleted since the listing are skipped
+        Map<String, String> movedVersions = new LinkedHashMap<>();
+        int transferredCount = 0;
+        for (String key : keys) {
+            Transferred transferred = transfer(source, srcDirectory, key, dstDirectory, key, move);
+            if (transferred != null) {
+                transferredCount++;
+                if (move) {
+                    movedVersions.put(key, transferred.version());
+                }
+            }
+        }
+        if (!movedVersions.isEmpty()) {
+            source.delete(srcDirectory, movedVersions.keySet(), true, movedVersions);
+        }
+        return transferredCount;
+    }
+
+    /**
+     * Returns {@code false} if the document does not exist.
+     */
+    private boolean stage(String directory, String key, Path stagedPath) {
+        validateWorkspaceNotDeleted();
+        validateDirectorySyntax(directory);
+        validateKeySyntax(key);
+        Path filePath = workspacePath.resolve(directory).resolve(key);
+        try (KeyLocks.Held ignoredLock = KEY_LOCKS.lock(filePath)) {
+            if (!Files.exists(filePath)) {
+                return false;
+            }
+            Files.createDirectories(stagedPath.getParent());
+            linkOrCopy(filePath, stagedPath);
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to stage the file %s".formatted(filePath), e);
+        }
+    }
+
+    /**
+     * Hard-links the file to the target path or, if the filesystem does not support it
+     * or the target path is on another filesystem, copies it channel to channel.
+     * Linking is safe because the documents are never modified in place, a new version is always a new file.
+     */
+    static void linkOrCopy(Path filePath, Path targetPath) throws IOException {
+        try {
+            Files.createLink(targetPath, filePath);
+        } catch (NoSuchFileException | FileAlreadyExistsException e) {
+            throw e;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            LOG.debug("Copying the file instead of linking it: {}, {}", filePath, e.toString());
+            copyContent(filePath, targetPath);
+        }
+    }
+
+    private static void copyContent(Path filePath, Path targetPath) throws IOException {
+        try (FileChannel in = FileChannel.open(filePath, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(targetPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long transferred = 0;
+            while (transferred < size) {
+                transferred += in.transferTo(transferred, size - transferred, out);
+            }
+        }
+    }
+
+    /**
+     * Holds the workspace lock exclusively only to register the snapshot,
+     * the documents are linked afterward while the concurrent writes preserve the documents not linked yet.
+     */
+    @Override
+    public FilesystemDmsSnapshot snapshot() {
+        validateWorkspaceNotDeleted();
+        Path snapshotsPath = workspacePath.resolve(META_DIRECTORY).resolve("snapshots");
+        String snapshotId = UUID.randomUUID().toString();
+        Path snapshotPath = snapshotsPath.resolve(snapshotId);
+        WorkspaceLock workspaceLock = WorkspaceLock.of(workspacePath);
+        PendingSnapshot pendingSnapshot = new PendingSnapshot(workspacePath, snapshotPath);
+        LocalDateTime snapshotTime;
+        try {
+            Files.createDirectories(snapshotPath);
+            try {
+                try (KeyLocks.Held ignoredLock = workspaceLock.lock()) {
+                    snapshotTime = LocalDateTime.now();
+                    workspaceLock.addPendingSnapshot(pendingSnapshot);
+                }
+                for (String directory : listDirectories()) {
+                    Path directoryPath = workspacePath.resolve(directory);
+                    WorkspaceIndex.DirectoryListing listing;
+                    try {
+                        listing = workspaceIndex.scanListing(directoryPath);
+                    } catch (NoSuchFileException e) {
+                        continue;
+                    }
+                    for (int i = 0; i < listing.names().length; i++) {
+                        if (listing.directory()[i] || listing.obsolete()[i]) {
+                            continue;
+                        }
+                        Path filePath = directoryPath.resolve(listing.names()[i]);
+                        try (KeyLocks.Held ignoredLock = KEY_LOCKS.lock(filePath)) {
+                            pendingSnapshot.preserve(filePath);
+                        }
+                    }
+                }
+            } finally {
+                workspaceLock.removePendingSnapshot(pendingSnapshot);
+            }
+        } catch (IOException e) {
+            FilesystemDmsSnapshot.deleteTree(snapshotPath);
+            throw new UncheckedIOException("Failed to take a snapshot of workspace: %s".formatted(workspace), e);
+        } catch (RuntimeException e) {
+            FilesystemDmsSnapshot.deleteTree(snapshotPath);
+            throw e;
+        }
+        return new FilesystemDmsSnapshot(snapshotsPath, snapshotId, ioScheduler, charsetDetection, snapshotTime);
+    }
+
+    @Override
+    public List<DmsChange> getChanges(long cursor, int limit) {
+        validateWorkspaceNotDeleted();
+        return changeJournal.read(null, cursor, limit).changes();
+    }
+
+    @Override
+    public DmsChangePage getChanges(String directory, long cursor, int limit) {
+        validateWorkspaceNotDeleted();
+        validateDirectorySyntax(directory);
+        return changeJournal.read(directory, cursor, limit);
+    }
+
+    @Override
+    public int truncateChanges(long cursor) {
+        validateWorkspaceNotDeleted();
+        int discarded = changeJournal.truncate(cursor);
+        if (discarded > 0) {
+            fileSyncer.syncDirectory(changeJournal.getJournalPath().getParent());
+            replicator.copy(changeJournal.getJournalPath());
+        }
+        return discarded;
+    }
+
+    @Override
+    public <KEY> SequencedMap<KEY, String> getRedundantPeriodKeys(
+            String directory,
+            Function<String, KEY> keyFnc,
+            Function<KEY, LocalDate> keyStartDateInclFnc,
+            Function<KEY, LocalDate> keyEndDateInclFnc) {
+        SequencedCollection<String> rawKeys = getKeys(directory);
+        if (rawKeys.isEmpty()) {
+            return Collections.emptySortedMap();
+        }
+        SequencedMap<KEY, String> keys = new LinkedHashMap<>();
+        for (String rawKey : rawKeys) {
+            KEY key = keyFnc.apply(rawKey);
+            if (key != null) {
+                if (keys.put(key, rawKey) != null) {
+                    throw new IllegalStateException("Duplicate key: %s, %s".formatted(rawKey, key));
+                }
+            }
+        }
+        SequencedSet<KEY> redundantKeys = getRedundantPeriodKeys(keys.keySet(), keyStartDateInclFnc, keyEndDateInclFnc);
+        keys.keySet().retainAll(redundantKeys);
+        return keys;
+    }
+
+    @Override
+    public <KEY> SequencedSet<KEY> getRedundantPeriodKeys(
+            Collection<KEY> keys,
+            Function<KEY, LocalDate> keyStartDateInclFnc,
+            Function<KEY, LocalDate> keyEndDateInclFnc
+    ) {
+        return PeriodDocUtils.findRedundantKeys(keys, keyStartDateInclFnc, keyEndDateInclFnc);
+    }
+
+    @Override
+    public DmsCompactionReport compactPeriods(List<DmsCompactionRule<?>> rules, DmsCompactionOptions options) {
+        List<String> directories;
+        try (IoScheduler.Permit ignored = ioScheduler.acquire(workspace, IoScheduler.Priority.MAINTENANCE)) {
+            validateWorkspaceNotDeleted();
+            directories = DIRECTORY_WALK_POOL.invoke(new DirectoryWalk(null, workspacePath));
+        }
+        return new PeriodCompaction(this, workspace, ioScheduler, options).run(directories, rules);
+    }
+
+    @Override
+    public DmsUsage getUsage(String directory) {
+        validateWorkspaceNotDeleted();
+        validateDirectorySyntax(directory);
+        Path directoryPath = workspacePath.resolve(directory);
+        if (!Files.exists(directoryPath)) {
+            return DmsUsage.EMPTY;
+        } else if (!Files.isDirectory(directoryPath)) {
+            throw new IllegalArgumentException("Not a directory: %s, workspace=%s".formatted(directoryPath, workspace));
+        }
+        try {
+            return usageAccounting.get(directoryPath);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to get usage: %s, workspace=%s".formatted(directory, workspace), e);
+        }
+    }
+
+    @Override
+    public DmsUsage getUsage() {
+        validateWorkspaceNotDeleted();
+        try {
+            return usageAccounting.getTotal(() -> listDirectories().stream().map(workspacePath::resolve).toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to get usage, workspace=%s".formatted(workspace), e);
+        }
+    }
+
+    @Override
+    public SequencedCollection<String> search(String directory, String query, int limit, Charset charset, Charset alternativeCharset) {
+        validateWorkspaceNotDeleted();
+        validateDirectorySyntax(directory);
+        requireNonNull(query);
+        requireNonNull(charset);
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Invalid limit: %s".formatted(limit));
+        }
+        Path directoryPath = workspacePath.resolve(directory);
+        if (!Files.exists(directoryPath)) {
+            return Collections.emptyList();
+        } else if (!Files.isDirectory(directoryPath)) {
+            throw new IllegalArgumentException("Not a directory: %s, workspace=%s".formatted(directoryPath, workspace));
+        }
+        // One index per pair of charsets, so that the callers searching with different charsets do not re-index each other's documents
+        String charsetsName = (alternativeCharset == null ? charset.name() : charset.name() + "+" + alternativeCharset.name())
+                .replace(':', '_');
+        SearchIndex searchIndex = searchIndexes
+                .computeIfAbsent(directory, dir -> new ConcurrentHashMap<>())
+                .computeIfAbsent(charsetsName, name -> new SearchIndex(directoryPath,
+                        workspacePath.resolve(META_DIRECTORY).resolve("search").resolve(directory).resolve("index.%s.bin".formatted(name))));
+        try {
+            return Collections.unmodifiableList(searchIndex.search(query, limit, charset, alternativeCharset,
+                    workspaceIndex.getListing(directoryPath),
+                    key -> decodeForSearch(directory, directoryPath.resolve(key), charset, alternativeCharset)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to search directory: %s, workspace=%s".formatted(directory, workspace), e);
+        }
+    }
+
+    private SearchIndex.Text decodeForSearch(String directory, Path filePath, Charset charset, Charset alternativeCharset) throws IOException {
+        String key = filePath.getFileName().toString();
+        byte[] bytes = Files.readAllBytes(filePath);
+        List<Charset> candidates = getCharsetCandidates(directory, key, charset, alternativeCharset);
+        try {
+            TextDecodingUtils.Decoded<String> decoded = TextDecodingUtils.decodeText(bytes, candidates, charsetDetection);
+            onCharsetDecoded(directory, key, charset, candidates, decoded.charset());
+            return new SearchIndex.Text(decoded.value(), TextDecodingUtils.isAscii(bytes));
+        } catch (CharacterCodingException e) {
+            LOG.debug("Not indexing a document which is not a text: {}", filePath);
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <KEY> PeriodIndex<KEY> getPeriodIndex(
+            String directory,
+            String indexName,
+            Function<String, KEY> keyFnc,
+            Function<KEY, LocalDate> keyStartDateInclFnc,
+            Function<KEY, LocalDate> keyEndDateInclFnc
+    ) {
+        validateWorkspaceNotDeleted();
+        validateDirectorySyntax(directory);
+        if (indexName == null || indexName.isBlank()) {
+            throw new IllegalArgumentException("Invalid index name: %s".formatted(indexName));
+        }
+        PeriodIndexImpl<?> periodIndex = periodIndexes
+                .computeIfAbsent(directory, dir -> new ConcurrentHashMap<>())
+                .computeIfAbsent(indexName, name -> new PeriodIndexImpl<>(keyFnc, keyStartDateInclFnc, keyEndDateInclFnc));
+        periodIndex.ensureLoaded(() -> getKeys(directory));
+        return (PeriodIndex<KEY>) periodIndex;
+    }
+
+    @Override
+    public int purge(String directory, String origKey, LocalDateTime softDeletedBefore) {
+        validateWorkspaceNotDeleted();
+        validateDirectorySyntax(directory);
+        if (origKey != null) {
+            validateKeySyntax(origKey);
+        }
+        Path directoryPath = workspacePath.resolve(directory);
+        if (!Files.exists(directoryPath)) {
+            return 0;
+        } else if (!Files.isDirectory(directoryPath)) {
+            throw new IllegalArgumentException("Not a directory: %s, workspace=%s".formatted(directoryPath, workspace));
+        }
+        List<Path> filesToHardDelete;
+        try (Stream<Path> fileStream = Files.list(directoryPath)) {
             filesToHardDelete = fileStream
                     .filter(p -> SoftDeleteHelper.isObsolete(p.getFileName().toString(), origKey, softDeletedBefore))
                     .toList();
@@ -457,14 +1344,171 @@ public class FilesystemDmsImpl implements Dms {
             throw new UncheckedIOException("Failed to list files at path: %s".formatted(directoryPath), e);
         }
         for (Path fileToHardDelete : filesToHardDelete) {
+            try (KeyLocks.Held ignoredLock = DIRECTORY_LOCKS.lockShared(directoryPath)) {
+                long size = fileSize(fileToHardDelete);
+                try {
+                    LOG.info("Hard deleting: {}", fileToHardDelete);
+                    Files.delete(fileToHardDelete);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to delete: %s".formatted(fileToHardDelete), e);
+                }
+                usageAccounting.update(directoryPath, 0, 0, -1, -size);
+            }
+            replicator.delete(fileToHardDelete);
+            String purgedKey = SoftDeleteHelper.extractOrigKey(fileToHardDelete.getFileName().toString());
+            appendChange(DmsChange.Type.PURGE, directory, purgedKey);
+        }
+        if (!filesToHardDelete.isEmpty()) {
+            workspaceIndex.invalidate(directoryPath);
+            keyFilters.afterWrite(directoryPath, null);
+        }
+        return filesToHardDelete.size();
+    }
+
+    @Override
+    public int exportWorkspace(WritableByteChannel channel, DmsExportOptions options) {
+        validateWorkspaceNotDeleted();
+        List<String> directories = listDirectories().stream()
+                .filter(directory -> options.directories() == null || options.directories().stream()
+                        .map(d -> d.replace('\\', '/').replaceAll("^/+|/+$", ""))
+                        .anyMatch(d -> directory.equals(d) || directory.startsWith(d + "/")))
+                .toList();
+        FileTime modifiedSince = options.modifiedSince() == null ? null
+                : FileTime.from(options.modifiedSince().atZone(ZoneId.systemDefault()).toInstant());
+
+        // The directories are exported one by one, the archive itself is written sequentially
+        TarWriter tarWriter = new TarWriter(channel);
+        int exported = 0;
+        try {
+            for (String directory : directories) {
+                Path directoryPath = workspacePath.resolve(directory);
+                List<Path> paths = new ArrayList<>();
+                List<Long> sizes = new ArrayList<>();
+                listExportedFiles(directoryPath, options, modifiedSince, paths, sizes);
+                try (ExportReadAhead documents = new ExportReadAhead(directoryPath, paths.toArray(Path[]::new),
+                        sizes.stream().mapToLong(Long::longValue).toArray())) {
+                    while (documents.hasNext()) {
+                        ExportReadAhead.Document document = documents.next();
+                        String name = directory + "/" + document.path().getFileName();
+                        if (document.content() != null) {
+                            tarWriter.writeFile(name, document.content(), document.modifiedEpochSecond());
+                            exported++;
+                        } else if (exportFile(tarWriter, name, document.path())) {
+                            exported++;
+                        }
+                    }
+                }
+            }
+            tarWriter.finish();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to export workspace: %s".formatted(workspace), e);
+        }
+        return exported;
+    }
+
+    /**
+     * Lists the exported files of the directory in the order of their names, with their sizes.
+     */
+    private static void listExportedFiles(Path directoryPath, DmsExportOptions options, FileTime modifiedSince, List<Path> paths, List<Long> sizes) {
+        List<Path> filePaths;
+        try (Stream<Path> fileStream = Files.list(directoryPath)) {
+            filePaths = fileStream
+                    .filter(path -> options.includeHistory() || !SoftDeleteHelper.isObsoleteVersion(path.getFileName().toString()))
+                    .sorted()
+                    .toList();
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to list files at path: %s".formatted(directoryPath), e);
+        }
+        for (Path path : filePaths) {
+            BasicFileAttributes attrs;
             try {
-                LOG.info("Hard deleting: {}", fileToHardDelete);
-                Files.delete(fileToHardDelete);
+                attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                continue;
             } catch (IOException e) {
-                throw new UncheckedIOException("Failed to delete: %s".formatted(fileToHardDelete), e);
+                throw new UncheckedIOException("Failed to read attributes: %s".formatted(path), e);
+            }
+            if (attrs.isRegularFile() && (modifiedSince == null || attrs.lastModifiedTime().compareTo(modifiedSince) >= 0)) {
+                paths.add(path);
+                sizes.add(attrs.size());
             }
         }
-        return filesToHardDelete.size();
+    }
+
+    /**
+     * Streams a document too large to be read ahead, returns false if it was deleted meanwhile.
+     */
+    private static boolean exportFile(TarWriter tarWriter, String name, Path path) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long modifiedEpochSecond = Files.getLastModifiedTime(path).toInstant().getEpochSecond();
+            tarWriter.writeFile(name, fileChannel, fileChannel.size(), modifiedEpochSecond);
+            return true;
+        } catch (NoSuchFileException e) {
+            LOG.debug("Skipping the document deleted during the export: {}", path);
+            return false;
+        }
+    }
+
+    @Override
+    public int importWorkspace(ReadableByteChannel channel) {
+        validateWorkspaceNotDeleted();
+        TarReader tarReader = new TarReader(channel);
+        int imported = 0;
+        try {
+            TarReader.Entry entry;
+            while ((entry = tarReader.nextEntry()) != null) {
+                String name = entry.name();
+                int lastSlash = name.lastIndexOf('/');
+                if (lastSlash <= 0 || Arrays.stream(name.split("/")).anyMatch(s -> s.isEmpty() || s.equals(".") || s.equals(".."))) {
+                    throw new IllegalArgumentException("Invalid archive entry: %s, workspace=%s".formatted(name, workspace));
+                }
+                String directory = name.substring(0, lastSlash);
+                String key = name.substring(lastSlash + 1);
+                FileTime modifiedTime = FileTime.from(entry.modifiedEpochSecond(), TimeUnit.SECONDS);
+                IOConsumer<Path> fileWriter = path -> {
+                    try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                        tarReader.copyContentTo(fileChannel);
+                    }
+                    Files.setLastModifiedTime(path, modifiedTime);
+                };
+                if (SoftDeleteHelper.isObsoleteVersion(key)) {
+                    if (!importObsoleteVersion(directory, key, fileWriter)) {
+                        continue;
+                    }
+                } else {
+                    put(directory, key, fileWriter);
+                }
+                imported++;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to import workspace: %s".formatted(workspace), e);
+        }
+        return imported;
+    }
+
+    /**
+     * Adds an obsolete version to the history of its key, unless it is already there.
+     */
+    private boolean importObsoleteVersion(String directory, String obsoleteKey, IOConsumer<Path> fileWriter) throws IOException {
+        validateDirectorySyntax(directory);
+        Path directoryPath = getOrCreateDirectory(directory);
+        Path filePath = directoryPath.resolve(obsoleteKey);
+        try (KeyLocks.Held ignoredLock = lockForWrite(filePath)) {
+            if (Files.exists(filePath)) {
+                return false;
+            }
+            keyFilters.beforeWrite(directoryPath, obsoleteKey);
+            fileWriter.accept(filePath);
+            fileSyncer.syncFile(filePath);
+            replicator.copy(filePath);
+            workspaceIndex.onWritten(filePath);
+            keyFilters.afterWrite(directoryPath, obsoleteKey);
+            usageAccounting.update(directoryPath, 0, 0, 1, fileSize(filePath));
+            appendChange(DmsChange.Type.HISTORY, directory, SoftDeleteHelper.extractOrigKey(obsoleteKey));
+            return true;
+        }
     }
 
     @Override
@@ -477,19 +1521,35 @@ public class FilesystemDmsImpl implements Dms {
         } catch (IOException e) {
             throw new UncheckedIOException("Failed to init workspace %s".formatted(workspacePath), e);
         }
+        fileSyncer.syncDirectory(workspacePath.getParent());
+        replicator.copy(workspacePath);
         workspaceDeleted = false;
     }
 
     @Override
     public void deleteWorkspace() {
         validateWorkspaceNotDeleted();
-        Path newSoftDelWorkspacePath = SoftDeleteHelper.contructSoftDeletedPath(workspacePath, LocalDateTime.now());
-        try {
-            Files.move(workspacePath, newSoftDelWorkspacePath);
-        } catch (IOException e) {
-            throw new UncheckedIOException("Failed to move %s -> %s".formatted(workspacePath, newSoftDelWorkspacePath), e);
-        }
+        changeJournal.close();
+        Path softDeletedPath = moveToObsolete(workspacePath, SoftDeleteHelper::contructSoftDeletedPath);
+        fileSyncer.syncDirectory(workspacePath.getParent());
+        replicator.move(workspacePath, softDeletedPath);
         workspaceDeleted = true;
+        for (Map<String, PeriodIndexImpl<?>> directoryPeriodIndexes : periodIndexes.values()) {
+            for (PeriodIndexImpl<?> periodIndex : directoryPeriodIndexes.values()) {
+                periodIndex.clear();
+            }
+        }
+        detectedCharsets.clear();
+        propertiesCache.clear();
+        workspaceIndex.clear();
+        usageAccounting.clear();
+        keyFilters.clear();
+        for (Map<String, SearchIndex> directorySearchIndexes : searchIndexes.values()) {
+            for (SearchIndex searchIndex : directorySearchIndexes.values()) {
+                searchIndex.clear();
+            }
+        }
+        searchIndexes.clear();
     }
 
     @Override
@@ -513,6 +1573,7 @@ public class FilesystemDmsImpl implements Dms {
                 } catch (IOException e) {
                     throw new UncheckedIOException(e);
                 }
+                replicator.delete(obsoleteWorkspaceVersion);
             }
             return obsoleteWorkspaceVersions.size();
         } catch (IOException e) {
@@ -520,6 +1581,220 @@ public class FilesystemDmsImpl implements Dms {
         }
     }
 
+    /**
+     * Deletes the snapshots and the staged transfers left behind by a process which ended without closing or finishing them.
+     * Must run before this process takes a snapshot of the workspace or transfers a document to it.
+     */
+    void deleteLeftovers() {
+        Path metaPath = workspacePath.resolve(META_DIRECTORY);
+        try (Stream<Path> snapshots = Files.list(metaPath.resolve("snapshots"))) {
+            snapshots.forEach(snapshotPath -> {
+                LOG.info("Deleting a snapshot left behind: {}", snapshotPath);
+                FilesystemDmsSnapshot.deleteTree(snapshotPath);
+            });
+        } catch (NoSuchFileException e) {
+            // No snapshot was taken
+        } catch (IOException e) {
+            LOG.warn("Failed to list the snapshots left behind: {}", metaPath, e);
+        }
+        try (Stream<Path> stagedFiles = Files.list(metaPath.resolve("staging"))) {
+            stagedFiles.forEach(stagedPath -> {
+                try {
+                    Files.deleteIfExists(stagedPath);
+                } catch (IOException e) {
+                    LOG.warn("Failed to delete the staged file: {}", stagedPath, e);
+                }
+            });
+        } catch (NoSuchFileException e) {
+            // Nothing was transferred
+        } catch (IOException e) {
+            LOG.warn("Failed to list the staged files left behind: {}", metaPath, e);
+        }
+    }
+
+    /**
+     * Saves the workspace index snapshot, drops the cached state and releases the change journal.
+     * The instance stays usable for reading, the caches are rebuilt on demand.
+     */
+    void release() {
+        changeJournal.release();
+        if (!workspaceDeleted) {
+            workspaceIndex.save();
+            usageAccounting.save();
+            keyFilters.save();
+        }
+        workspaceIndex.clear();
+        usageAccounting.clear();
+        keyFilters.clear();
+        for (Map<String, SearchIndex> directorySearchIndexes : searchIndexes.values()) {
+            for (SearchIndex searchIndex : directorySearchIndexes.values()) {
+                searchIndex.save();
+            }
+        }
+        searchIndexes.clear();
+        periodIndexes.clear();
+        detectedCharsets.clear();
+        propertiesCache.clear();
+    }
+
+    /**
+     * Releases the change journal without saving the cached state, for an instance whose workspace is being discarded.
+     */
+    void discard() {
+        changeJournal.release();
+    }
+
+    private void appendChange(DmsChange.Type type, String directory, String key) {
+        ChangeJournal.Appended appended = changeJournal.append(type, directory, key);
+        if (appended.startOffset() == 0) {
+            fileSyncer.syncFile(changeJournal.getJournalPath());
+        } else {
+            fileSyncer.syncAppended(changeJournal.getJournalPath(), changeJournal::force);
+        }
+        replicator.append(changeJournal.getJournalPath(), appended.startOffset(), appended.endOffset());
+    }
+
+    private static long fileSize(Path filePath) {
+        try {
+            return Files.size(filePath);
+        } catch (NoSuchFileException e) {
+            return 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to get the file size: %s".formatted(filePath), e);
+        }
+    }
+
+    private void onKeyChanged(String directory, String key) {
+        Map<String, SearchIndex> directorySearchIndexes = searchIndexes.get(directory);
+        if (directorySearchIndexes != null) {
+            for (SearchIndex searchIndex : directorySearchIndexes.values()) {
+                searchIndex.onKeyChanged(key);
+            }
+        }
+    }
+
+    private void onKeyAdded(String directory, String key) {
+        Map<String, PeriodIndexImpl<?>> directoryPeriodIndexes = periodIndexes.get(directory);
+        if (directoryPeriodIndexes != null) {
+            for (PeriodIndexImpl<?> periodIndex : directoryPeriodIndexes.values()) {
+                periodIndex.onKeyAdded(key);
+            }
+        }
+    }
+
+    private void onKeyRemoved(String directory, String key) {
+        Map<String, PeriodIndexImpl<?>> directoryPeriodIndexes = periodIndexes.get(directory);
+        if (directoryPeriodIndexes != null) {
+            for (PeriodIndexImpl<?> periodIndex : directoryPeriodIndexes.values()) {
+                periodIndex.onKeyRemoved(key);
+            }
+        }
+    }
+
+    /**
+     * Returns all the workspace directories except the metadata one, as sorted relative paths separated by '/'.
+     */
+    private List<String> listDirectories() {
+        List<String> directories = new ArrayList<>();
+        try {
+            Files.walkFileTree(workspacePath, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (dir.equals(workspacePath)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    Path relativePath = workspacePath.relativize(dir);
+                    if (relativePath.getName(0).toString().equals(META_DIRECTORY)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    StringJoiner directory = new StringJoiner("/");
+                    relativePath.forEach(name -> directory.add(name.toString()));
+                    directories.add(directory.toString());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                    if (e instanceof NoSuchFileException) {
+                        // Deleted or moved to obsolete meanwhile
+                        return FileVisitResult.CONTINUE;
+                    }
+                    throw e;
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to list directories of workspace: %s".formatted(workspacePath), e);
+        }
+        directories.sort(null);
+        return directories;
+    }
+
+    /**
+     * Locks the document for a write, holding the workspace shared so that no snapshot is started meanwhile
+     * and the directory shared so that its usage is not computed meanwhile.
+     * The document is preserved for the snapshots being taken before it is written.
+     */
+    private KeyLocks.Held lockForWrite(Path filePath) {
+        WorkspaceLock workspaceLock = WorkspaceLock.of(workspacePath);
+        KeyLocks.Held heldWorkspaceLock = workspaceLock.lockShared();
+        KeyLocks.Held directoryLock = null;
+        KeyLocks.Held keyLock = null;
+        try {
+            directoryLock = DIRECTORY_LOCKS.lockShared(filePath.getParent());
+            keyLock = KEY_LOCKS.lock(filePath);
+            for (PendingSnapshot pendingSnapshot : workspaceLock.getPendingSnapshots()) {
+                pendingSnapshot.preserve(filePath);
+            }
+            KeyLocks.Held heldDirectoryLock = directoryLock;
+            KeyLocks.Held heldKeyLock = keyLock;
+            return () -> {
+                heldKeyLock.close();
+                heldDirectoryLock.close();
+                heldWorkspaceLock.close();
+            };
+        } catch (RuntimeException e) {
+            if (keyLock != null) {
+                keyLock.close();
+            }
+            if (directoryLock != null) {
+                directoryLock.close();
+            }
+            heldWorkspaceLock.close();
+            throw e;
+        }
+    }
+
+    private static Path moveToObsolete(Path path, BiFunction<Path, LocalDateTime, Path> obsoletePathFnc) {
+        LocalDateTime timestamp = LocalDateTime.now();
+        while (true) {
+            Path obsoletePath = obsoletePathFnc.apply(path, timestamp);
+            try {
+                Files.move(path, obsoletePath);
+                return obsoletePath;
+            } catch (FileAlreadyExistsException e) {
+                timestamp = timestamp.plus(1, ChronoUnit.MILLIS);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to move %s -> %s".formatted(path, obsoletePath), e);
+            }
+        }
+    }
+
+    private Path getLineIndexPath(String directory, String key) {
+        return workspacePath.resolve(META_DIRECTORY).resolve("lines").resolve(directory).resolve(key + ".idx");
+    }
+
+    /**
+     * Deletes the line index of a replaced or deleted document,
+     * whose size and modification time alone might not tell it from the new version.
+     */
+    private void deleteLineIndex(String directory, String key) {
+        try {
+            Files.deleteIfExists(getLineIndexPath(directory, key));
+        } catch (IOException e) {
+            LOG.warn("Failed to delete the line index: directory={}, key={}", directory, key, e);
+        }
+    }
+
     private Path getOrCreateDirectory(String directory) {
         Path directoryPath = workspacePath.resolve(directory);
         if (!Files.exists(directoryPath)) {
@@ -550,6 +1825,9 @@ public class FilesystemDmsImpl implements Dms {
         if (directoryName == null || directoryName.isBlank()) {
             throw new IllegalArgumentException("Invalid directory: %s".formatted(directoryName));
         }
+        if (Path.of(directoryName).getName(0).toString().equals(META_DIRECTORY)) {
+            throw new IllegalArgumentException("Reserved directory: %s".formatted(directoryName));
+        }
     }
 
     private void validateKeySyntax(String keyName) {
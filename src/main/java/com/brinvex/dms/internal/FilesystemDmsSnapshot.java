@@ -0,0 +1,186 @@
+package com.brinvex.dms.internal;
+
+import com.brinvex.dms.api.DmsSnapshot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Snapshot of a workspace, a workspace of its own made of hard links to the document versions,
+ * placed in the metadata directory of the snapshotted workspace.
+ * It is neither synced nor replicated, as it is deleted on close.
+ */
+class FilesystemDmsSnapshot extends FilesystemDmsImpl implements DmsSnapshot {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FilesystemDmsSnapshot.class);
+
+    private final Path snapshotPath;
+
+    private final LocalDateTime snapshotTime;
+
+    private volatile boolean closed;
+
+    FilesystemDmsSnapshot(Path snapshotsPath, String snapshotId, IoScheduler ioScheduler, boolean charsetDetection, LocalDateTime snapshotTime) {
+        super(snapshotsPath, snapshotId, FileSyncer.NONE, Replicator.NONE, ioScheduler, 0, charsetDetection, 0, false);
+        this.snapshotPath = snapshotsPath.resolve(snapshotId);
+        this.snapshotTime = snapshotTime;
+    }
+
+    @Override
+    public LocalDateTime getSnapshotTime() {
+        return snapshotTime;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        discard();
+        deleteTree(snapshotPath);
+    }
+
+    @Override
+    public FilesystemDmsSnapshot snapshot() {
+        throw readOnly();
+    }
+
+    @Override
+    public void add(String directory, String key, String textContent, Charset charset) {
+        throw readOnly();
+    }
+
+    @Override
+    public void add(String directory, String key, byte[] binaryContent) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean put(String directory, String key, String textContent, Charset charset) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean put(String directory, String key, byte[] binaryContent) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean put(String directory, String key, Map<String, String> propertiesContent, Charset charset) {
+        throw readOnly();
+    }
+
+    @Override
+    public String putIfVersion(String directory, String key, byte[] binaryContent, String expectedVersion) {
+        throw readOnly();
+    }
+
+    @Override
+    public String putIfVersion(String directory, String key, String textContent, Charset charset, String expectedVersion) {
+        throw readOnly();
+    }
+
+    @Override
+    public void delete(String directory, String key) {
+        throw readOnly();
+    }
+
+    @Override
+    public void delete(String directory, Collection<String> keys) {
+        throw readOnly();
+    }
+
+    @Override
+    int delete(String directory, Collection<String> keys, boolean skipMissing) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean copy(String srcDirectory, String srcKey, String dstDirectory, String dstKey) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean move(String srcDirectory, String srcKey, String dstDirectory, String dstKey) {
+        throw readOnly();
+    }
+
+    @Override
+    public int copyAll(String srcDirectory, String dstDirectory) {
+        throw readOnly();
+    }
+
+    @Override
+    public int moveAll(String srcDirectory, String dstDirectory) {
+        throw readOnly();
+    }
+
+    @Override
+    boolean transferFrom(FilesystemDmsImpl source, String srcDirectory, String srcKey, String dstDirectory, String dstKey, boolean move) {
+        throw readOnly();
+    }
+
+    @Override
+    int transferAllFrom(FilesystemDmsImpl source, String srcDirectory, String dstDirectory, boolean move) {
+        throw readOnly();
+    }
+
+    @Override
+    public int purge(String directory, String origKey, LocalDateTime softDeletedBefore) {
+        throw readOnly();
+    }
+
+    @Override
+    public int truncateChanges(long cursor) {
+        throw readOnly();
+    }
+
+    @Override
+    public int importWorkspace(ReadableByteChannel channel) {
+        throw readOnly();
+    }
+
+    @Override
+    public void resetWorkspace() {
+        throw readOnly();
+    }
+
+    @Override
+    public void deleteWorkspace() {
+        throw readOnly();
+    }
+
+    @Override
+    public int purgeWorkspace(LocalDateTime softDeletedBefore) {
+        throw readOnly();
+    }
+
+    private UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException("Snapshot is read-only: %s, snapshotTime=%s".formatted(snapshotPath, snapshotTime));
+    }
+
+    static void deleteTree(Path path) {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(p);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            LOG.warn("Failed to delete the snapshot: {}", path, e);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.brinvex.dms.internal;
+
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the force requests of concurrent writers and forces them in batches on a single background thread.
+ * A batch is closed when the time window since its first request elapses or when it reaches the maximum size.
+ * Each distinct file and directory is forced once per batch and the writers wait until their batch is done.
+ * The files of a batch are forced concurrently by virtual threads and then its directories are,
+ * so a batch takes about as long as its slowest force rather than the sum of them.
+ * <p>
+ * Closing enqueues a poison pill behind the pending requests, so they are all forced before the thread exits.
+ * The requests are enqueued under the same lock as the pill, so none can be enqueued behind it.
+ */
+class GroupCommitFileSyncer implements FileSyncer {
+
+    private record SyncRequest(Path path, boolean directory, Runnable force, CompletableFuture<Void> done) {
+    }
+
+    private static final SyncRequest CLOSE = new SyncRequest(null, false, null, null);
+
+    private final long windowNanos;
+
+    private final int maxBatchSize;
+
+    private final BlockingQueue<SyncRequest> queue = new LinkedBlockingQueue<>();
+
+    private final Thread thread;
+
+    private final ExecutorService forceExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final AtomicLong requestedCount = new AtomicLong();
+
+    private final AtomicLong forcedCount = new AtomicLong();
+
+    private boolean closed;
+
+    GroupCommitFileSyncer(Duration window, int maxBatchSize) {
+        this.windowNanos = window.toNanos();
+        this.maxBatchSize = maxBatchSize;
+        this.thread = Thread.ofPlatform()
+                .name("dms-group-commit")
+                .daemon()
+                .start(this::run);
+    }
+
+    @Override
+    public void syncFile(Path file) {
+        await(new SyncRequest(file, false, null, new CompletableFuture<>()),
+                new SyncRequest(file.getParent(), true, null, new CompletableFuture<>()));
+    }
+
+    @Override
+    public void syncAppended(Path file, Runnable force) {
+        await(new SyncRequest(file, false, force, new CompletableFuture<>()));
+    }
+
+    @Override
+    public void syncDirectory(Path directory) {
+        await(new SyncRequest(directory, true, null, new CompletableFuture<>()));
+    }
+
+    @Override
+    public long getRequestedCount() {
+        return requestedCount.get();
+    }
+
+    @Override
+    public long getForcedCount() {
+        return forcedCount.get();
+    }
+
+    @Override
+    public void close() {
+        synchronized (queue) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.add(CLOSE);
+        }
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        forceExecutor.shutdown();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void await(SyncRequest... requests) {
+        synchronized (queue) {
+            if (closed) {
+                throw new IllegalStateException("Group commit already closed");
+            }
+            queue.addAll(List.of(requests));
+        }
+        requestedCount.addAndGet(requests.length);
+        try {
+            for (SyncRequest request : requests) {
+                request.done().join();
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException uncheckedIOException) {
+                throw uncheckedIOException;
+            }
+            throw e;
+        }
+    }
+
+    private void run() {
+        List<SyncRequest> batch = new ArrayList<>(maxBatchSize);
+        boolean closing = false;
+        while (!closing) {
+            SyncRequest request = takeUninterruptibly();
+            if (request == CLOSE) {
+                break;
+            }
+            batch.add(request);
+            long deadline = System.nanoTime() + windowNanos;
+            while (batch.size() < maxBatchSize) {
+                request = pollUninterruptibly(deadline - System.nanoTime());
+                if (request == null) {
+                    break;
+                } else if (request == CLOSE) {
+                    closing = true;
+                    break;
+                }
+                batch.add(request);
+            }
+            commit(batch);
+            batch.clear();
+        }
+    }
+
+    private SyncRequest takeUninterruptibly() {
+        while (true) {
+            try {
+                return queue.take();
+            } catch (InterruptedException ignored) {
+                // Only the poison pill stops the thread
+            }
+        }
+    }
+
+    private SyncRequest pollUninterruptibly(long timeoutNanos) {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (true) {
+            try {
+                return queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException ignored) {
+                // Only the poison pill stops the thread
+            }
+        }
+    }
+
+    private void commit(List<SyncRequest> batch) {
+        Map<Path, Runnable> files = new LinkedHashMap<>();
+        Set<Path> directories = new LinkedHashSet<>();
+        for (SyncRequest request : batch) {
+            if (request.directory()) {
+                directories.add(request.path());
+            } else if (request.force() != null) {
+                files.put(request.path(), request.force());
+            } else {
+                files.putIfAbsent(request.path(), () -> FileSyncer.force(request.path(), false));
+            }
+        }
+        RuntimeException failure = forceConcurrently(files.values());
+        if (failure == null) {
+            failure = forceConcurrently(directories.stream()
+                    .map(directory -> (Runnable) () -> FileSyncer.force(directory, true))
+                    .toList());
+        }
+        for (SyncRequest request : batch) {
+            if (failure == null) {
+                request.done().complete(null);
+            } else {
+                request.done().completeExceptionally(failure);
+            }
+        }
+    }
+
+    /**
+     * Returns the first failure, after all the forces are done.
+     */
+    private RuntimeException forceConcurrently(Collection<Runnable> forces) {
+        List<CompletableFuture<Void>> forced = new ArrayList<>(forces.size());
+        for (Runnable force : forces) {
+            forced.add(CompletableFuture.runAsync(() -> {
+                force.run();
+                forcedCount.incrementAndGet();
+            }, forceExecutor));
+        }
+        RuntimeException failure = null;
+        for (CompletableFuture<Void> done : forced) {
+            try {
+                done.join();
+            } catch (CompletionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException cause ? cause : e;
+                }
+            }
+        }
+        return failure;
+    }
+}
@@ -0,0 +1,45 @@
+package com.brinvex.dms.internal;
+
+import com.brinvex.dms.api.FilesystemDmsConfig;
+
+/**
+ * Admits the I/O operations of the workspaces of one factory.
+ * An operation holds a permit while it runs; a permit acquired by a thread already holding one for the same workspace
+ * is granted immediately, so that an operation composed of other operations does not wait for itself.
+ */
+interface IoScheduler {
+
+    enum Priority {
+        INTERACTIVE,
+        MAINTENANCE
+    }
+
+    interface Permit extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    Permit NO_PERMIT = () -> {
+    };
+
+    IoScheduler NONE = (workspace, priority) -> NO_PERMIT;
+
+    /**
+     * Blocks until the operation may run.
+     */
+    Permit acquire(String workspace, Priority priority);
+
+    /**
+     * Returns the number of operations waiting for a permit.
+     */
+    default int getWaitingCount() {
+        return 0;
+    }
+
+    static IoScheduler create(FilesystemDmsConfig config) {
+        if (config.ioScheduling() == null) {
+            return NONE;
+        }
+        return new FairShareIoScheduler(config.ioScheduling());
+    }
+}
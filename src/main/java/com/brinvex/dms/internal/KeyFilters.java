@@ -0,0 +1,78 @@
+package com.brinvex.dms.internal;
+
+import com.brinvex.dms.api.DmsKeyFilterStats;
+
+import java.nio.file.Path;
+
+/**
+ * Per-directory filters of the keys of a workspace, answering that a key certainly does not exist
+ * without touching the filesystem.
+ * A write must call {@link #beforeWrite} before it creates a file and {@link #afterWrite} after it changed the directory,
+ * so that a concurrent lookup never misses the key.
+ */
+interface KeyFilters {
+
+    KeyFilters NONE = new KeyFilters() {
+        @Override
+        public boolean mightContain(Path directoryPath, String key) {
+            return true;
+        }
+
+        @Override
+        public void recordFalsePositive() {
+        }
+
+        @Override
+        public void beforeWrite(Path directoryPath, String key) {
+        }
+
+        @Override
+        public void afterWrite(Path directoryPath, String key) {
+        }
+
+        @Override
+        public DmsKeyFilterStats getStats() {
+            return new DmsKeyFilterStats(0, 0, 0);
+        }
+
+        @Override
+        public void save() {
+        }
+
+        @Override
+        public void clear() {
+        }
+    };
+
+    /**
+     * Returns {@code false} if the key certainly does not exist in the directory.
+     */
+    boolean mightContain(Path directoryPath, String key);
+
+    /**
+     * Records that the key looked up as possibly existing did not exist.
+     */
+    void recordFalsePositive();
+
+    void beforeWrite(Path directoryPath, String key);
+
+    /**
+     * Adds the written key again, in case the filter was rebuilt meanwhile, and accepts the directory modification.
+     *
+     * @param key the written key, or {@code null} if the write only removed keys
+     */
+    void afterWrite(Path directoryPath, String key);
+
+    DmsKeyFilterStats getStats();
+
+    void save();
+
+    void clear();
+
+    static KeyFilters create(Path workspacePath, Path filtersPath, WorkspaceIndex workspaceIndex, double falsePositiveRate) {
+        if (falsePositiveRate == 0) {
+            return NONE;
+        }
+        return new BloomKeyFilters(workspacePath, filtersPath, workspaceIndex, falsePositiveRate);
+    }
+}
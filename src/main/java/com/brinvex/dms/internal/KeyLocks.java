@@ -0,0 +1,43 @@
+package com.brinvex.dms.internal;
+
+import java.nio.file.Path;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Striped reentrant read-write locks keyed by path, e.g. serializing the writes of the same document.
+ * Two paths may share a lock, which only costs some concurrency.
+ */
+class KeyLocks {
+
+    interface Held extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private final ReentrantReadWriteLock[] stripes;
+
+    KeyLocks(int stripeCount) {
+        this.stripes = new ReentrantReadWriteLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    Held lock(Path path) {
+        return lock(stripe(path).writeLock());
+    }
+
+    Held lockShared(Path path) {
+        return lock(stripe(path).readLock());
+    }
+
+    private ReentrantReadWriteLock stripe(Path path) {
+        return stripes[Math.floorMod(path.hashCode(), stripes.length)];
+    }
+
+    private static Held lock(Lock lock) {
+        lock.lock();
+        return lock::unlock;
+    }
+}
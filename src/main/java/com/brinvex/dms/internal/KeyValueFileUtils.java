@@ -1,51 +1,79 @@
 package com.brinvex.dms.internal;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.SequencedMap;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 
 class KeyValueFileUtils {
 
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
     /**
      * Writes a Map to a text file. Each entry is written as key=value.
+     * The whole content is built in memory and encoded at once.
      */
     public static void writeMapToFile(Map<String, String> map, File file, Charset charset) throws IOException {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, charset))) {
-            for (Map.Entry<String, String> entry : map.entrySet()) {
-                writer.write(entry.getKey() + "=" + entry.getValue());
-                writer.newLine();
+        int capacity = 0;
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            capacity += entry.getKey().length() + entry.getValue().length() + 1 + LINE_SEPARATOR.length();
+        }
+        StringBuilder sb = new StringBuilder(capacity);
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            sb.append(entry.getKey()).append('=').append(entry.getValue()).append(LINE_SEPARATOR);
+        }
+        ByteBuffer bytes = charset.encode(CharBuffer.wrap(sb));
+        try (FileChannel channel = FileChannel.open(file.toPath(), CREATE, TRUNCATE_EXISTING, WRITE)) {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
             }
         }
     }
 
     /**
      * Reads a Map from a text file. Each line should be formatted as key=value.
+     * Lines starting with # are skipped. Lines are terminated by LF, CR or CRLF.
+     * The content is decoded at once and parsed in a single pass without splitting lines into intermediate strings.
      */
-    public static Map<String, String> readMapFromFile(File file, Charset charset) throws IOException {
-        Map<String, String> map = new LinkedHashMap<>();
+    public static SequencedMap<String, String> readMapFromFile(File file, Charset charset) throws IOException {
+        CharBuffer chars = charset.decode(ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+        char[] a = chars.array();
+        int from = chars.arrayOffset() + chars.position();
+        int to = from + chars.remaining();
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(file, charset))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.startsWith("#")) {
-                    continue;
+        SequencedMap<String, String> map = new LinkedHashMap<>();
+        int lineStart = from;
+        int separator = -1;
+        for (int i = from; i <= to; i++) {
+            char c = i < to ? a[i] : '\n';
+            if (c == '\n' || c == '\r') {
+                if (i < to || i > lineStart) {
+                    if (i == lineStart || a[lineStart] != '#') {
+                        if (separator < 0) {
+                            throw new IllegalStateException("Invalid line: " + new String(a, lineStart, i - lineStart));
+                        }
+                        map.put(new String(a, lineStart, separator - lineStart), new String(a, separator + 1, i - separator - 1));
+                    }
                 }
-                String[] parts = line.split("=", 2);
-                if (parts.length >= 2) {
-                    String key = parts[0];
-                    String value = parts[1];
-                    map.put(key, value);
-                } else {
-                    throw new IllegalStateException("Invalid line: " + line);
+                if (c == '\r' && i + 1 < to && a[i + 1] == '\n') {
+                    i++;
                 }
+                lineStart = i + 1;
+                separator = -1;
+            } else if (c == '=' && separator < 0) {
+                separator = i;
             }
         }
         return map;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,55 @@
+package com.brinvex.dms.internal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Snapshot being filled with links to the documents of its workspace after the snapshot time,
+ * without holding the workspace lock.
+ * <p>
+ * The filling and the writes running meanwhile preserve a document under its lock before anything else is done with it.
+ * A document the snapshot has no link to was not written since the snapshot time,
+ * so its current version is the snapshotted one, and a document which does not exist was not there at the snapshot time
+ * and is excluded from the snapshot, even if it is created later.
+ */
+class PendingSnapshot {
+
+    private final Path workspacePath;
+
+    private final Path snapshotPath;
+
+    private final Set<Path> excluded = ConcurrentHashMap.newKeySet();
+
+    PendingSnapshot(Path workspacePath, Path snapshotPath) {
+        this.workspacePath = workspacePath;
+        this.snapshotPath = snapshotPath;
+    }
+
+    /**
+     * Must be called under the lock of the document.
+     */
+    void preserve(Path filePath) {
+        Path relativePath = workspacePath.relativize(filePath);
+        Path targetPath = snapshotPath.resolve(relativePath);
+        if (excluded.contains(relativePath) || Files.exists(targetPath)) {
+            return;
+        }
+        try {
+            if (!Files.exists(filePath)) {
+                excluded.add(relativePath);
+                return;
+            }
+            Files.createDirectories(targetPath.getParent());
+            FilesystemDmsImpl.linkOrCopy(filePath, targetPath);
+        } catch (NoSuchFileException e) {
+            excluded.add(relativePath);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to preserve the document for the snapshot: %s".formatted(filePath), e);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.brinvex.dms.internal;
+
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Forces each written file and its directory right away on the writing thread.
+ */
+class PerWriteFileSyncer implements FileSyncer {
+
+    private final AtomicLong forcedCount = new AtomicLong();
+
+    @Override
+    public void syncFile(Path file) {
+        FileSyncer.force(file, false);
+        FileSyncer.force(file.getParent(), true);
+        forcedCount.addAndGet(2);
+    }
+
+    @Override
+    public void syncAppended(Path file, Runnable force) {
+        force.run();
+        forcedCount.incrementAndGet();
+    }
+
+    @Override
+    public void syncDirectory(Path directory) {
+        FileSyncer.force(directory, true);
+        forcedCount.incrementAndGet();
+    }
+
+    @Override
+    public long getRequestedCount() {
+        return forcedCount.get();
+    }
+
+    @Override
+    public long getForcedCount() {
+        return forcedCount.get();
+    }
+}
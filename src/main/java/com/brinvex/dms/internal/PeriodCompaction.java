@@ -0,0 +1,143 @@
+package com.brinvex.dms.internal;
+
+import com.brinvex.dms.api.DmsCompactionOptions;
+import com.brinvex.dms.api.DmsCompactionReport;
+import com.brinvex.dms.api.DmsCompactionRule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SequencedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One run of {@link FilesystemDmsImpl#compactPeriods(List, DmsCompactionOptions)}.
+ * <p>
+ * The directories are compacted by a fixed number of virtual threads.
+ * The redundant keys are found from the listings cached in the workspace index,
+ * so a directory unchanged since the previous run is not listed again.
+ * The redundant documents are soft-deleted in batches, each batch syncing its directory once
+ * and skipping the documents deleted concurrently.
+ * Every batch is a separate maintenance operation, the throttling waits happen outside of them.
+ */
+class PeriodCompaction {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PeriodCompaction.class);
+
+    /**
+     * Spaces the permits evenly, a caller taking n permits delays the next caller by n intervals.
+     */
+    private static final class Throttle {
+        private final long nanosPerPermit;
+        private long nextFreeNanos = System.nanoTime();
+
+        private Throttle(int permitsPerSecond) {
+            this.nanosPerPermit = 1_000_000_000L / permitsPerSecond;
+        }
+
+        private void acquire(int permits) throws InterruptedException {
+            long waitNanos;
+            synchronized (this) {
+                long nowNanos = System.nanoTime();
+                long startNanos = nextFreeNanos - nowNanos > 0 ? nextFreeNanos : nowNanos;
+                nextFreeNanos = startNanos + permits * nanosPerPermit;
+                waitNanos = startNanos - nowNanos;
+            }
+            if (waitNanos > 0) {
+                Thread.sleep(Duration.ofNanos(waitNanos));
+            }
+        }
+    }
+
+    private final FilesystemDmsImpl dms;
+
+    private final String workspace;
+
+    private final IoScheduler ioScheduler;
+
+    private final DmsCompactionOptions options;
+
+    private final Throttle throttle;
+
+    private final Map<String, List<String>> redundantKeys = new ConcurrentSkipListMap<>();
+
+    private final AtomicInteger deletedKeys = new AtomicInteger();
+
+    PeriodCompaction(FilesystemDmsImpl dms, String workspace, IoScheduler ioScheduler, DmsCompactionOptions options) {
+        this.dms = dms;
+        this.workspace = workspace;
+        this.ioScheduler = ioScheduler;
+        this.options = options;
+        this.throttle = options.maxDeletesPerSecond() > 0 ? new Throttle(options.maxDeletesPerSecond()) : null;
+    }
+
+    DmsCompactionReport run(List<String> directories, List<DmsCompactionRule<?>> rules) {
+        int scannedDirectories = 0;
+        List<Future<?>> futures = new ArrayList<>();
+        try (ExecutorService executor = Executors.newFixedThreadPool(options.parallelism(),
+                Thread.ofVirtual().name("dms-compaction-", 0).factory())) {
+            for (String directory : directories) {
+                DmsCompactionRule<?> rule = rules.stream()
+                        .filter(r -> r.matches(directory))
+                        .findFirst()
+                        .orElse(null);
+                if (rule != null) {
+                    scannedDirectories++;
+                    futures.add(executor.submit(() -> compact(directory, rule)));
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while compacting workspace: %s".formatted(workspace), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new IllegalStateException("Failed to compact workspace: %s".formatted(workspace), e.getCause());
+        }
+        SequencedMap<String, List<String>> sortedRedundantKeys = new LinkedHashMap<>(redundantKeys);
+        LOG.info("Compacted workspace: {}, dryRun={}, scannedDirectories={}, redundantKeys={}, deletedKeys={}",
+                workspace, options.dryRun(), scannedDirectories,
+                sortedRedundantKeys.values().stream().mapToInt(List::size).sum(), deletedKeys.get());
+        return new DmsCompactionReport(options.dryRun(), scannedDirectories,
+                Collections.unmodifiableSequencedMap(sortedRedundantKeys), deletedKeys.get());
+    }
+
+    private <KEY> Void compact(String directory, DmsCompactionRule<KEY> rule) throws InterruptedException {
+        List<String> keys;
+        try (IoScheduler.Permit ignored = ioScheduler.acquire(workspace, IoScheduler.Priority.MAINTENANCE)) {
+            keys = List.copyOf(dms.getRedundantPeriodKeys(directory, rule.keyFnc(), rule.keyStartDateInclFnc(), rule.keyEndDateInclFnc())
+                    .values());
+        }
+        if (keys.isEmpty()) {
+            return null;
+        }
+        redundantKeys.put(directory, keys);
+        if (options.dryRun()) {
+            return null;
+        }
+        for (int from = 0; from < keys.size(); from += options.batchSize()) {
+            List<String> batch = keys.subList(from, Math.min(keys.size(), from + options.batchSize()));
+            if (throttle != null) {
+                throttle.acquire(batch.size());
+            }
+            try (IoScheduler.Permit ignored = ioScheduler.acquire(workspace, IoScheduler.Priority.MAINTENANCE)) {
+                deletedKeys.addAndGet(dms.delete(directory, batch, true));
+            }
+        }
+        return null;
+    }
+}
@@ -5,59 +5,183 @@ import java.util.Collection;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.SequencedSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.function.Function;
+import java.util.function.IntConsumer;
 
 import static java.util.Collections.emptySortedSet;
-import static java.util.Comparator.comparing;
 
 class PeriodDocUtils {
 
+    /**
+     * Inputs of at least this size are processed in parallel.
+     */
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+
+    /**
+     * Sorting subtasks smaller than this are not split any further.
+     */
+    private static final int SORT_SPLIT_THRESHOLD = 1 << 13;
+
+    private static final int INSERTION_SORT_THRESHOLD = 32;
+
+    /**
+     * The start and end dates are extracted exactly once per key into epoch-day arrays, in the calling thread,
+     * all the subsequent work is done on primitive arrays and key indexes.
+     * Large inputs are sorted in parallel in the common fork-join pool.
+     */
     public static <KEY> SequencedSet<KEY> findRedundantKeys(Collection<KEY> keys, Function<KEY, LocalDate> keyStartDateInclFnc, Function<KEY, LocalDate> keyEndDateInclFnc) {
         int size = keys.size();
         if (size <= 1) {
             return emptySortedSet();
         }
-        List<KEY> sortedKeys = keys.stream().sorted(comparing(keyStartDateInclFnc).thenComparing(keyEndDateInclFnc)).toList();
+        List<KEY> keyList = List.copyOf(keys);
+        boolean parallel = size >= PARALLEL_THRESHOLD;
+
+        long[] starts = new long[size];
+        long[] ends = new long[size];
+        for (int i = 0; i < size; i++) {
+            KEY key = keyList.get(i);
+            starts[i] = keyStartDateInclFnc.apply(key).toEpochDay();
+            ends[i] = keyEndDateInclFnc.apply(key).toEpochDay();
+        }
+
+        int[] order = sortIndexes(starts, ends, parallel);
+
         SequencedSet<KEY> uselessKeys = new LinkedHashSet<>();
-        int prevUsefulIndex = 0;
+        findRedundant(starts, ends, order, mid -> uselessKeys.add(keyList.get(mid)));
+        return uselessKeys;
+    }
+
+    /**
+     * Passes the indexes of the redundant periods to the consumer, in the given order of the periods by start and end.
+     */
+    static void findRedundant(long[] starts, long[] ends, int[] order, IntConsumer redundant) {
+        int size = order.length;
+        if (size <= 1) {
+            return;
+        }
+        int prev = order[0];
         for (int i = 0; i < size; i++) {
-            KEY midKey = sortedKeys.get(i);
+            int mid = order[i];
             boolean useful;
             if (i == 0) {
-                KEY nextKey = sortedKeys.get(i + 1);
-                LocalDate midStartDateIncl = keyStartDateInclFnc.apply(midKey);
-                LocalDate nextStartDateIncl = keyStartDateInclFnc.apply(nextKey);
-                useful = midStartDateIncl.isBefore(nextStartDateIncl);
+                int next = order[i + 1];
+                useful = starts[mid] < starts[next];
             } else if (i == size - 1) {
-                KEY prevKey = sortedKeys.get(prevUsefulIndex);
-                LocalDate midEndDateIncl = keyEndDateInclFnc.apply(midKey);
-                LocalDate prevEndDateIncl = keyEndDateInclFnc.apply(prevKey);
-                useful = midEndDateIncl.isAfter(prevEndDateIncl);
+                useful = ends[mid] > ends[prev];
             } else {
-                KEY prevKey = sortedKeys.get(prevUsefulIndex);
-                KEY nextKey = sortedKeys.get(i + 1);
-                LocalDate prevEndDateExcl = keyEndDateInclFnc.apply(prevKey).plusDays(1);
-                LocalDate nextStartDateIncl = keyStartDateInclFnc.apply(nextKey);
-                boolean neighborsContinuous = !prevEndDateExcl.isBefore(nextStartDateIncl);
+                int next = order[i + 1];
+                boolean neighborsContinuous = ends[prev] + 1 >= starts[next];
                 if (neighborsContinuous) {
-                    boolean inside = !keyStartDateInclFnc.apply(midKey).isBefore(keyStartDateInclFnc.apply(prevKey))
-                                     && !keyEndDateInclFnc.apply(midKey).isAfter(keyEndDateInclFnc.apply(nextKey));
+                    boolean inside = starts[mid] >= starts[prev] && ends[mid] <= ends[next];
                     useful = !inside;
                 } else {
-                    boolean insidePrev = !keyStartDateInclFnc.apply(midKey).isBefore(keyStartDateInclFnc.apply(prevKey))
-                                         && !keyEndDateInclFnc.apply(midKey).isAfter(keyEndDateInclFnc.apply(prevKey));
-                    boolean insideNext = !keyStartDateInclFnc.apply(midKey).isBefore(keyStartDateInclFnc.apply(nextKey))
-                                         && !keyEndDateInclFnc.apply(midKey).isAfter(keyEndDateInclFnc.apply(nextKey));
+                    boolean insidePrev = starts[mid] >= starts[prev] && ends[mid] <= ends[prev];
+                    boolean insideNext = starts[mid] >= starts[next] && ends[mid] <= ends[next];
                     useful = !insidePrev && !insideNext;
                 }
             }
             if (!useful) {
-                uselessKeys.add(midKey);
+                redundant.accept(mid);
             } else {
-                prevUsefulIndex = i;
+                prev = mid;
             }
         }
-        return uselessKeys;
+    }
+
+    /**
+     * Returns the key indexes stably sorted by start and then by end.
+     */
+    private static int[] sortIndexes(long[] starts, long[] ends, boolean parallel) {
+        int size = starts.length;
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        int[] buffer = new int[size];
+        IndexMergeSort sort = new IndexMergeSort(starts, ends, order, buffer, 0, size);
+        if (parallel) {
+            ForkJoinPool.commonPool().invoke(sort);
+        } else {
+            sort.compute();
+        }
+        return order;
+    }
+
+    private static class IndexMergeSort extends RecursiveAction {
+
+        private final long[] starts;
+        private final long[] ends;
+        private final int[] order;
+        private final int[] buffer;
+        private final int from;
+        private final int to;
+
+        IndexMergeSort(long[] starts, long[] ends, int[] order, int[] buffer, int from, int to) {
+            this.starts = starts;
+            this.ends = ends;
+            this.order = order;
+            this.buffer = buffer;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            int length = to - from;
+            if (length <= INSERTION_SORT_THRESHOLD) {
+                insertionSort();
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            IndexMergeSort left = new IndexMergeSort(starts, ends, order, buffer, from, mid);
+            IndexMergeSort right = new IndexMergeSort(starts, ends, order, buffer, mid, to);
+            if (length >= SORT_SPLIT_THRESHOLD && getPool() != null) {
+                invokeAll(left, right);
+            } else {
+                left.compute();
+                right.compute();
+            }
+            merge(mid);
+        }
+
+        private void insertionSort() {
+            for (int i = from + 1; i < to; i++) {
+                int idx = order[i];
+                int j = i - 1;
+                while (j >= from && compare(order[j], idx) > 0) {
+                    order[j + 1] = order[j];
+                    j--;
+                }
+                order[j + 1] = idx;
+            }
+        }
+
+        private void merge(int mid) {
+            if (compare(order[mid - 1], order[mid]) <= 0) {
+                return;
+            }
+            System.arraycopy(order, from, buffer, from, to - from);
+            int l = from;
+            int r = mid;
+            int k = from;
+            while (l < mid && r < to) {
+                order[k++] = compare(buffer[r], buffer[l]) < 0 ? buffer[r++] : buffer[l++];
+            }
+            while (l < mid) {
+                order[k++] = buffer[l++];
+            }
+            while (r < to) {
+                order[k++] = buffer[r++];
+            }
+        }
+
+        private int compare(int idx1, int idx2) {
+            int result = Long.compare(starts[idx1], starts[idx2]);
+            return result != 0 ? result : Long.compare(ends[idx1], ends[idx2]);
+        }
     }
 
 }
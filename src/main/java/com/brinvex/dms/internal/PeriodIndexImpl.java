@@ -0,0 +1,277 @@
+package com.brinvex.dms.internal;
+
+import com.brinvex.dms.api.DatePeriod;
+import com.brinvex.dms.api.PeriodIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.SequencedMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.IntStream;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Period documents sorted by their start and end epoch days.
+ * <p>
+ * For the overlap queries the entries are also grouped by their length rounded down to a power of two;
+ * in each group a query only visits the entries starting in {@code [from - maxLength, to]},
+ * where {@code maxLength} is the longest length the group can hold,
+ * so a single long or open-ended period does not make the queries visit all the other entries.
+ * <p>
+ * The redundant entries are found by a single pass over the sorted entries, which is cached until the next change.
+ * <p>
+ * Two raw keys mapped to the same key are rejected by the queries returning the keys, like by
+ * {@link com.brinvex.dms.api.Dms#getRedundantPeriodKeys(String, Function, Function, Function)}.
+ * <p>
+ * The index is registered for the writes before the keys are listed, so that no write made meanwhile is missed;
+ * a key removed while the index is being loaded is not added back from the listing taken before.
+ * A key for which the functions fail is left out, like a key mapped to {@code null}.
+ */
+class PeriodIndexImpl<KEY> implements PeriodIndex<KEY> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PeriodIndexImpl.class);
+
+    private record Entry<KEY>(KEY key, String rawKey, long start, long end) {
+    }
+
+    private static final Comparator<Entry<?>> ENTRY_COMPARATOR = Comparator
+            .<Entry<?>>comparingLong(Entry::start)
+            .thenComparingLong(Entry::end)
+            .thenComparing(Entry::rawKey);
+
+    private final Function<String, KEY> keyFnc;
+
+    private final Function<KEY, LocalDate> keyStartDateInclFnc;
+
+    private final Function<KEY, LocalDate> keyEndDateInclFnc;
+
+    private final NavigableSet<Entry<KEY>> entries = new TreeSet<>(ENTRY_COMPARATOR);
+
+    /**
+     * The entries by the number of bits of their length.
+     */
+    @SuppressWarnings("unchecked")
+    private final NavigableSet<Entry<KEY>>[] entriesByLengthBits = new NavigableSet[Long.SIZE];
+
+    private final Map<String, Entry<KEY>> entriesByRawKey = new HashMap<>();
+
+    private final Map<KEY, Integer> keyCounts = new HashMap<>();
+
+    private final Set<String> removedWhileLoading = new HashSet<>();
+
+    private int duplicateKeyCount;
+
+    private SequencedMap<KEY, String> redundant;
+
+    private boolean loaded;
+
+    PeriodIndexImpl(
+            Function<String, KEY> keyFnc,
+            Function<KEY, LocalDate> keyStartDateInclFnc,
+            Function<KEY, LocalDate> keyEndDateInclFnc
+    ) {
+        this.keyFnc = keyFnc;
+        this.keyStartDateInclFnc = keyStartDateInclFnc;
+        this.keyEndDateInclFnc = keyEndDateInclFnc;
+    }
+
+    /**
+     * Adds the listed keys unless already loaded.
+     * The keys are listed outside the lock, so that the writes updating the index are not blocked meanwhile.
+     */
+    void ensureLoaded(Supplier<Collection<String>> rawKeysSupplier) {
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+        }
+        Collection<String> rawKeys = rawKeysSupplier.get();
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+            for (String rawKey : rawKeys) {
+                if (!removedWhileLoading.contains(rawKey)) {
+                    add(rawKey);
+                }
+            }
+            removedWhileLoading.clear();
+            loaded = true;
+        }
+    }
+
+    synchronized void onKeyAdded(String rawKey) {
+        removedWhileLoading.remove(rawKey);
+        add(rawKey);
+    }
+
+    synchronized void onKeyRemoved(String rawKey) {
+        if (!loaded) {
+            removedWhileLoading.add(rawKey);
+        }
+        remove(rawKey);
+    }
+
+    private void add(String rawKey) {
+        KEY key;
+        long start;
+        long end;
+        try {
+            key = keyFnc.apply(rawKey);
+            if (key == null) {
+                remove(rawKey);
+                return;
+            }
+            start = keyStartDateInclFnc.apply(key).toEpochDay();
+            end = keyEndDateInclFnc.apply(key).toEpochDay();
+        } catch (RuntimeException e) {
+            LOG.warn("Not indexing the key the period functions failed for: {}", rawKey, e);
+            remove(rawKey);
+            return;
+        }
+        remove(rawKey);
+        Entry<KEY> newEntry = new Entry<>(key, rawKey, start, end);
+        entriesByRawKey.put(rawKey, newEntry);
+        entries.add(newEntry);
+        entriesByLengthBits[lengthBits(newEntry)].add(newEntry);
+        if (keyCounts.merge(key, 1, Integer::sum) == 2) {
+            duplicateKeyCount++;
+        }
+        redundant = null;
+    }
+
+    private void remove(String rawKey) {
+        Entry<KEY> oldEntry = entriesByRawKey.remove(rawKey);
+        if (oldEntry != null) {
+            entries.remove(oldEntry);
+            entriesByLengthBits[lengthBits(oldEntry)].remove(oldEntry);
+            int count = keyCounts.merge(oldEntry.key(), -1, Integer::sum);
+            if (count == 0) {
+                keyCounts.remove(oldEntry.key());
+            } else if (count == 1) {
+                duplicateKeyCount--;
+            }
+            redundant = null;
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        for (NavigableSet<Entry<KEY>> lengthEntries : entriesByLengthBits) {
+            if (lengthEntries != null) {
+                lengthEntries.clear();
+            }
+        }
+        entriesByRawKey.clear();
+        keyCounts.clear();
+        duplicateKeyCount = 0;
+        redundant = null;
+    }
+
+    @Override
+    public synchronized SequencedMap<KEY, String> findCovering(DatePeriod period) {
+        validateNoDuplicateKeys();
+        SequencedMap<KEY, String> result = new LinkedHashMap<>();
+        for (Entry<KEY> entry : findOverlapping(period)) {
+            result.put(entry.key(), entry.rawKey());
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized List<DatePeriod> findGaps(DatePeriod period) {
+        long from = period.startDateIncl().toEpochDay();
+        long to = period.endDateIncl().toEpochDay();
+        List<DatePeriod> gaps = new ArrayList<>();
+        long coveredUntil = from - 1;
+        for (Entry<KEY> entry : findOverlapping(period)) {
+            if (entry.start() > coveredUntil + 1) {
+                gaps.add(new DatePeriod(LocalDate.ofEpochDay(coveredUntil + 1), LocalDate.ofEpochDay(entry.start() - 1)));
+            }
+            coveredUntil = Math.max(coveredUntil, entry.end());
+            if (coveredUntil >= to) {
+                return gaps;
+            }
+        }
+        gaps.add(new DatePeriod(LocalDate.ofEpochDay(coveredUntil + 1), LocalDate.ofEpochDay(to)));
+        return gaps;
+    }
+
+    @Override
+    public synchronized SequencedMap<KEY, String> findRedundant() {
+        validateNoDuplicateKeys();
+        if (redundant == null) {
+            List<Entry<KEY>> sortedEntries = List.copyOf(entries);
+            int size = sortedEntries.size();
+            long[] starts = new long[size];
+            long[] ends = new long[size];
+            for (int i = 0; i < size; i++) {
+                starts[i] = sortedEntries.get(i).start();
+                ends[i] = sortedEntries.get(i).end();
+            }
+            SequencedMap<KEY, String> keys = new LinkedHashMap<>();
+            PeriodDocUtils.findRedundant(starts, ends, IntStream.range(0, size).toArray(), i -> {
+                Entry<KEY> entry = sortedEntries.get(i);
+                keys.put(entry.key(), entry.rawKey());
+            });
+            redundant = keys;
+        }
+        return new LinkedHashMap<>(redundant);
+    }
+
+    private void validateNoDuplicateKeys() {
+        if (duplicateKeyCount == 0) {
+            return;
+        }
+        for (Entry<KEY> entry : entries) {
+            if (keyCounts.get(entry.key()) > 1) {
+                throw new IllegalStateException("Duplicate key: %s, %s".formatted(entry.rawKey(), entry.key()));
+            }
+        }
+    }
+
+    private List<Entry<KEY>> findOverlapping(DatePeriod period) {
+        long from = period.startDateIncl().toEpochDay();
+        long to = period.endDateIncl().toEpochDay();
+        List<Entry<KEY>> result = new ArrayList<>();
+        for (int bits = 0; bits < entriesByLengthBits.length; bits++) {
+            NavigableSet<Entry<KEY>> lengthEntries = entriesByLengthBits[bits];
+            if (lengthEntries == null || lengthEntries.isEmpty()) {
+                continue;
+            }
+            long maxLength = (1L << bits) - 1;
+            Entry<KEY> lowerBound = new Entry<>(null, "", from - maxLength, Long.MIN_VALUE);
+            Entry<KEY> upperBound = new Entry<>(null, "", to, Long.MAX_VALUE);
+            for (Entry<KEY> entry : lengthEntries.subSet(lowerBound, true, upperBound, true)) {
+                if (entry.end() >= from) {
+                    result.add(entry);
+                }
+            }
+        }
+        result.sort(ENTRY_COMPARATOR);
+        return result;
+    }
+
+    /**
+     * Returns the number of bits of the entry length, the group of the entries of length in {@code [2^(bits-1), 2^bits - 1]}.
+     */
+    private int lengthBits(Entry<KEY> entry) {
+        int bits = Long.SIZE - Long.numberOfLeadingZeros(Math.max(0, entry.end() - entry.start()));
+        if (entriesByLengthBits[bits] == null) {
+            entriesByLengthBits[bits] = new TreeSet<>(ENTRY_COMPARATOR);
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,76 @@
+package com.brinvex.dms.internal;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SequencedMap;
+
+/**
+ * LRU cache of parsed properties documents.
+ * A copy of the cached map is only returned while the file size and the last modified time are unchanged,
+ * so the callers may modify the returned maps.
+ * The owner invalidates the entries of documents written or deleted through it.
+ */
+class PropertiesCache {
+
+    private record CacheEntry(Charset charset, long size, FileTime lastModifiedTime, SequencedMap<String, String> properties) {
+    }
+
+    private final int maxSize;
+
+    private final Map<Path, CacheEntry> entries;
+
+    PropertiesCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, CacheEntry> eldest) {
+                return size() > PropertiesCache.this.maxSize;
+            }
+        };
+    }
+
+    SequencedMap<String, String> get(Path path, Charset charset) throws IOException {
+        if (maxSize <= 0) {
+            return read(path, charset);
+        }
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        CacheEntry entry;
+        synchronized (entries) {
+            entry = entries.get(path);
+        }
+        if (entry != null
+            && entry.charset().equals(charset)
+            && entry.size() == attrs.size()
+            && entry.lastModifiedTime().equals(attrs.lastModifiedTime())) {
+            return new LinkedHashMap<>(entry.properties());
+        }
+        SequencedMap<String, String> properties = read(path, charset);
+        synchronized (entries) {
+            entries.put(path, new CacheEntry(charset, attrs.size(), attrs.lastModifiedTime(), Collections.unmodifiableSequencedMap(properties)));
+        }
+        return new LinkedHashMap<>(properties);
+    }
+
+    void invalidate(Path path) {
+        synchronized (entries) {
+            entries.remove(path);
+        }
+    }
+
+    void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    private static SequencedMap<String, String> read(Path path, Charset charset) throws IOException {
+        return KeyValueFileUtils.readMapFromFile(path.toFile(), charset);
+    }
+}
@@ -0,0 +1,178 @@
+package com.brinvex.dms.internal;
+
+import com.brinvex.dms.api.DmsDocument;
+import com.brinvex.dms.api.DmsReadAheadOptions;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One stream of {@link FilesystemDmsImpl#readAll(String, Charset, DmsReadAheadOptions)}.
+ * <p>
+ * The documents are read by virtual threads in a sliding window ahead of the consumer.
+ * The window is limited by the number of the documents and by the memory their decoded contents take,
+ * at most {@value #BYTES_PER_CHAR} bytes per character.
+ * Until a document is read it is charged that much per byte of its size taken from the directory listing,
+ * which bounds the decoded content of the charsets decoding at most one character per byte;
+ * once read, the charge is corrected to its actual length, so a document grown since the listing
+ * only delays the following reads until it is consumed, when its charge is released.
+ * A document deleted since the listing is skipped, a document which cannot be decoded with the charset fails the stream
+ * when the consumer reaches it, with the same {@link CharacterCodingException} cause as {@link FilesystemDmsImpl#getTextContent}.
+ * Every read is a separate maintenance operation, so a bulk read does not take all the permits of the workspace.
+ */
+class ReadAhead implements Iterator<DmsDocument<String>>, AutoCloseable {
+
+    private static final int BYTES_PER_CHAR = 2;
+
+    /**
+     * A read document, {@code null} if skipped, with the memory charged for it.
+     */
+    private record Read(DmsDocument<String> document, long charge) {
+    }
+
+    private final String workspace;
+
+    private final IoScheduler ioScheduler;
+
+    private final Path directoryPath;
+
+    private final String[] keys;
+
+    private final long[] sizes;
+
+    private final Charset charset;
+
+    private final DmsReadAheadOptions options;
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final Deque<Future<Read>> pending = new ArrayDeque<>();
+
+    private final AtomicLong bufferedBytes = new AtomicLong();
+
+    private int nextToSubmit;
+
+    private DmsDocument<String> next;
+
+    ReadAhead(
+            String workspace,
+            IoScheduler ioScheduler,
+            Path directoryPath,
+            String[] keys,
+            long[] sizes,
+            Charset charset,
+            DmsReadAheadOptions options
+    ) {
+        this.workspace = workspace;
+        this.ioScheduler = ioScheduler;
+        this.directoryPath = directoryPath;
+        this.keys = keys;
+        this.sizes = sizes;
+        this.charset = charset;
+        this.options = options;
+        fill();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && !pending.isEmpty()) {
+            Read read = await(pending.removeFirst());
+            bufferedBytes.addAndGet(-read.charge());
+            next = read.document();
+            fill();
+        }
+        return next != null;
+    }
+
+    @Override
+    public DmsDocument<String> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        DmsDocument<String> document = next;
+        next = null;
+        return document;
+    }
+
+    /**
+     * Cancels the reads not consumed yet.
+     */
+    @Override
+    public void close() {
+        for (Future<Read> read : pending) {
+            read.cancel(true);
+        }
+        pending.clear();
+        executor.shutdownNow();
+    }
+
+    private void fill() {
+        while (nextToSubmit < keys.length && pending.size() < options.prefetchCount()) {
+            long charge = sizes[nextToSubmit] * BYTES_PER_CHAR;
+            if (!pending.isEmpty() && bufferedBytes.get() + charge > options.maxBufferedBytes()) {
+                break;
+            }
+            String key = keys[nextToSubmit++];
+            bufferedBytes.addAndGet(charge);
+            pending.addLast(executor.submit(() -> read(key, charge)));
+        }
+    }
+
+    /**
+     * Skips the document if it was deleted since the directory was listed.
+     */
+    private Read read(String key, long estimatedCharge) throws IOException {
+        Path filePath = directoryPath.resolve(key);
+        DmsDocument<String> document;
+        try (IoScheduler.Permit ignored = ioScheduler.acquire(workspace, IoScheduler.Priority.MAINTENANCE)) {
+            byte[] bytes = Files.readAllBytes(filePath);
+            document = new DmsDocument<>(key, TextDecodingUtils.decodeText(bytes, List.of(charset), false).value());
+        } catch (NoSuchFileException e) {
+            document = null;
+        } catch (CharacterCodingException e) {
+            throw new UncheckedIOException("Failed to decode the file with %s: %s".formatted(charset, filePath), e);
+        }
+        long charge = document == null ? 0 : (long) document.content().length() * BYTES_PER_CHAR;
+        bufferedBytes.addAndGet(charge - estimatedCharge);
+        return new Read(document, charge);
+    }
+
+    private Read await(Future<Read> read) {
+        try {
+            return read.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new IllegalStateException("Interrupted while reading ahead: %s".formatted(directoryPath), e);
+        } catch (CancellationException e) {
+            throw new IllegalStateException("Reading ahead already closed: %s".formatted(directoryPath), e);
+        } catch (ExecutionException e) {
+            close();
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioe) {
+                throw new UncheckedIOException("Failed to read the file in %s".formatted(directoryPath), ioe);
+            } else if (cause instanceof RuntimeException re) {
+                throw re;
+            } else if (cause instanceof Error err) {
+                throw err;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.brinvex.dms.internal;
+
+import com.brinvex.dms.api.FilesystemDmsConfig;
+
+import java.nio.file.Path;
+
+/**
+ * Mirrors the filesystem changes made under the primary base path to a replica.
+ * All the paths are absolute paths under the primary base path.
+ */
+interface Replicator {
+
+    Replicator NONE = new Replicator() {
+        @Override
+        public void copy(Path path) {
+        }
+
+        @Override
+        public void append(Path path, long startOffset, long endOffset) {
+        }
+
+        @Override
+        public void move(Path source, Path target) {
+        }
+
+        @Override
+        public void delete(Path path) {
+        }
+
+        @Override
+        public void resync(Path path) {
+        }
+
+        @Override
+        public long getFailureCount() {
+            return 0;
+        }
+    };
+
+    /**
+     * Copies the current content of the file or directory.
+     */
+    void copy(Path path);
+
+    /**
+     * Copies the byte range appended to the file.
+     * The whole file is copied if the replica does not end where the range starts.
+     */
+    void append(Path path, long startOffset, long endOffset);
+
+    void move(Path source, Path target);
+
+    /**
+     * Deletes the file or the directory tree.
+     */
+    void delete(Path path);
+
+    /**
+     * Brings the replica of the directory tree up to date, comparing file sizes and modification times only.
+     */
+    void resync(Path path);
+
+    /**
+     * Returns the number of operations which failed to be applied to the replica.
+     */
+    long getFailureCount();
+
+    default void close() {
+    }
+
+    static Replicator create(Path basePath, FilesystemDmsConfig config) {
+        if (config.replicaBasePath() == null) {
+            return NONE;
+        }
+        return new AsyncReplicator(basePath, config.replicaBasePath(), config.replicationQueueCapacity(), config.replicationBatchSize());
+    }
+}
@@ -0,0 +1,50 @@
+package com.brinvex.dms.internal;
+
+import java.util.function.Function;
+
+import static com.brinvex.dms.internal.IoScheduler.Priority.MAINTENANCE;
+
+/**
+ * Workspace handle returned by the factory, running each call on the live instance of the workspace.
+ * An instance evicted while calls are running on it is released when the last of them is done.
+ * The lazy streams keep using the instance they were created by.
+ * The deletion and the reset of the workspace are reported to the factory,
+ * so that a deleted workspace does not come back with an instance re-created after eviction.
+ */
+class ResolvingDms extends ScheduledDms {
+
+    private final FilesystemDmsFactoryImpl factory;
+
+    ResolvingDms(FilesystemDmsFactoryImpl factory, IoScheduler ioScheduler, String workspace) {
+        super(ioScheduler, workspace);
+        this.factory = factory;
+    }
+
+    @Override
+    protected <T> T run(Function<FilesystemDmsImpl, T> call) {
+        FilesystemDmsFactoryImpl.CachedDms cachedDms = factory.acquire(workspace);
+        try {
+            return call.apply(cachedDms.dms());
+        } finally {
+            factory.release(cachedDms);
+        }
+    }
+
+    @Override
+    public void resetWorkspace() {
+        call(MAINTENANCE, dms -> {
+            dms.resetWorkspace();
+            factory.onWorkspaceReset(workspace);
+            return null;
+        });
+    }
+
+    @Override
+    public void deleteWorkspace() {
+        call(MAINTENANCE, dms -> {
+            dms.deleteWorkspace();
+            factory.onWorkspaceDeleted(workspace);
+            return null;
+        });
+    }
+}
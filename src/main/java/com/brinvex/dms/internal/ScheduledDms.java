@@ -0,0 +1,357 @@
+package com.brinvex.dms.internal;
+
+import com.brinvex.dms.api.Dms;
+import com.brinvex.dms.api.DmsChange;
+import com.brinvex.dms.api.DmsChangePage;
+import com.brinvex.dms.api.DmsCompactionOptions;
+import com.brinvex.dms.api.DmsCompactionReport;
+import com.brinvex.dms.api.DmsCompactionRule;
+import com.brinvex.dms.api.DmsDocument;
+import com.brinvex.dms.api.DmsExportOptions;
+import com.brinvex.dms.api.DmsKey;
+import com.brinvex.dms.api.DmsKeyFilterStats;
+import com.brinvex.dms.api.DmsReadAheadOptions;
+import com.brinvex.dms.api.DmsSnapshot;
+import com.brinvex.dms.api.DmsUsage;
+import com.brinvex.dms.api.DmsVersioned;
+import com.brinvex.dms.api.PeriodIndex;
+
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.SequencedCollection;
+import java.util.SequencedMap;
+import java.util.SequencedSet;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static com.brinvex.dms.internal.IoScheduler.Priority.INTERACTIVE;
+import static com.brinvex.dms.internal.IoScheduler.Priority.MAINTENANCE;
+
+/**
+ * Runs each call of the {@link Dms} API under a permit of the {@link IoScheduler}, on the instance provided by the subclass.
+ * Bulk operations run as maintenance, the others as interactive operations.
+ * The calls only preparing lazy streams run without a permit, the streams acquire one for each step doing I/O,
+ * and so do the period compaction for each of its chunks.
+ */
+abstract class ScheduledDms implements Dms {
+
+    protected final IoScheduler ioScheduler;
+
+    protected final String workspace;
+
+    ScheduledDms(IoScheduler ioScheduler, String workspace) {
+        this.ioScheduler = ioScheduler;
+        this.workspace = workspace;
+    }
+
+    /**
+     * Runs the call on the instance of the workspace.
+     */
+    protected abstract <T> T run(Function<FilesystemDmsImpl, T> call);
+
+    /**
+     * Runs the call under a permit of the given priority, without a permit if the priority is {@code null}.
+     */
+    protected final <T> T call(IoScheduler.Priority priority, Function<FilesystemDmsImpl, T> call) {
+        if (priority == null) {
+            return run(call);
+        }
+        try (IoScheduler.Permit ignored = ioScheduler.acquire(workspace, priority)) {
+            return run(call);
+        }
+    }
+
+    @Override
+    public SequencedCollection<String> getKeys(String directory) {
+        return call(INTERACTIVE, dms -> dms.getKeys(directory));
+    }
+
+    @Override
+    public SequencedCollection<String> getKeys(String directory, String prefix, String startAfter, int limit) {
+        return call(INTERACTIVE, dms -> dms.getKeys(directory, prefix, startAfter, limit));
+    }
+
+    @Override
+    public Stream<String> streamKeys(String directory, String prefix, String startAfter) {
+        return call(null, dms -> dms.streamKeys(directory, prefix, startAfter));
+    }
+
+    @Override
+    public SequencedCollection<String> getDirectories(String parent) {
+        return call(INTERACTIVE, dms -> dms.getDirectories(parent));
+    }
+
+    @Override
+    public Stream<DmsKey> walkKeys(String directory) {
+        return call(INTERACTIVE, dms -> dms.walkKeys(directory));
+    }
+
+    @Override
+    public void add(String directory, String key, String textContent, Charset charset) {
+        call(INTERACTIVE, dms -> {
+            dms.add(directory, key, textContent, charset);
+            return null;
+        });
+    }
+
+    @Override
+    public void add(String directory, String key, byte[] binaryContent) {
+        call(INTERACTIVE, dms -> {
+            dms.add(directory, key, binaryContent);
+            return null;
+        });
+    }
+
+    @Override
+    public boolean put(String directory, String key, String textContent, Charset charset) {
+        return call(INTERACTIVE, dms -> dms.put(directory, key, textContent, charset));
+    }
+
+    @Override
+    public boolean put(String directory, String key, byte[] binaryContent) {
+        return call(INTERACTIVE, dms -> dms.put(directory, key, binaryContent));
+    }
+
+    @Override
+    public boolean put(String directory, String key, Map<String, String> propertiesContent, Charset charset) {
+        return call(INTERACTIVE, dms -> dms.put(directory, key, propertiesContent, charset));
+    }
+
+    @Override
+    public boolean exists(String directory, String key) {
+        return call(INTERACTIVE, dms -> dms.exists(directory, key));
+    }
+
+    @Override
+    public DmsKeyFilterStats getKeyFilterStats() {
+        return call(null, FilesystemDmsImpl::getKeyFilterStats);
+    }
+
+    @Override
+    public String getTextContent(String directory, String key, Charset charset) {
+        return call(INTERACTIVE, dms -> dms.getTextContent(directory, key, charset));
+    }
+
+    @Override
+    public String getTextContent(String directory, String key, Charset charset, Charset alternativeCharset) {
+        return call(INTERACTIVE, dms -> dms.getTextContent(directory, key, charset, alternativeCharset));
+    }
+
+    @Override
+    public Stream<DmsDocument<String>> readAll(String directory, Charset charset, DmsReadAheadOptions options) {
+        return call(INTERACTIVE, dms -> dms.readAll(directory, charset, options));
+    }
+
+    @Override
+    public List<String> getTextLines(String directory, String key, Charset charset) {
+        return call(INTERACTIVE, dms -> dms.getTextLines(directory, key, charset));
+    }
+
+    @Override
+    public List<String> getTextLines(String directory, String key, int limit, Charset charset) {
+        return call(INTERACTIVE, dms -> dms.getTextLines(directory, key, limit, charset));
+    }
+
+    @Override
+    public List<String> getTextLines(String directory, String key, int limit, Charset charset, Charset alternativeCharset) {
+        return call(INTERACTIVE, dms -> dms.getTextLines(directory, key, limit, charset, alternativeCharset));
+    }
+
+    @Override
+    public List<String> getTextLines(String directory, String key, long fromLine, int count, Charset charset) {
+        return call(INTERACTIVE, dms -> dms.getTextLines(directory, key, fromLine, count, charset));
+    }
+
+    @Override
+    public List<String> getTailLines(String directory, String key, int count, Charset charset) {
+        return call(INTERACTIVE, dms -> dms.getTailLines(directory, key, count, charset));
+    }
+
+    @Override
+    public byte[] getBinaryContent(String directory, String key) {
+        return call(INTERACTIVE, dms -> dms.getBinaryContent(directory, key));
+    }
+
+    @Override
+    public byte[] getBinaryContent(String directory, String key, long offset, int length) {
+        return call(INTERACTIVE, dms -> dms.getBinaryContent(directory, key, offset, length));
+    }
+
+    @Override
+    public Map<String, String> getPropertiesContent(String directory, String key, Charset charset) {
+        return call(INTERACTIVE, dms -> dms.getPropertiesContent(directory, key, charset));
+    }
+
+    @Override
+    public LocalDateTime getLastModifiedTime(String directory, String key) {
+        return call(INTERACTIVE, dms -> dms.getLastModifiedTime(directory, key));
+    }
+
+    @Override
+    public DmsVersioned<byte[]> getBinaryContentWithVersion(String directory, String key) {
+        return call(INTERACTIVE, dms -> dms.getBinaryContentWithVersion(directory, key));
+    }
+
+    @Override
+    public DmsVersioned<String> getTextContentWithVersion(String directory, String key, Charset charset) {
+        return call(INTERACTIVE, dms -> dms.getTextContentWithVersion(directory, key, charset));
+    }
+
+    @Override
+    public String putIfVersion(String directory, String key, byte[] binaryContent, String expectedVersion) {
+        return call(INTERACTIVE, dms -> dms.putIfVersion(directory, key, binaryContent, expectedVersion));
+    }
+
+    @Override
+    public String putIfVersion(String directory, String key, String textContent, Charset charset, String expectedVersion) {
+        return call(INTERACTIVE, dms -> dms.putIfVersion(directory, key, textContent, charset, expectedVersion));
+    }
+
+    @Override
+    public void delete(String directory, String key) {
+        call(INTERACTIVE, dms -> {
+            dms.delete(directory, key);
+            return null;
+        });
+    }
+
+    @Override
+    public void delete(String directory, Collection<String> keys) {
+        call(INTERACTIVE, dms -> {
+            dms.delete(directory, keys);
+            return null;
+        });
+    }
+
+    @Override
+    public boolean copy(String srcDirectory, String srcKey, String dstDirectory, String dstKey) {
+        return call(INTERACTIVE, dms -> dms.copy(srcDirectory, srcKey, dstDirectory, dstKey));
+    }
+
+    @Override
+    public boolean move(String srcDirectory, String srcKey, String dstDirectory, String dstKey) {
+        return call(INTERACTIVE, dms -> dms.move(srcDirectory, srcKey, dstDirectory, dstKey));
+    }
+
+    @Override
+    public int copyAll(String srcDirectory, String dstDirectory) {
+        return call(MAINTENANCE, dms -> dms.copyAll(srcDirectory, dstDirectory));
+    }
+
+    @Override
+    public int moveAll(String srcDirectory, String dstDirectory) {
+        return call(MAINTENANCE, dms -> dms.moveAll(srcDirectory, dstDirectory));
+    }
+
+    @Override
+    public DmsSnapshot snapshot() {
+        return new ScheduledDmsSnapshot(ioScheduler, workspace, call(MAINTENANCE, FilesystemDmsImpl::snapshot));
+    }
+
+    @Override
+    public List<DmsChange> getChanges(long cursor, int limit) {
+        return call(INTERACTIVE, dms -> dms.getChanges(cursor, limit));
+    }
+
+    @Override
+    public DmsChangePage getChanges(String directory, long cursor, int limit) {
+        return call(INTERACTIVE, dms -> dms.getChanges(directory, cursor, limit));
+    }
+
+    @Override
+    public int truncateChanges(long cursor) {
+        return call(MAINTENANCE, dms -> dms.truncateChanges(cursor));
+    }
+
+    @Override
+    public <KEY> SequencedMap<KEY, String> getRedundantPeriodKeys(
+            String directory,
+            Function<String, KEY> keyFnc,
+            Function<KEY, LocalDate> keyStartDateInclFnc,
+            Function<KEY, LocalDate> keyEndDateInclFnc
+    ) {
+        return call(INTERACTIVE, dms -> dms.getRedundantPeriodKeys(directory, keyFnc, keyStartDateInclFnc, keyEndDateInclFnc));
+    }
+
+    @Override
+    public <KEY> SequencedSet<KEY> getRedundantPeriodKeys(
+            Collection<KEY> keys,
+            Function<KEY, LocalDate> keyStartDateInclFnc,
+            Function<KEY, LocalDate> keyEndDateInclFnc
+    ) {
+        return call(null, dms -> dms.getRedundantPeriodKeys(keys, keyStartDateInclFnc, keyEndDateInclFnc));
+    }
+
+    @Override
+    public DmsCompactionReport compactPeriods(List<DmsCompactionRule<?>> rules, DmsCompactionOptions options) {
+        return call(null, dms -> dms.compactPeriods(rules, options));
+    }
+
+    @Override
+    public DmsUsage getUsage(String directory) {
+        return call(INTERACTIVE, dms -> dms.getUsage(directory));
+    }
+
+    @Override
+    public DmsUsage getUsage() {
+        return call(MAINTENANCE, FilesystemDmsImpl::getUsage);
+    }
+
+    @Override
+    public SequencedCollection<String> search(String directory, String query, int limit, Charset charset, Charset alternativeCharset) {
+        return call(INTERACTIVE, dms -> dms.search(directory, query, limit, charset, alternativeCharset));
+    }
+
+    @Override
+    public <KEY> PeriodIndex<KEY> getPeriodIndex(
+            String directory,
+            String indexName,
+            Function<String, KEY> keyFnc,
+            Function<KEY, LocalDate> keyStartDateInclFnc,
+            Function<KEY, LocalDate> keyEndDateInclFnc
+    ) {
+        return call(INTERACTIVE, dms -> dms.getPeriodIndex(directory, indexName, keyFnc, keyStartDateInclFnc, keyEndDateInclFnc));
+    }
+
+    @Override
+    public int purge(String directory, String origKey, LocalDateTime obsoleteBefore) {
+        return call(MAINTENANCE, dms -> dms.purge(directory, origKey, obsoleteBefore));
+    }
+
+    @Override
+    public int exportWorkspace(WritableByteChannel channel, DmsExportOptions options) {
+        return call(MAINTENANCE, dms -> dms.exportWorkspace(channel, options));
+    }
+
+    @Override
+    public int importWorkspace(ReadableByteChannel channel) {
+        return call(MAINTENANCE, dms -> dms.importWorkspace(channel));
+    }
+
+    @Override
+    public void resetWorkspace() {
+        call(MAINTENANCE, dms -> {
+            dms.resetWorkspace();
+            return null;
+        });
+    }
+
+    @Override
+    public void deleteWorkspace() {
+        call(MAINTENANCE, dms -> {
+            dms.deleteWorkspace();
+            return null;
+        });
+    }
+
+    @Override
+    public int purgeWorkspace(LocalDateTime obsoleteBefore) {
+        return call(MAINTENANCE, dms -> dms.purgeWorkspace(obsoleteBefore));
+    }
+}
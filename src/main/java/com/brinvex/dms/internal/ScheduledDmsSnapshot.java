@@ -0,0 +1,34 @@
+package com.brinvex.dms.internal;
+
+import com.brinvex.dms.api.DmsSnapshot;
+
+import java.time.LocalDateTime;
+import java.util.function.Function;
+
+/**
+ * Snapshot handle scheduling its calls as operations of the snapshotted workspace.
+ */
+class ScheduledDmsSnapshot extends ScheduledDms implements DmsSnapshot {
+
+    private final FilesystemDmsSnapshot snapshot;
+
+    ScheduledDmsSnapshot(IoScheduler ioScheduler, String workspace, FilesystemDmsSnapshot snapshot) {
+        super(ioScheduler, workspace);
+        this.snapshot = snapshot;
+    }
+
+    @Override
+    protected <T> T run(Function<FilesystemDmsImpl, T> call) {
+        return call.apply(snapshot);
+    }
+
+    @Override
+    public LocalDateTime getSnapshotTime() {
+        return snapshot.getSnapshotTime();
+    }
+
+    @Override
+    public void close() {
+        snapshot.close();
+    }
+}
@@ -0,0 +1,524 @@
+package com.brinvex.dms.internal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Inverted index of the text documents of a directory, built on the first search.
+ * <p>
+ * The index maps the lower-cased letter-or-digit terms to the documents containing them and to their positions there.
+ * Before each search, the documents written through the workspace and the documents whose size or modification time
+ * differ from the directory listing are re-indexed, so the index follows also the changes made outside this instance.
+ * Removed documents are only marked dead and dropped from the posting lists when they outnumber the live ones.
+ * Phrases are matched by the term positions, without reading the documents.
+ * <p>
+ * An index is kept per pair of charsets the directory is searched with.
+ * An index file found with another pair of charsets re-indexes only the documents which are not plain ASCII,
+ * as plain ASCII decodes to the same text with any ASCII-compatible charset.
+ * A run of letters and digits too long to be a term is not indexed, but it takes a position, so it breaks a phrase.
+ * <p>
+ * The index is saved to the metadata directory a few seconds after it changes.
+ */
+class SearchIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SearchIndex.class);
+
+    private static final int MAGIC = 0x444D5346;
+
+    private static final int FORMAT_VERSION = 3;
+
+    private static final int MAX_TERM_LENGTH = 64;
+
+    private static final long SAVE_DELAY_MILLIS = 5_000;
+
+    /**
+     * The decoded text of a document; {@code ascii} tells whether all its bytes are 7-bit ASCII.
+     */
+    record Text(String value, boolean ascii) {
+    }
+
+    interface TextLoader {
+        /**
+         * Returns the decoded text of the document or null if it is not a text document.
+         */
+        Text load(String key) throws IOException;
+    }
+
+    private record Doc(String key, long size, long modifiedMillis, boolean ascii) {
+    }
+
+    /**
+     * Ascending document ids with the ascending positions of the term in each document;
+     * new documents always get the highest id, so adding is appending.
+     */
+    private static final class Postings {
+        private int[] ids = new int[4];
+        private int[][] positions = new int[4][];
+        private int size;
+
+        private void add(int id, int[] docPositions) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            ids[size] = id;
+            positions[size++] = docPositions;
+        }
+
+        private boolean contains(int id) {
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+
+        private int[] getPositions(int id) {
+            int i = Arrays.binarySearch(ids, 0, size, id);
+            return i < 0 ? null : positions[i];
+        }
+    }
+
+    /**
+     * A parsed query: all the terms must match, each phrase must occur in the content.
+     */
+    private record Query(Set<String> terms, List<List<String>> phrases) {
+    }
+
+    private final Path indexPath;
+
+    private final Path directoryPath;
+
+    private final List<Doc> docs = new ArrayList<>();
+
+    private final Map<String, Integer> docIdsByKey = new HashMap<>();
+
+    private final Map<String, Postings> postings = new HashMap<>();
+
+    private final Set<String> pendingKeys = new HashSet<>();
+
+    private final DelayedAction delayedSave = new DelayedAction("dms-search-index", SAVE_DELAY_MILLIS, this::save);
+
+    private Charset charset;
+
+    private Charset alternativeCharset;
+
+    private boolean loaded;
+
+    private boolean changed;
+
+    private WorkspaceIndex.DirectoryListing validatedListing;
+
+    SearchIndex(Path directoryPath, Path indexPath) {
+        this.directoryPath = directoryPath;
+        this.indexPath = indexPath;
+    }
+
+    synchronized List<String> search(
+            String query,
+            int limit,
+            Charset charset,
+            Charset alternativeCharset,
+            WorkspaceIndex.DirectoryListing listing,
+            TextLoader textLoader
+    ) throws IOException {
+        Query parsedQuery = parseQuery(query);
+        if (parsedQuery.terms().isEmpty()) {
+            return List.of();
+        }
+        if (!loaded) {
+            load();
+            loaded = true;
+        }
+        if (!charset.equals(this.charset) || !Objects.equals(alternativeCharset, this.alternativeCharset)) {
+            changeCharsets(charset, alternativeCharset);
+        }
+        if (update(listing, textLoader) || changed) {
+            changed = false;
+            delayedSave.request();
+        }
+
+        Postings smallest = null;
+        List<Postings> termPostings = new ArrayList<>();
+        for (String term : parsedQuery.terms()) {
+            Postings p = postings.get(term);
+            if (p == null) {
+                return List.of();
+            }
+            termPostings.add(p);
+            if (smallest == null || p.size < smallest.size) {
+                smallest = p;
+            }
+        }
+        List<String> candidates = new ArrayList<>();
+        for (int i = 0; i < smallest.size; i++) {
+            int id = smallest.ids[i];
+            Doc doc = docs.get(id);
+            if (doc == null) {
+                continue;
+            }
+            boolean all = true;
+            for (Postings p : termPostings) {
+                if (p != smallest && !p.contains(id)) {
+                    all = false;
+                    break;
+                }
+            }
+            if (all && containsPhrases(id, parsedQuery.phrases())) {
+                candidates.add(doc.key());
+            }
+        }
+        candidates.sort(null);
+        return candidates.size() > limit ? new ArrayList<>(candidates.subList(0, limit)) : candidates;
+    }
+
+    /**
+     * Marks the document to be re-indexed before the next search.
+     */
+    synchronized void onKeyChanged(String key) {
+        if (loaded) {
+            pendingKeys.add(key);
+        }
+    }
+
+    synchronized void clear() {
+        docs.clear();
+        docIdsByKey.clear();
+        postings.clear();
+        pendingKeys.clear();
+        validatedListing = null;
+        loaded = false;
+    }
+
+    /**
+     * Writes the live documents and their posting lists to a temporary file and atomically replaces the previous one.
+     */
+    synchronized void save() {
+        if (!loaded || !Files.isDirectory(directoryPath)) {
+            return;
+        }
+        compact();
+        try {
+            Files.createDirectories(indexPath.getParent());
+            Path tmpPath = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+            try (OutputStream fileOut = Files.newOutputStream(tmpPath);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(charset.name());
+                out.writeUTF(alternativeCharset == null ? "" : alternativeCharset.name());
+                out.writeInt(docs.size());
+                for (Doc doc : docs) {
+                    out.writeUTF(doc.key());
+                    out.writeLong(doc.size());
+                    out.writeLong(doc.modifiedMillis());
+                    out.writeBoolean(doc.ascii());
+                }
+                out.writeInt(postings.size());
+                for (Map.Entry<String, Postings> e : postings.entrySet()) {
+                    Postings p = e.getValue();
+                    out.writeUTF(e.getKey());
+                    out.writeInt(p.size);
+                    for (int i = 0; i < p.size; i++) {
+                        out.writeInt(p.ids[i]);
+                        out.writeInt(p.positions[i].length);
+                        for (int position : p.positions[i]) {
+                            out.writeInt(position);
+                        }
+                    }
+                }
+            }
+            Files.move(tmpPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn("Failed to save the search index: {}", indexPath, e);
+        }
+    }
+
+    /**
+     * Re-indexes the pending documents and the documents which differ from the listing.
+     */
+    private boolean update(WorkspaceIndex.DirectoryListing listing, TextLoader textLoader) throws IOException {
+        if (listing != validatedListing) {
+            Set<String> listedKeys = new HashSet<>();
+            String[] names = listing.names();
+            for (int i = 0; i < names.length; i++) {
+                if (listing.obsolete()[i] || listing.directory()[i]) {
+                    continue;
+                }
+                listedKeys.add(names[i]);
+                Integer id = docIdsByKey.get(names[i]);
+                Doc doc = id == null ? null : docs.get(id);
+                if (doc == null || doc.size() != listing.sizes()[i] || doc.modifiedMillis() != listing.modifiedMillis()[i]) {
+                    pendingKeys.add(names[i]);
+                }
+            }
+            for (String key : docIdsByKey.keySet()) {
+                if (!listedKeys.contains(key)) {
+                    pendingKeys.add(key);
+                }
+            }
+            validatedListing = listing;
+        }
+        if (pendingKeys.isEmpty()) {
+            return false;
+        }
+        for (String key : pendingKeys) {
+            reindex(key, textLoader);
+        }
+        pendingKeys.clear();
+        if (docIdsByKey.size() * 2 < docs.size() - 1024) {
+            compact();
+        }
+        return true;
+    }
+
+    private void reindex(String key, TextLoader textLoader) throws IOException {
+        Integer oldId = docIdsByKey.remove(key);
+        if (oldId != null) {
+            docs.set(oldId, null);
+        }
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(directoryPath.resolve(key), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        if (!attrs.isRegularFile()) {
+            return;
+        }
+        Text text;
+        try {
+            text = textLoader.load(key);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        int id = docs.size();
+        docs.add(new Doc(key, attrs.size(), attrs.lastModifiedTime().toMillis(), text != null && text.ascii()));
+        docIdsByKey.put(key, id);
+        if (text != null) {
+            Map<String, int[]> termPositions = new HashMap<>();
+            Map<String, Integer> termCounts = new HashMap<>();
+            List<String> tokens = tokenize(text.value());
+            for (int position = 0; position < tokens.size(); position++) {
+                String term = tokens.get(position);
+                if (term == null) {
+                    continue;
+                }
+                int count = termCounts.merge(term, 1, Integer::sum);
+                int[] docPositions = termPositions.get(term);
+                if (docPositions == null) {
+                    docPositions = new int[2];
+                } else if (count > docPositions.length) {
+                    docPositions = Arrays.copyOf(docPositions, docPositions.length * 2);
+                }
+                docPositions[count - 1] = position;
+                termPositions.put(term, docPositions);
+            }
+            termPositions.forEach((term, docPositions) -> postings.computeIfAbsent(term, k -> new Postings())
+                    .add(id, Arrays.copyOf(docPositions, termCounts.get(term))));
+        }
+    }
+
+    /**
+     * Drops the dead documents and renumbers the live ones, keeping the posting lists ascending.
+     */
+    private void compact() {
+        if (docIdsByKey.size() == docs.size()) {
+            return;
+        }
+        int[] newIds = new int[docs.size()];
+        List<Doc> liveDocs = new ArrayList<>(docIdsByKey.size());
+        for (int i = 0; i < docs.size(); i++) {
+            Doc doc = docs.get(i);
+            if (doc == null) {
+                newIds[i] = -1;
+            } else {
+                newIds[i] = liveDocs.size();
+                liveDocs.add(doc);
+            }
+        }
+        docs.clear();
+        docs.addAll(liveDocs);
+        docIdsByKey.clear();
+        for (int i = 0; i < docs.size(); i++) {
+            docIdsByKey.put(docs.get(i).key(), i);
+        }
+        postings.values().removeIf(p -> {
+            int size = 0;
+            for (int i = 0; i < p.size; i++) {
+                int newId = newIds[p.ids[i]];
+                if (newId >= 0) {
+                    p.positions[size] = p.positions[i];
+                    p.ids[size++] = newId;
+                }
+            }
+            Arrays.fill(p.positions, size, p.size, null);
+            p.size = size;
+            return size == 0;
+        });
+    }
+
+    /**
+     * Marks the documents whose text may differ with the new charsets to be re-indexed.
+     * The plain ASCII documents are kept if both the old and the new charsets are ASCII-compatible.
+     */
+    private void changeCharsets(Charset charset, Charset alternativeCharset) {
+        if (this.charset == null || !isAsciiCompatible(this.charset, this.alternativeCharset) || !isAsciiCompatible(charset, alternativeCharset)) {
+            reset(charset, alternativeCharset);
+            return;
+        }
+        for (Doc doc : docs) {
+            if (doc != null && !doc.ascii()) {
+                pendingKeys.add(doc.key());
+            }
+        }
+        this.charset = charset;
+        this.alternativeCharset = alternativeCharset;
+        changed = true;
+    }
+
+    private static boolean isAsciiCompatible(Charset charset, Charset alternativeCharset) {
+        return TextDecodingUtils.isAsciiCompatible(charset)
+               && (alternativeCharset == null || TextDecodingUtils.isAsciiCompatible(alternativeCharset));
+    }
+
+    private void reset(Charset charset, Charset alternativeCharset) {
+        docs.clear();
+        docIdsByKey.clear();
+        postings.clear();
+        pendingKeys.clear();
+        validatedListing = null;
+        this.charset = charset;
+        this.alternativeCharset = alternativeCharset;
+    }
+
+    private void load() {
+        if (!Files.exists(indexPath)) {
+            return;
+        }
+        try (InputStream fileIn = Files.newInputStream(indexPath);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                LOG.warn("Ignoring incompatible search index: {}", indexPath);
+                return;
+            }
+            Charset loadedCharset = Charset.forName(in.readUTF());
+            String alternativeCharsetName = in.readUTF();
+            reset(loadedCharset, alternativeCharsetName.isEmpty() ? null : Charset.forName(alternativeCharsetName));
+            int docCount = in.readInt();
+            for (int i = 0; i < docCount; i++) {
+                Doc doc = new Doc(in.readUTF(), in.readLong(), in.readLong(), in.readBoolean());
+                docs.add(doc);
+                docIdsByKey.put(doc.key(), i);
+            }
+            int termCount = in.readInt();
+            for (int i = 0; i < termCount; i++) {
+                String term = in.readUTF();
+                Postings p = new Postings();
+                p.size = in.readInt();
+                p.ids = new int[Math.max(4, p.size)];
+                p.positions = new int[p.ids.length][];
+                for (int j = 0; j < p.size; j++) {
+                    p.ids[j] = in.readInt();
+                    p.positions[j] = new int[in.readInt()];
+                    for (int k = 0; k < p.positions[j].length; k++) {
+                        p.positions[j][k] = in.readInt();
+                    }
+                }
+                postings.put(term, p);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Ignoring unreadable search index: {}", indexPath, e);
+            reset(null, null);
+        }
+    }
+
+    private static Query parseQuery(String query) {
+        Set<String> terms = new LinkedHashSet<>();
+        List<List<String>> phrases = new ArrayList<>();
+        String[] parts = query.split("\"", -1);
+        for (int i = 0; i < parts.length; i++) {
+            List<String> tokens = tokenize(parts[i]);
+            tokens.stream().filter(Objects::nonNull).forEach(terms::add);
+            // Odd parts are enclosed in quotes
+            if (i % 2 == 1 && tokens.size() > 1 && tokens.stream().anyMatch(Objects::nonNull)) {
+                phrases.add(tokens);
+            }
+        }
+        return new Query(terms, phrases);
+    }
+
+    /**
+     * Checks that each phrase occurs in the document, i.e. that its terms have consecutive positions there;
+     * a run too long to be a term matches any position.
+     */
+    private boolean containsPhrases(int id, List<List<String>> phrases) {
+        for (List<String> phrase : phrases) {
+            int[][] phrasePositions = new int[phrase.size()][];
+            int first = -1;
+            for (int i = 0; i < phrase.size(); i++) {
+                if (phrase.get(i) != null) {
+                    phrasePositions[i] = postings.get(phrase.get(i)).getPositions(id);
+                    if (first < 0) {
+                        first = i;
+                    }
+                }
+            }
+            boolean found = false;
+            for (int firstPosition : phrasePositions[first]) {
+                int start = firstPosition - first;
+                found = start >= 0;
+                for (int i = first + 1; i < phrasePositions.length && found; i++) {
+                    found = phrasePositions[i] == null || Arrays.binarySearch(phrasePositions[i], start + i) >= 0;
+                }
+                if (found) {
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Splits the text into lower-cased runs of letters and digits;
+     * the runs longer than {@value #MAX_TERM_LENGTH} are not terms, they are returned as nulls to keep the positions of the following terms.
+     */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        int length = text.length();
+        for (int i = 0; i <= length; ) {
+            int cp = i < length ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(cp)) {
+                sb.appendCodePoint(Character.toLowerCase(cp));
+            } else if (!sb.isEmpty()) {
+                tokens.add(sb.length() <= MAX_TERM_LENGTH ? sb.toString() : null);
+                sb.setLength(0);
+            }
+            i += i < length ? Character.charCount(cp) : 1;
+        }
+        return tokens;
+    }
+}
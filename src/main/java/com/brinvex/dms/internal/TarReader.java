@@ -0,0 +1,175 @@
+package com.brinvex.dms.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import static com.brinvex.dms.internal.TarWriter.BLOCK_SIZE;
+
+/**
+ * Reads the regular files of a POSIX (ustar) tar archive, including PAX extended headers for names and sizes.
+ * Other entry types are skipped.
+ */
+class TarReader {
+
+    record Entry(String name, long size, long modifiedEpochSecond) {
+    }
+
+    private final ReadableByteChannel in;
+
+    private Entry currentEntry;
+
+    private long currentRemaining;
+
+    TarReader(ReadableByteChannel in) {
+        this.in = in;
+    }
+
+    /**
+     * Returns the next regular file entry or {@code null} at the end of the archive.
+     * The content of the previous entry is skipped if it was not read.
+     */
+    Entry nextEntry() throws IOException {
+        if (currentEntry != null) {
+            skip(currentRemaining + padding(currentEntry.size()));
+            currentEntry = null;
+        }
+        String paxPath = null;
+        Long paxSize = null;
+        while (true) {
+            ByteBuffer header = ByteBuffer.allocate(BLOCK_SIZE);
+            if (!readFully(header)) {
+                return null;
+            }
+            byte[] h = header.array();
+            if (isZeroBlock(h)) {
+                return null;
+            }
+            verifyChecksum(h);
+            byte type = h[156];
+            long size = parseOctal(h, 124, 12);
+            long mtime = parseOctal(h, 136, 12);
+            if (type == 'x') {
+                ByteBuffer paxBuf = ByteBuffer.allocate(Math.toIntExact(size));
+                readFullyOrFail(paxBuf);
+                skip(padding(size));
+                String pax = new String(paxBuf.array(), StandardCharsets.UTF_8);
+                for (String record : pax.split("\n")) {
+                    int space = record.indexOf(' ');
+                    int eq = record.indexOf('=', space);
+                    if (space < 0 || eq < 0) {
+                        continue;
+                    }
+                    String key = record.substring(space + 1, eq);
+                    String value = record.substring(eq + 1);
+                    if (key.equals("path")) {
+                        paxPath = value;
+                    } else if (key.equals("size")) {
+                        paxSize = Long.parseLong(value);
+                    }
+                }
+            } else if (type == '0' || type == 0) {
+                String name = paxPath != null ? paxPath : parseString(h, 0, 100);
+                long entrySize = paxSize != null ? paxSize : size;
+                currentEntry = new Entry(name, entrySize, mtime);
+                currentRemaining = entrySize;
+                return currentEntry;
+            } else {
+                skip(size + padding(size));
+                paxPath = null;
+                paxSize = null;
+            }
+        }
+    }
+
+    /**
+     * Copies the content of the current entry to the given file channel.
+     */
+    void copyContentTo(FileChannel target) throws IOException {
+        long position = 0;
+        while (currentRemaining > 0) {
+            long n = target.transferFrom(in, position, currentRemaining);
+            if (n <= 0) {
+                throw new IOException("Unexpected end of archive: entry=%s".formatted(currentEntry.name()));
+            }
+            position += n;
+            currentRemaining -= n;
+        }
+    }
+
+    private void skip(long length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(8192);
+        while (length > 0) {
+            buf.clear().limit((int) Math.min(buf.capacity(), length));
+            readFullyOrFail(buf);
+            length -= buf.limit();
+        }
+    }
+
+    private boolean readFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (in.read(buf) < 0) {
+                if (buf.position() == 0) {
+                    return false;
+                }
+                throw new IOException("Unexpected end of archive");
+            }
+        }
+        return true;
+    }
+
+    private void readFullyOrFail(ByteBuffer buf) throws IOException {
+        if (!readFully(buf)) {
+            throw new IOException("Unexpected end of archive");
+        }
+    }
+
+    private static long padding(long size) {
+        return (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void verifyChecksum(byte[] h) throws IOException {
+        long expected = parseOctal(h, 148, 8);
+        long actual = 0;
+        for (int i = 0; i < h.length; i++) {
+            actual += (i >= 148 && i < 156) ? ' ' : h[i] & 0xFF;
+        }
+        if (expected != actual) {
+            throw new IOException("Invalid tar header checksum: expected=%s, actual=%s".formatted(expected, actual));
+        }
+    }
+
+    private static long parseOctal(byte[] h, int offset, int length) {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = h[i];
+            if (b == 0 || b == ' ') {
+                if (value > 0) {
+                    break;
+                }
+                continue;
+            }
+            value = (value << 3) + (b - '0');
+        }
+        return value;
+    }
+
+    private static String parseString(byte[] h, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && h[end] != 0) {
+            end++;
+        }
+        return new String(h, offset, end - offset, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,133 @@
+package com.brinvex.dms.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a POSIX (ustar) tar archive to a channel.
+ * Names which do not fit into the ustar header are written as PAX extended headers.
+ * File contents are copied with {@link FileChannel#transferTo}, so no bytes pass through the heap
+ * when the target channel supports it.
+ */
+class TarWriter {
+
+    static final int BLOCK_SIZE = 512;
+
+    private static final int NAME_LENGTH = 100;
+
+    private static final long MAX_USTAR_SIZE = 077777777777L;
+
+    private final WritableByteChannel out;
+
+    TarWriter(WritableByteChannel out) {
+        this.out = out;
+    }
+
+    void writeFile(String name, FileChannel content, long size, long modifiedEpochSecond) throws IOException {
+        writeHeaders(name, size, modifiedEpochSecond);
+        long position = 0;
+        while (position < size) {
+            long n = content.transferTo(position, size - position, out);
+            if (n <= 0) {
+                throw new IOException("Unexpected end of file while archiving: %s".formatted(name));
+            }
+            position += n;
+        }
+        writePadding(size);
+    }
+
+    void writeFile(String name, byte[] content, long modifiedEpochSecond) throws IOException {
+        writeHeaders(name, content.length, modifiedEpochSecond);
+        writeFully(ByteBuffer.wrap(content));
+        writePadding(content.length);
+    }
+
+    private void writeHeaders(String name, long size, long modifiedEpochSecond) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        boolean asciiName = nameBytes.length == name.length();
+        if (nameBytes.length > NAME_LENGTH || !asciiName || size > MAX_USTAR_SIZE) {
+            StringBuilder pax = new StringBuilder();
+            appendPaxRecord(pax, "path", name);
+            if (size > MAX_USTAR_SIZE) {
+                appendPaxRecord(pax, "size", String.valueOf(size));
+            }
+            byte[] paxBytes = pax.toString().getBytes(StandardCharsets.UTF_8);
+            writeHeader(asciiPrefix(name), paxBytes.length, modifiedEpochSecond, (byte) 'x');
+            writeFully(ByteBuffer.wrap(paxBytes));
+            writePadding(paxBytes.length);
+        }
+        writeHeader(asciiPrefix(name), Math.min(size, MAX_USTAR_SIZE), modifiedEpochSecond, (byte) '0');
+    }
+
+    void finish() throws IOException {
+        writeFully(ByteBuffer.allocate(2 * BLOCK_SIZE));
+    }
+
+    private void writeHeader(String name, long size, long modifiedEpochSecond, byte type) throws IOException {
+        byte[] header = new byte[BLOCK_SIZE];
+        byte[] nameBytes = name.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(nameBytes, 0, header, 0, Math.min(nameBytes.length, NAME_LENGTH));
+        putOctal(header, 100, 8, 0644);
+        putOctal(header, 108, 8, 0);
+        putOctal(header, 116, 8, 0);
+        putOctal(header, 124, 12, size);
+        putOctal(header, 136, 12, Math.max(0, modifiedEpochSecond));
+        header[156] = type;
+        System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+        header[263] = '0';
+        header[264] = '0';
+        for (int i = 148; i < 156; i++) {
+            header[i] = ' ';
+        }
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xFF;
+        }
+        putOctal(header, 148, 7, checksum);
+        writeFully(ByteBuffer.wrap(header));
+    }
+
+    private void writePadding(long size) throws IOException {
+        int padding = (int) ((BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE);
+        if (padding > 0) {
+            writeFully(ByteBuffer.allocate(padding));
+        }
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    private static void putOctal(byte[] header, int offset, int length, long value) {
+        String octal = Long.toOctalString(value);
+        int digits = length - 1;
+        for (int i = 0; i < digits; i++) {
+            int octalIndex = octal.length() - digits + i;
+            header[offset + i] = (byte) (octalIndex >= 0 ? octal.charAt(octalIndex) : '0');
+        }
+        header[offset + digits] = 0;
+    }
+
+    private static String asciiPrefix(String name) {
+        StringBuilder sb = new StringBuilder(Math.min(name.length(), NAME_LENGTH));
+        for (int i = 0; i < name.length() && sb.length() < NAME_LENGTH; i++) {
+            char c = name.charAt(i);
+            sb.append(c < 128 ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    private static void appendPaxRecord(StringBuilder pax, String key, String value) {
+        int payloadLength = (" " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8).length;
+        int length = payloadLength + String.valueOf(payloadLength).length();
+        if (String.valueOf(length).length() != String.valueOf(payloadLength).length()) {
+            length = payloadLength + String.valueOf(length).length();
+        }
+        pax.append(length).append(' ').append(key).append('=').append(value).append('\n');
+    }
+}
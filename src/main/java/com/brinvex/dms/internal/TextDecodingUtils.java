@@ -0,0 +1,257 @@
+package com.brinvex.dms.internal;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_16BE;
+import static java.nio.charset.StandardCharsets.UTF_16LE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Decodes the same bytes with several candidate charsets, reading the bytes only once.
+ * The candidates are tried in the given order; only if the detection is enabled,
+ * the candidate indicated by a byte order mark, or else by a heuristic check of the first bytes, is tried first.
+ * A byte order mark is decoded like any other character, so the text does not depend on the detection.
+ * Decoders are reused per thread.
+ */
+class TextDecodingUtils {
+
+    private static final ThreadLocal<Map<Charset, CharsetDecoder>> decoders = ThreadLocal.withInitial(HashMap::new);
+
+    private static final byte[] UTF_8_BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+    private static final byte[] UTF_16BE_BOM = {(byte) 0xFE, (byte) 0xFF};
+    private static final byte[] UTF_16LE_BOM = {(byte) 0xFF, (byte) 0xFE};
+
+    private static final int SNIFF_LENGTH = 4096;
+
+    private static final String ASCII_SAMPLE = "\t\n\r !\"#09:@AZ[`az{~";
+
+    public record Decoded<T>(Charset charset, T value) {
+    }
+
+    private interface DecodingAttempt<T> {
+        T decode(CharsetDecoder decoder) throws IOException;
+    }
+
+    /**
+     * Decodes the whole content with the first candidate charset able to decode it.
+     */
+    public static Decoded<String> decodeText(byte[] bytes, List<Charset> candidates, boolean detectCharset) throws IOException {
+        return decodeFirstSuccessful(bytes, candidates, detectCharset, decoder -> decoder.decode(ByteBuffer.wrap(bytes)).toString());
+    }
+
+    /**
+     * Decodes at most {@code limit} lines with the first candidate charset able to decode them.
+     * The bytes consumed by a failed attempt are replayed from memory by the next one.
+     */
+    public static Decoded<List<String>> decodeLines(InputStream in, int limit, List<Charset> candidates, boolean detectCharset) throws IOException {
+        ReplayableInputStream replayable = new ReplayableInputStream(in);
+        byte[] head = detectCharset ? replayable.readNBytes(SNIFF_LENGTH) : null;
+        return decodeFirstSuccessful(head, candidates, detectCharset, decoder -> {
+            replayable.rewind();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(replayable, decoder));
+            List<String> lines = new ArrayList<>();
+            String line;
+            while (lines.size() < limit && (line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+            return lines;
+        });
+    }
+
+    /**
+     * Returns true if all the bytes are 7-bit ASCII, so any ASCII-compatible charset decodes them to the same text.
+     */
+    public static boolean isAscii(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the charset encodes the 7-bit ASCII characters as single ASCII bytes.
+     */
+    public static boolean isAsciiCompatible(Charset charset) {
+        return Arrays.equals(ASCII_SAMPLE.getBytes(charset), ASCII_SAMPLE.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Returns the charset indicated by the byte order mark at the beginning of the given bytes, or {@code null}.
+     */
+    public static Charset detectBomCharset(byte[] head) {
+        if (startsWith(head, UTF_8_BOM)) {
+            return UTF_8;
+        } else if (startsWith(head, UTF_16BE_BOM)) {
+            return UTF_16BE;
+        } else if (startsWith(head, UTF_16LE_BOM)) {
+            return UTF_16LE;
+        }
+        return null;
+    }
+
+    /**
+     * Guesses the charset of the first bytes of a document without a byte order mark, or returns {@code null}.
+     * Bytes forming valid multibyte UTF-8 sequences suggest UTF-8.
+     * Non-ASCII bytes which are not valid UTF-8 suggest the first candidate other than UTF-8,
+     * which is assumed to be a single-byte charset.
+     * Plain ASCII decodes with any of the usual candidates, so it suggests nothing.
+     */
+    public static Charset detectHeuristicCharset(byte[] head, List<Charset> candidates) {
+        int length = Math.min(head.length, SNIFF_LENGTH);
+        boolean multibyte = false;
+        int i = 0;
+        while (i < length) {
+            int b = head[i] & 0xFF;
+            if (b < 0x80) {
+                i++;
+                continue;
+            }
+            int sequenceLength = b >= 0xC2 && b <= 0xDF ? 2 : b >= 0xE0 && b <= 0xEF ? 3 : b >= 0xF0 && b <= 0xF4 ? 4 : 0;
+            boolean valid = sequenceLength > 0;
+            for (int j = 1; valid && j < sequenceLength && i + j < length; j++) {
+                valid = (head[i + j] & 0xC0) == 0x80;
+            }
+            if (!valid) {
+                for (Charset candidate : candidates) {
+                    if (!candidate.equals(UTF_8)) {
+                        return candidate;
+                    }
+                }
+                return null;
+            }
+            // A sequence cut off by the end of the sample counts as valid
+            multibyte = true;
+            i += sequenceLength;
+        }
+        return multibyte && candidates.contains(UTF_8) ? UTF_8 : null;
+    }
+
+    private static <T> Decoded<T> decodeFirstSuccessful(
+            byte[] head,
+            List<Charset> candidates,
+            boolean detectCharset,
+            DecodingAttempt<T> attempt
+    ) throws IOException {
+        Charset likelyCharset = detectCharset && candidates.size() > 1 ? detectCharset(head, candidates) : null;
+        if (likelyCharset != null && candidates.contains(likelyCharset) && !candidates.getFirst().equals(likelyCharset)) {
+            List<Charset> reordered = new ArrayList<>(candidates.size());
+            reordered.add(likelyCharset);
+            for (Charset candidate : candidates) {
+                if (!candidate.equals(likelyCharset)) {
+                    reordered.add(candidate);
+                }
+            }
+            candidates = reordered;
+        }
+        CharacterCodingException failure = null;
+        for (Charset candidate : candidates) {
+            try {
+                return new Decoded<>(candidate, attempt.decode(getDecoder(candidate)));
+            } catch (CharacterCodingException e) {
+                failure = chain(failure, e);
+            } catch (UncheckedIOException e) {
+                if (e.getCause() instanceof CharacterCodingException characterCodingException) {
+                    failure = chain(failure, characterCodingException);
+                } else {
+                    if (failure != null) {
+                        e.addSuppressed(failure);
+                    }
+                    throw e;
+                }
+            } catch (IOException | RuntimeException e) {
+                if (failure != null) {
+                    e.addSuppressed(failure);
+                }
+                throw e;
+            }
+        }
+        throw failure;
+    }
+
+    private static CharacterCodingException chain(CharacterCodingException previous, CharacterCodingException newest) {
+        if (previous != null) {
+            newest.addSuppressed(previous);
+        }
+        return newest;
+    }
+
+    private static CharsetDecoder getDecoder(Charset charset) {
+        return decoders.get()
+                .computeIfAbsent(charset, Charset::newDecoder)
+                .reset()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+    }
+
+    private static Charset detectCharset(byte[] head, List<Charset> candidates) {
+        Charset bomCharset = detectBomCharset(head);
+        return bomCharset != null ? bomCharset : detectHeuristicCharset(head, candidates);
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        return bytes.length >= prefix.length && Arrays.equals(bytes, 0, prefix.length, prefix, 0, prefix.length);
+    }
+
+    /**
+     * Keeps the bytes read from the underlying stream, so they can be read again after {@link #rewind()}.
+     */
+    private static class ReplayableInputStream extends InputStream {
+
+        private final InputStream in;
+        private byte[] buf = new byte[8192];
+        private int count;
+        private int pos;
+
+        ReplayableInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        void rewind() {
+            pos = 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos == count) {
+                if (count == buf.length) {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+                int n = in.read(buf, count, buf.length - count);
+                if (n < 0) {
+                    return -1;
+                }
+                count += n;
+            }
+            int n = Math.min(len, count - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.brinvex.dms.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Random access to the lines of large text files.
+ * Lines are terminated the same way as in {@link BufferedReader#readLine()}: by LF, CR or CRLF.
+ * <p>
+ * For charsets where CR and LF bytes always represent line terminators (UTF-8 and single-byte charsets),
+ * a sparse line-offset index holding the byte offset of every {@value #INDEX_INTERVAL}th line
+ * is built on demand and persisted, so reading from an arbitrary line seeks close to it.
+ * Other charsets fall back to reading from the beginning.
+ */
+class TextLineUtils {
+
+    private static final int INDEX_INTERVAL = 1024;
+
+    private static final int INDEX_MAGIC = 0x4C494458;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private record LineOffsetIndex(long docSize, long docModifiedMillis, long lineCount, long[] offsets) {
+    }
+
+    public static byte[] readBytes(Path file, long offset, int length) throws IOException {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid range: offset=%s, length=%s".formatted(offset, length));
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long available = Math.max(0, channel.size() - offset);
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min(length, available));
+            long position = offset;
+            while (buf.hasRemaining()) {
+                int n = channel.read(buf, position);
+                if (n < 0) {
+                    break;
+                }
+                position += n;
+            }
+            return buf.position() == buf.capacity() ? buf.array() : Arrays.copyOf(buf.array(), buf.position());
+        }
+    }
+
+    public static List<String> readLines(Path file, Path indexFile, long fromLine, int count, Charset charset) throws IOException {
+        if (fromLine < 0 || count < 0) {
+            throw new IllegalArgumentException("Invalid range: fromLine=%s, count=%s".formatted(fromLine, count));
+        }
+        if (count == 0) {
+            return List.of();
+        }
+        if (!isIndexable(charset) || fromLine < INDEX_INTERVAL) {
+            try (Stream<String> lines = Files.lines(file, charset)) {
+                return lines.skip(fromLine).limit(count).toList();
+            }
+        }
+        LineOffsetIndex index = getOrBuildIndex(file, indexFile);
+        if (fromLine >= index.lineCount()) {
+            return List.of();
+        }
+        int checkpoint = (int) (fromLine / INDEX_INTERVAL);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel.position(index.offsets()[checkpoint]);
+            BufferedReader reader = new BufferedReader(Channels.newReader(channel, charset.newDecoder(), -1));
+            for (long i = (long) checkpoint * INDEX_INTERVAL; i < fromLine; i++) {
+                reader.readLine();
+            }
+            return readLines(reader, count);
+        }
+    }
+
+    public static List<String> readTailLines(Path file, int count, Charset charset) throws IOException {
+        if (count < 0) {
+            throw new IllegalArgumentException("Invalid count: %s".formatted(count));
+        }
+        if (count == 0) {
+            return List.of();
+        }
+        if (!isIndexable(charset)) {
+            ArrayDeque<String> tail = new ArrayDeque<>(count);
+            try (BufferedReader reader = Files.newBufferedReader(file, charset)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (tail.size() == count) {
+                        tail.removeFirst();
+                    }
+                    tail.addLast(line);
+                }
+            }
+            return List.copyOf(tail);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long start = findTailStart(channel, count);
+            channel.position(start);
+            BufferedReader reader = new BufferedReader(Channels.newReader(channel, charset.newDecoder(), -1));
+            return readLines(reader, count);
+        }
+    }
+
+    /**
+     * Scans the file backwards and returns the byte offset of the first of the last {@code count} lines.
+     */
+    private static long findTailStart(FileChannel channel, int count) throws IOException {
+        long size = channel.size();
+        long end = size;
+        if (end > 0 && readByte(channel, end - 1) == '\n') {
+            end--;
+            if (end > 0 && readByte(channel, end - 1) == '\r') {
+                end--;
+            }
+        } else if (end > 0 && readByte(channel, end - 1) == '\r') {
+            end--;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(CHUNK_SIZE);
+        int found = 0;
+        int nextByte = -1;
+        long chunkEnd = end;
+        while (chunkEnd > 0) {
+            long chunkStart = Math.max(0, chunkEnd - CHUNK_SIZE);
+            buf.clear().limit((int) (chunkEnd - chunkStart));
+            long position = chunkStart;
+            while (buf.hasRemaining()) {
+                position += channel.read(buf, position);
+            }
+            for (int i = buf.limit() - 1; i >= 0; i--) {
+                byte b = buf.get(i);
+                boolean terminator = b == '\n' || (b == '\r' && nextByte != '\n');
+                if (terminator && ++found == count) {
+                    return chunkStart + i + 1;
+                }
+                nextByte = b;
+            }
+            chunkEnd = chunkStart;
+        }
+        return 0;
+    }
+
+    private static byte readByte(FileChannel channel, long position) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(1);
+        channel.read(buf, position);
+        return buf.get(0);
+    }
+
+    private static List<String> readLines(BufferedReader reader, int count) throws IOException {
+        List<String> lines = new ArrayList<>(Math.min(count, INDEX_INTERVAL));
+        String line;
+        while (lines.size() < count && (line = reader.readLine()) != null) {
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    private static boolean isIndexable(Charset charset) {
+        if (charset.equals(UTF_8)) {
+            return true;
+        }
+        return charset.canEncode()
+               && charset.newEncoder().maxBytesPerChar() == 1.0f
+               && Arrays.equals("\r\n".getBytes(charset), new byte[]{'\r', '\n'});
+    }
+
+    private static LineOffsetIndex getOrBuildIndex(Path file, Path indexFile) throws IOException {
+        long docSize = Files.size(file);
+        long docModifiedMillis = Files.getLastModifiedTime(file).toMillis();
+        if (Files.exists(indexFile)) {
+            LineOffsetIndex index = loadIndex(indexFile);
+            if (index != null && index.docSize() == docSize && index.docModifiedMillis() == docModifiedMillis) {
+                return index;
+            }
+        }
+        LineOffsetIndex index = buildIndex(file, docModifiedMillis);
+        saveIndex(indexFile, index);
+        return index;
+    }
+
+    private static LineOffsetIndex buildIndex(Path file, long docModifiedMillis) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long[] offsets = new long[16];
+            int offsetCount = 0;
+            long lineCount = 0;
+            if (size > 0) {
+                offsets[offsetCount++] = 0;
+                lineCount++;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(CHUNK_SIZE);
+            boolean prevCR = false;
+            long position = 0;
+            while (position < size) {
+                buf.clear();
+                int n = channel.read(buf, position);
+                if (n < 0) {
+                    break;
+                }
+                for (int i = 0; i < n; i++) {
+                    byte b = buf.get(i);
+                    long lineStart = -1;
+                    if (prevCR && b != '\n') {
+                        lineStart = position + i;
+                    } else if (b == '\n' && position + i + 1 < size) {
+                        lineStart = position + i + 1;
+                    }
+                    if (lineStart >= 0) {
+                        if (lineCount % INDEX_INTERVAL == 0) {
+                            if (offsetCount == offsets.length) {
+                                offsets = Arrays.copyOf(offsets, offsetCount * 2);
+                            }
+                            offsets[offsetCount++] = lineStart;
+                        }
+                        lineCount++;
+                    }
+                    prevCR = b == '\r';
+                }
+                position += n;
+            }
+            return new LineOffsetIndex(size, docModifiedMillis, lineCount, Arrays.copyOf(offsets, offsetCount));
+        }
+    }
+
+    /**
+     * Returns null for an index which is not in the current format or was cut short, e.g. by a crash while it was saved.
+     */
+    private static LineOffsetIndex loadIndex(Path indexFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_INTERVAL) {
+                return null;
+            }
+            long docSize = in.readLong();
+            long docModifiedMillis = in.readLong();
+            long lineCount = in.readLong();
+            int offsetCount = in.readInt();
+            if (offsetCount < 0) {
+                return null;
+            }
+            long[] offsets = new long[offsetCount];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = in.readLong();
+            }
+            return new LineOffsetIndex(docSize, docModifiedMillis, lineCount, offsets);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static void saveIndex(Path indexFile, LineOffsetIndex index) throws IOException {
+        Files.createDirectories(indexFile.getParent());
+        Path tmpFile = Files.createTempFile(indexFile.getParent(), "lines", ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_INTERVAL);
+            out.writeLong(index.docSize());
+            out.writeLong(index.docModifiedMillis());
+            out.writeLong(index.lineCount());
+            out.writeInt(index.offsets().length);
+            for (long offset : index.offsets()) {
+                out.writeLong(offset);
+            }
+        }
+        Files.move(tmpFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
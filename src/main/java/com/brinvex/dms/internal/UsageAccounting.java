@@ -0,0 +1,356 @@
+package com.brinvex.dms.internal;
+
+import com.brinvex.dms.api.DmsUsage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Storage usage of the directories of a workspace, maintained incrementally by the writes made through the workspace.
+ * <p>
+ * The usage of a directory is computed from its listing when it is first requested and then adjusted by the deltas of the writes.
+ * Each entry remembers the directory modification time after the last write;
+ * when the directory was modified outside the workspace since then, the usage is computed again.
+ * The writers hold the directory lock shared from the write until its delta is applied
+ * and the usage is computed holding it exclusively, so a write is counted either by the listing or by its delta, never by both.
+ * <p>
+ * The workspace total is the sum of the directory usages, adjusted by the same deltas.
+ * It walks the workspace only until every directory has been accounted,
+ * the directories created later through the workspace are accounted by their writes.
+ * Each request of the total still compares the modification times of the accounted directories,
+ * recomputes the directories modified outside the workspace and drops the deleted ones;
+ * a modified directory may have new subdirectories, so the workspace is walked again then.
+ * <p>
+ * The usages are saved to the metadata directory a few seconds after they change.
+ */
+class UsageAccounting {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UsageAccounting.class);
+
+    private static final int MAGIC = 0x444D5355;
+
+    private static final int FORMAT_VERSION = 2;
+
+    private static final long SAVE_DELAY_MILLIS = 5_000;
+
+    interface DirectoryLister {
+        List<Path> listDirectories() throws IOException;
+    }
+
+    private static final class DirectoryUsage {
+        private boolean computed;
+        private long liveDocuments;
+        private long liveBytes;
+        private long historyDocuments;
+        private long historyBytes;
+        private long directoryModifiedMillis;
+
+        private DmsUsage toDmsUsage() {
+            return new DmsUsage(liveDocuments, liveBytes, historyDocuments, historyBytes);
+        }
+    }
+
+    private final Path workspacePath;
+
+    private final Path usagePath;
+
+    private final WorkspaceIndex workspaceIndex;
+
+    private final KeyLocks directoryLocks;
+
+    private final Map<String, DirectoryUsage> usages = new ConcurrentHashMap<>();
+
+    /**
+     * Sum of the computed directory usages, guarded by its own monitor, which is always taken after the directory one.
+     */
+    private final DirectoryUsage total = new DirectoryUsage();
+
+    private final DelayedAction delayedSave = new DelayedAction("dms-usage", SAVE_DELAY_MILLIS, this::save);
+
+    private volatile boolean loaded;
+
+    UsageAccounting(Path workspacePath, Path usagePath, WorkspaceIndex workspaceIndex, KeyLocks directoryLocks) {
+        this.workspacePath = workspacePath;
+        this.usagePath = usagePath;
+        this.workspaceIndex = workspaceIndex;
+        this.directoryLocks = directoryLocks;
+    }
+
+    /**
+     * Returns the usage of the existing directory, not including its subdirectories.
+     */
+    DmsUsage get(Path directoryPath) throws IOException {
+        ensureLoaded();
+        DirectoryUsage usage = usages.computeIfAbsent(workspaceIndex.toIndexKey(directoryPath), dir -> new DirectoryUsage());
+        synchronized (usage) {
+            if (usage.computed && usage.directoryModifiedMillis == Files.getLastModifiedTime(directoryPath).toMillis()) {
+                return usage.toDmsUsage();
+            }
+        }
+        try (KeyLocks.Held ignoredLock = directoryLocks.lock(directoryPath)) {
+            synchronized (usage) {
+                long directoryModifiedMillis = Files.getLastModifiedTime(directoryPath).toMillis();
+                if (usage.computed && usage.directoryModifiedMillis == directoryModifiedMillis) {
+                    return usage.toDmsUsage();
+                }
+                WorkspaceIndex.DirectoryListing listing = workspaceIndex.scanListing(directoryPath);
+                long liveDocuments = 0;
+                long liveBytes = 0;
+                long historyDocuments = 0;
+                long historyBytes = 0;
+                for (int i = 0; i < listing.names().length; i++) {
+                    if (listing.directory()[i]) {
+                        continue;
+                    }
+                    if (listing.obsolete()[i]) {
+                        historyDocuments++;
+                        historyBytes += listing.sizes()[i];
+                    } else {
+                        liveDocuments++;
+                        liveBytes += listing.sizes()[i];
+                    }
+                }
+                if (!usage.computed) {
+                    usage.computed = true;
+                } else {
+                    liveDocuments -= usage.liveDocuments;
+                    liveBytes -= usage.liveBytes;
+                    historyDocuments -= usage.historyDocuments;
+                    historyBytes -= usage.historyBytes;
+                }
+                add(usage, liveDocuments, liveBytes, historyDocuments, historyBytes);
+                usage.directoryModifiedMillis = directoryModifiedMillis;
+                delayedSave.request();
+                return usage.toDmsUsage();
+            }
+        }
+    }
+
+    /**
+     * Returns the usage of the whole workspace.
+     * The directories are listed and accounted only until all of them have been accounted once
+     * and again after an accounted directory was modified outside the workspace.
+     */
+    DmsUsage getTotal(DirectoryLister directoryLister) throws IOException {
+        ensureLoaded();
+        boolean computed;
+        synchronized (total) {
+            computed = total.computed;
+        }
+        if (computed && revalidate()) {
+            synchronized (total) {
+                return total.toDmsUsage();
+            }
+        }
+        for (Path directoryPath : directoryLister.listDirectories()) {
+            try {
+                get(directoryPath);
+            } catch (NoSuchFileException e) {
+                // Deleted meanwhile
+            }
+        }
+        synchronized (total) {
+            total.computed = true;
+            delayedSave.request();
+            return total.toDmsUsage();
+        }
+    }
+
+    /**
+     * Drops the usages of the deleted directories and recomputes the ones modified since they were accounted.
+     * Returns false if a directory was modified.
+     */
+    private boolean revalidate() throws IOException {
+        boolean unmodified = true;
+        for (Map.Entry<String, DirectoryUsage> e : usages.entrySet()) {
+            Path directoryPath = workspacePath.resolve(e.getKey());
+            DirectoryUsage usage = e.getValue();
+            try {
+                long directoryModifiedMillis = Files.getLastModifiedTime(directoryPath).toMillis();
+                synchronized (usage) {
+                    if (!usage.computed || usage.directoryModifiedMillis == directoryModifiedMillis) {
+                        continue;
+                    }
+                }
+                unmodified = false;
+                get(directoryPath);
+            } catch (NoSuchFileException ex) {
+                remove(e.getKey(), usage);
+            }
+        }
+        return unmodified;
+    }
+
+    private void remove(String directory, DirectoryUsage usage) {
+        synchronized (usage) {
+            if (usages.remove(directory, usage) && usage.computed) {
+                add(usage, -usage.liveDocuments, -usage.liveBytes, -usage.historyDocuments, -usage.historyBytes);
+                usage.computed = false;
+                delayedSave.request();
+            }
+        }
+    }
+
+    /**
+     * Adjusts the usage of the directory after a write made through the workspace, holding the directory lock shared.
+     * A directory whose usage was not computed yet is left to be computed on demand,
+     * unless all the directories were accounted, which means the directory is a new one.
+     */
+    void update(Path directoryPath, long liveDocumentsDelta, long liveBytesDelta, long historyDocumentsDelta, long historyBytesDelta) {
+        ensureLoaded();
+        String directory = workspaceIndex.toIndexKey(directoryPath);
+        DirectoryUsage usage = usages.get(directory);
+        if (usage == null) {
+            synchronized (total) {
+                if (!total.computed) {
+                    return;
+                }
+            }
+            usage = usages.computeIfAbsent(directory, dir -> {
+                DirectoryUsage newUsage = new DirectoryUsage();
+                newUsage.computed = true;
+                return newUsage;
+            });
+        }
+        synchronized (usage) {
+            if (!usage.computed) {
+                return;
+            }
+            add(usage, liveDocumentsDelta, liveBytesDelta, historyDocumentsDelta, historyBytesDelta);
+            try {
+                usage.directoryModifiedMillis = Files.getLastModifiedTime(directoryPath).toMillis();
+            } catch (IOException e) {
+                usage.directoryModifiedMillis = -1;
+            }
+        }
+        delayedSave.request();
+    }
+
+    void clear() {
+        usages.clear();
+        synchronized (total) {
+            total.computed = false;
+            add(total, -total.liveDocuments, -total.liveBytes, -total.historyDocuments, -total.historyBytes);
+        }
+        loaded = false;
+    }
+
+    /**
+     * Adds the deltas to the usage, which must be held locked, and to the total.
+     */
+    private void add(DirectoryUsage usage, long liveDocuments, long liveBytes, long historyDocuments, long historyBytes) {
+        usage.liveDocuments += liveDocuments;
+        usage.liveBytes += liveBytes;
+        usage.historyDocuments += historyDocuments;
+        usage.historyBytes += historyBytes;
+        if (usage != total) {
+            synchronized (total) {
+                add(total, liveDocuments, liveBytes, historyDocuments, historyBytes);
+            }
+        }
+    }
+
+    void save() {
+        if (usages.isEmpty() || !Files.isDirectory(workspacePath)) {
+            return;
+        }
+        try {
+            Files.createDirectories(usagePath.getParent());
+            Path tmpPath = usagePath.resolveSibling(usagePath.getFileName() + ".tmp");
+            try (OutputStream fileOut = Files.newOutputStream(tmpPath);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                synchronized (total) {
+                    out.writeBoolean(total.computed);
+                }
+                Map<String, DirectoryUsage> toSave = Map.copyOf(usages);
+                out.writeInt((int) toSave.values().stream().filter(usage -> {
+                    synchronized (usage) {
+                        return usage.computed;
+                    }
+                }).count());
+                for (Map.Entry<String, DirectoryUsage> e : toSave.entrySet()) {
+                    DirectoryUsage usage = e.getValue();
+                    synchronized (usage) {
+                        if (!usage.computed) {
+                            continue;
+                        }
+                        out.writeUTF(e.getKey());
+                        out.writeLong(usage.liveDocuments);
+                        out.writeLong(usage.liveBytes);
+                        out.writeLong(usage.historyDocuments);
+                        out.writeLong(usage.historyBytes);
+                        out.writeLong(usage.directoryModifiedMillis);
+                    }
+                }
+            }
+            Files.move(tmpPath, usagePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn("Failed to save the usage: {}", usagePath, e);
+        }
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+            try (InputStream fileIn = Files.newInputStream(usagePath);
+                 DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn))) {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                    LOG.warn("Ignoring incompatible usage file: {}", usagePath);
+                } else {
+                    boolean totalComputed = in.readBoolean();
+                    int count = in.readInt();
+                    Map<String, DirectoryUsage> loadedUsages = new HashMap<>();
+                    for (int i = 0; i < count; i++) {
+                        String directory = in.readUTF();
+                        DirectoryUsage usage = new DirectoryUsage();
+                        usage.computed = true;
+                        usage.liveDocuments = in.readLong();
+                        usage.liveBytes = in.readLong();
+                        usage.historyDocuments = in.readLong();
+                        usage.historyBytes = in.readLong();
+                        usage.directoryModifiedMillis = in.readLong();
+                        loadedUsages.put(directory, usage);
+                    }
+                    // Nothing was accounted before loading, so the loaded usages make the total
+                    loadedUsages.forEach((directory, usage) -> {
+                        if (usages.putIfAbsent(directory, usage) == null) {
+                            synchronized (total) {
+                                add(total, usage.liveDocuments, usage.liveBytes, usage.historyDocuments, usage.historyBytes);
+                            }
+                        }
+                    });
+                    synchronized (total) {
+                        total.computed = totalComputed;
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                // Nothing was accounted yet
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Ignoring unreadable usage file: {}", usagePath, e);
+            }
+            loaded = true;
+        }
+    }
+}
@@ -0,0 +1,684 @@
+package com.brinvex.dms.internal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * In-memory index of the directory listings of a workspace: the file names, sizes and modification times,
+ * including the obsolete versions (tombstones) and the subdirectories.
+ * A scan only reads the names; the sizes, modification times and the subdirectory flags
+ * are read once per listing when first needed.
+ * <p>
+ * A listing is reused as long as the modification time of its directory is unchanged.
+ * A listing of a directory modified shortly before it was scanned is racy,
+ * because a concurrent change within the timestamp granularity would not be detected.
+ * The writes made through the workspace are applied to the cached listing, which makes it racy too.
+ * A scan or a snapshot decoding started before a write to its directory is returned but not cached,
+ * because it may miss the write, which was not applied to it.
+ * A racy listing is reused for {@value #RACY_WINDOW_MILLIS} ms since its scan, then the directory is scanned again,
+ * so an actively written directory is scanned at most once per that window.
+ * At most {@value #MAX_CACHED_LISTINGS} listings are cached, the least recently used are dropped.
+ * <p>
+ * The index is saved as a compact binary snapshot a few seconds after it changes.
+ * On startup the snapshot is read into memory, not mapped, so it never holds the file open, and only its directory table is parsed;
+ * the listing of a directory is decoded from the buffer when the directory is first accessed
+ * and only if the directory modification time still matches.
+ */
+class WorkspaceIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WorkspaceIndex.class);
+
+    private static final int MAGIC = 0x444D5349;
+
+    private static final int FORMAT_VERSION = 3;
+
+    static final long RACY_WINDOW_MILLIS = 2_000;
+
+    private static final long SAVE_DELAY_MILLIS = 5_000;
+
+    private static final int MAX_CACHED_LISTINGS = 4096;
+
+    private static final int WRITE_SEQUENCE_STRIPES = 64;
+
+    /**
+     * Sorted listing of a directory.
+     * <p>
+     * The writes and renames made through the workspace are chained to the listing they were applied to,
+     * without copying its arrays; the chain is merged into new arrays once, when the listing is next read,
+     * or as soon as it grows as long as the listing itself, so a write costs amortized constant time.
+     */
+    static final class DirectoryListing {
+
+        private record Attributes(long[] sizes, long[] modifiedMillis, boolean[] directory) {
+        }
+
+        /**
+         * A file written, or renamed from {@code sourceName} if not null, after the base listing, with the previous change.
+         */
+        private record Change(String sourceName, String name, boolean obsolete, Change previous, int count) {
+        }
+
+        /**
+         * The state of a changed name while the changes are merged;
+         * the attributes are taken from the base entry at {@code baseIndex} or read again if it is negative.
+         */
+        private record MergedEntry(boolean present, boolean obsolete, int baseIndex) {
+        }
+
+        private static final MergedEntry REMOVED = new MergedEntry(false, false, -1);
+
+        private static final int MIN_CHANGES_MERGED_EAGERLY = 64;
+
+        private final Path directoryPath;
+        private final long directoryModifiedMillis;
+        private final long scannedMillis;
+        private final boolean racy;
+        private String[] names;
+        private boolean[] obsolete;
+        private volatile Attributes attributes;
+        private DirectoryListing base;
+        private Change changes;
+        private volatile boolean merged;
+
+        private DirectoryListing(
+                Path directoryPath,
+                long directoryModifiedMillis,
+                long scannedMillis,
+                boolean racy,
+                String[] names,
+                boolean[] obsolete,
+                Attributes attributes
+        ) {
+            this.directoryPath = directoryPath;
+            this.directoryModifiedMillis = directoryModifiedMillis;
+            this.scannedMillis = scannedMillis;
+            this.racy = racy;
+            this.names = names;
+            this.obsolete = obsolete;
+            this.attributes = attributes;
+            this.merged = true;
+        }
+
+        private DirectoryListing(DirectoryListing base, Change changes, long directoryModifiedMillis) {
+            this.directoryPath = base.directoryPath;
+            this.directoryModifiedMillis = directoryModifiedMillis;
+            this.scannedMillis = base.scannedMillis;
+            this.racy = true;
+            this.base = base;
+            this.changes = changes;
+        }
+
+        long directoryModifiedMillis() {
+            return directoryModifiedMillis;
+        }
+
+        long scannedMillis() {
+            return scannedMillis;
+        }
+
+        boolean racy() {
+            return racy;
+        }
+
+        String[] names() {
+            merge();
+            return names;
+        }
+
+        boolean[] obsolete() {
+            merge();
+            return obsolete;
+        }
+
+        long[] sizes() {
+            return getAttributes().sizes();
+        }
+
+        long[] modifiedMillis() {
+            return getAttributes().modifiedMillis();
+        }
+
+        boolean[] directory() {
+            return getAttributes().directory();
+        }
+
+        /**
+         * Returns the index of the first name greater than {@code startAfter} and starting with {@code prefix}
+         * or of the first name greater than both if there is no such name.
+         */
+        int indexOfFirst(String prefix, String startAfter) {
+            String[] names = names();
+            String from = prefix;
+            if (startAfter != null && (from == null || startAfter.compareTo(from) >= 0)) {
+                int i = Arrays.binarySearch(names, startAfter);
+                return i >= 0 ? i + 1 : -i - 1;
+            }
+            if (from == null) {
+                return 0;
+            }
+            int i = Arrays.binarySearch(names, from);
+            return i >= 0 ? i : -i - 1;
+        }
+
+        /**
+         * Reads the attributes of all the entries, an entry deleted meanwhile gets zeros.
+         */
+        private Attributes getAttributes() {
+            merge();
+            Attributes attrs = attributes;
+            if (attrs == null) {
+                long[] sizes = new long[names.length];
+                long[] modifiedMillis = new long[names.length];
+                boolean[] directory = new boolean[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    setAttributes(sizes, modifiedMillis, directory, i, readAttributesIfExists(directoryPath.resolve(names[i])));
+                }
+                attrs = new Attributes(sizes, modifiedMillis, directory);
+                attributes = attrs;
+            }
+            return attrs;
+        }
+
+        private DirectoryListing withWritten(String name, boolean nameObsolete, long newDirectoryModifiedMillis) {
+            return withChange(null, name, nameObsolete, newDirectoryModifiedMillis);
+        }
+
+        private DirectoryListing withRenamed(String sourceName, String targetName, boolean targetObsolete, long newDirectoryModifiedMillis) {
+            return withChange(sourceName, targetName, targetObsolete, newDirectoryModifiedMillis);
+        }
+
+        private DirectoryListing withChange(String sourceName, String name, boolean nameObsolete, long newDirectoryModifiedMillis) {
+            DirectoryListing changedBase;
+            Change previous;
+            synchronized (this) {
+                changedBase = merged ? this : base;
+                previous = merged ? null : changes;
+            }
+            Change change = new Change(sourceName, name, nameObsolete, previous, previous == null ? 1 : previous.count() + 1);
+            return new DirectoryListing(changedBase, change, newDirectoryModifiedMillis);
+        }
+
+        /**
+         * Merges the changes if they are as many as the entries of the listing they are applied to.
+         */
+        private void mergeIfLong() {
+            DirectoryListing changedBase;
+            Change pending;
+            synchronized (this) {
+                changedBase = base;
+                pending = changes;
+            }
+            if (pending != null && pending.count() >= Math.max(MIN_CHANGES_MERGED_EAGERLY, changedBase.names.length)) {
+                merge();
+            }
+        }
+
+        /**
+         * Replays the changes on top of the base listing and merges the changed names into new sorted arrays.
+         * A rename whose source is missing adds the target, the listing is racy and scanned again soon anyway.
+         */
+        private void merge() {
+            if (merged) {
+                return;
+            }
+            synchronized (this) {
+                if (merged) {
+                    return;
+                }
+                String[] baseNames = base.names;
+                boolean[] baseObsolete = base.obsolete;
+                Attributes baseAttrs = base.attributes;
+                List<Change> replayed = new ArrayList<>(changes.count());
+                for (Change change = changes; change != null; change = change.previous()) {
+                    replayed.add(change);
+                }
+                TreeMap<String, MergedEntry> changed = new TreeMap<>();
+                for (Change change : replayed.reversed()) {
+                    int baseIndex = -1;
+                    if (change.sourceName() != null) {
+                        MergedEntry source = changed.get(change.sourceName());
+                        if (source == null) {
+                            baseIndex = Arrays.binarySearch(baseNames, change.sourceName());
+                        } else if (source.present()) {
+                            baseIndex = source.baseIndex();
+                        }
+                        changed.put(change.sourceName(), REMOVED);
+                    }
+                    changed.put(change.name(), new MergedEntry(true, change.obsolete(), Math.max(-1, baseIndex)));
+                }
+
+                int capacity = baseNames.length + changed.size();
+                String[] newNames = new String[capacity];
+                boolean[] newObsolete = new boolean[capacity];
+                int[] baseIndexes = new int[capacity];
+                int count = 0;
+                int i = 0;
+                for (Map.Entry<String, MergedEntry> e : changed.entrySet()) {
+                    String name = e.getKey();
+                    while (i < baseNames.length && baseNames[i].compareTo(name) < 0) {
+                        newNames[count] = baseNames[i];
+                        newObsolete[count] = baseObsolete[i];
+                        baseIndexes[count++] = i++;
+                    }
+                    if (i < baseNames.length && baseNames[i].equals(name)) {
+                        i++;
+                    }
+                    MergedEntry entry = e.getValue();
+                    if (entry.present()) {
+                        newNames[count] = name;
+                        newObsolete[count] = entry.obsolete();
+                        baseIndexes[count++] = entry.baseIndex();
+                    }
+                }
+                while (i < baseNames.length) {
+                    newNames[count] = baseNames[i];
+                    newObsolete[count] = baseObsolete[i];
+                    baseIndexes[count++] = i++;
+                }
+
+                Attributes newAttrs = null;
+                if (baseAttrs != null) {
+                    long[] sizes = new long[count];
+                    long[] modifiedMillis = new long[count];
+                    boolean[] directory = new boolean[count];
+                    for (int j = 0; j < count; j++) {
+                        int baseIndex = baseIndexes[j];
+                        if (baseIndex >= 0) {
+                            sizes[j] = baseAttrs.sizes()[baseIndex];
+                            modifiedMillis[j] = baseAttrs.modifiedMillis()[baseIndex];
+                            directory[j] = baseAttrs.directory()[baseIndex];
+                        } else {
+                            setAttributes(sizes, modifiedMillis, directory, j, readAttributesIfExists(directoryPath.resolve(newNames[j])));
+                        }
+                    }
+                    newAttrs = new Attributes(sizes, modifiedMillis, directory);
+                }
+                names = Arrays.copyOf(newNames, count);
+                obsolete = Arrays.copyOf(newObsolete, count);
+                attributes = newAttrs;
+                base = null;
+                changes = null;
+                merged = true;
+            }
+        }
+
+        private static void setAttributes(long[] sizes, long[] modifiedMillis, boolean[] directory, int i, BasicFileAttributes fileAttrs) {
+            if (fileAttrs != null) {
+                sizes[i] = fileAttrs.size();
+                modifiedMillis[i] = fileAttrs.lastModifiedTime().toMillis();
+                directory[i] = fileAttrs.isDirectory();
+            }
+        }
+    }
+
+    private record SnapshotEntry(long directoryModifiedMillis, int offset, int count, boolean withAttributes) {
+    }
+
+    private final Path workspacePath;
+
+    private final Path snapshotPath;
+
+    private final Predicate<String> obsoleteVersionFilter;
+
+    private final Map<String, DirectoryListing> listings = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DirectoryListing> eldest) {
+            return size() > MAX_CACHED_LISTINGS;
+        }
+    });
+
+    /**
+     * The sequence number of the last write to the directories of each stripe.
+     */
+    private final AtomicLongArray writeSequences = new AtomicLongArray(WRITE_SEQUENCE_STRIPES);
+
+    private final AtomicLong writeSequence = new AtomicLong();
+
+    private final DelayedAction delayedSave = new DelayedAction("dms-index-snapshot", SAVE_DELAY_MILLIS, this::save);
+
+    private volatile ByteBuffer snapshot;
+
+    private final Map<String, SnapshotEntry> snapshotEntries = new ConcurrentHashMap<>();
+
+    WorkspaceIndex(Path workspacePath, Path snapshotPath, Predicate<String> obsoleteVersionFilter) {
+        this.workspacePath = workspacePath;
+        this.snapshotPath = snapshotPath;
+        this.obsoleteVersionFilter = obsoleteVersionFilter;
+        loadSnapshot();
+    }
+
+    /**
+     * Returns the current listing of the existing directory.
+     */
+    DirectoryListing getListing(Path directoryPath) throws IOException {
+        String directory = toIndexKey(directoryPath);
+        long sequence = writeSequence.get();
+        long directoryModifiedMillis = Files.getLastModifiedTime(directoryPath).toMillis();
+        DirectoryListing listing = listings.get(directory);
+        if (listing != null
+            && listing.directoryModifiedMillis() == directoryModifiedMillis
+            && (!listing.racy || System.currentTimeMillis() - listing.scannedMillis < RACY_WINDOW_MILLIS)) {
+            return listing;
+        }
+        listing = readFromSnapshot(directoryPath, directory, directoryModifiedMillis);
+        if (listing != null) {
+            store(directory, listing, sequence);
+            return listing;
+        }
+        snapshotEntries.remove(directory);
+        listing = scan(directoryPath, directoryModifiedMillis);
+        if (store(directory, listing, sequence) && !listing.racy) {
+            delayedSave.request();
+        }
+        return listing;
+    }
+
+    /**
+     * Caches the listing unless the directory was written since the given sequence number, when the listing was started.
+     * A write made after the check is applied to the cached listing.
+     */
+    private boolean store(String directory, DirectoryListing listing, long sequence) {
+        synchronized (listings) {
+            if (writeSequences.get(stripe(directory)) > sequence) {
+                return false;
+            }
+            listings.put(directory, listing);
+            return true;
+        }
+    }
+
+    /**
+     * Marks the directory written, before the write is applied to its cached listing.
+     */
+    private void markWritten(String directory) {
+        writeSequences.set(stripe(directory), writeSequence.incrementAndGet());
+    }
+
+    private static int stripe(String directory) {
+        return Math.floorMod(directory.hashCode(), WRITE_SEQUENCE_STRIPES);
+    }
+
+    /**
+     * Scans the existing directory, bypassing the cached listing, which may miss the writes racing with its scan.
+     * For the callers which hold off the writers of the directory and need an exact listing.
+     */
+    DirectoryListing scanListing(Path directoryPath) throws IOException {
+        String directory = toIndexKey(directoryPath);
+        snapshotEntries.remove(directory);
+        DirectoryListing listing = scan(directoryPath, Files.getLastModifiedTime(directoryPath).toMillis());
+        listings.put(directory, listing);
+        if (!listing.racy) {
+            delayedSave.request();
+        }
+        return listing;
+    }
+
+    /**
+     * Applies a file written through the workspace to the cached listing of its directory.
+     */
+    void onWritten(Path filePath) {
+        String name = filePath.getFileName().toString();
+        boolean nameObsolete = obsoleteVersionFilter.test(name);
+        update(filePath.getParent(), (listing, directoryModifiedMillis) -> listing.withWritten(name, nameObsolete, directoryModifiedMillis));
+    }
+
+    /**
+     * Applies a file renamed within its directory through the workspace to the cached listing of the directory.
+     */
+    void onRenamed(Path sourcePath, Path targetPath) {
+        String sourceName = sourcePath.getFileName().toString();
+        String targetName = targetPath.getFileName().toString();
+        update(sourcePath.getParent(), (listing, directoryModifiedMillis) ->
+                listing.withRenamed(sourceName, targetName, obsoleteVersionFilter.test(targetName), directoryModifiedMillis));
+    }
+
+    private void update(Path directoryPath, BiFunction<DirectoryListing, Long, DirectoryListing> change) {
+        String directory = toIndexKey(directoryPath);
+        markWritten(directory);
+        snapshotEntries.remove(directory);
+        if (!listings.containsKey(directory)) {
+            return;
+        }
+        long directoryModifiedMillis;
+        try {
+            directoryModifiedMillis = Files.getLastModifiedTime(directoryPath).toMillis();
+        } catch (IOException e) {
+            listings.remove(directory);
+            return;
+        }
+        DirectoryListing changed = listings.computeIfPresent(directory, (dir, listing) -> change.apply(listing, directoryModifiedMillis));
+        if (changed != null) {
+            changed.mergeIfLong();
+        }
+    }
+
+    /**
+     * Drops the listing of a directory changed through this workspace.
+     */
+    void invalidate(Path directoryPath) {
+        String directory = toIndexKey(directoryPath);
+        markWritten(directory);
+        listings.remove(directory);
+        snapshotEntries.remove(directory);
+    }
+
+    void clear() {
+        listings.clear();
+        snapshotEntries.clear();
+        snapshot = null;
+    }
+
+    /**
+     * Writes the snapshot to a temporary file and atomically replaces the previous one.
+     */
+    void save() {
+        if (!Files.isDirectory(workspacePath)) {
+            return;
+        }
+        Map<String, DirectoryListing> toSave = new HashMap<>();
+        for (Map.Entry<String, SnapshotEntry> e : snapshotEntries.entrySet()) {
+            DirectoryListing listing = decode(workspacePath.resolve(e.getKey()), e.getValue());
+            if (listing != null) {
+                toSave.put(e.getKey(), listing);
+            }
+        }
+        synchronized (listings) {
+            for (Map.Entry<String, DirectoryListing> e : listings.entrySet()) {
+                if (!e.getValue().racy) {
+                    toSave.put(e.getKey(), e.getValue());
+                }
+            }
+        }
+        if (toSave.isEmpty()) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            DataOutputStream dataOut = new DataOutputStream(data);
+            ByteArrayOutputStream table = new ByteArrayOutputStream();
+            DataOutputStream tableOut = new DataOutputStream(table);
+            String[] directories = toSave.keySet().toArray(String[]::new);
+            Arrays.sort(directories);
+            for (String directory : directories) {
+                DirectoryListing listing = toSave.get(directory);
+                DirectoryListing.Attributes attrs = listing.attributes;
+                writeString(tableOut, directory);
+                tableOut.writeLong(listing.directoryModifiedMillis());
+                tableOut.writeInt(dataOut.size());
+                tableOut.writeInt(listing.names().length);
+                tableOut.writeBoolean(attrs != null);
+                for (int i = 0; i < listing.names().length; i++) {
+                    writeString(dataOut, listing.names()[i]);
+                    if (attrs == null) {
+                        dataOut.writeByte(listing.obsolete()[i] ? 1 : 0);
+                    } else {
+                        dataOut.writeLong(attrs.sizes()[i]);
+                        dataOut.writeLong(attrs.modifiedMillis()[i]);
+                        dataOut.writeByte((listing.obsolete()[i] ? 1 : 0) | (attrs.directory()[i] ? 2 : 0));
+                    }
+                }
+            }
+            ByteBuffer header = ByteBuffer.allocate(16)
+                    .putInt(MAGIC)
+                    .putInt(FORMAT_VERSION)
+                    .putInt(directories.length)
+                    .putInt(table.size())
+                    .flip();
+            Files.createDirectories(snapshotPath.getParent());
+            Path tmpPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(tmpPath,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer[] buffers = {header, ByteBuffer.wrap(table.toByteArray()), ByteBuffer.wrap(data.toByteArray())};
+                long remaining = header.remaining() + (long) table.size() + data.size();
+                while (remaining > 0) {
+                    remaining -= channel.write(buffers);
+                }
+            }
+            Files.move(tmpPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn("Failed to save the workspace index snapshot: {}", snapshotPath, e);
+        }
+    }
+
+    private DirectoryListing scan(Path directoryPath, long directoryModifiedMillis) throws IOException {
+        long scanStartMillis = System.currentTimeMillis();
+        List<String> nameList = new ArrayList<>();
+        try (DirectoryStream<Path> fileStream = Files.newDirectoryStream(directoryPath)) {
+            for (Path path : fileStream) {
+                nameList.add(path.getFileName().toString());
+            }
+        }
+        String[] names = nameList.toArray(String[]::new);
+        Arrays.sort(names);
+        boolean[] obsolete = new boolean[names.length];
+        for (int i = 0; i < names.length; i++) {
+            obsolete[i] = obsoleteVersionFilter.test(names[i]);
+        }
+        boolean racy = directoryModifiedMillis >= scanStartMillis - RACY_WINDOW_MILLIS;
+        return new DirectoryListing(directoryPath, directoryModifiedMillis, scanStartMillis, racy, names, obsolete, null);
+    }
+
+    private void loadSnapshot() {
+        if (!Files.exists(snapshotPath)) {
+            return;
+        }
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(snapshotPath));
+            if (buf.remaining() < 16 || buf.getInt() != MAGIC || buf.getInt() != FORMAT_VERSION) {
+                LOG.warn("Ignoring incompatible workspace index snapshot: {}", snapshotPath);
+                return;
+            }
+            int directoryCount = buf.getInt();
+            int tableSize = buf.getInt();
+            int dataStart = 16 + tableSize;
+            for (int i = 0; i < directoryCount; i++) {
+                String directory = readString(buf);
+                long directoryModifiedMillis = buf.getLong();
+                int offset = buf.getInt();
+                int count = buf.getInt();
+                boolean withAttributes = buf.get() != 0;
+                snapshotEntries.put(directory, new SnapshotEntry(directoryModifiedMillis, dataStart + offset, count, withAttributes));
+            }
+            this.snapshot = buf;
+        } catch (IOException | RuntimeException e) {
+            snapshotEntries.clear();
+            LOG.warn("Ignoring unreadable workspace index snapshot: {}", snapshotPath, e);
+        }
+    }
+
+    private DirectoryListing readFromSnapshot(Path directoryPath, String directory, long directoryModifiedMillis) {
+        SnapshotEntry entry = snapshotEntries.get(directory);
+        if (entry == null || entry.directoryModifiedMillis() != directoryModifiedMillis) {
+            return null;
+        }
+        return decode(directoryPath, entry);
+    }
+
+    private DirectoryListing decode(Path directoryPath, SnapshotEntry entry) {
+        ByteBuffer loaded = snapshot;
+        if (loaded == null) {
+            return null;
+        }
+        ByteBuffer buf = loaded.duplicate().position(entry.offset());
+        int count = entry.count();
+        String[] names = new String[count];
+        boolean[] obsolete = new boolean[count];
+        DirectoryListing.Attributes attrs = entry.withAttributes()
+                ? new DirectoryListing.Attributes(new long[count], new long[count], new boolean[count]) : null;
+        for (int i = 0; i < count; i++) {
+            names[i] = readString(buf);
+            if (attrs != null) {
+                attrs.sizes()[i] = buf.getLong();
+                attrs.modifiedMillis()[i] = buf.getLong();
+            }
+            byte flags = buf.get();
+            obsolete[i] = (flags & 1) != 0;
+            if (attrs != null) {
+                attrs.directory()[i] = (flags & 2) != 0;
+            }
+        }
+        return new DirectoryListing(directoryPath, entry.directoryModifiedMillis(), 0, false, names, obsolete, attrs);
+    }
+
+    /**
+     * Returns the '/'-separated path of the directory relative to the workspace.
+     */
+    String toIndexKey(Path directoryPath) {
+        StringJoiner directory = new StringJoiner("/");
+        workspacePath.relativize(directoryPath).forEach(name -> directory.add(name.toString()));
+        return directory.toString();
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int length = Short.toUnsignedInt(buf.getShort());
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static BasicFileAttributes readAttributesIfExists(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the file attributes: %s".formatted(path), e);
+        }
+    }
+}
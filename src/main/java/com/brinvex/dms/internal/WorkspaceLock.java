@@ -0,0 +1,61 @@
+package com.brinvex.dms.internal;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read-write lock of one workspace, shared by all the instances of the workspace,
+ * together with the snapshots of the workspace which are being taken.
+ * <p>
+ * The writes hold the lock shared; a snapshot holds it exclusively only to register itself,
+ * so a write runs either entirely before the snapshot time or sees the snapshot and preserves its document for it.
+ * Unlike a striped lock, the lock of one workspace never blocks the writes of another.
+ */
+final class WorkspaceLock {
+
+    private static final Map<Path, WorkspaceLock> LOCKS = new ConcurrentHashMap<>();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final List<PendingSnapshot> pendingSnapshots = new CopyOnWriteArrayList<>();
+
+    private WorkspaceLock() {
+    }
+
+    static WorkspaceLock of(Path workspacePath) {
+        return LOCKS.computeIfAbsent(workspacePath, k -> new WorkspaceLock());
+    }
+
+    KeyLocks.Held lock() {
+        return lock(lock.writeLock());
+    }
+
+    KeyLocks.Held lockShared() {
+        return lock(lock.readLock());
+    }
+
+    /**
+     * Must be called under the exclusive lock.
+     */
+    void addPendingSnapshot(PendingSnapshot pendingSnapshot) {
+        pendingSnapshots.add(pendingSnapshot);
+    }
+
+    void removePendingSnapshot(PendingSnapshot pendingSnapshot) {
+        pendingSnapshots.remove(pendingSnapshot);
+    }
+
+    List<PendingSnapshot> getPendingSnapshots() {
+        return pendingSnapshots;
+    }
+
+    private static KeyLocks.Held lock(Lock lock) {
+        lock.lock();
+        return lock::unlock;
+    }
+}
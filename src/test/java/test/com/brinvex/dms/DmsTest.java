@@ -1,24 +1,75 @@
 package test.com.brinvex.dms;
 
 import com.brinvex.dms.api.Dms;
+import com.brinvex.dms.api.DatePeriod;
+import com.brinvex.dms.api.DmsChange;
+import com.brinvex.dms.api.DmsChangePage;
+import com.brinvex.dms.api.DmsCompactionOptions;
+import com.brinvex.dms.api.DmsCompactionReport;
+import com.brinvex.dms.api.DmsCompactionRule;
+import com.brinvex.dms.api.DmsDurability;
+import com.brinvex.dms.api.DmsDocument;
+import com.brinvex.dms.api.DmsExportOptions;
 import com.brinvex.dms.api.DmsFactory;
+import com.brinvex.dms.api.DmsFactoryStats;
+import com.brinvex.dms.api.DmsIoScheduling;
+import com.brinvex.dms.api.DmsKey;
+import com.brinvex.dms.api.DmsKeyFilterStats;
+import com.brinvex.dms.api.DmsReadAheadOptions;
+import com.brinvex.dms.api.DmsSnapshot;
+import com.brinvex.dms.api.DmsUsage;
+import com.brinvex.dms.api.DmsVersioned;
+import com.brinvex.dms.api.FilesystemDmsConfig;
+import com.brinvex.dms.api.PeriodIndex;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInfo;
+import org.junit.jupiter.api.io.TempDir;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-
+import test.com.brinvex.dms.load.LoadHarness;
+import test.com.brinvex.dms.load.LoadProfile;
+import test.com.brinvex.dms.load.LoadReport;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
 import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
@@ -47,6 +98,14 @@ public class DmsTest {
         LOG.info("setUp {} - purged={}", testName, purged);
     }
 
+    /**
+     * Hard-deletes the workspace, so that the tests using their own workspaces do not leave them behind.
+     */
+    private static void deleteAndPurge(Dms workspaceDms) {
+        workspaceDms.deleteWorkspace();
+        workspaceDms.purgeWorkspace(LocalDateTime.now().plusMinutes(1));
+    }
+
     @Test
     void fileKeys_empty() {
         Collection<String> fileKeys = dms.getKeys("some/directory");
@@ -144,7 +203,20 @@ public class DmsTest {
         props2 = dms.getPropertiesContent(directory, key);
         assertEquals(props1, props2);
         assertEquals(2, props2.size());
+        assertEquals(props1, dms.getPropertiesContent(directory, key));
 
+        dms.put(directory, key, "# comment\r\nA=1=2\rB=\n\nC=3".getBytes(StandardCharsets.UTF_8));
+        try {
+            dms.getPropertiesContent(directory, key);
+            fail("Should fail");
+        } catch (IllegalStateException expected) {
+        }
+        dms.put(directory, key, "# comment\r\nA=1=2\rB=\nC=3\n".getBytes(StandardCharsets.UTF_8));
+        props2 = dms.getPropertiesContent(directory, key);
+        assertEquals(List.of("A", "B", "C"), List.copyOf(props2.keySet()));
+        assertEquals(List.of("1=2", "", "3"), List.copyOf(props2.values()));
+        props2.put("D", "4");
+        assertEquals(List.of("A", "B", "C"), List.copyOf(dms.getPropertiesContent(directory, key).keySet()));
     }
 
 
@@ -278,4 +350,1168 @@ public class DmsTest {
         assertEquals(2, hardDeleted);
 
     }
+
+    @Test
+    void changes() {
+        String directory = "some/directory";
+        String otherDirectory = "other/directory";
+
+        assertTrue(dms.getChanges(0, 100).isEmpty());
+
+        dms.add(directory, "key1", "value1");
+        dms.put(directory, "key1", "value2");
+        dms.add(otherDirectory, "key2", "value1");
+        dms.delete(directory, "key1");
+        dms.purge(directory);
+
+        List<DmsChange> changes = dms.getChanges(0, 100);
+        assertEquals(List.of(
+                DmsChange.Type.ADD, DmsChange.Type.PUT, DmsChange.Type.ADD,
+                DmsChange.Type.DELETE, DmsChange.Type.PURGE, DmsChange.Type.PURGE
+        ), changes.stream().map(DmsChange::type).toList());
+        assertEquals("key2", changes.get(2).key());
+        assertEquals("key1", changes.get(5).key());
+
+        List<DmsChange> firstTwo = dms.getChanges(0, 2);
+        assertEquals(changes.subList(0, 2), firstTwo);
+        List<DmsChange> rest = dms.getChanges(firstTwo.getLast().cursor(), 100);
+        assertEquals(changes.subList(2, changes.size()), rest);
+        assertTrue(dms.getChanges(rest.getLast().cursor(), 100).isEmpty());
+
+        DmsChangePage otherChanges = dms.getChanges(otherDirectory, 0, 100);
+        assertEquals(List.of(changes.get(2)), otherChanges.changes());
+        assertEquals(changes.getLast().cursor(), otherChanges.cursor());
+        DmsChangePage noOtherChanges = dms.getChanges(otherDirectory, changes.get(3).cursor(), 100);
+        assertTrue(noOtherChanges.changes().isEmpty());
+        assertEquals(changes.getLast().cursor(), noOtherChanges.cursor());
+
+        if (!System.getProperty("os.name").startsWith("Windows")) {
+            String tabbedKey = "key\twith\ttabs\nand lines\\";
+            dms.add(otherDirectory, tabbedKey, "value");
+            assertEquals(tabbedKey, dms.getChanges(otherDirectory, otherChanges.cursor(), 100).changes().getFirst().key());
+        }
+
+        List<DmsChange> allChanges = dms.getChanges(0, 100);
+        assertEquals(3, dms.truncateChanges(allChanges.get(2).cursor()));
+        assertThrows(IllegalArgumentException.class, () -> dms.getChanges(allChanges.get(1).cursor(), 100));
+        assertEquals(allChanges.subList(3, allChanges.size()), dms.getChanges(allChanges.get(2).cursor(), 100));
+        assertEquals(allChanges.subList(3, allChanges.size()), dms.getChanges(0, 100));
+        dms.add(directory, "key3", "value3");
+        List<DmsChange> appendedChanges = dms.getChanges(allChanges.getLast().cursor(), 100);
+        assertEquals(List.of("key3"), appendedChanges.stream().map(DmsChange::key).toList());
+        assertEquals(0, dms.truncateChanges(0));
+
+        long oldCursor = dms.getChanges(0, 100).getLast().cursor();
+        dms.resetWorkspace();
+        dms.add(directory, "key1", "value1");
+        assertThrows(IllegalArgumentException.class, () -> dms.getChanges(oldCursor, 100));
+        assertEquals(1, dms.getChanges(0, 100).size());
+    }
+
+    @Test
+    void periodIndex() {
+        String directory = "some/statements";
+        dms.add(directory, "2024-01-01_2024-01-31.txt", "jan");
+        dms.add(directory, "2024-01-01_2024-03-31.txt", "q1");
+        dms.add(directory, "2024-05-01_2024-05-31.txt", "may");
+        dms.add(directory, "readme.txt", "not a period");
+
+        PeriodIndex<String> periodIndex = dms.getPeriodIndex(
+                directory,
+                "statements",
+                rawKey -> rawKey.matches("\\d{4}-\\d{2}-\\d{2}_\\d{4}-\\d{2}-\\d{2}\\.txt") ? rawKey : null,
+                key -> LocalDate.parse(key.substring(0, 10)),
+                key -> LocalDate.parse(key.substring(11, 21))
+        );
+        assertSame(periodIndex, dms.getPeriodIndex(directory, "statements", rawKey -> rawKey, LocalDate::parse, LocalDate::parse));
+
+        DatePeriod h1 = new DatePeriod(LocalDate.parse("2024-01-01"), LocalDate.parse("2024-06-30"));
+        assertEquals(List.of("2024-01-01_2024-01-31.txt", "2024-01-01_2024-03-31.txt", "2024-05-01_2024-05-31.txt"),
+                List.copyOf(periodIndex.findCovering(h1).keySet()));
+        assertEquals(List.of(
+                new DatePeriod(LocalDate.parse("2024-04-01"), LocalDate.parse("2024-04-30")),
+                new DatePeriod(LocalDate.parse("2024-06-01"), LocalDate.parse("2024-06-30"))
+        ), periodIndex.findGaps(h1));
+        assertEquals(List.of("2024-01-01_2024-01-31.txt"), List.copyOf(periodIndex.findRedundant().keySet()));
+
+        dms.add(directory, "2024-04-01_2024-06-30.txt", "q2");
+        assertEquals(List.of(), periodIndex.findGaps(h1));
+        assertEquals(List.of("2024-01-01_2024-01-31.txt", "2024-05-01_2024-05-31.txt"),
+                List.copyOf(periodIndex.findRedundant().keySet()));
+
+        dms.delete(directory, "2024-01-01_2024-03-31.txt");
+        assertEquals(List.of(new DatePeriod(LocalDate.parse("2024-02-01"), LocalDate.parse("2024-03-31"))),
+                periodIndex.findGaps(h1));
+        assertEquals(List.of("2024-05-01_2024-05-31.txt"), List.copyOf(periodIndex.findRedundant().keySet()));
+
+        // The functions fail for a key which is not a period, the key is left out but the write succeeds
+        PeriodIndex<String> strictIndex = dms.getPeriodIndex(directory, "strict", rawKey -> rawKey,
+                key -> LocalDate.parse(key.substring(0, 10)), key -> LocalDate.parse(key.substring(11, 21)));
+        dms.add(directory, "notes.txt", "not a period either");
+        assertEquals(3, strictIndex.findCovering(h1).size());
+
+        // An open-ended period is found by the queries before and after its start
+        dms.add(directory, "2020-01-01_9999-12-31.txt", "all");
+        assertEquals(List.of("2020-01-01_9999-12-31.txt", "2024-01-01_2024-01-31.txt", "2024-04-01_2024-06-30.txt", "2024-05-01_2024-05-31.txt"),
+                List.copyOf(periodIndex.findCovering(h1).keySet()));
+        assertEquals(List.of("2020-01-01_9999-12-31.txt"),
+                List.copyOf(periodIndex.findCovering(new DatePeriod(LocalDate.parse("2030-01-01"), LocalDate.parse("2030-01-31"))).keySet()));
+
+        // Two raw keys mapped to the same key
+        PeriodIndex<String> duplicateIndex = dms.getPeriodIndex(directory, "duplicate",
+                rawKey -> rawKey.matches("2024-0[45]-.*") ? "2024-04-01_2024-06-30" : null,
+                key -> LocalDate.parse(key.substring(0, 10)), key -> LocalDate.parse(key.substring(11, 21)));
+        assertThrows(IllegalStateException.class, () -> duplicateIndex.findCovering(h1));
+        assertThrows(IllegalStateException.class, duplicateIndex::findRedundant);
+        dms.delete(directory, "2024-05-01_2024-05-31.txt");
+        assertEquals(1, duplicateIndex.findCovering(h1).size());
+    }
+
+    @Test
+    void redundantPeriodKeys() {
+        List<DatePeriod> periods = List.of(
+                new DatePeriod(LocalDate.parse("2024-01-01"), LocalDate.parse("2024-01-31")),
+                new DatePeriod(LocalDate.parse("2024-01-01"), LocalDate.parse("2024-03-31")),
+                new DatePeriod(LocalDate.parse("2024-03-01"), LocalDate.parse("2024-03-31")),
+                new DatePeriod(LocalDate.parse("2024-04-01"), LocalDate.parse("2024-06-30")),
+                new DatePeriod(LocalDate.parse("2024-06-01"), LocalDate.parse("2024-07-31")),
+                new DatePeriod(LocalDate.parse("2024-09-01"), LocalDate.parse("2024-09-30"))
+        );
+        assertEquals(List.of(periods.get(0), periods.get(2)),
+                List.copyOf(dms.getRedundantPeriodKeys(periods, DatePeriod::startDateIncl, DatePeriod::endDateIncl)));
+
+        List<DatePeriod> manyPeriods = new ArrayList<>();
+        LocalDate start = LocalDate.parse("2000-01-01");
+        for (int i = 0; i < 100_000; i++) {
+            LocalDate day = start.plusDays(i);
+            manyPeriods.add(new DatePeriod(day, day));
+        }
+        manyPeriods.add(new DatePeriod(start, start.plusDays(100_000 - 1)));
+        assertEquals(100_000, dms.getRedundantPeriodKeys(manyPeriods, DatePeriod::startDateIncl, DatePeriod::endDateIncl).size());
+    }
+
+    @Test
+    void rangeReads(TestInfo testInfo) throws IOException {
+        String directory = "some/directory";
+        String key = "large.txt";
+        StringBuilder sb = new StringBuilder();
+        String[] terminators = {"\n", "\r\n", "\r"};
+        for (int i = 0; i < 5000; i++) {
+            sb.append("line_").append(i).append("_ľšč").append(terminators[i % terminators.length]);
+        }
+        dms.add(directory, key, sb.toString());
+        List<String> allLines = dms.getTextLines(directory, key);
+        assertEquals(5000, allLines.size());
+
+        assertEquals(allLines.subList(0, 10), dms.getTextLines(directory, key, 0L, 10));
+        assertEquals(allLines.subList(2047, 2150), dms.getTextLines(directory, key, 2047L, 103));
+        assertEquals(allLines.subList(4990, 5000), dms.getTextLines(directory, key, 4990L, 100));
+        assertEquals(allLines.subList(3000, 3001), dms.getTextLines(directory, key, 3000L, 1));
+        assertTrue(dms.getTextLines(directory, key, 5000L, 10).isEmpty());
+
+        assertEquals(allLines.subList(4993, 5000), dms.getTailLines(directory, key, 7));
+        assertEquals(allLines, dms.getTailLines(directory, key, 10_000));
+
+        byte[] allBytes = dms.getBinaryContent(directory, key);
+        assertEquals(new String(allBytes, 100, 50, StandardCharsets.ISO_8859_1),
+                new String(dms.getBinaryContent(directory, key, 100, 50), StandardCharsets.ISO_8859_1));
+        assertEquals(10, dms.getBinaryContent(directory, key, allBytes.length - 10, 100).length);
+        assertEquals(0, dms.getBinaryContent(directory, key, allBytes.length + 10, 100).length);
+
+        // A same-size replacement, possibly within the modification time granularity, must not reuse the line index
+        String replacement = sb.toString().replace("line_1", "LINE_\n");
+        assertEquals(sb.length(), replacement.length());
+        dms.put(directory, key, replacement);
+        List<String> replacedLines = dms.getTextLines(directory, key);
+        assertEquals(replacedLines.subList(4990, 5000), dms.getTextLines(directory, key, 4990L, 10));
+
+        // A line index cut short is rebuilt
+        Path lineIndexPath = Path.of("c:/prj/bx/bx-dms/test-data/", testInfo.getDisplayName(), "_META_!@#", "lines", directory, key + ".idx");
+        byte[] lineIndex = Files.readAllBytes(lineIndexPath);
+        Files.write(lineIndexPath, Arrays.copyOf(lineIndex, lineIndex.length - 3));
+        assertEquals(replacedLines.subList(3000, 3010), dms.getTextLines(directory, key, 3000L, 10));
+
+        assertThrows(IllegalArgumentException.class, () -> dms.getTextLines(null, key, 3000L, 10));
+        assertThrows(IllegalArgumentException.class, () -> dms.getTextLines(directory, null, 3000L, 10));
+        assertThrows(IllegalArgumentException.class, () -> dms.getTextLines(directory, key, -1L, 10));
+    }
+
+    @Test
+    void alternativeCharset(TestInfo testInfo) {
+        String directory = "some/directory";
+        Charset windows1250 = Charset.forName("windows-1250");
+        String text = "Príliš žluťoučký kůň\núpěl ďábelské ódy";
+
+        dms.add(directory, "legacy.txt", text.getBytes(windows1250));
+        for (int i = 0; i < 2; i++) {
+            assertEquals(text, dms.getTextContent(directory, "legacy.txt", UTF_8, windows1250));
+            assertEquals(List.of("Príliš žluťoučký kůň"), dms.getTextLines(directory, "legacy.txt", 1, UTF_8, windows1250));
+        }
+
+        dms.put(directory, "legacy.txt", text, UTF_8);
+        assertEquals(text, dms.getTextContent(directory, "legacy.txt", UTF_8, windows1250));
+
+        dms.add(directory, "#legacy=1.txt", text.getBytes(windows1250));
+        assertEquals(text, dms.getTextContent(directory, "#legacy=1.txt", UTF_8, windows1250));
+        try (DmsFactory restartedDmsFactory = DmsFactory.newFilesystemDmsFactory(Path.of("c:/prj/bx/bx-dms/test-data/"))) {
+            Dms restartedDms = restartedDmsFactory.getDms(testInfo.getDisplayName());
+            assertEquals(text, restartedDms.getTextContent(directory, "#legacy=1.txt", UTF_8, windows1250));
+            assertEquals(text, restartedDms.getTextContent(directory, "legacy.txt", UTF_8, windows1250));
+        }
+
+        // By default the charsets are tried in the given order and a byte order mark is kept like by the single charset reads
+        dms.add(directory, "utf8.txt", text.getBytes(UTF_8));
+        dms.add(directory, "utf8_word.txt", "žluťoučký".getBytes(UTF_8));
+        assertEquals(new String("žluťoučký".getBytes(UTF_8), windows1250), dms.getTextContent(directory, "utf8_word.txt", windows1250, UTF_8));
+        assertEquals(text, dms.getTextContent(directory, "utf8.txt", UTF_8, windows1250));
+
+        byte[] bom = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+        byte[] textBytes = text.getBytes(UTF_8);
+        byte[] bomTextBytes = new byte[bom.length + textBytes.length];
+        System.arraycopy(bom, 0, bomTextBytes, 0, bom.length);
+        System.arraycopy(textBytes, 0, bomTextBytes, bom.length, textBytes.length);
+        dms.add(directory, "bom.txt", bomTextBytes);
+        assertEquals(dms.getTextContent(directory, "bom.txt", UTF_8), dms.getTextContent(directory, "bom.txt", UTF_8, windows1250));
+        assertEquals("\uFEFF" + text, dms.getTextContent(directory, "bom.txt", UTF_8, windows1250));
+
+        // The opt-in detection tries first the charset indicated by the byte order mark or by the first bytes
+        try (DmsFactory detectingDmsFactory = DmsFactory.newFilesystemDmsFactory(Path.of("c:/prj/bx/bx-dms/test-data/"),
+                FilesystemDmsConfig.defaults().withCharsetDetection(true))) {
+            Dms detectingDms = detectingDmsFactory.getDms(testInfo.getDisplayName());
+            assertEquals(text, detectingDms.getTextContent(directory, "utf8.txt", windows1250, UTF_8));
+            assertEquals(text.lines().toList(), detectingDms.getTextLines(directory, "utf8.txt", 10, windows1250, UTF_8));
+            assertEquals("\uFEFF" + text, detectingDms.getTextContent(directory, "bom.txt", windows1250, UTF_8));
+            assertEquals(("\uFEFF" + text).lines().toList(), detectingDms.getTextLines(directory, "bom.txt", 10, windows1250, UTF_8));
+            assertEquals(text, detectingDms.getTextContent(directory, "legacy.txt", UTF_8, windows1250));
+        }
+
+        try {
+            dms.getTextContent(directory, "legacy_bin", UTF_8, StandardCharsets.US_ASCII);
+            fail("Should fail");
+        } catch (IllegalArgumentException expected) {
+        }
+        dms.add(directory, "legacy_bin", new byte[]{(byte) 0x81, (byte) 0xFF});
+        try {
+            dms.getTextContent(directory, "legacy_bin", UTF_8, StandardCharsets.US_ASCII);
+            fail("Should fail");
+        } catch (UncheckedIOException expected) {
+            assertEquals(1, expected.getCause().getSuppressed().length);
+        }
+    }
+
+    @Test
+    void keyPages() {
+        String directory = "some/directory";
+        List<String> expectedKeys = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+            String key = "%s-%04d".formatted(i % 2 == 0 ? "2024" : "2023", i);
+            dms.add(directory, key, "value");
+            if (key.startsWith("2024-")) {
+                expectedKeys.add(key);
+            }
+        }
+        dms.delete(directory, "2024-0000");
+        expectedKeys.removeFirst();
+        expectedKeys.sort(null);
+
+        assertEquals(expectedKeys.subList(0, 50), List.copyOf(dms.getKeys(directory, "2024-", null, 50)));
+        assertEquals(expectedKeys.subList(50, 100), List.copyOf(dms.getKeys(directory, "2024-", expectedKeys.get(49), 50)));
+        assertEquals(List.of(), List.copyOf(dms.getKeys(directory, "2025-", null, 50)));
+        assertEquals(expectedKeys, dms.streamKeys(directory, "2024-", null).toList());
+        assertEquals(expectedKeys.subList(1200, 1210), dms.streamKeys(directory, "2024-", expectedKeys.get(1199)).limit(10).toList());
+        assertEquals(2499, dms.streamKeys(directory, null, null).count());
+
+        Iterator<String> keyIterator = dms.streamKeys(directory, "2024-", null).iterator();
+        assertEquals(expectedKeys.getFirst(), keyIterator.next());
+        dms.add(directory, "2024-9999", "value");
+        List<String> remainingKeys = new ArrayList<>();
+        keyIterator.forEachRemaining(remainingKeys::add);
+        assertEquals(expectedKeys.subList(1, expectedKeys.size()), remainingKeys);
+    }
+
+    @Test
+    void exportImport() throws IOException {
+        String longDirectory = "some/" + "very_long_directory_name_".repeat(5);
+        dms.add("some/directory", "key1", "value1");
+        dms.put("some/directory", "key1", "value2");
+        dms.add("some/directory", "key2", "value3");
+        dms.add(longDirectory, "binary_key", new byte[]{1, 2, 3});
+        dms.add("other/directory", "key3", "x".repeat(1000));
+        byte[] largeContent = new byte[(1 << 20) + 1];
+        largeContent[largeContent.length - 1] = 1;
+        dms.add("some/directory", "large", largeContent);
+
+        Dms importDms = dmsFactory.getDms("exportImport_target");
+        Path archive = Files.createTempFile("dms-export", ".tar");
+        try {
+            try (FileChannel out = FileChannel.open(archive, StandardOpenOption.WRITE)) {
+                assertEquals(5, dms.exportWorkspace(out, DmsExportOptions.all()));
+            }
+            try (FileChannel out = FileChannel.open(archive, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                assertEquals(5, dms.exportWorkspace(out, DmsExportOptions.all()
+                        .withDirectories(List.of("some"))
+                        .withIncludeHistory(true)));
+            }
+
+            importDms.resetWorkspace();
+            try (FileChannel in = FileChannel.open(archive, StandardOpenOption.READ)) {
+                assertEquals(5, importDms.importWorkspace(in));
+            }
+            assertEquals(1, importDms.getChanges(0, 100).stream()
+                    .filter(change -> change.type() == DmsChange.Type.HISTORY && change.key().equals("key1"))
+                    .count());
+            assertArrayEquals(largeContent, importDms.getBinaryContent("some/directory", "large"));
+            assertEquals("value2", importDms.getTextContent("some/directory", "key1"));
+            assertEquals("value3", importDms.getTextContent("some/directory", "key2"));
+            assertArrayEquals(new byte[]{1, 2, 3}, importDms.getBinaryContent(longDirectory, "binary_key"));
+            assertFalse(importDms.exists("other/directory", "key3"));
+            assertEquals(1, importDms.purge("some/directory"));
+        } finally {
+            deleteAndPurge(importDms);
+            Files.delete(archive);
+        }
+    }
+
+    @Test
+    void durability() throws InterruptedException {
+        Path basePath = Path.of("c:/prj/bx/bx-dms/test-data/");
+        for (DmsDurability durability : DmsDurability.values()) {
+            DmsFactory durableDmsFactory = DmsFactory.newFilesystemDmsFactory(basePath, FilesystemDmsConfig.defaults()
+                    .withGroupCommit(Duration.ofMillis(20), 64)
+                    .withDurability(durability));
+            Dms durableDms = durableDmsFactory.getDms("durability_" + durability);
+            try {
+                durableDms.resetWorkspace();
+                DmsFactoryStats statsBefore = durableDmsFactory.getStats();
+
+                List<Thread> writers = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    int writer = i;
+                    writers.add(Thread.ofVirtual().start(() -> {
+                        for (int j = 0; j < 20; j++) {
+                            durableDms.put("some/directory", "key_%s_%s".formatted(writer, j % 5), "value_" + j);
+                        }
+                    }));
+                }
+                for (Thread writer : writers) {
+                    writer.join();
+                }
+                assertEquals(40, durableDms.getKeys("some/directory").stream().filter(k -> k.startsWith("key_")).count());
+                assertEquals("value_19", durableDms.getTextContent("some/directory", "key_7_4"));
+
+                DmsFactoryStats stats = durableDmsFactory.getStats();
+                long syncRequests = stats.syncRequests() - statsBefore.syncRequests();
+                long syncForces = stats.syncForces() - statsBefore.syncForces();
+                switch (durability) {
+                    case NONE -> assertEquals(0, syncForces);
+                    case PER_WRITE -> {
+                        // The document with its directory and the change journal for each of the 160 writes
+                        assertTrue(syncRequests >= 160 * 3, "syncRequests=%s".formatted(syncRequests));
+                        assertEquals(syncRequests, syncForces);
+                    }
+                    case GROUP_COMMIT -> {
+                        assertTrue(syncRequests >= 160 * 3, "syncRequests=%s".formatted(syncRequests));
+                        assertTrue(syncForces < syncRequests, "syncForces=%s, syncRequests=%s".formatted(syncForces, syncRequests));
+                    }
+                }
+            } finally {
+                deleteAndPurge(durableDms);
+                durableDmsFactory.close();
+            }
+            if (durability == DmsDurability.GROUP_COMMIT) {
+                assertThrows(IllegalStateException.class, () -> durableDms.put("some/directory", "key_0_0", "value"));
+            }
+        }
+    }
+
+    @Test
+    void replication(@TempDir Path replicaBasePath) throws IOException {
+        Path basePath = Path.of("c:/prj/bx/bx-dms/test-data/");
+        String directory = "some/directory";
+        Path replicaDirectory = replicaBasePath.resolve("replication").resolve(directory);
+        Path leftoverTmpPath = Files.createDirectories(replicaDirectory).resolve("key_9.replica-tmp");
+        Files.writeString(leftoverTmpPath, "left behind by a crash");
+
+        DmsFactory replicatedDmsFactory = DmsFactory.newFilesystemDmsFactory(basePath, FilesystemDmsConfig.defaults()
+                .withReplication(replicaBasePath, 4, 2));
+        Dms replicatedDms = replicatedDmsFactory.getDms("replication");
+        try {
+            replicatedDms.resetWorkspace();
+            for (int i = 0; i < 20; i++) {
+                replicatedDms.put(directory, "key_" + i % 5, "value_" + i);
+            }
+            replicatedDms.delete(directory, "key_0");
+            // Closing applies all the queued changes
+            replicatedDmsFactory.close();
+            assertEquals(0, replicatedDmsFactory.getStats().replicationFailures());
+
+            List<String> replicaKeys;
+            try (Stream<Path> replicaFiles = Files.list(replicaDirectory)) {
+                replicaKeys = replicaFiles.map(p -> p.getFileName().toString()).toList();
+            }
+            assertEquals(20, replicaKeys.size(), "keys=%s".formatted(replicaKeys));
+            assertTrue(replicaKeys.stream().anyMatch(k -> k.startsWith("_DEL_") && k.endsWith("key_0")));
+            assertFalse(replicaKeys.contains("key_0"));
+            assertFalse(Files.exists(leftoverTmpPath));
+            assertEquals("value_19", Files.readString(replicaDirectory.resolve("key_4")));
+
+            Path journalPath = Path.of("replication", "_META_!@#", "changes.log");
+            assertEquals(Files.readString(basePath.resolve(journalPath)), Files.readString(replicaBasePath.resolve(journalPath)));
+        } finally {
+            replicatedDmsFactory.close();
+            deleteAndPurge(dmsFactory.getDms("replication"));
+        }
+    }
+
+    @Test
+    void workspaceIndex() throws IOException, InterruptedException {
+        Path basePath = Path.of("c:/prj/bx/bx-dms/test-data/");
+        Dms indexedDms = dmsFactory.getDms("workspace_index");
+        try {
+            indexedDms.resetWorkspace();
+            String directory = "some/directory";
+            for (int i = 0; i < 10; i++) {
+                indexedDms.add(directory, "key_" + i, "value_" + i);
+            }
+            indexedDms.delete(directory, "key_0");
+            Path directoryPath = basePath.resolve("workspace_index").resolve(directory);
+            Files.setLastModifiedTime(directoryPath, FileTime.from(Instant.now().minus(Duration.ofHours(1))));
+            List<String> expectedKeys = List.copyOf(indexedDms.getKeys(directory));
+            assertEquals(9, expectedKeys.size());
+
+            Path snapshotPath = basePath.resolve("workspace_index").resolve("_META_!@#").resolve("index.snapshot");
+            for (int attempt = 0; !Files.exists(snapshotPath); attempt++) {
+                if (attempt > 200) {
+                    fail("Snapshot was not saved: %s".formatted(snapshotPath));
+                }
+                Thread.sleep(50);
+            }
+
+            try (DmsFactory restartedDmsFactory = DmsFactory.newFilesystemDmsFactory(basePath)) {
+                Dms restartedDms = restartedDmsFactory.getDms("workspace_index");
+                assertEquals(expectedKeys, List.copyOf(restartedDms.getKeys(directory)));
+                assertEquals(List.of("key_3", "key_4"), List.copyOf(restartedDms.getKeys(directory, "key_", "key_2", 2)));
+
+                Files.writeString(directoryPath.resolve("key_99"), "value_99");
+                assertTrue(restartedDms.getKeys(directory).contains("key_99"));
+                assertEquals(List.of("key_99"), List.copyOf(restartedDms.getKeys(directory, "key_9", "key_9", 10)));
+
+                // More writes and overrides than the cached listing has entries, applied to it without a rescan
+                for (int i = 0; i < 200; i++) {
+                    restartedDms.put(directory, "key_" + (i % 40), "value_" + i);
+                }
+                List<String> listedKeys;
+                try (Stream<Path> files = Files.list(directoryPath)) {
+                    listedKeys = files
+                            .map(p -> p.getFileName().toString())
+                            .filter(k -> !k.startsWith("_DEL_"))
+                            .sorted()
+                            .toList();
+                }
+                assertEquals(41 + 200 - 31, listedKeys.size());
+                assertEquals(listedKeys, List.copyOf(restartedDms.getKeys(directory)));
+                assertEquals("value_199", restartedDms.getTextContent(directory, "key_39"));
+            }
+        } finally {
+            deleteAndPurge(indexedDms);
+        }
+    }
+
+    @Test
+    void factoryLifecycle() throws InterruptedException {
+        Path basePath = Path.of("c:/prj/bx/bx-dms/test-data/");
+        try (DmsFactory boundedDmsFactory = DmsFactory.newFilesystemDmsFactory(basePath, FilesystemDmsConfig.defaults()
+                .withWorkspaceEviction(Duration.ofMillis(200), 2))) {
+            Dms firstDms = boundedDmsFactory.getDms("lifecycle_1");
+            firstDms.resetWorkspace();
+            firstDms.add("some/directory", "some_key", "some_value");
+            boundedDmsFactory.getDms("lifecycle_2");
+            boundedDmsFactory.getDms("lifecycle_3");
+            assertEquals(2, boundedDmsFactory.getStats().liveWorkspaces());
+            assertEquals(3, boundedDmsFactory.getStats().createdWorkspaces());
+            assertEquals(1, boundedDmsFactory.getStats().evictedWorkspaces());
+
+            // The kept handle runs on a single live instance re-created after the eviction, not on the evicted one
+            assertEquals("some_value", firstDms.getTextContent("some/directory", "some_key"));
+            firstDms.put("some/directory", "other_key", "other_value");
+            assertEquals(List.of("other_key", "some_key"), List.copyOf(boundedDmsFactory.getDms("lifecycle_1").getKeys("some/directory")));
+            assertEquals(4, boundedDmsFactory.getStats().createdWorkspaces());
+
+            for (int attempt = 0; boundedDmsFactory.getStats().liveWorkspaces() > 0; attempt++) {
+                if (attempt > 100) {
+                    fail("Idle workspaces were not evicted: %s".formatted(boundedDmsFactory.getStats()));
+                }
+                Thread.sleep(20);
+            }
+            deleteAndPurge(firstDms);
+            deleteAndPurge(boundedDmsFactory.getDms("lifecycle_2"));
+            deleteAndPurge(boundedDmsFactory.getDms("lifecycle_3"));
+
+            // A deleted workspace stays deleted in the instance re-created after the eviction, until reset
+            for (int attempt = 0; boundedDmsFactory.getStats().liveWorkspaces() > 0; attempt++) {
+                if (attempt > 100) {
+                    fail("Idle workspaces were not evicted: %s".formatted(boundedDmsFactory.getStats()));
+                }
+                Thread.sleep(20);
+            }
+            assertThrows(IllegalStateException.class, () -> firstDms.getKeys("some/directory"));
+            assertFalse(Files.exists(basePath.resolve("lifecycle_1")));
+            firstDms.resetWorkspace();
+            assertEquals(List.of(), List.copyOf(firstDms.getKeys("some/directory")));
+            deleteAndPurge(firstDms);
+            boundedDmsFactory.close();
+            assertThrows(IllegalStateException.class, () -> firstDms.getKeys("some/directory"));
+            try {
+                boundedDmsFactory.getDms("lifecycle_1");
+                fail("Should fail");
+            } catch (IllegalStateException expected) {
+            }
+        }
+    }
+
+    @Test
+    void search() {
+        String directory = "some/directory";
+        dms.add(directory, "stmt_1", "Buy 10 Apple Inc. ISIN US0378331005, counterparty Interactive Brokers");
+        dms.add(directory, "stmt_2", "Sell 5 Microsoft Corp. ISIN US5949181045, counterparty Interactive Brokers");
+        dms.add(directory, "stmt_3", "Buy 3 Apple Inc. ISIN US0378331005, counterparty Brokers Interactive", Charset.forName("windows-1252"));
+        dms.add(directory, "binary", new byte[]{(byte) 0xC3, (byte) 0x28});
+
+        assertEquals(List.of("stmt_1", "stmt_3"), List.copyOf(dms.search(directory, "us0378331005", 10)));
+        assertEquals(List.of("stmt_1"), List.copyOf(dms.search(directory, "us0378331005", 1)));
+        assertEquals(List.of("stmt_1", "stmt_2"), List.copyOf(dms.search(directory, "\"interactive brokers\"", 10)));
+        assertEquals(List.of("stmt_2"), List.copyOf(dms.search(directory, "sell \"Interactive Brokers\"", 10)));
+        assertEquals(List.of(), List.copyOf(dms.search(directory, "Tesla", 10)));
+
+        dms.put(directory, "stmt_2", "Sell 5 Apple Inc. ISIN US0378331005");
+        dms.delete(directory, "stmt_1");
+        assertEquals(List.of("stmt_2", "stmt_3"), List.copyOf(dms.search(directory, "US0378331005", 10)));
+        assertEquals(List.of(), List.copyOf(dms.search(directory, "microsoft", 10)));
+
+        dms.add(directory, "stmt_4", "Buy 1 Apple Inc. ISIN US0378331005 for 100 \u00a3", StandardCharsets.ISO_8859_1);
+        assertEquals(List.of("stmt_2", "stmt_3"), List.copyOf(dms.search(directory, "apple", 10)));
+        assertEquals(List.of("stmt_2", "stmt_3", "stmt_4"), List.copyOf(dms.search(directory, "apple", 10, UTF_8, StandardCharsets.ISO_8859_1)));
+        assertEquals(List.of("stmt_2", "stmt_3", "stmt_4"), List.copyOf(dms.search(directory, "\"apple inc\"", 10, StandardCharsets.ISO_8859_1, null)));
+        assertEquals(List.of(), List.copyOf(dms.search(directory, "\"inc apple\"", 10, StandardCharsets.ISO_8859_1, null)));
+        assertEquals(List.of("stmt_2", "stmt_3"), List.copyOf(dms.search(directory, "\"apple inc\"", 10)));
+        // Alternating the charsets keeps both indexes
+        assertEquals(List.of("stmt_2", "stmt_3", "stmt_4"), List.copyOf(dms.search(directory, "apple", 10, UTF_8, StandardCharsets.ISO_8859_1)));
+        assertEquals(List.of("stmt_2", "stmt_3"), List.copyOf(dms.search(directory, "apple", 10)));
+
+        // A run too long to be a term still takes a position
+        dms.add(directory, "stmt_5", "Hold Tesla " + "x".repeat(100) + " Motors");
+        assertEquals(List.of(), List.copyOf(dms.search(directory, "\"tesla motors\"", 10)));
+        assertEquals(List.of("stmt_5"), List.copyOf(dms.search(directory, "tesla motors", 10)));
+    }
+
+    @Test
+    void usage() {
+        String directory = "some/directory";
+        assertEquals(DmsUsage.EMPTY, dms.getUsage(directory));
+        dms.add(directory, "key_1", "12345");
+        assertEquals(new DmsUsage(1, 5, 0, 0), dms.getUsage(directory));
+
+        dms.add(directory, "key_2", "123");
+        dms.put(directory, "key_1", "1234567");
+        assertEquals(new DmsUsage(2, 10, 1, 5), dms.getUsage(directory));
+
+        dms.delete(directory, "key_2");
+        assertEquals(new DmsUsage(1, 7, 2, 8), dms.getUsage(directory));
+
+        dms.add("other/directory", "key_3", "1");
+        assertEquals(new DmsUsage(2, 8, 2, 8), dms.getUsage());
+
+        dms.purge(directory, LocalDateTime.now().plusSeconds(1));
+        assertEquals(new DmsUsage(1, 7, 0, 0), dms.getUsage(directory));
+        assertEquals(new DmsUsage(2, 8, 0, 0), dms.getUsage());
+
+        dms.add("new/directory", "key_4", "12");
+        assertEquals(new DmsUsage(3, 10, 0, 0), dms.getUsage());
+
+        Path basePath = Path.of("c:/prj/bx/bx-dms/test-data/");
+        try (DmsFactory restartedDmsFactory = DmsFactory.newFilesystemDmsFactory(basePath)) {
+            assertEquals(new DmsUsage(3, 10, 0, 0), restartedDmsFactory.getDms("usage()").getUsage());
+        }
+
+        // The changes made outside the workspace are revalidated by the directory modification times
+        Path workspacePath = basePath.resolve("usage()");
+        try {
+            Files.writeString(workspacePath.resolve("other/directory/key_5"), "1234");
+            Files.createDirectories(workspacePath.resolve("other/directory/sub"));
+            Files.writeString(workspacePath.resolve("other/directory/sub/key_6"), "123");
+            Files.delete(workspacePath.resolve("new/directory/key_4"));
+            Files.delete(workspacePath.resolve("new/directory"));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        assertEquals(new DmsUsage(4, 15, 0, 0), dms.getUsage());
+    }
+
+    @Test
+    void loadHarness(@TempDir Path tempDir) throws IOException, InterruptedException {
+        LoadProfile profile = LoadProfile.defaults()
+                .withWorkspace("load_harness")
+                .withThreads(4, true)
+                .withDuration(Duration.ZERO, Duration.ZERO)
+                .withOperationsPerThread(200)
+                .withKeys(2, 50)
+                .withContentSize(new LoadProfile.ContentSize(10, 1000))
+                .withSampleInterval(Duration.ofMillis(100));
+        Dms loadDms = dmsFactory.getDms("load_harness");
+        try {
+            LoadReport report = new LoadHarness(dmsFactory, profile, "smoke").run();
+            assertEquals(5, report.operations().size());
+            assertEquals(800, report.operations().values().stream().mapToLong(LoadReport.OperationStats::count).sum());
+            for (LoadReport.OperationStats stats : report.operations().values()) {
+                assertTrue(stats.count() > 0);
+                assertTrue(stats.misses() + stats.errors() <= stats.count());
+                assertTrue(stats.p50Nanos() <= stats.p99Nanos() && stats.p99Nanos() <= stats.maxNanos());
+            }
+            assertEquals(800, report.samples().stream().mapToLong(LoadReport.Sample::operations).sum());
+            long tombstones = report.samples().getLast().historyDocuments();
+            assertTrue(tombstones > 0);
+            assertEquals(tombstones, loadDms.getUsage().historyDocuments());
+
+            Path csvPath = tempDir.resolve("load_harness.csv");
+            report.appendCsv(csvPath);
+            assertEquals(6, Files.readAllLines(csvPath).size());
+        } finally {
+            deleteAndPurge(loadDms);
+        }
+    }
+
+    @Test
+    void ioScheduling_weights() throws InterruptedException {
+        DmsIoScheduling scheduling = DmsIoScheduling.of(1, 1)
+                .withWorkspaceWeight("io_scheduling_1", 3);
+        try (DmsFactory scheduledDmsFactory = newScheduledDmsFactory(scheduling)) {
+            Dms blockerDms = scheduledDmsFactory.getDms("io_scheduling_blocker");
+            Dms dms1 = scheduledDmsFactory.getDms("io_scheduling_1");
+            Dms dms2 = scheduledDmsFactory.getDms("io_scheduling_2");
+            try {
+                for (Dms workspaceDms : List.of(blockerDms, dms1, dms2)) {
+                    workspaceDms.put("dir", "key", "content");
+                }
+                CountDownLatch blockerStarted = new CountDownLatch(1);
+                CountDownLatch blockerRelease = new CountDownLatch(1);
+                Thread blocker = Thread.ofVirtual().start(() -> blockerDms.getRedundantPeriodKeys("dir", key -> {
+                    blockerStarted.countDown();
+                    awaitLatch(blockerRelease);
+                    return null;
+                }, k -> null, k -> null));
+                awaitLatch(blockerStarted);
+
+                List<String> started = Collections.synchronizedList(new ArrayList<>());
+                List<Thread> threads = new ArrayList<>();
+                for (int i = 0; i < 4; i++) {
+                    for (String workspace : List.of("io_scheduling_1", "io_scheduling_2")) {
+                        Dms workspaceDms = scheduledDmsFactory.getDms(workspace);
+                        threads.add(Thread.ofVirtual().start(() -> workspaceDms.getRedundantPeriodKeys("dir", key -> {
+                            started.add(workspace);
+                            return null;
+                        }, k -> null, k -> null)));
+                        awaitWaitingOperations(scheduledDmsFactory, threads.size());
+                    }
+                }
+                blockerRelease.countDown();
+                blocker.join();
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                assertEquals(8, started.size());
+                // Weight 3 against weight 1, so the first workspace gets three of the first four slots
+                assertEquals(3, started.subList(0, 4).stream().filter("io_scheduling_1"::equals).count());
+            } finally {
+                deleteAndPurge(blockerDms);
+                deleteAndPurge(dms1);
+                deleteAndPurge(dms2);
+            }
+        }
+    }
+
+    @Test
+    void ioScheduling_workspaceLimit() throws InterruptedException {
+        try (DmsFactory scheduledDmsFactory = newScheduledDmsFactory(DmsIoScheduling.of(2, 1))) {
+            Dms dms1 = scheduledDmsFactory.getDms("io_scheduling_1");
+            Dms dms2 = scheduledDmsFactory.getDms("io_scheduling_2");
+            try {
+                dms1.put("dir", "key", "content");
+                dms2.put("dir", "key", "content");
+                CountDownLatch blockerStarted = new CountDownLatch(1);
+                CountDownLatch blockerRelease = new CountDownLatch(1);
+                Thread blocker = Thread.ofVirtual().start(() -> dms1.getRedundantPeriodKeys("dir", key -> {
+                    blockerStarted.countDown();
+                    awaitLatch(blockerRelease);
+                    return null;
+                }, k -> null, k -> null));
+                awaitLatch(blockerStarted);
+
+                AtomicBoolean secondStarted = new AtomicBoolean();
+                Thread second = Thread.ofVirtual().start(() -> dms1.getRedundantPeriodKeys("dir", key -> {
+                    secondStarted.set(true);
+                    return null;
+                }, k -> null, k -> null));
+                awaitWaitingOperations(scheduledDmsFactory, 1);
+
+                // A free global slot, but the first workspace is at its limit, so only the other workspace gets it
+                assertEquals("content", dms2.getTextContent("dir", "key"));
+                assertFalse(secondStarted.get());
+                assertEquals(1, scheduledDmsFactory.getStats().waitingOperations());
+
+                blockerRelease.countDown();
+                blocker.join();
+                second.join();
+                assertTrue(secondStarted.get());
+
+                // A transfer holds the permits of both the workspaces, the one acquired second takes no global slot
+                assertTrue(scheduledDmsFactory.copy("io_scheduling_1", "dir", "key", "io_scheduling_2", "dir", "copied"));
+                assertEquals("content", dms2.getTextContent("dir", "copied"));
+                assertEquals(0, scheduledDmsFactory.getStats().waitingOperations());
+            } finally {
+                deleteAndPurge(dms1);
+                deleteAndPurge(dms2);
+            }
+        }
+    }
+
+    @Test
+    void ioScheduling_maintenance() throws InterruptedException {
+        DmsIoScheduling scheduling = new DmsIoScheduling(2, 2, 2, Map.of());
+        try (DmsFactory scheduledDmsFactory = newScheduledDmsFactory(scheduling)) {
+            Dms dms1 = scheduledDmsFactory.getDms("io_scheduling_1");
+            Dms dms2 = scheduledDmsFactory.getDms("io_scheduling_2");
+            try {
+                dms1.put("dir", "key", "content");
+                dms2.put("dir", "key", "content");
+                List<String> started = Collections.synchronizedList(new ArrayList<>());
+
+                CountDownLatch maintenanceStarted = new CountDownLatch(1);
+                CountDownLatch maintenanceRelease = new CountDownLatch(1);
+                Thread maintenance = Thread.ofVirtual().start(() -> dms1.exportWorkspace(new RecordingChannel(() -> {
+                    maintenanceStarted.countDown();
+                    awaitLatch(maintenanceRelease);
+                }), DmsExportOptions.all()));
+                awaitLatch(maintenanceStarted);
+
+                CountDownLatch interactiveStarted = new CountDownLatch(1);
+                CountDownLatch interactiveRelease = new CountDownLatch(1);
+                Thread interactive = Thread.ofVirtual().start(() -> dms2.getRedundantPeriodKeys("dir", key -> {
+                    interactiveStarted.countDown();
+                    awaitLatch(interactiveRelease);
+                    return null;
+                }, k -> null, k -> null));
+                awaitLatch(interactiveStarted);
+
+                Thread queuedMaintenance = Thread.ofVirtual().start(() -> dms2.exportWorkspace(
+                        new RecordingChannel(() -> started.add("maintenance")), DmsExportOptions.all()));
+                awaitWaitingOperations(scheduledDmsFactory, 1);
+                Thread queuedInteractive = Thread.ofVirtual().start(() -> dms1.getRedundantPeriodKeys("dir", key -> {
+                    started.add("interactive");
+                    return null;
+                }, k -> null, k -> null));
+                awaitWaitingOperations(scheduledDmsFactory, 2);
+
+                // A maintenance operation is running, so the interactive one queued later goes first
+                interactiveRelease.countDown();
+                interactive.join();
+                queuedInteractive.join();
+                queuedMaintenance.join();
+                assertEquals(List.of("interactive", "maintenance"), started);
+
+                maintenanceRelease.countDown();
+                maintenance.join();
+                assertEquals(0, scheduledDmsFactory.getStats().waitingOperations());
+            } finally {
+                deleteAndPurge(dms1);
+                deleteAndPurge(dms2);
+            }
+        }
+    }
+
+    private static DmsFactory newScheduledDmsFactory(DmsIoScheduling scheduling) {
+        Path basePath = Path.of("c:/prj/bx/bx-dms/test-data/");
+        return DmsFactory.newFilesystemDmsFactory(basePath, FilesystemDmsConfig.defaults().withIoScheduling(scheduling));
+    }
+
+    private static void awaitLatch(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void awaitWaitingOperations(DmsFactory factory, int waitingOperations) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (factory.getStats().waitingOperations() != waitingOperations) {
+            if (System.nanoTime() - deadline > 0) {
+                fail("Operations not waiting: %s".formatted(factory.getStats()));
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Discards the written bytes, runs the action on the first write.
+     */
+    private static final class RecordingChannel implements WritableByteChannel {
+        private final Runnable onFirstWrite;
+        private boolean written;
+
+        private RecordingChannel(Runnable onFirstWrite) {
+            this.onFirstWrite = onFirstWrite;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            if (!written) {
+                written = true;
+                onFirstWrite.run();
+            }
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    void putIfVersion() throws InterruptedException {
+        String directory = "counters";
+        String version1 = dms.putIfVersion(directory, "counter", "0", null);
+        assertNotNull(version1);
+        assertNull(dms.putIfVersion(directory, "counter", "1", null));
+
+        DmsVersioned<String> versioned = dms.getTextContentWithVersion(directory, "counter");
+        assertEquals("0", versioned.content());
+        assertEquals(version1, versioned.version());
+        String version2 = dms.putIfVersion(directory, "counter", "1", version1);
+        assertNotNull(version2);
+        assertNotEquals(version1, version2);
+        assertNull(dms.putIfVersion(directory, "counter", "2", version1));
+        assertEquals("1", dms.getTextContent(directory, "counter"));
+        assertEquals(version2, dms.getBinaryContentWithVersion(directory, "counter").version());
+
+        // Versions of the same size written within the timestamp granularity still differ
+        String version3 = dms.putIfVersion(directory, "counter", "2", version2);
+        String version4 = dms.putIfVersion(directory, "counter", "3", version3);
+        assertNotNull(version4);
+        assertNotEquals(version3, version4);
+        assertNull(dms.putIfVersion(directory, "counter", "4", version3));
+        dms.put(directory, "counter", "1");
+
+        int threads = 4;
+        int incrementsPerThread = 25;
+        List<Thread> updaters = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            updaters.add(Thread.ofVirtual().start(() -> {
+                for (int i = 0; i < incrementsPerThread; i++) {
+                    while (true) {
+                        DmsVersioned<String> current = dms.getTextContentWithVersion(directory, "counter");
+                        String next = String.valueOf(Integer.parseInt(current.content()) + 1);
+                        if (dms.putIfVersion(directory, "counter", next, current.version()) != null) {
+                            break;
+                        }
+                    }
+                }
+            }));
+        }
+        for (Thread updater : updaters) {
+            updater.join();
+        }
+        assertEquals(String.valueOf(1 + threads * incrementsPerThread), dms.getTextContent(directory, "counter"));
+        assertArrayEquals(dms.getBinaryContent(directory, "counter"), dms.getBinaryContentWithVersion(directory, "counter").content());
+    }
+
+    @Test
+    void copyMove() throws IOException {
+        Path basePath = Path.of("c:/prj/bx/bx-dms/test-data/");
+        dms.add("staging", "key1", "value1");
+        dms.add("staging", "key2", "value2");
+        dms.add("production", "key1", "old");
+
+        assertFalse(dms.copy("staging", "key1", "production", "key1"));
+        assertEquals("value1", dms.getTextContent("production", "key1"));
+        assertEquals("value1", dms.getTextContent("staging", "key1"));
+        assertEquals(1, dms.getUsage("production").historyDocuments());
+        assertTrue(Files.isSameFile(
+                basePath.resolve("copyMove()/staging/key1"),
+                basePath.resolve("copyMove()/production/key1")));
+
+        assertTrue(dms.move("staging", "key2", "production", "key2"));
+        assertEquals("value2", dms.getTextContent("production", "key2"));
+        assertFalse(dms.exists("staging", "key2"));
+        assertEquals(1, dms.getUsage("staging").historyDocuments());
+
+        assertThrows(IllegalArgumentException.class, () -> dms.copy("staging", "missing", "production", "missing"));
+        assertFalse(dms.exists("production", "missing"));
+        assertThrows(IllegalArgumentException.class, () -> dms.move("staging", "key1", "staging", "key1"));
+
+        Dms targetDms = dmsFactory.getDms("copyMove_target");
+        targetDms.resetWorkspace();
+        try {
+            assertEquals(2, dmsFactory.copyAll("copyMove()", "production", "copyMove_target", "promoted"));
+            assertEquals(List.of("key1", "key2"), List.copyOf(targetDms.getKeys("promoted")));
+            assertEquals(1, dmsFactory.moveAll("copyMove()", "staging", "copyMove_target", "promoted"));
+            assertEquals(List.of(), List.copyOf(dms.getKeys("staging")));
+            assertEquals("value1", targetDms.getTextContent("promoted", "key1"));
+            assertEquals(1, targetDms.getUsage("promoted").historyDocuments());
+            assertTrue(dmsFactory.move("copyMove_target", "promoted", "key2", "copyMove()", "returned", "key2"));
+            assertEquals("value2", dms.getTextContent("returned", "key2"));
+            assertEquals(0, dmsFactory.moveAll("copyMove()", "staging", "copyMove_target", "promoted"));
+        } finally {
+            deleteAndPurge(targetDms);
+        }
+    }
+
+    @Test
+    void snapshot() {
+        dms.add("reports/2024", "key1", "v1");
+        dms.add("reports/2024", "key2", "v1");
+        dms.put("reports/2024", "key2", "v2");
+        dms.add("reports/2025", "key3", "v1");
+
+        DmsSnapshot snapshot = dms.snapshot();
+        dms.put("reports/2024", "key1", "v2");
+        dms.delete("reports/2024", "key2");
+        dms.add("reports/2024", "key4", "v1");
+        dms.add("reports/2026", "key5", "v1");
+
+        assertEquals(List.of("key1", "key2"), List.copyOf(snapshot.getKeys("reports/2024")));
+        assertEquals("v1", snapshot.getTextContent("reports/2024", "key1"));
+        assertEquals("v2", snapshot.getTextContent("reports/2024", "key2"));
+        assertEquals("v1", snapshot.getTextContent("reports/2025", "key3"));
+        assertFalse(snapshot.exists("reports/2026", "key5"));
+        assertEquals("v2", dms.getTextContent("reports/2024", "key1"));
+        assertFalse(snapshot.getSnapshotTime().isAfter(LocalDateTime.now()));
+        assertThrows(UnsupportedOperationException.class, () -> snapshot.put("reports/2024", "key1", "v3"));
+        assertThrows(UnsupportedOperationException.class, () -> snapshot.delete("reports/2024", "key1"));
+        assertThrows(UnsupportedOperationException.class, snapshot::snapshot);
+
+        snapshot.close();
+        assertEquals(List.of("key1", "key4"), List.copyOf(dms.getKeys("reports/2024")).stream()
+                .filter(key -> !key.startsWith("_OVR_"))
+                .toList());
+
+        // A snapshot and a staged transfer left behind are deleted when the workspace is next opened by a factory
+        Path basePath = Path.of("c:/prj/bx/bx-dms/test-data/");
+        Path metaPath = basePath.resolve("snapshot()").resolve("_META_!@#");
+        DmsSnapshot abandonedSnapshot = dms.snapshot();
+        try {
+            Files.createDirectories(metaPath.resolve("staging"));
+            Files.writeString(metaPath.resolve("staging").resolve("abandoned"), "v1");
+            try (Stream<Path> snapshots = Files.list(metaPath.resolve("snapshots"))) {
+                assertEquals(1, snapshots.count());
+            }
+            try (DmsFactory restartedDmsFactory = DmsFactory.newFilesystemDmsFactory(basePath)) {
+                assertEquals("v2", restartedDmsFactory.getDms("snapshot()").getTextContent("reports/2024", "key1"));
+            }
+            try (Stream<Path> snapshots = Files.list(metaPath.resolve("snapshots"));
+                 Stream<Path> stagedFiles = Files.list(metaPath.resolve("staging"))) {
+                assertEquals(0, snapshots.count());
+                assertEquals(0, stagedFiles.count());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            abandonedSnapshot.close();
+        }
+    }
+
+    @Test
+    void snapshot_concurrentWrites() throws InterruptedException {
+        int keyCount = 200;
+        for (int i = 0; i < keyCount; i++) {
+            dms.add("docs", "key%03d".formatted(i), "v1");
+        }
+        // The keys are replaced in order and then a new one is added, so any point in time sees
+        // a prefix of the keys replaced and the new key only after all of them
+        Thread writer = Thread.ofVirtual().start(() -> {
+            for (int i = 0; i < keyCount; i++) {
+                dms.put("docs", "key%03d".formatted(i), "v2");
+            }
+            dms.add("docs", "new", "v1");
+        });
+        try (DmsSnapshot snapshot = dms.snapshot()) {
+            writer.join();
+            int replaced = 0;
+            while (replaced < keyCount && snapshot.getTextContent("docs", "key%03d".formatted(replaced)).equals("v2")) {
+                replaced++;
+            }
+            for (int i = replaced; i < keyCount; i++) {
+                assertEquals("v1", snapshot.getTextContent("docs", "key%03d".formatted(i)));
+            }
+            assertEquals(replaced == keyCount, snapshot.exists("docs", "new"));
+            assertEquals(keyCount + (replaced == keyCount ? 1 : 0), snapshot.getKeys("docs").size());
+        }
+        assertEquals("v2", dms.getTextContent("docs", "key%03d".formatted(keyCount - 1)));
+    }
+
+    @Test
+    void walkKeys() {
+        dms.add("broker1/account1/2024", "key1", "v");
+        dms.add("broker1/account1/2024", "key2", "v");
+        dms.add("broker1/account1/2025", "key1", "v");
+        dms.add("broker1/account2/2024", "key1", "v");
+        dms.add("broker1", "summary", "v");
+        dms.add("broker2/account1/2024", "key1", "v");
+        dms.delete("broker1/account1/2024", "key2");
+
+        assertEquals(List.of("broker1", "broker2"), List.copyOf(dms.getDirectories(null)));
+        assertEquals(List.of("account1", "account2"), List.copyOf(dms.getDirectories("broker1")));
+        assertEquals(List.of(), List.copyOf(dms.getDirectories("broker1/account1/2024")));
+        assertEquals(List.of(), List.copyOf(dms.getDirectories("missing")));
+
+        assertEquals(List.of(
+                new DmsKey("broker1", "summary"),
+                new DmsKey("broker1/account1/2024", "key1"),
+                new DmsKey("broker1/account1/2025", "key1"),
+                new DmsKey("broker1/account2/2024", "key1")
+        ), dms.walkKeys("broker1").toList());
+        assertEquals(5, dms.walkKeys(null).count());
+        assertEquals(List.of(new DmsKey("broker2/account1/2024", "key1")), dms.walkKeys("broker2").toList());
+        assertEquals(0, dms.walkKeys("missing").count());
+    }
+
+    @Test
+    void compactPeriods() {
+        for (String directory : List.of("broker1/account1/statements", "broker1/account2/statements", "broker1/account1/other")) {
+            dms.add(directory, "2024-01-01_2024-01-31.txt", "jan");
+            dms.add(directory, "2024-02-01_2024-02-29.txt", "feb");
+            dms.add(directory, "2024-01-01_2024-03-31.txt", "q1");
+            dms.add(directory, "2024-04-01_2024-04-30.txt", "apr");
+        }
+        List<DmsCompactionRule<?>> rules = List.of(DmsCompactionRule.of(
+                "broker1/[^/]+/statements",
+                rawKey -> rawKey.matches("\\d{4}-\\d{2}-\\d{2}_\\d{4}-\\d{2}-\\d{2}\\.txt") ? rawKey : null,
+                key -> LocalDate.parse(key.substring(0, 10)),
+                key -> LocalDate.parse(key.substring(11, 21))
+        ));
+
+        DmsCompactionReport dryRunReport = dms.compactPeriods(rules, DmsCompactionOptions.defaults().withDryRun(true));
+        assertTrue(dryRunReport.dryRun());
+        assertEquals(2, dryRunReport.scannedDirectories());
+        assertEquals(List.of("broker1/account1/statements", "broker1/account2/statements"),
+                List.copyOf(dryRunReport.redundantKeys().keySet()));
+        assertEquals(List.of("2024-01-01_2024-01-31.txt", "2024-02-01_2024-02-29.txt"),
+                dryRunReport.redundantKeys().get("broker1/account1/statements"));
+        assertEquals(4, dryRunReport.redundantKeyCount());
+        assertEquals(0, dryRunReport.deletedKeys());
+        assertEquals(4, dms.getKeys("broker1/account1/statements").size());
+
+        dms.delete("broker1/account2/statements", "2024-01-01_2024-01-31.txt");
+        DmsCompactionReport report = dms.compactPeriods(rules, DmsCompactionOptions.defaults()
+                .withBatchSize(1)
+                .withMaxDeletesPerSecond(100));
+        assertEquals(3, report.redundantKeyCount());
+        assertEquals(3, report.deletedKeys());
+        assertEquals(List.of("2024-01-01_2024-03-31.txt", "2024-04-01_2024-04-30.txt"),
+                List.copyOf(dms.getKeys("broker1/account1/statements")));
+        assertEquals(4, dms.getKeys("broker1/account1/other").size());
+        assertEquals(0, dms.compactPeriods(rules, DmsCompactionOptions.defaults()).redundantKeyCount());
+    }
+
+    @Test
+    void keyFilters() throws IOException {
+        Path basePath = Path.of("c:/prj/bx/bx-dms/test-data/");
+        String workspace = "key_filters";
+        FilesystemDmsConfig config = FilesystemDmsConfig.defaults().withKeyFilters(0.01);
+        try {
+            try (DmsFactory filteredDmsFactory = DmsFactory.newFilesystemDmsFactory(basePath, config)) {
+                Dms filteredDms = filteredDmsFactory.getDms(workspace);
+                filteredDms.resetWorkspace();
+                for (int i = 0; i < 100; i++) {
+                    filteredDms.add("dir1", "key%d.txt".formatted(i), "content%d".formatted(i));
+                }
+                for (int i = 0; i < 100; i++) {
+                    assertTrue(filteredDms.exists("dir1", "key%d.txt".formatted(i)));
+                    assertFalse(filteredDms.exists("dir1", "missing%d.txt".formatted(i)));
+                }
+                assertThrows(IllegalArgumentException.class, () -> filteredDms.add("dir1", "key0.txt", "again"));
+
+                filteredDms.delete("dir1", "key0.txt");
+                assertFalse(filteredDms.exists("dir1", "key0.txt"));
+                filteredDms.add("dir1", "key0.txt", "again");
+                assertTrue(filteredDms.exists("dir1", "key0.txt"));
+
+                DmsKeyFilterStats stats = filteredDms.getKeyFilterStats();
+                assertTrue(stats.definiteMisses() > 90);
+                assertTrue(stats.falsePositiveRate() < 0.2);
+
+                // A key spelled in another case is left to the filesystem, which may be case-insensitive
+                assertEquals(Files.exists(basePath.resolve(workspace).resolve("dir1").resolve("KEY5.TXT")), filteredDms.exists("dir1", "KEY5.TXT"));
+                assertEquals(stats.definiteMisses(), filteredDms.getKeyFilterStats().definiteMisses());
+            }
+            try (DmsFactory filteredDmsFactory = DmsFactory.newFilesystemDmsFactory(basePath, config)) {
+                Dms filteredDms = filteredDmsFactory.getDms(workspace);
+                assertTrue(filteredDms.exists("dir1", "key99.txt"));
+                assertFalse(filteredDms.exists("dir1", "missing.txt"));
+                filteredDms.add("dir1", "key100.txt", "content100");
+                assertTrue(filteredDms.exists("dir1", "key100.txt"));
+
+                // Written by another process, the writes do not rely on the filter knowing it
+                Files.writeString(basePath.resolve(workspace).resolve("dir1").resolve("external.txt"), "external");
+                assertThrows(IllegalArgumentException.class, () -> filteredDms.add("dir1", "external.txt", "added"));
+                assertFalse(filteredDms.put("dir1", "external.txt", "put"));
+                assertEquals("put", filteredDms.getTextContent("dir1", "external.txt"));
+            }
+        } finally {
+            try (DmsFactory cleanupDmsFactory = DmsFactory.newFilesystemDmsFactory(basePath)) {
+                deleteAndPurge(cleanupDmsFactory.getDms(workspace));
+            }
+        }
+        assertEquals(new DmsKeyFilterStats(0, 0, 0), dms.getKeyFilterStats());
+    }
+
+    @Test
+    void readAll() {
+        String directory = "some/directory";
+        for (int i = 0; i < 50; i++) {
+            dms.add(directory, "key%02d.txt".formatted(i), "content%d".formatted(i));
+        }
+        dms.add(directory + "/subdirectory", "other.txt", "other");
+        dms.delete(directory, "key07.txt");
+
+        DmsReadAheadOptions options = DmsReadAheadOptions.defaults()
+                .withPrefetchCount(4)
+                .withMaxBufferedBytes(20);
+        try (Stream<DmsDocument<String>> documents = dms.readAll(directory, UTF_8, options)) {
+            List<DmsDocument<String>> read = documents.toList();
+            assertEquals(49, read.size());
+            assertEquals(dms.getKeys(directory).stream().filter(key -> key.endsWith(".txt")).toList(),
+                    read.stream().map(DmsDocument::key).toList());
+            for (DmsDocument<String> document : read) {
+                assertEquals(dms.getTextContent(directory, document.key()), document.content());
+            }
+        }
+
+        // A document which cannot be decoded fails the stream when reached, like getTextContent
+        dms.add(directory, "key50.txt", new byte[]{(byte) 0xC3, (byte) 0x28});
+        try (Stream<DmsDocument<String>> documents = dms.readAll(directory, UTF_8, options)) {
+            Iterator<DmsDocument<String>> iterator = documents.iterator();
+            for (int i = 0; i < 49; i++) {
+                assertTrue(iterator.next().key().endsWith(".txt"));
+            }
+            UncheckedIOException e = assertThrows(UncheckedIOException.class, iterator::hasNext);
+            assertTrue(e.getCause() instanceof CharacterCodingException);
+        }
+        UncheckedIOException e = assertThrows(UncheckedIOException.class, () -> dms.getTextContent(directory, "key50.txt"));
+        assertTrue(e.getCause() instanceof CharacterCodingException);
+        try (Stream<DmsDocument<String>> documents = dms.readAll(directory, UTF_8)) {
+            assertEquals(new DmsDocument<>("key00.txt", "content0"), documents.findFirst().orElseThrow());
+        }
+        try (Stream<DmsDocument<String>> documents = dms.readAll("missing", UTF_8)) {
+            assertEquals(0, documents.count());
+        }
+        assertThrows(IllegalArgumentException.class, () -> DmsReadAheadOptions.defaults().withPrefetchCount(0));
+    }
 }
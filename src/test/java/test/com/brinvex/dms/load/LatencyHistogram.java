@@ -0,0 +1,79 @@
+package test.com.brinvex.dms.load;
+
+/**
+ * Log-linear latency histogram: every power of two of nanoseconds is split into {@value #SUB_BUCKETS} buckets,
+ * so the recorded values are accurate to about 3%.
+ * Not thread-safe; each worker records to its own histogram and they are merged afterwards.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[64 * SUB_BUCKETS];
+
+    private long totalCount;
+
+    private long maxNanos;
+
+    void record(long nanos) {
+        nanos = Math.max(1, nanos);
+        counts[bucketIndex(nanos)]++;
+        totalCount++;
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        maxNanos = Math.max(maxNanos, other.maxNanos);
+    }
+
+    long getTotalCount() {
+        return totalCount;
+    }
+
+    long getMaxNanos() {
+        return maxNanos;
+    }
+
+    /**
+     * Returns the upper bound of the bucket containing the given percentile.
+     */
+    long getPercentileNanos(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100.0 * totalCount);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(bucketUpperBound(i), maxNanos);
+            }
+        }
+        return maxNanos;
+    }
+
+    private static int bucketIndex(long nanos) {
+        int magnitude = 63 - Long.numberOfLeadingZeros(nanos);
+        if (magnitude < SUB_BUCKET_BITS) {
+            return (int) nanos;
+        }
+        int subBucket = (int) (nanos >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        long lowerBound = (1L << magnitude) + (subBucket << (magnitude - SUB_BUCKET_BITS));
+        return lowerBound + (1L << (magnitude - SUB_BUCKET_BITS)) - 1;
+    }
+}
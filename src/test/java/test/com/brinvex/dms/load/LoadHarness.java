@@ -0,0 +1,334 @@
+package test.com.brinvex.dms.load;
+
+import com.brinvex.dms.api.Dms;
+import com.brinvex.dms.api.DmsDurability;
+import com.brinvex.dms.api.DmsFactory;
+import com.brinvex.dms.api.FilesystemDmsConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import test.com.brinvex.dms.load.LoadProfile.Operation;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives a {@link Dms} obtained from any {@link DmsFactory} with a configurable mix of operations
+ * and reports the throughput and the latency percentiles per operation.
+ * <p>
+ * The workspace is reset and pre-populated with half of the keys, so the reads, deletes and adds
+ * hit both existing and missing documents. Overrides and deletes accumulate obsolete versions (tombstones)
+ * until they are purged; their count is sampled over time to show how the tombstones affect the latencies.
+ * The tombstones are counted from the outcomes of the operations, so sampling does not touch the workspace.
+ * <p>
+ * Run from the command line with the test classpath, e.g.
+ * <pre>
+ * java -cp target/classes:target/test-classes:... test.com.brinvex.dms.load.LoadHarness \
+ *     basePath=/tmp/dms-load durability=NONE,PER_WRITE,GROUP_COMMIT threads=32 virtual=true duration=60 \
+ *     mix=READ:60,PUT:20,ADD:5,LIST:10,DELETE:4,PURGE:1 keys=10000 directories=10 contentSize=100:100000 \
+ *     csv=load.csv json=load.json
+ * </pre>
+ * Each durability mode is run with its own factory and appended to the CSV as a separately labeled run.
+ * With {@code operations=N} each thread runs N measured operations instead of running for the duration.
+ */
+public class LoadHarness {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LoadHarness.class);
+
+    private final DmsFactory dmsFactory;
+
+    private final LoadProfile profile;
+
+    private final String label;
+
+    public LoadHarness(DmsFactory dmsFactory, LoadProfile profile, String label) {
+        this.dmsFactory = dmsFactory;
+        this.profile = profile;
+        this.label = label;
+    }
+
+    private static final class Worker {
+        private final Map<Operation, LatencyHistogram> histograms = new EnumMap<>(Operation.class);
+        private final Map<Operation, long[]> missesAndErrors = new EnumMap<>(Operation.class);
+
+        private Worker() {
+            for (Operation operation : Operation.values()) {
+                histograms.put(operation, new LatencyHistogram());
+                missesAndErrors.put(operation, new long[2]);
+            }
+        }
+    }
+
+    public LoadReport run() throws InterruptedException {
+        Dms dms = dmsFactory.getDms(profile.workspace());
+        dms.resetWorkspace();
+        populate(dms);
+
+        Operation[] operationTable = operationTable();
+        LongAdder completed = new LongAdder();
+        LongAdder tombstones = new LongAdder();
+        long startNanos = System.nanoTime();
+        long warmupEndNanos = startNanos + profile.warmup().toNanos();
+        long endNanos = warmupEndNanos + profile.duration().toNanos();
+
+        List<Worker> workers = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < profile.threads(); i++) {
+            Worker worker = new Worker();
+            workers.add(worker);
+            Runnable task = () -> runWorker(dms, worker, operationTable, warmupEndNanos, endNanos, completed, tombstones);
+            Thread.Builder builder = profile.virtualThreads() ? Thread.ofVirtual() : Thread.ofPlatform().daemon();
+            threads.add(builder.name("dms-load-" + i).start(task));
+        }
+
+        List<LoadReport.Sample> samples = new ArrayList<>();
+        sleepUntil(warmupEndNanos);
+        long lastCompleted = 0;
+        long next = warmupEndNanos + profile.sampleInterval().toNanos();
+        for (; profile.operationsPerThread() > 0 || next <= endNanos; next += profile.sampleInterval().toNanos()) {
+            if (profile.operationsPerThread() > 0) {
+                if (joinUntil(threads, next)) {
+                    break;
+                }
+            } else {
+                sleepUntil(next);
+            }
+            long nowCompleted = completed.sum();
+            samples.add(new LoadReport.Sample(Duration.ofNanos(next - warmupEndNanos), nowCompleted - lastCompleted, tombstones.sum()));
+            lastCompleted = nowCompleted;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Duration measured = Duration.ofNanos(Math.max(1, System.nanoTime() - warmupEndNanos));
+        if (profile.operationsPerThread() > 0) {
+            samples.add(new LoadReport.Sample(measured, completed.sum() - lastCompleted, tombstones.sum()));
+        }
+
+        Map<Operation, LoadReport.OperationStats> stats = new LinkedHashMap<>();
+        for (Operation operation : Operation.values()) {
+            if (profile.operationWeights().getOrDefault(operation, 0) <= 0) {
+                continue;
+            }
+            LatencyHistogram histogram = new LatencyHistogram();
+            long misses = 0;
+            long errors = 0;
+            for (Worker worker : workers) {
+                histogram.add(worker.histograms.get(operation));
+                misses += worker.missesAndErrors.get(operation)[0];
+                errors += worker.missesAndErrors.get(operation)[1];
+            }
+            stats.put(operation, new LoadReport.OperationStats(
+                    histogram.getTotalCount(),
+                    misses,
+                    errors,
+                    histogram.getTotalCount() * 1e9 / measured.toNanos(),
+                    histogram.getPercentileNanos(50),
+                    histogram.getPercentileNanos(90),
+                    histogram.getPercentileNanos(99),
+                    histogram.getPercentileNanos(99.9),
+                    histogram.getMaxNanos()));
+        }
+        return new LoadReport(label, measured, stats, samples);
+    }
+
+    private void runWorker(
+            Dms dms,
+            Worker worker,
+            Operation[] operationTable,
+            long warmupEndNanos,
+            long endNanos,
+            LongAdder completed,
+            LongAdder tombstones
+    ) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long measuredOperations = 0;
+        while (true) {
+            Operation operation = operationTable[random.nextInt(operationTable.length)];
+            String directory = directory(random.nextInt(profile.directories()));
+            String key = key(random.nextInt(profile.keys()));
+            long opStartNanos = System.nanoTime();
+            if (profile.operationsPerThread() > 0 ? measuredOperations >= profile.operationsPerThread() : opStartNanos >= endNanos) {
+                return;
+            }
+            int outcome = 0;
+            try {
+                tombstones.add(execute(dms, operation, directory, key, random));
+            } catch (IllegalArgumentException e) {
+                outcome = 1;
+            } catch (RuntimeException e) {
+                LOG.debug("{} failed: directory={}, key={}", operation, directory, key, e);
+                outcome = 2;
+            }
+            long opEndNanos = System.nanoTime();
+            if (opStartNanos >= warmupEndNanos) {
+                worker.histograms.get(operation).record(opEndNanos - opStartNanos);
+                if (outcome > 0) {
+                    worker.missesAndErrors.get(operation)[outcome - 1]++;
+                }
+                completed.increment();
+                measuredOperations++;
+            }
+        }
+    }
+
+    /**
+     * Executes the operation and returns how many tombstones it created, or removed if negative.
+     */
+    private int execute(Dms dms, Operation operation, String directory, String key, ThreadLocalRandom random) {
+        return switch (operation) {
+            case READ -> {
+                dms.getBinaryContent(directory, key);
+                yield 0;
+            }
+            case PUT -> dms.put(directory, key, content(random)) ? 0 : 1;
+            case ADD -> {
+                dms.add(directory, key, content(random));
+                yield 0;
+            }
+            case LIST -> {
+                dms.getKeys(directory, null, key, 100);
+                yield 0;
+            }
+            case DELETE -> {
+                dms.delete(directory, key);
+                yield 1;
+            }
+            case PURGE -> -dms.purge(directory, LocalDateTime.now().minusSeconds(1));
+        };
+    }
+
+    private void populate(Dms dms) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int d = 0; d < profile.directories(); d++) {
+            for (int k = 0; k < profile.keys(); k += 2) {
+                dms.add(directory(d), key(k), content(random));
+            }
+        }
+    }
+
+    /**
+     * Expands the weights into a lookup table, so picking an operation is a single random index.
+     */
+    private Operation[] operationTable() {
+        List<Operation> table = new ArrayList<>();
+        for (Operation operation : Operation.values()) {
+            int weight = profile.operationWeights().getOrDefault(operation, 0);
+            for (int i = 0; i < weight; i++) {
+                table.add(operation);
+            }
+        }
+        return table.toArray(Operation[]::new);
+    }
+
+    private byte[] content(ThreadLocalRandom random) {
+        LoadProfile.ContentSize size = profile.contentSize();
+        double logMin = Math.log(Math.max(1, size.min()));
+        double logMax = Math.log(Math.max(1, size.max()));
+        int length = size.min() == size.max() ? size.min() : (int) Math.exp(logMin + random.nextDouble() * (logMax - logMin));
+        byte[] content = new byte[Math.clamp(length, size.min(), size.max())];
+        random.nextBytes(content);
+        return content;
+    }
+
+    private static String directory(int index) {
+        return "load/dir_%04d".formatted(index);
+    }
+
+    private static String key(int index) {
+        return "doc_%08d".formatted(index);
+    }
+
+    /**
+     * Waits for the threads until the deadline and returns whether all of them finished.
+     */
+    private static boolean joinUntil(List<Thread> threads, long nanos) throws InterruptedException {
+        for (Thread thread : threads) {
+            long remaining = nanos - System.nanoTime();
+            if (remaining <= 0 || !thread.join(Duration.ofNanos(remaining))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void sleepUntil(long nanos) throws InterruptedException {
+        long remaining;
+        while ((remaining = nanos - System.nanoTime()) > 0) {
+            Thread.sleep(Duration.ofNanos(remaining));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> params = new LinkedHashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Expected name=value: %s".formatted(arg));
+            }
+            params.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        Path basePath = Path.of(required(params, "basePath"));
+        LoadProfile profile = LoadProfile.defaults();
+        if (params.containsKey("workspace")) {
+            profile = profile.withWorkspace(params.get("workspace"));
+        }
+        if (params.containsKey("threads") || params.containsKey("virtual")) {
+            profile = profile.withThreads(Integer.parseInt(params.getOrDefault("threads", String.valueOf(profile.threads()))),
+                    Boolean.parseBoolean(params.getOrDefault("virtual", String.valueOf(profile.virtualThreads()))));
+        }
+        if (params.containsKey("duration") || params.containsKey("warmup")) {
+            profile = profile.withDuration(
+                    Duration.ofSeconds(Long.parseLong(params.getOrDefault("duration", String.valueOf(profile.duration().toSeconds())))),
+                    Duration.ofSeconds(Long.parseLong(params.getOrDefault("warmup", String.valueOf(profile.warmup().toSeconds())))));
+        }
+        if (params.containsKey("mix")) {
+            Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+            for (String part : params.get("mix").split(",")) {
+                String[] nameAndWeight = part.split(":");
+                weights.put(Operation.valueOf(nameAndWeight[0].trim().toUpperCase()), Integer.parseInt(nameAndWeight[1].trim()));
+            }
+            profile = profile.withOperationWeights(weights);
+        }
+        if (params.containsKey("keys") || params.containsKey("directories")) {
+            profile = profile.withKeys(Integer.parseInt(params.getOrDefault("directories", String.valueOf(profile.directories()))),
+                    Integer.parseInt(params.getOrDefault("keys", String.valueOf(profile.keys()))));
+        }
+        if (params.containsKey("operations")) {
+            profile = profile.withOperationsPerThread(Long.parseLong(params.get("operations")));
+        }
+        if (params.containsKey("contentSize")) {
+            String[] minMax = params.get("contentSize").split(":");
+            profile = profile.withContentSize(new LoadProfile.ContentSize(Integer.parseInt(minMax[0]), Integer.parseInt(minMax[minMax.length - 1])));
+        }
+
+        for (String durabilityName : params.getOrDefault("durability", DmsDurability.NONE.name()).split(",")) {
+            DmsDurability durability = DmsDurability.valueOf(durabilityName.trim());
+            try (DmsFactory dmsFactory = DmsFactory.newFilesystemDmsFactory(basePath, FilesystemDmsConfig.defaults().withDurability(durability))) {
+                LoadReport report = new LoadHarness(dmsFactory, profile, durability.name()).run();
+                System.out.print(report.toJson());
+                if (params.containsKey("csv")) {
+                    report.appendCsv(Path.of(params.get("csv")));
+                }
+                if (params.containsKey("json")) {
+                    report.writeJson(Path.of(params.get("json").replace(".json", "_" + durability + ".json")));
+                }
+            }
+        }
+    }
+
+    private static String required(Map<String, String> params, String name) {
+        String value = params.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing parameter: %s".formatted(name));
+        }
+        return value;
+    }
+}
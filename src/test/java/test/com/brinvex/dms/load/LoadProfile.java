@@ -0,0 +1,124 @@
+package test.com.brinvex.dms.load;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Workload of a {@link LoadHarness} run.
+ *
+ * @param workspace         workspace the load is run against; it is reset before the run
+ * @param threads           number of concurrent workers
+ * @param virtualThreads    whether the workers are virtual threads
+ * @param duration          how long the measured phase runs, unless the operations per thread are limited
+ * @param warmup            how long the workers run before the measurements start
+ * @param operationWeights  relative frequency of each operation
+ * @param directories       number of directories the keys are spread over
+ * @param keys              number of distinct keys per directory
+ * @param contentSize       size distribution of the written documents
+ * @param sampleInterval    how often the throughput and the tombstone count are sampled
+ * @param operationsPerThread if positive, each worker stops after this many measured operations instead of after the duration,
+ *                          so the amount of work does not depend on the speed of the machine
+ */
+public record LoadProfile(
+        String workspace,
+        int threads,
+        boolean virtualThreads,
+        Duration duration,
+        Duration warmup,
+        Map<Operation, Integer> operationWeights,
+        int directories,
+        int keys,
+        ContentSize contentSize,
+        Duration sampleInterval,
+        long operationsPerThread
+) {
+    public enum Operation {
+        READ,
+        PUT,
+        ADD,
+        LIST,
+        DELETE,
+        PURGE
+    }
+
+    /**
+     * Document sizes drawn from a log-uniform distribution between {@code min} and {@code max} bytes,
+     * i.e. small documents are as common as each order of magnitude of the larger ones.
+     */
+    public record ContentSize(int min, int max) {
+        public ContentSize {
+            if (min < 0 || max < min) {
+                throw new IllegalArgumentException("Invalid content size: min=%s, max=%s".formatted(min, max));
+            }
+        }
+    }
+
+    public LoadProfile {
+        requireNonNull(workspace);
+        requireNonNull(duration);
+        requireNonNull(warmup);
+        requireNonNull(contentSize);
+        requireNonNull(sampleInterval);
+        operationWeights = Map.copyOf(operationWeights);
+        if (threads <= 0 || directories <= 0 || keys <= 0) {
+            throw new IllegalArgumentException("threads, directories and keys must be positive: %s, %s, %s"
+                    .formatted(threads, directories, keys));
+        }
+        if (operationsPerThread < 0) {
+            throw new IllegalArgumentException("Invalid operations per thread: %s".formatted(operationsPerThread));
+        }
+        if (operationWeights.values().stream().mapToInt(Integer::intValue).sum() <= 0) {
+            throw new IllegalArgumentException("No operation has a positive weight: %s".formatted(operationWeights));
+        }
+    }
+
+    /**
+     * A read-mostly mix with a steady trickle of overrides and deletes, which accumulate tombstones until purged.
+     */
+    public static LoadProfile defaults() {
+        Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+        weights.put(Operation.READ, 60);
+        weights.put(Operation.PUT, 20);
+        weights.put(Operation.ADD, 5);
+        weights.put(Operation.LIST, 10);
+        weights.put(Operation.DELETE, 5);
+        weights.put(Operation.PURGE, 0);
+        return new LoadProfile("load_test", 16, true, Duration.ofSeconds(30), Duration.ofSeconds(5),
+                weights, 10, 1000, new ContentSize(100, 100_000), Duration.ofSeconds(1), 0);
+    }
+
+    public LoadProfile withWorkspace(String workspace) {
+        return new LoadProfile(workspace, threads, virtualThreads, duration, warmup, operationWeights, directories, keys, contentSize, sampleInterval, operationsPerThread);
+    }
+
+    public LoadProfile withThreads(int threads, boolean virtualThreads) {
+        return new LoadProfile(workspace, threads, virtualThreads, duration, warmup, operationWeights, directories, keys, contentSize, sampleInterval, operationsPerThread);
+    }
+
+    public LoadProfile withDuration(Duration duration, Duration warmup) {
+        return new LoadProfile(workspace, threads, virtualThreads, duration, warmup, operationWeights, directories, keys, contentSize, sampleInterval, operationsPerThread);
+    }
+
+    public LoadProfile withOperationWeights(Map<Operation, Integer> operationWeights) {
+        return new LoadProfile(workspace, threads, virtualThreads, duration, warmup, operationWeights, directories, keys, contentSize, sampleInterval, operationsPerThread);
+    }
+
+    public LoadProfile withKeys(int directories, int keys) {
+        return new LoadProfile(workspace, threads, virtualThreads, duration, warmup, operationWeights, directories, keys, contentSize, sampleInterval, operationsPerThread);
+    }
+
+    public LoadProfile withContentSize(ContentSize contentSize) {
+        return new LoadProfile(workspace, threads, virtualThreads, duration, warmup, operationWeights, directories, keys, contentSize, sampleInterval, operationsPerThread);
+    }
+
+    public LoadProfile withSampleInterval(Duration sampleInterval) {
+        return new LoadProfile(workspace, threads, virtualThreads, duration, warmup, operationWeights, directories, keys, contentSize, sampleInterval, operationsPerThread);
+    }
+
+    public LoadProfile withOperationsPerThread(long operationsPerThread) {
+        return new LoadProfile(workspace, threads, virtualThreads, duration, warmup, operationWeights, directories, keys, contentSize, sampleInterval, operationsPerThread);
+    }
+}
@@ -0,0 +1,113 @@
+package test.com.brinvex.dms.load;
+
+import test.com.brinvex.dms.load.LoadProfile.Operation;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringJoiner;
+
+/**
+ * Result of a {@link LoadHarness} run.
+ *
+ * @param label      free-form label of the run, e.g. the durability mode, to tell the runs apart when comparing
+ * @param duration   measured duration
+ * @param operations statistics per operation
+ * @param samples    throughput and tombstone count over time
+ */
+public record LoadReport(
+        String label,
+        Duration duration,
+        Map<Operation, OperationStats> operations,
+        List<Sample> samples
+) {
+    /**
+     * @param count  number of completed operations, including misses
+     * @param misses operations on a key which did not exist, or already existed for {@link Operation#ADD}
+     * @param errors operations which failed for another reason
+     */
+    public record OperationStats(
+            long count,
+            long misses,
+            long errors,
+            double throughputPerSecond,
+            long p50Nanos,
+            long p90Nanos,
+            long p99Nanos,
+            long p999Nanos,
+            long maxNanos
+    ) {
+    }
+
+    /**
+     * @param elapsed         time since the start of the measured phase
+     * @param operations      operations completed during the sample interval
+     * @param historyDocuments obsolete document versions in the workspace at the end of the sample interval
+     */
+    public record Sample(Duration elapsed, long operations, long historyDocuments) {
+    }
+
+    /**
+     * Writes one line per operation; the header is written only to a new file, so runs can be appended.
+     */
+    public void appendCsv(Path path) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        if (!Files.exists(path)) {
+            sb.append("label,operation,count,misses,errors,throughput_per_s,p50_us,p90_us,p99_us,p999_us,max_us\n");
+        }
+        for (Map.Entry<Operation, OperationStats> e : operations.entrySet()) {
+            OperationStats s = e.getValue();
+            StringJoiner line = new StringJoiner(",", "", "\n");
+            line.add(label)
+                    .add(e.getKey().name())
+                    .add(String.valueOf(s.count()))
+                    .add(String.valueOf(s.misses()))
+                    .add(String.valueOf(s.errors()))
+                    .add(String.format(Locale.ROOT, "%.1f", s.throughputPerSecond()))
+                    .add(micros(s.p50Nanos()))
+                    .add(micros(s.p90Nanos()))
+                    .add(micros(s.p99Nanos()))
+                    .add(micros(s.p999Nanos()))
+                    .add(micros(s.maxNanos()));
+            sb.append(line);
+        }
+        Files.writeString(path, sb, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    public void writeJson(Path path) throws IOException {
+        Files.writeString(path, toJson());
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"label\": \"").append(label.replace("\\", "\\\\").replace("\"", "\\\"")).append("\",\n");
+        sb.append("  \"durationMillis\": ").append(duration.toMillis()).append(",\n");
+        sb.append("  \"operations\": {");
+        StringJoiner ops = new StringJoiner(",", "\n", "\n  ");
+        for (Map.Entry<Operation, OperationStats> e : operations.entrySet()) {
+            OperationStats s = e.getValue();
+            ops.add(String.format(Locale.ROOT, "    \"%s\": {\"count\": %d, \"misses\": %d, \"errors\": %d, \"throughputPerSecond\": %.1f, "
+                                               + "\"p50Micros\": %s, \"p90Micros\": %s, \"p99Micros\": %s, \"p999Micros\": %s, \"maxMicros\": %s}",
+                    e.getKey().name(), s.count(), s.misses(), s.errors(), s.throughputPerSecond(),
+                    micros(s.p50Nanos()), micros(s.p90Nanos()), micros(s.p99Nanos()), micros(s.p999Nanos()), micros(s.maxNanos())));
+        }
+        sb.append(operations.isEmpty() ? "" : ops.toString()).append("},\n");
+        sb.append("  \"samples\": [");
+        StringJoiner samplesJson = new StringJoiner(",", "\n", "\n  ");
+        for (Sample sample : samples) {
+            samplesJson.add("    {\"elapsedMillis\": %d, \"operations\": %d, \"historyDocuments\": %d}"
+                    .formatted(sample.elapsed().toMillis(), sample.operations(), sample.historyDocuments()));
+        }
+        sb.append(samples.isEmpty() ? "" : samplesJson.toString()).append("]\n}\n");
+        return sb.toString();
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1000.0);
+    }
+}